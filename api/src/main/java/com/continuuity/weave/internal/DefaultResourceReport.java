@@ -17,35 +17,40 @@ package com.continuuity.weave.internal;
 
 import com.continuuity.weave.api.ResourceReport;
 import com.continuuity.weave.api.WeaveRunResources;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Implementation of {@link com.continuuity.weave.api.ResourceReport} with some
- * additional methods for maintaining the report.
+ * additional methods for maintaining the report. The report can be updated and read concurrently,
+ * with the getter methods returning snapshots.
  */
 public final class DefaultResourceReport implements ResourceReport {
-  private final SetMultimap<String, WeaveRunResources> usedResources;
+  // Map from runnableName to a map from containerId to resources used by the container.
+  private final ConcurrentMap<String, ConcurrentMap<String, WeaveRunResources>> usedResources;
   private final WeaveRunResources appMasterResources;
   private final String applicationId;
 
   public DefaultResourceReport(String applicationId, WeaveRunResources masterResources) {
     this.applicationId = applicationId;
     this.appMasterResources = masterResources;
-    this.usedResources = HashMultimap.create();
+    this.usedResources = Maps.newConcurrentMap();
   }
 
   public DefaultResourceReport(String applicationId, WeaveRunResources masterResources,
                                Map<String, Collection<WeaveRunResources>> resources) {
     this.applicationId = applicationId;
     this.appMasterResources = masterResources;
-    this.usedResources = HashMultimap.create();
+    this.usedResources = Maps.newConcurrentMap();
     for (Map.Entry<String, Collection<WeaveRunResources>> entry : resources.entrySet()) {
-      this.usedResources.putAll(entry.getKey(), entry.getValue());
+      for (WeaveRunResources runResources : entry.getValue()) {
+        addRunResources(entry.getKey(), runResources);
+      }
     }
   }
 
@@ -56,7 +61,15 @@ public final class DefaultResourceReport implements ResourceReport {
    * @param resources resources to add.
    */
   public void addRunResources(String runnableName, WeaveRunResources resources) {
-    usedResources.put(runnableName, resources);
+    ConcurrentMap<String, WeaveRunResources> runnableResources = usedResources.get(runnableName);
+    if (runnableResources == null) {
+      ConcurrentMap<String, WeaveRunResources> newResources = Maps.newConcurrentMap();
+      runnableResources = usedResources.putIfAbsent(runnableName, newResources);
+      if (runnableResources == null) {
+        runnableResources = newResources;
+      }
+    }
+    runnableResources.put(resources.getContainerId(), resources);
   }
 
   /**
@@ -66,16 +79,11 @@ public final class DefaultResourceReport implements ResourceReport {
    * @param containerId container id of the runnable.
    */
   public void removeRunnableResources(String runnableName, String containerId) {
-    WeaveRunResources toRemove = null;
-    // could be faster if usedResources was a Table, but that makes returning the
-    // report a little more complex, and this does not need to be terribly fast.
-    for (WeaveRunResources resources : usedResources.get(runnableName)) {
-      if (resources.getContainerId().equals(containerId)) {
-        toRemove = resources;
-        break;
-      }
+    // The per runnable map is kept even if it becomes empty, as there are only a few runnables in an application.
+    Map<String, WeaveRunResources> runnableResources = usedResources.get(runnableName);
+    if (runnableResources != null) {
+      runnableResources.remove(containerId);
     }
-    usedResources.remove(runnableName, toRemove);
   }
 
   /**
@@ -86,7 +94,11 @@ public final class DefaultResourceReport implements ResourceReport {
    */
   @Override
   public Collection<WeaveRunResources> getRunnableResources(String runnableName) {
-    return usedResources.get(runnableName);
+    Map<String, WeaveRunResources> runnableResources = usedResources.get(runnableName);
+    if (runnableResources == null) {
+      return ImmutableList.of();
+    }
+    return ImmutableList.copyOf(runnableResources.values());
   }
 
   /**
@@ -96,7 +108,14 @@ public final class DefaultResourceReport implements ResourceReport {
    */
   @Override
   public Map<String, Collection<WeaveRunResources>> getResources() {
-    return Multimaps.unmodifiableSetMultimap(usedResources).asMap();
+    ImmutableMap.Builder<String, Collection<WeaveRunResources>> builder = ImmutableMap.builder();
+    for (Map.Entry<String, ConcurrentMap<String, WeaveRunResources>> entry : usedResources.entrySet()) {
+      Collection<WeaveRunResources> runnableResources = ImmutableList.copyOf(entry.getValue().values());
+      if (!runnableResources.isEmpty()) {
+        builder.put(entry.getKey(), runnableResources);
+      }
+    }
+    return builder.build();
   }
 
   /**
@@ -26,6 +26,9 @@ import com.google.common.util.concurrent.Service;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -33,6 +36,15 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public abstract class AbstractExecutionServiceController implements ServiceController {
 
+  static final int MAX_TRANSITION_THREADS = 8;
+
+  /**
+   * Executor shared by all controllers for running the {@link #startUp()} and {@link #shutDown()} transitions.
+   * Transitions are expected to be short and non-blocking, hence a small pool serves thousands of controllers.
+   * Idle threads are released, so no thread is kept when there is no transition.
+   */
+  private static final Executor TRANSITION_EXECUTOR = createTransitionExecutor();
+
   private final RunId runId;
   private final ListenerExecutors listenerExecutors;
   private final Service serviceDelegate;
@@ -88,17 +100,22 @@ public abstract class AbstractExecutionServiceController implements ServiceContr
     return serviceDelegate.stop();
   }
 
-  protected Executor executor(final State state) {
-    return new Executor() {
-      @Override
-      public void execute(Runnable command) {
-        Thread t = new Thread(command, getClass().getSimpleName() + " " + state);
-        t.setDaemon(true);
-        t.start();
-      }
-    };
+  /**
+   * Returns the {@link Executor} for executing the transition to the given state. By default it is an executor
+   * shared by all controllers. Subclasses that block in {@link #startUp()} or {@link #shutDown()} should
+   * override this method to run the transition in a dedicated thread.
+   */
+  protected Executor executor(State state) {
+    return TRANSITION_EXECUTOR;
   }
 
+  private static Executor createTransitionExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_TRANSITION_THREADS, MAX_TRANSITION_THREADS,
+                                                         60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                         Threads.createDaemonThreadFactory("service-controller-%d"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
 
   private final class ServiceDelegate extends AbstractIdleService {
     @Override
@@ -19,29 +19,44 @@ import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.WeaveController;
 import com.continuuity.weave.api.logging.LogEntry;
 import com.continuuity.weave.api.logging.LogHandler;
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.discovery.Discoverable;
 import com.continuuity.weave.discovery.DiscoveryServiceClient;
 import com.continuuity.weave.discovery.ZKDiscoveryService;
 import com.continuuity.weave.internal.json.StackTraceElementCodec;
 import com.continuuity.weave.internal.kafka.client.SimpleKafkaClient;
+import com.continuuity.weave.internal.logging.BinaryLogEntryDecoder;
 import com.continuuity.weave.internal.logging.LogEntryDecoder;
 import com.continuuity.weave.internal.state.SystemMessages;
+import com.continuuity.weave.kafka.client.FetchException;
 import com.continuuity.weave.kafka.client.FetchedMessage;
 import com.continuuity.weave.kafka.client.KafkaClient;
+import com.continuuity.weave.kafka.client.MessageCallback;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.continuuity.weave.zookeeper.ZKClients;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A abstract base class for {@link WeaveController} implementation that uses Zookeeper to controller a
@@ -51,21 +66,31 @@ public abstract class AbstractWeaveController extends AbstractZKServiceControlle
 
   private static final Logger LOG = LoggerFactory.getLogger(AbstractWeaveController.class);
   private static final int MAX_KAFKA_FETCH_SIZE = 1048576;
-  private static final long SHUTDOWN_TIMEOUT_MS = 2000;
-  private static final long LOG_FETCH_TIMEOUT_MS = 5000;
+  private static final long LOG_FETCH_RETRY_MS = 1000;
+
+  /**
+   * Maximum number of fetched batches of log messages waiting for the {@link LogHandler}s before fetching pauses.
+   * Each batch is at most {@link #MAX_KAFKA_FETCH_SIZE} bytes.
+   */
+  private static final int MAX_PENDING_LOG_BATCHES = 4;
+
+  /**
+   * Scheduler shared by all log pollers for retrying. It only starts kafka clients and fetches, and never blocks.
+   */
+  private static final ScheduledExecutorService LOG_POLLER_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+                                                                Threads.createDaemonThreadFactory("weave-log-poller"));
 
   private final Queue<LogHandler> logHandlers;
-  private final KafkaClient kafkaClient;
   private final DiscoveryServiceClient discoveryServiceClient;
-  private final LogPollerThread logPoller;
+  private final LogPoller logPoller;
 
   public AbstractWeaveController(RunId runId, ZKClient zkClient, Iterable<LogHandler> logHandlers) {
     super(runId, zkClient);
     this.logHandlers = new ConcurrentLinkedQueue<LogHandler>();
-    this.kafkaClient = new SimpleKafkaClient(ZKClients.namespace(zkClient, "/" + runId.getId() + "/kafka"));
     this.discoveryServiceClient = new ZKDiscoveryService(zkClient);
     Iterables.addAll(this.logHandlers, logHandlers);
-    this.logPoller = new LogPollerThread(runId, kafkaClient, logHandlers);
+    this.logPoller = new LogPoller(runId, ZKClients.namespace(zkClient, "/" + runId.getId() + "/kafka"),
+                                   this.logHandlers);
   }
 
   @Override
@@ -77,21 +102,13 @@ public abstract class AbstractWeaveController extends AbstractZKServiceControlle
 
   @Override
   protected void doShutDown() {
-    logPoller.terminate();
-    try {
-      // Wait for the poller thread to stop.
-      logPoller.join(SHUTDOWN_TIMEOUT_MS);
-    } catch (InterruptedException e) {
-      LOG.warn("Joining of log poller thread interrupted.", e);
-    }
+    logPoller.stop();
   }
 
   @Override
   public final synchronized void addLogHandler(LogHandler handler) {
     logHandlers.add(handler);
-    if (!logPoller.isAlive()) {
-      logPoller.start();
-    }
+    logPoller.start();
   }
 
   @Override
@@ -104,74 +121,260 @@ public abstract class AbstractWeaveController extends AbstractZKServiceControlle
     return sendMessage(SystemMessages.setInstances(runnable, newCount), newCount);
   }
 
-  private static final class LogPollerThread extends Thread {
+  /**
+   * Consumes log messages from kafka through {@link MessageCallback} and invokes the {@link LogHandler}s from a
+   * dedicated thread, so that slow handlers don't hold up the kafka client I/O threads. Consumption is paused while
+   * too many fetched batches are waiting for the handlers, and resumes from the last received offset after failure.
+   */
+  private static final class LogPoller implements MessageCallback {
 
-    private final KafkaClient kafkaClient;
+    private final String name;
+    private final ZKClient kafkaZKClient;
     private final Iterable<LogHandler> logHandlers;
+    private final Gson gson;
+    private final BinaryLogEntryDecoder binaryDecoder;
+    private final ExecutorService handlerExecutor;
+    private final AtomicBoolean started;
+    private final AtomicReference<KafkaClient> kafkaClient;
+    private final AtomicReference<Cancellable> consumer;
+    private final AtomicInteger pendingBatches;
+    private final AtomicBoolean paused;
+    private final Runnable startClientTask = new Runnable() {
+      @Override
+      public void run() {
+        startClient();
+      }
+    };
+    private final Runnable fetchOffsetTask = new Runnable() {
+      @Override
+      public void run() {
+        fetchOffset();
+      }
+    };
     private volatile boolean running = true;
+    private volatile long nextOffset = -1;
 
-    LogPollerThread(RunId runId, KafkaClient kafkaClient, Iterable<LogHandler> logHandlers) {
-      super("weave-log-poller-" + runId.getId());
-      setDaemon(true);
-      this.kafkaClient = kafkaClient;
+    LogPoller(RunId runId, ZKClient kafkaZKClient, Iterable<LogHandler> logHandlers) {
+      this.name = "weave-log-poller-" + runId.getId();
+      this.kafkaZKClient = kafkaZKClient;
       this.logHandlers = logHandlers;
+      this.gson = new GsonBuilder().registerTypeAdapter(LogEntry.class, new LogEntryDecoder())
+                                   .registerTypeAdapter(StackTraceElement.class, new StackTraceElementCodec())
+                                   .create();
+      this.binaryDecoder = new BinaryLogEntryDecoder();
+      // The thread is only created when the first batch of messages is received.
+      this.handlerExecutor = Executors.newSingleThreadExecutor(
+        Threads.createDaemonThreadFactory("weave-log-handler-" + runId.getId()));
+      this.started = new AtomicBoolean();
+      this.kafkaClient = new AtomicReference<KafkaClient>();
+      this.consumer = new AtomicReference<Cancellable>();
+      this.pendingBatches = new AtomicInteger();
+      this.paused = new AtomicBoolean();
+    }
+
+    void start() {
+      if (!running || !started.compareAndSet(false, true)) {
+        return;
+      }
+      startClient();
+    }
+
+    void stop() {
+      running = false;
+      Cancellable cancellable = consumer.getAndSet(null);
+      if (cancellable != null) {
+        cancellable.cancel();
+      }
+      // Batches already received are still delivered.
+      handlerExecutor.shutdown();
+
+      KafkaClient client = kafkaClient.getAndSet(null);
+      if (client == null) {
+        return;
+      }
+      Futures.addCallback(client.stop(), new FutureCallback<State>() {
+        @Override
+        public void onSuccess(State result) {
+          LOG.info("Weave log poller '{}' stopped.", name);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.warn("Failed to stop kafka client for log poller '{}'.", name, t);
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
     }
 
     @Override
-    public void run() {
-      LOG.info("Weave log poller thread '{}' started.", getName());
-      kafkaClient.startAndWait();
-      Gson gson = new GsonBuilder().registerTypeAdapter(LogEntry.class, new LogEntryDecoder())
-        .registerTypeAdapter(StackTraceElement.class, new StackTraceElementCodec())
-        .create();
-
-      while (running && !isInterrupted()) {
-        long offset;
-        try {
-          // Get the earliest offset
-          long[] offsets = kafkaClient.getOffset(Constants.LOG_TOPIC, 0, -2, 1).get(LOG_FETCH_TIMEOUT_MS,
-                                                                                    TimeUnit.MILLISECONDS);
-          // Should have one entry
-          offset = offsets[0];
-        } catch (Throwable t) {
-          // Keep retrying
-          LOG.warn("Failed to fetch offsets from Kafka. Retrying.", t);
-          continue;
+    public void onReceived(final List<FetchedMessage> messages) {
+      nextOffset = messages.get(messages.size() - 1).getOffset();
+      if (pendingBatches.incrementAndGet() >= MAX_PENDING_LOG_BATCHES) {
+        // Stops fetching until the handlers catch up. Resumed when the last pending batch is handled.
+        paused.set(true);
+        Cancellable cancellable = consumer.getAndSet(null);
+        if (cancellable != null) {
+          cancellable.cancel();
         }
+      }
 
-        // Now fetch log messages from Kafka
-        Iterator<FetchedMessage> messageIterator = kafkaClient.consume(Constants.LOG_TOPIC, 0,
-                                                                       offset, MAX_KAFKA_FETCH_SIZE);
-        try {
-          while (messageIterator.hasNext()) {
-            String json = Charsets.UTF_8.decode(messageIterator.next().getBuffer()).toString();
+      try {
+        handlerExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
             try {
-              LogEntry entry = gson.fromJson(json, LogEntry.class);
-              if (entry != null) {
-                invokeHandlers(entry);
+              for (FetchedMessage message : messages) {
+                handleMessage(message.getBuffer());
+              }
+            } finally {
+              if (pendingBatches.decrementAndGet() == 0 && paused.compareAndSet(true, false)) {
+                fetchOffset();
               }
-            } catch (Exception e) {
-              LOG.error("Failed to decode log entry {}", json, e);
             }
           }
-        } catch (Throwable t) {
-          LOG.warn("Exception while fetching log message from Kafka. Retrying.", t);
-          continue;
+        });
+      } catch (RejectedExecutionException e) {
+        // The poller is stopped.
+        pendingBatches.decrementAndGet();
+      }
+    }
+
+    @Override
+    public void finished(Throwable failureCause) {
+      if (failureCause == null || !running) {
+        return;
+      }
+      if (failureCause instanceof FetchException) {
+        FetchException fetchException = (FetchException) failureCause;
+        if (fetchException.getErrorCode() == FetchException.ErrorCode.OFFSET_OUT_OF_RANGE) {
+          LOG.warn("Log message offset {} out of range. Restart from the earliest offset.", nextOffset);
+          nextOffset = -1;
+          retry();
+          return;
+        }
+        if (fetchException.getErrorCode() == FetchException.ErrorCode.INVALID_MESSAGE
+          && fetchException.getNextOffset() >= 0) {
+          // Fetching from the same offset would fail again, hence skip the message.
+          nextOffset = fetchException.getNextOffset();
+          LOG.error("Skipping invalid log message. Resuming from offset {}.", nextOffset, failureCause);
+          fetchOffset();
+          return;
+        }
+      }
+      LOG.warn("Exception while fetching log message from Kafka. Retrying.", failureCause);
+      retry();
+    }
+
+    /**
+     * Starts a new kafka client without blocking the shared scheduler, so that a slow broker doesn't delay other
+     * pollers. A failed client cannot be restarted, hence a new one is created for each attempt.
+     */
+    private void startClient() {
+      if (!running) {
+        return;
+      }
+      final KafkaClient client = new SimpleKafkaClient(kafkaZKClient);
+      kafkaClient.set(client);
+      if (!running) {
+        // Stopped concurrently, and the client is not started.
+        return;
+      }
+      Futures.addCallback(client.start(), new FutureCallback<State>() {
+        @Override
+        public void onSuccess(State result) {
+          LOG.info("Weave log poller '{}' started.", name);
+          fetchOffset();
         }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.error("Failed to start kafka client for log poller '{}'. Retrying.", name, t);
+          kafkaClient.compareAndSet(client, null);
+          schedule(startClientTask);
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Starts consuming from the last received offset, or from the earliest offset if nothing has been received.
+     */
+    private void fetchOffset() {
+      KafkaClient client = kafkaClient.get();
+      if (!running || paused.get() || client == null) {
+        return;
       }
+      if (nextOffset >= 0) {
+        consume(client, nextOffset);
+        return;
+      }
+
+      final KafkaClient offsetClient = client;
+      Futures.addCallback(client.getOffset(Constants.LOG_TOPIC, 0, -2, 1), new FutureCallback<long[]>() {
+        @Override
+        public void onSuccess(long[] offsets) {
+          // Should have one entry
+          consume(offsetClient, offsets[0]);
+        }
 
-      kafkaClient.stopAndWait();
-      LOG.info("Weave log poller thread stopped.");
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.warn("Failed to fetch offsets from Kafka. Retrying.", t);
+          retry();
+        }
+      });
     }
 
-    void terminate() {
-      running = false;
-      interrupt();
+    private void consume(KafkaClient client, long offset) {
+      Cancellable cancellable = client.consume(Constants.LOG_TOPIC, 0, offset, MAX_KAFKA_FETCH_SIZE, this);
+      consumer.set(cancellable);
+      if ((!running || paused.get()) && consumer.compareAndSet(cancellable, null)) {
+        // Stopped or paused concurrently.
+        cancellable.cancel();
+      }
+    }
+
+    private void retry() {
+      schedule(fetchOffsetTask);
+    }
+
+    private void schedule(Runnable task) {
+      if (!running) {
+        return;
+      }
+      try {
+        LOG_POLLER_SCHEDULER.schedule(task, LOG_FETCH_RETRY_MS, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        LOG.warn("Failed to schedule log poller retry.", e);
+      }
+    }
+
+    private void handleMessage(ByteBuffer buffer) {
+      if (BinaryLogEntryDecoder.isBinary(buffer)) {
+        try {
+          invokeHandlers(binaryDecoder.decode(buffer));
+        } catch (Exception e) {
+          LOG.error("Failed to decode binary log entry of {} bytes", buffer.remaining(), e);
+        }
+        return;
+      }
+
+      String json = Charsets.UTF_8.decode(buffer).toString();
+      try {
+        LogEntry entry = gson.fromJson(json, LogEntry.class);
+        if (entry != null) {
+          invokeHandlers(entry);
+        }
+      } catch (Exception e) {
+        LOG.error("Failed to decode log entry {}", json, e);
+      }
     }
 
     private void invokeHandlers(LogEntry entry) {
       for (LogHandler handler : logHandlers) {
-        handler.onLog(entry);
+        try {
+          handler.onLog(entry);
+        } catch (Throwable t) {
+          LOG.error("Exception raised from LogHandler {}.", handler, t);
+        }
       }
     }
   }
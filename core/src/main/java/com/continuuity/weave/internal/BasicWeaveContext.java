@@ -19,17 +19,40 @@ import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.WeaveContext;
 import com.continuuity.weave.api.WeaveRunnableSpecification;
 import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.discovery.Discoverable;
 import com.continuuity.weave.discovery.DiscoveryService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *
  */
 public final class BasicWeaveContext implements WeaveContext {
 
+  /**
+   * Handler to be notified when a service announcement fails.
+   */
+  public interface AnnounceFailureHandler {
+    void failed(String serviceName, int port, Throwable cause);
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(BasicWeaveContext.class);
+
+  // Un-registration blocks on zookeeper, hence it is not done from the thread that completes the registration.
+  private static final Executor CANCEL_EXECUTOR =
+    Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("announce-cancel"));
+
   private final RunId runId;
   private final RunId appRunId;
   private final InetAddress host;
@@ -41,6 +64,7 @@ public final class BasicWeaveContext implements WeaveContext {
   private final int allowedMemoryMB;
   private final int virtualCores;
   private volatile int instanceCount;
+  private volatile AnnounceFailureHandler announceFailureHandler;
 
   public BasicWeaveContext(RunId runId, RunId appRunId, InetAddress host, String[] args, String[] appArgs,
                            WeaveRunnableSpecification spec, int instanceId, DiscoveryService discoveryService,
@@ -77,6 +101,14 @@ public final class BasicWeaveContext implements WeaveContext {
     this.instanceCount = count;
   }
 
+  /**
+   * Sets the handler to be notified when a service announcement fails, unless the announcement was cancelled.
+   * Without a handler, failures are only logged.
+   */
+  public void setAnnounceFailureHandler(@Nullable AnnounceFailureHandler handler) {
+    this.announceFailureHandler = handler;
+  }
+
   @Override
   public InetAddress getHost() {
     return host;
@@ -112,9 +144,14 @@ public final class BasicWeaveContext implements WeaveContext {
     return allowedMemoryMB;
   }
 
+  /**
+   * Announces the service without waiting for the registration to complete, so that the runnable is not blocked by
+   * zookeeper latency. Cancelling the returned {@link Cancellable} un-registers the service once it is registered.
+   * A registration failure is reported to the {@link AnnounceFailureHandler}.
+   */
   @Override
   public Cancellable announce(final String serviceName, final int port) {
-    return discoveryService.register(new Discoverable() {
+    final ListenableFuture<Cancellable> future = discoveryService.registerAsync(new Discoverable() {
       @Override
       public String getName() {
         return serviceName;
@@ -125,5 +162,48 @@ public final class BasicWeaveContext implements WeaveContext {
         return new InetSocketAddress(getHost(), port);
       }
     });
+
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    Futures.addCallback(future, new FutureCallback<Cancellable>() {
+      @Override
+      public void onSuccess(Cancellable result) {
+        LOG.debug("Service announced: {} {}", serviceName, port);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        LOG.error("Failed to announce service {} on port {}.", new Object[] {serviceName, port, t});
+        AnnounceFailureHandler handler = announceFailureHandler;
+        if (handler != null && !cancelled.get()) {
+          handler.failed(serviceName, port, t);
+        }
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+
+    return new Cancellable() {
+      @Override
+      public void cancel() {
+        cancelled.set(true);
+        if (future.isDone()) {
+          cancelRegistration(future);
+          return;
+        }
+        future.addListener(new Runnable() {
+          @Override
+          public void run() {
+            cancelRegistration(future);
+          }
+        }, CANCEL_EXECUTOR);
+      }
+    };
+  }
+
+  private void cancelRegistration(ListenableFuture<Cancellable> future) {
+    try {
+      Futures.getUnchecked(future).cancel();
+    } catch (Throwable t) {
+      // Registration failed, nothing to cancel.
+      LOG.debug("No registration to cancel.", t);
+    }
   }
 }
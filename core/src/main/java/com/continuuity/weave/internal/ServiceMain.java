@@ -126,6 +126,7 @@ public abstract class ServiceMain {
       "        <topic>" + Constants.LOG_TOPIC + "</topic>\n" +
       "        <hostname>" + getHostname() + "</hostname>\n" +
       "        <zookeeper>" + getKafkaZKConnect() + "</zookeeper>\n" +
+      "        <encoding>binary</encoding>\n" +
       "    </appender>\n" +
       "    <logger name=\"com.continuuity.weave.internal.logging\" additivity=\"false\" />\n" +
       "    <root level=\"" + rootLevel + "\">\n" +
@@ -40,6 +40,7 @@ import org.slf4j.LoggerFactory;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class act as a yarn container and run a {@link WeaveRunnable}.
@@ -53,6 +54,7 @@ public final class WeaveContainerService implements Service {
   private final ContainerLiveNodeData containerLiveNode;
   private final BasicWeaveContext context;
   private final ZKServiceDecorator serviceDelegate;
+  private final AtomicReference<Throwable> announceFailure;
   private ExecutorService commandExecutor;
   private WeaveRunnable runnable;
 
@@ -62,6 +64,7 @@ public final class WeaveContainerService implements Service {
     this.classLoader = classLoader;
     this.serviceDelegate = new ZKServiceDecorator(zkClient, runId, createLiveNodeSupplier(), new ServiceDelegate());
     this.context = context;
+    this.announceFailure = new AtomicReference<Throwable>();
     this.containerLiveNode = new ContainerLiveNodeData(containerInfo.getId(),
                                                        containerInfo.getHost().getCanonicalHostName());
   }
@@ -140,6 +143,17 @@ public final class WeaveContainerService implements Service {
 
     @Override
     protected void startUp() throws Exception {
+      // Stop the runnable if it fails to announce a service. The failure fails this service when shutting down.
+      context.setAnnounceFailureHandler(new BasicWeaveContext.AnnounceFailureHandler() {
+        @Override
+        public void failed(String serviceName, int port, Throwable cause) {
+          if (announceFailure.compareAndSet(null, cause)) {
+            LOG.error("Stopping runnable due to failure in announcing service {} on port {}.", serviceName, port);
+            serviceDelegate.stop();
+          }
+        }
+      });
+
       Class<?> runnableClass = classLoader.loadClass(specification.getClassName());
       Preconditions.checkArgument(WeaveRunnable.class.isAssignableFrom(runnableClass),
                                   "Class %s is not instance of WeaveRunnable.", specification.getClassName());
@@ -161,6 +175,11 @@ public final class WeaveContainerService implements Service {
     protected void shutDown() throws Exception {
       runnable.destroy();
       Loggings.forceFlush();
+
+      Throwable failure = announceFailure.get();
+      if (failure != null) {
+        throw new IllegalStateException("Failed to announce service.", failure);
+      }
     }
 
     @Override
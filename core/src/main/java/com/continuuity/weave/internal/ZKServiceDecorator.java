@@ -29,6 +29,7 @@ import com.continuuity.weave.zookeeper.NodeChildren;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.OperationFuture;
 import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOp;
 import com.continuuity.weave.zookeeper.ZKOperations;
 import com.google.common.base.Charsets;
 import com.google.common.base.Supplier;
@@ -41,12 +42,14 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
@@ -121,37 +124,79 @@ public final class ZKServiceDecorator extends AbstractService {
   @Override
   protected void doStart() {
     callbackExecutor = Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("message-callback"));
-    Futures.addCallback(createLiveNode(), new FutureCallback<String>() {
+    Futures.addCallback(createNodes(), new FutureCallback<Object>() {
       @Override
-      public void onSuccess(String result) {
-        // Create nodes for states and messaging
-        StateNode stateNode = new StateNode(ServiceController.State.STARTING);
+      public void onSuccess(Object result) {
+        // Starts the decorated service
+        decoratedService.addListener(createListener(), Threads.SAME_THREAD_EXECUTOR);
+        decoratedService.start();
+      }
 
-        final ListenableFuture<List<String>> createFuture = Futures.allAsList(
-          deleteAndCreate(getZKPath("messages"), null, CreateMode.PERSISTENT),
-          deleteAndCreate(getZKPath("state"), encodeStateNode(stateNode), CreateMode.PERSISTENT)
-        );
+      @Override
+      public void onFailure(Throwable t) {
+        notifyFailed(t);
+      }
+    });
+  }
 
-        createFuture.addListener(new Runnable() {
-          @Override
-          public void run() {
-            try {
-              createFuture.get();
-              // Starts the decorated service
-              decoratedService.addListener(createListener(), Threads.SAME_THREAD_EXECUTOR);
-              decoratedService.start();
-            } catch (Exception e) {
-              notifyFailed(e);
-            }
-          }
-        }, Threads.SAME_THREAD_EXECUTOR);
+  /**
+   * Creates the live node and the nodes for states and messaging. On a fresh start none of them exists, and they
+   * are created with one multi call. Otherwise it falls back to create the live node, then recreate the others.
+   */
+  private ListenableFuture<Object> createNodes() {
+    final byte[] liveNodeData = encodeLiveNodeData();
+    final byte[] stateData = encodeStateNode(new StateNode(ServiceController.State.STARTING));
+    final SettableFuture<Object> result = SettableFuture.create();
+
+    LOG.info("Create live node {}{}", zkClient.getConnectString(), getLiveNodePath());
+    List<ZKOp> ops = ImmutableList.of(ZKOp.create(getLiveNodePath(), liveNodeData, CreateMode.EPHEMERAL),
+                                      ZKOp.create("/" + id, null, CreateMode.PERSISTENT),
+                                      ZKOp.create(getZKPath("messages"), null, CreateMode.PERSISTENT),
+                                      ZKOp.create(getZKPath("state"), stateData, CreateMode.PERSISTENT));
+
+    Futures.addCallback(zkClient.multi(ops), new FutureCallback<List<OpResult>>() {
+      @Override
+      public void onSuccess(List<OpResult> opResults) {
+        result.set(opResults);
       }
 
       @Override
       public void onFailure(Throwable t) {
-        notifyFailed(t);
+        if (!(t instanceof KeeperException.NodeExistsException || t instanceof KeeperException.NoNodeException)) {
+          result.setException(t);
+          return;
+        }
+
+        // Either some nodes exist or parent nodes are missing.
+        LOG.debug("Failed to create nodes in one call for {}. Create them one by one.", id, t);
+        Futures.addCallback(createLiveNode(liveNodeData), new FutureCallback<String>() {
+          @Override
+          public void onSuccess(String liveNode) {
+            // Create nodes for states and messaging
+            Futures.addCallback(Futures.allAsList(
+              deleteAndCreate(getZKPath("messages"), null, CreateMode.PERSISTENT),
+              deleteAndCreate(getZKPath("state"), stateData, CreateMode.PERSISTENT)
+            ), new FutureCallback<List<String>>() {
+              @Override
+              public void onSuccess(List<String> paths) {
+                result.set(paths);
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                result.setException(t);
+              }
+            });
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            result.setException(t);
+          }
+        });
       }
     });
+    return result;
   }
 
   @Override
@@ -183,14 +228,16 @@ public final class ZKServiceDecorator extends AbstractService {
     }, Threads.SAME_THREAD_EXECUTOR);
   }
 
-  private OperationFuture<String> createLiveNode() {
+  private OperationFuture<String> createLiveNode(byte[] data) {
     String liveNode = getLiveNodePath();
-    LOG.info("Create live node {}{}", zkClient.getConnectString(), liveNode);
+    return ZKOperations.ignoreError(zkClient.create(liveNode, data, CreateMode.EPHEMERAL),
+                                    KeeperException.NodeExistsException.class, liveNode);
+  }
 
+  private byte[] encodeLiveNodeData() {
     JsonObject content = new JsonObject();
     content.add("data", liveNodeData.get());
-    return ZKOperations.ignoreError(zkClient.create(liveNode, encodeJson(content), CreateMode.EPHEMERAL),
-                                    KeeperException.NodeExistsException.class, liveNode);
+    return encodeJson(content);
   }
 
   private OperationFuture<String> removeLiveNode() {
@@ -17,60 +17,82 @@ package com.continuuity.weave.internal.kafka.client;
 
 import com.google.common.base.Throwables;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
- * A base implementation of {@link MessageSetEncoder} that do message compression.
+ * A base implementation of {@link MessageSetEncoder} that do message compression. Messages are accumulated
+ * uncompressed and the whole message set is compressed in one pass on {@link #finish()}, using compressor
+ * resources that are reset and reused per thread.
  */
 abstract class AbstractCompressedMessageSetEncoder extends AbstractMessageSetEncoder {
 
-  private final Compression compression;
-  private ChannelBufferOutputStream os;
-  private OutputStream compressedOutput;
+  /**
+   * Scratch arrays larger than this are not kept after use, to not hold on to memory after an unusually
+   * large message set.
+   */
+  private static final int MAX_RETAINED_SCRATCH_SIZE = 1024 * 1024;
 
+  private static final ThreadLocal<byte[]> SCRATCH_LOCAL = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[0];
+    }
+  };
+
+  private final Compression compression;
+  private final ChannelBuffer messageSet;
 
   protected AbstractCompressedMessageSetEncoder(Compression compression) {
     this.compression = compression;
-    try {
-      this.os = new ChannelBufferOutputStream(ChannelBuffers.dynamicBuffer());
-      this.compressedOutput = createCompressedStream(os);
-    } catch (IOException e) {
-      // Should never happen
-      throw Throwables.propagate(e);
-    }
+    this.messageSet = ChannelBuffers.dynamicBuffer();
   }
 
   @Override
   public final MessageSetEncoder add(ChannelBuffer payload) {
-    try {
-      ChannelBuffer encoded = encodePayload(payload);
-      encoded.readBytes(compressedOutput, encoded.readableBytes());
-    } catch (IOException e) {
-      throw Throwables.propagate(e);
-    }
+    writePayload(messageSet, payload);
     return this;
-
   }
 
   @Override
   public final ChannelBuffer finish() {
     try {
-      compressedOutput.close();
-      ChannelBuffer buf = prefixLength(encodePayload(os.buffer(), compression));
-      compressedOutput = createCompressedStream(os);
-      os.buffer().clear();
-
-      return buf;
-
+      ChannelBuffer compressed = compress(messageSet.array(), messageSet.arrayOffset() + messageSet.readerIndex(),
+                                          messageSet.readableBytes());
+      messageSet.clear();
+      return prefixLength(encodePayload(compressed, compression));
     } catch (IOException e) {
       throw Throwables.propagate(e);
     }
+  }
+
+  /**
+   * Compresses the given bytes. Implementations should compress into the array returned by
+   * {@link #getScratch(int)} and return an exact size copy of the result.
+   */
+  protected abstract ChannelBuffer compress(byte[] input, int offset, int length) throws IOException;
 
+  /**
+   * Returns a per thread scratch array that has at least the given size. The content of the array is undefined.
+   */
+  protected final byte[] getScratch(int size) {
+    byte[] scratch = SCRATCH_LOCAL.get();
+    if (scratch.length < size) {
+      scratch = new byte[size];
+      if (size <= MAX_RETAINED_SCRATCH_SIZE) {
+        SCRATCH_LOCAL.set(scratch);
+      }
+    }
+    return scratch;
   }
 
-  protected abstract OutputStream createCompressedStream(OutputStream os) throws IOException;
+  /**
+   * Returns a scratch array that holds the content of the given scratch array and has at least the given size.
+   */
+  protected final byte[] growScratch(byte[] scratch, int length, int size) {
+    byte[] newScratch = getScratch(size);
+    System.arraycopy(scratch, 0, newScratch, 0, length);
+    return newScratch;
+  }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.kafka.client.FetchException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for consuming messages from a kafka topic partition. It keeps at most one fetch request
+ * outstanding, and leaves the delivery of decoded messages and the decision of when to fetch to subclasses.
+ */
+abstract class AbstractMessageFetcher implements ResponseHandler {
+
+  private static final long BACKOFF_INTERVAL_MS = 100;
+  private static final long MAX_BACKOFF_MS = 1000;
+
+  /**
+   * Number of consecutive send failures before giving up. With the backoff it takes about 8 seconds.
+   */
+  static final int MAX_SEND_FAILURES = 10;
+
+  private final KafkaRequestSender sender;
+  private final String topic;
+  private final int partition;
+  private final int maxSize;
+  private final AtomicLong offset;
+  private final AtomicBoolean fetching;
+  private final AtomicInteger sendFailures;
+  private final ScheduledExecutorService scheduler;
+  private final MessageSetDecoder decoder;
+  private final MessageSetDecoder.MessageHandler messageHandler = new MessageSetDecoder.MessageHandler() {
+    @Override
+    public void received(long nextOffset, ByteBuffer payload) {
+      offset.set(nextOffset);
+      onMessage(nextOffset, payload);
+    }
+  };
+  private final Runnable sendFetchRequest = new Runnable() {
+    @Override
+    public void run() {
+      sendFetchRequest();
+    }
+  };
+  private volatile long backoffMillis;
+  private volatile boolean closed;
+
+  protected AbstractMessageFetcher(String topic, int partition, long offset, int maxSize, MessageSetDecoder decoder,
+                                   ScheduledExecutorService scheduler, KafkaRequestSender sender) {
+    this.topic = topic;
+    this.partition = partition;
+    this.sender = sender;
+    this.offset = new AtomicLong(offset);
+    this.maxSize = maxSize;
+    this.decoder = decoder;
+    this.fetching = new AtomicBoolean();
+    this.sendFailures = new AtomicInteger();
+    this.scheduler = scheduler;
+  }
+
+  @Override
+  public final void received(KafkaResponse response) {
+    sendFailures.set(0);
+    if (response.getErrorCode() != FetchException.ErrorCode.OK) {
+      fail(new FetchException("Error in fetching: " + response.getErrorCode(), response.getErrorCode()));
+      return;
+    }
+
+    boolean hasMessage;
+    try {
+      hasMessage = decoder.decode(response.getBody(), offset.get(), messageHandler) > 0;
+    } catch (Throwable t) {
+      // Deliver what has been decoded before the failure
+      onFetched();
+      fail(t);
+      return;
+    }
+
+    if (hasMessage) {
+      backoffMillis = 0;
+      onFetched();
+      fetching.set(false);
+      maybeFetch();
+    } else {
+      // Nothing new yet. Keep the fetching flag and poll again after backoff.
+      backoffMillis = Math.min(backoffMillis + BACKOFF_INTERVAL_MS, MAX_BACKOFF_MS);
+      schedule(sendFetchRequest, backoffMillis);
+    }
+  }
+
+  @Override
+  public final void failed(Throwable cause) {
+    if (closed) {
+      return;
+    }
+    // The request failed to send or the connection dropped before the response arrived. If it is transient,
+    // resend after an exponential backoff; the sender would reconnect.
+    int failures = sendFailures.incrementAndGet();
+    if (!isRetryable(cause) || failures >= MAX_SEND_FAILURES) {
+      fail(cause);
+      return;
+    }
+    schedule(sendFetchRequest, Math.min(BACKOFF_INTERVAL_MS << (failures - 1), MAX_BACKOFF_MS));
+  }
+
+  /**
+   * Sends a fetch request if there is no outstanding one, the fetcher is not closed and
+   * {@link #shouldFetch()} returns {@code true}.
+   */
+  protected final void maybeFetch() {
+    if (closed || !shouldFetch()) {
+      return;
+    }
+    if (fetching.compareAndSet(false, true)) {
+      sendFetchRequest();
+    }
+  }
+
+  /**
+   * Stops issuing new fetch requests.
+   */
+  protected final void close() {
+    closed = true;
+  }
+
+  protected final boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Returns {@code true} if a new fetch can be issued.
+   */
+  protected abstract boolean shouldFetch();
+
+  /**
+   * Invoked for each message decoded from a fetch response.
+   */
+  protected abstract void onMessage(long nextOffset, ByteBuffer payload);
+
+  /**
+   * Invoked after all messages in a fetch response are decoded, before the next fetch request is issued.
+   */
+  protected abstract void onFetched();
+
+  /**
+   * Invoked when fetching failed and cannot continue.
+   */
+  protected abstract void onFailure(Throwable cause);
+
+  private void sendFetchRequest() {
+    if (closed) {
+      return;
+    }
+    ChannelBuffer fetchBody = ChannelBuffers.buffer(12);
+    fetchBody.writeLong(offset.get());
+    fetchBody.writeInt(maxSize);
+    sender.send(KafkaRequest.createFetch(topic, partition, fetchBody, this));
+  }
+
+  private void schedule(Runnable task, long delayMillis) {
+    try {
+      scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Scheduler is shutdown when the client stopped.
+      fail(e);
+    }
+  }
+
+  /**
+   * Returns {@code true} if a send failure is transient, such as network failures or broker lookups that timed out
+   * or are rejected because too many are pending. Failures such as the client being stopped are not.
+   */
+  private boolean isRetryable(Throwable cause) {
+    return cause instanceof IOException || cause instanceof TimeoutException
+      || cause instanceof RejectedExecutionException;
+  }
+
+  private void fail(Throwable cause) {
+    close();
+    fetching.set(false);
+    onFailure(cause);
+  }
+}
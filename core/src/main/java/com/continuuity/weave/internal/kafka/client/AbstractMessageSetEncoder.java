@@ -18,32 +18,13 @@ package com.continuuity.weave.internal.kafka.client;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
-import java.util.zip.CRC32;
-
 /**
  * A base implementation of {@link MessageSetEncoder}.
  */
 abstract class AbstractMessageSetEncoder implements MessageSetEncoder {
 
-  private static final ThreadLocal<CRC32> CRC32_LOCAL = new ThreadLocal<CRC32>() {
-    @Override
-    protected CRC32 initialValue() {
-      return new CRC32();
-    }
-  };
-
   protected final int computeCRC32(ChannelBuffer buffer) {
-    CRC32 crc32 = CRC32_LOCAL.get();
-    crc32.reset();
-
-    if (buffer.hasArray()) {
-      crc32.update(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
-    } else {
-      byte[] bytes = new byte[buffer.readableBytes()];
-      buffer.getBytes(buffer.readerIndex(), bytes);
-      crc32.update(bytes);
-    }
-    return (int) crc32.getValue();
+    return Checksums.crc32(buffer);
   }
 
   protected final ChannelBuffer encodePayload(ChannelBuffer payload) {
@@ -69,6 +50,17 @@ abstract class AbstractMessageSetEncoder implements MessageSetEncoder {
     return ChannelBuffers.wrappedBuffer(header, payload);
   }
 
+  /**
+   * Writes an uncompressed message of the given payload to the output buffer. It's the same as writing the result
+   * of {@link #encodePayload(ChannelBuffer)}, without creating the intermediate buffers.
+   */
+  protected final void writePayload(ChannelBuffer output, ChannelBuffer payload) {
+    output.writeInt(5 + payload.readableBytes());
+    output.writeByte(0);
+    output.writeInt(computeCRC32(payload));
+    output.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+  }
+
   protected final ChannelBuffer prefixLength(ChannelBuffer buffer) {
     ChannelBuffer sizeBuf = ChannelBuffers.buffer(4);
     sizeBuf.writeInt(buffer.readableBytes());
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.kafka.client.FetchedMessage;
+import com.continuuity.weave.kafka.client.MessageCallback;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Consumes messages from a kafka topic partition and delivers them to a {@link MessageCallback}, one batch per
+ * fetch response. The next fetch is issued after the callback returns, hence no message is buffered ahead of
+ * consumption.
+ */
+final class CallbackMessageFetcher extends AbstractMessageFetcher implements Cancellable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CallbackMessageFetcher.class);
+
+  private final MessageCallback callback;
+  private final AtomicBoolean finished;
+  private List<FetchedMessage> batch;
+
+  CallbackMessageFetcher(String topic, int partition, long offset, int maxSize, MessageSetDecoder decoder,
+                         ScheduledExecutorService scheduler, KafkaRequestSender sender, MessageCallback callback) {
+    super(topic, partition, offset, maxSize, decoder, scheduler, sender);
+    this.callback = callback;
+    this.finished = new AtomicBoolean();
+    this.batch = Lists.newArrayList();
+  }
+
+  /**
+   * Starts fetching messages.
+   */
+  void start() {
+    maybeFetch();
+  }
+
+  @Override
+  public void cancel() {
+    close();
+    finish(null);
+  }
+
+  @Override
+  protected boolean shouldFetch() {
+    return true;
+  }
+
+  @Override
+  protected void onMessage(long nextOffset, ByteBuffer payload) {
+    batch.add(new BasicFetchedMessage(nextOffset, payload));
+  }
+
+  @Override
+  protected void onFetched() {
+    // Only one fetch is outstanding at a time, hence the batch is not accessed concurrently.
+    List<FetchedMessage> messages = batch;
+    if (messages.isEmpty() || finished.get()) {
+      return;
+    }
+    batch = Lists.newArrayList();
+    try {
+      callback.onReceived(messages);
+    } catch (Throwable t) {
+      LOG.error("Exception raised from MessageCallback.onReceived.", t);
+    }
+  }
+
+  @Override
+  protected void onFailure(Throwable cause) {
+    finish(cause);
+  }
+
+  private void finish(Throwable cause) {
+    if (finished.compareAndSet(false, true)) {
+      callback.finished(cause);
+    }
+  }
+}
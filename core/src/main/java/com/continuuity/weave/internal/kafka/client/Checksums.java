@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Utility class for computing checksum of kafka messages.
+ */
+final class Checksums {
+
+  private static final int SCRATCH_SIZE = 8192;
+
+  private static final ThreadLocal<CRC32> CRC32_LOCAL = new ThreadLocal<CRC32>() {
+    @Override
+    protected CRC32 initialValue() {
+      return new CRC32();
+    }
+  };
+
+  private static final ThreadLocal<byte[]> SCRATCH_LOCAL = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[SCRATCH_SIZE];
+    }
+  };
+
+  /**
+   * Computes CRC32 of the readable bytes of the given buffer. The reader index of the buffer is not changed.
+   * Array backed buffers are computed in place. Non-array backed contents are copied through a small per thread
+   * scratch array, as {@link CRC32} cannot operate on {@link ByteBuffer} directly prior to Java 8.
+   */
+  static int crc32(ChannelBuffer buffer) {
+    CRC32 crc32 = CRC32_LOCAL.get();
+    crc32.reset();
+
+    if (buffer.hasArray()) {
+      crc32.update(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
+    } else {
+      for (ByteBuffer byteBuffer : buffer.toByteBuffers()) {
+        update(crc32, byteBuffer);
+      }
+    }
+    return (int) crc32.getValue();
+  }
+
+  private static void update(CRC32 crc32, ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      crc32.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      return;
+    }
+
+    byte[] scratch = SCRATCH_LOCAL.get();
+    ByteBuffer source = buffer.duplicate();
+    while (source.hasRemaining()) {
+      int len = Math.min(scratch.length, source.remaining());
+      source.get(scratch, 0, len);
+      crc32.update(scratch, 0, len);
+    }
+  }
+
+  private Checksums() {
+  }
+}
@@ -15,28 +15,60 @@
  */
 package com.continuuity.weave.internal.kafka.client;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
-import org.jboss.netty.channel.group.ChannelGroupFutureListener;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 
 import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Provides netty socket connection reuse.
+ * Provides netty socket connection reuse. Since requests are pipelined on a connection
+ * (see {@link KafkaResponseDispatcher}), a connection is shared by multiple callers, up to
+ * the maximum number of outstanding requests allowed per connection.
+ *
+ * At most a configured number of connections are opened to each address. When all of them are full,
+ * connect requests wait in a queue until a request slot is released. The queue is bounded, and a request that
+ * waits longer than the wait timeout fails with {@link TimeoutException}. Connections that have no outstanding
+ * request for longer than the idle timeout are closed.
  */
 final class ConnectionPool {
 
+  static final int DEFAULT_MAX_WAITERS_PER_ADDRESS = 1024;
+  static final long DEFAULT_WAIT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
   private final ClientBootstrap bootstrap;
   private final ChannelGroup channelGroup;
-  private final ConcurrentMap<InetSocketAddress, Queue<ChannelFuture>> connections;
+  private final int maxRequestsPerConnection;
+  private final int maxConnectionsPerAddress;
+  private final int maxWaitersPerAddress;
+  private final long idleTimeoutMillis;
+  private final long waitTimeoutMillis;
+  private final ScheduledExecutorService scheduler;
+  private final ConcurrentMap<InetSocketAddress, AddressPool> pools;
+  private final AtomicLong createdCount;
+  private final AtomicLong failedCount;
+  private final ScheduledFuture<?> evictionTask;
+  private volatile boolean closed;
 
   /**
    * For releasing a connection back to the pool.
@@ -49,75 +81,474 @@ final class ConnectionPool {
    * Result of a connect request.
    */
   interface ConnectResult extends ConnectionReleaser {
-    ChannelFuture getChannelFuture();
+
+    /**
+     * Returns a future that completes with the connected {@link Channel}. The future stays pending while the
+     * request is waiting for a connection to become available.
+     */
+    ListenableFuture<Channel> getChannel();
+
+    /**
+     * Returns {@code true} if this result is not released and is either waiting, connecting or connected.
+     */
+    boolean isUsable();
+  }
+
+  /**
+   * Creates a pool that evicts idle connections using the given scheduler, with the default limit and timeout
+   * for connect requests waiting for a connection.
+   *
+   * @param idleTimeout Idle time before a connection is closed. Connections are never evicted if it is {@code <= 0}.
+   */
+  ConnectionPool(ClientBootstrap bootstrap, int maxRequestsPerConnection, int maxConnectionsPerAddress,
+                 long idleTimeout, TimeUnit unit, ScheduledExecutorService scheduler) {
+    this(bootstrap, maxRequestsPerConnection, maxConnectionsPerAddress, DEFAULT_MAX_WAITERS_PER_ADDRESS,
+         unit.toMillis(idleTimeout), DEFAULT_WAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, scheduler);
   }
 
-  ConnectionPool(ClientBootstrap bootstrap) {
+  /**
+   * Creates a pool that evicts idle connections and times out waiting connect requests using the given scheduler.
+   *
+   * @param maxWaitersPerAddress Maximum number of connect requests waiting for a connection to one address.
+   *                             Requests beyond it fail with {@link RejectedExecutionException}.
+   * @param idleTimeout Idle time before a connection is closed. Connections are never evicted if it is {@code <= 0}.
+   * @param waitTimeout Maximum time a connect request waits for a connection to become available.
+   */
+  ConnectionPool(ClientBootstrap bootstrap, int maxRequestsPerConnection, int maxConnectionsPerAddress,
+                 int maxWaitersPerAddress, long idleTimeout, long waitTimeout, TimeUnit unit,
+                 ScheduledExecutorService scheduler) {
+    Preconditions.checkArgument(maxRequestsPerConnection > 0, "Max requests per connection must be > 0.");
+    Preconditions.checkArgument(maxConnectionsPerAddress > 0, "Max connections per address must be > 0.");
+    Preconditions.checkArgument(maxWaitersPerAddress > 0, "Max waiters per address must be > 0.");
+    Preconditions.checkArgument(waitTimeout > 0, "Wait timeout must be > 0.");
     this.bootstrap = bootstrap;
     this.channelGroup = new DefaultChannelGroup();
-    this.connections = Maps.newConcurrentMap();
+    this.maxRequestsPerConnection = maxRequestsPerConnection;
+    this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    this.maxWaitersPerAddress = maxWaitersPerAddress;
+    this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+    this.waitTimeoutMillis = unit.toMillis(waitTimeout);
+    this.scheduler = scheduler;
+    this.pools = Maps.newConcurrentMap();
+    this.createdCount = new AtomicLong();
+    this.failedCount = new AtomicLong();
+
+    if (idleTimeoutMillis > 0) {
+      // Check twice per timeout period, so that a connection is not kept for more than 1.5 times the timeout.
+      long checkInterval = Math.max(1, idleTimeoutMillis / 2);
+      this.evictionTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          evictIdle();
+        }
+      }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    } else {
+      this.evictionTask = null;
+    }
   }
 
+  /**
+   * Acquires a connection to the given address for sending one request. The returned {@link ConnectResult}
+   * must be released when the request is completed, or when it is no longer needed.
+   */
   ConnectResult connect(InetSocketAddress address) {
-    Queue<ChannelFuture> channelFutures = connections.get(address);
-    if (channelFutures == null) {
-      channelFutures = new ConcurrentLinkedQueue<ChannelFuture>();
-      Queue<ChannelFuture> result = connections.putIfAbsent(address, channelFutures);
-      channelFutures = result == null ? channelFutures : result;
+    AddressPool pool = pools.get(address);
+    if (pool == null) {
+      pool = new AddressPool(address);
+      AddressPool existing = pools.putIfAbsent(address, pool);
+      pool = existing == null ? pool : existing;
+    }
+    return pool.acquire();
+  }
+
+  /**
+   * Returns the number of connections that have outstanding requests.
+   */
+  int getActiveCount() {
+    int count = 0;
+    for (AddressPool pool : pools.values()) {
+      count += pool.countConnections(true);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of connected connections that have no outstanding request.
+   */
+  int getIdleCount() {
+    int count = 0;
+    for (AddressPool pool : pools.values()) {
+      count += pool.countConnections(false);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of connect requests waiting for a connection to become available.
+   */
+  int getWaitingCount() {
+    int count = 0;
+    for (AddressPool pool : pools.values()) {
+      count += pool.countWaiting();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the total number of connections created.
+   */
+  long getCreatedCount() {
+    return createdCount.get();
+  }
+
+  /**
+   * Returns the total number of connections that failed to connect.
+   */
+  long getFailedCount() {
+    return failedCount.get();
+  }
+
+  ChannelGroupFuture close() {
+    closed = true;
+    if (evictionTask != null) {
+      evictionTask.cancel(false);
+    }
+    for (AddressPool pool : pools.values()) {
+      pool.close();
+    }
+
+    // The bootstrap resources are not released, as they can be shared with other pools.
+    return channelGroup.close();
+  }
+
+  private void evictIdle() {
+    long now = System.currentTimeMillis();
+    for (AddressPool pool : pools.values()) {
+      pool.evictIdle(now);
+    }
+  }
+
+  /**
+   * Connections and waiting connect requests of one address. All states are guarded by the instance lock.
+   */
+  private final class AddressPool {
+
+    private final InetSocketAddress address;
+    private final List<PooledConnection> connections;
+    private final Queue<PooledConnectResult> waiters;
+
+    private AddressPool(InetSocketAddress address) {
+      this.address = address;
+      this.connections = Lists.newLinkedList();
+      this.waiters = Lists.newLinkedList();
     }
 
-    ChannelFuture channelFuture = channelFutures.poll();
-    while (channelFuture != null) {
-      if (channelFuture.isSuccess() && channelFuture.getChannel().isConnected()) {
-        return new SimpleConnectResult(address, channelFuture);
+    ConnectResult acquire() {
+      final PooledConnectResult result = new PooledConnectResult(this);
+      Exception failure = null;
+      synchronized (this) {
+        // The flag is checked under the lock, as close() fails the queued waiters under the same lock.
+        if (closed) {
+          failure = new IllegalStateException("Connection pool is closed.");
+        } else if (waiters.size() >= maxWaitersPerAddress) {
+          failure = new RejectedExecutionException("Too many connect requests waiting for " + address);
+        } else {
+          waiters.add(result);
+        }
+      }
+      if (failure != null) {
+        result.channel.setException(failure);
+        return result;
+      }
+      dispatch();
+
+      // Still waiting for a request slot, fail it if it waits for too long.
+      if (result.connection == null && !result.channel.isDone()) {
+        result.timeout = scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            if (cancel(result)) {
+              result.channel.setException(new TimeoutException(
+                "Timeout in waiting for a connection to " + address + " after " + waitTimeoutMillis + " ms."));
+            }
+          }
+        }, waitTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      return result;
+    }
+
+    void release(PooledConnection connection) {
+      boolean hasWaiters;
+      synchronized (this) {
+        connection.outstanding--;
+        connection.lastReleased = System.currentTimeMillis();
+        hasWaiters = !waiters.isEmpty();
+      }
+      if (hasWaiters) {
+        dispatch();
       }
-      channelFuture = channelFutures.poll();
     }
 
-    channelFuture = bootstrap.connect(address);
-    channelFuture.addListener(new ChannelFutureListener() {
-      @Override
-      public void operationComplete(ChannelFuture future) throws Exception {
-        if (future.isSuccess()) {
+    /**
+     * Removes a connect request that is not yet assigned to a connection.
+     *
+     * @return {@code true} if the request was waiting, {@code false} if it is already assigned.
+     */
+    synchronized boolean cancel(PooledConnectResult result) {
+      return waiters.remove(result);
+    }
+
+    synchronized int countConnections(boolean active) {
+      int count = 0;
+      for (PooledConnection connection : connections) {
+        if (active ? connection.outstanding > 0 : (connection.outstanding == 0 && connection.isConnected())) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    synchronized int countWaiting() {
+      return waiters.size();
+    }
+
+    /**
+     * Assigns waiting connect requests to connections that have free request slots, opening new connections
+     * if the limit allows. Listeners are attached after the lock is released, as they may be called inline.
+     */
+    private void dispatch() {
+      List<PooledConnection> created = null;
+      List<PooledConnectResult> assigned = null;
+
+      synchronized (this) {
+        while (!waiters.isEmpty()) {
+          PooledConnection connection = findAvailable();
+          if (connection == null) {
+            if (closed || connections.size() >= maxConnectionsPerAddress) {
+              break;
+            }
+            connection = new PooledConnection(bootstrap.connect(address));
+            connections.add(connection);
+            createdCount.incrementAndGet();
+            if (created == null) {
+              created = Lists.newArrayListWithCapacity(1);
+            }
+            created.add(connection);
+          }
+
+          PooledConnectResult result = waiters.poll();
+          result.cancelTimeout();
+          connection.outstanding++;
+          result.connection = connection;
+          if (assigned == null) {
+            assigned = Lists.newArrayListWithCapacity(1);
+          }
+          assigned.add(result);
+        }
+      }
+
+      if (created != null) {
+        for (PooledConnection connection : created) {
+          watch(connection);
+        }
+      }
+      if (assigned != null) {
+        for (PooledConnectResult result : assigned) {
+          result.assigned();
+        }
+      }
+    }
+
+    /**
+     * Returns the first usable connection that has a free request slot. Unusable connections are removed.
+     */
+    private PooledConnection findAvailable() {
+      Iterator<PooledConnection> iterator = connections.iterator();
+      while (iterator.hasNext()) {
+        PooledConnection connection = iterator.next();
+        if (!connection.isUsable()) {
+          iterator.remove();
+          continue;
+        }
+        if (connection.outstanding < maxRequestsPerConnection) {
+          return connection;
+        }
+      }
+      return null;
+    }
+
+    private void watch(final PooledConnection connection) {
+      connection.getChannelFuture().addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (!future.isSuccess()) {
+            failedCount.incrementAndGet();
+            removeConnection(connection);
+            return;
+          }
           channelGroup.add(future.getChannel());
+          future.getChannel().getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+              removeConnection(connection);
+            }
+          });
+        }
+      });
+    }
+
+    private void removeConnection(PooledConnection connection) {
+      boolean hasWaiters;
+      synchronized (this) {
+        connections.remove(connection);
+        hasWaiters = !waiters.isEmpty();
+      }
+      // A slot is freed up for a new connection
+      if (hasWaiters) {
+        dispatch();
+      }
+    }
+
+    private void evictIdle(long now) {
+      List<Channel> idleChannels = null;
+      synchronized (this) {
+        Iterator<PooledConnection> iterator = connections.iterator();
+        while (iterator.hasNext()) {
+          PooledConnection connection = iterator.next();
+          if (connection.outstanding == 0 && connection.isConnected()
+            && now - connection.lastReleased >= idleTimeoutMillis) {
+            iterator.remove();
+            if (idleChannels == null) {
+              idleChannels = Lists.newArrayList();
+            }
+            idleChannels.add(connection.getChannelFuture().getChannel());
+          }
         }
       }
-    });
-    return new SimpleConnectResult(address, channelFuture);
+      if (idleChannels != null) {
+        for (Channel channel : idleChannels) {
+          channel.close();
+        }
+      }
+    }
+
+    private void close() {
+      List<PooledConnectResult> cancelled;
+      synchronized (this) {
+        cancelled = Lists.newArrayList(waiters);
+        waiters.clear();
+      }
+      for (PooledConnectResult result : cancelled) {
+        result.cancelTimeout();
+        result.channel.setException(new IllegalStateException("Connection pool is closed."));
+      }
+    }
   }
 
-  ChannelGroupFuture close() {
-    ChannelGroupFuture result = channelGroup.close();
-    result.addListener(new ChannelGroupFutureListener() {
-      @Override
-      public void operationComplete(ChannelGroupFuture future) throws Exception {
-        bootstrap.releaseExternalResources();
-      }
-    });
-    return result;
+  /**
+   * A pooled connection with the count of outstanding requests on it, guarded by the lock of the
+   * {@link AddressPool} that owns it.
+   */
+  private static final class PooledConnection {
+
+    private final ChannelFuture channelFuture;
+    private int outstanding;
+    private long lastReleased;
+
+    private PooledConnection(ChannelFuture channelFuture) {
+      this.channelFuture = channelFuture;
+      this.lastReleased = System.currentTimeMillis();
+    }
+
+    ChannelFuture getChannelFuture() {
+      return channelFuture;
+    }
+
+    /**
+     * Returns {@code true} if the connection is either still connecting or connected.
+     */
+    boolean isUsable() {
+      return !channelFuture.isDone() || isConnected();
+    }
+
+    boolean isConnected() {
+      return channelFuture.isSuccess() && channelFuture.getChannel().isConnected();
+    }
   }
 
-  private final class SimpleConnectResult implements ConnectResult {
+  private static final class PooledConnectResult implements ConnectResult {
 
-    private final InetSocketAddress address;
-    private final ChannelFuture future;
+    private final AddressPool pool;
+    private final SettableFuture<Channel> channel;
+    private final AtomicBoolean released;
+    // Set by the pool under its lock when a connection is assigned
+    private volatile PooledConnection connection;
+    // Fails the request if it waits for a connection for too long
+    private volatile ScheduledFuture<?> timeout;
 
+    private PooledConnectResult(AddressPool pool) {
+      this.pool = pool;
+      this.channel = SettableFuture.create();
+      this.released = new AtomicBoolean();
+    }
 
-    private SimpleConnectResult(InetSocketAddress address, ChannelFuture future) {
-      this.address = address;
-      this.future = future;
+    @Override
+    public ListenableFuture<Channel> getChannel() {
+      return channel;
     }
 
     @Override
-    public ChannelFuture getChannelFuture() {
-      return future;
+    public boolean isUsable() {
+      PooledConnection connection = this.connection;
+      // Without connection, it is either waiting or failed because the pool is closed.
+      return !released.get() && (connection == null ? !channel.isDone() : connection.isUsable());
     }
 
     @Override
     public void release() {
-      if (future.isSuccess()) {
-        connections.get(address).offer(future);
+      if (!released.compareAndSet(false, true)) {
+        return;
+      }
+      if (pool.cancel(this)) {
+        cancelTimeout();
+        channel.cancel(false);
+        return;
+      }
+      // Connection is null if the pool is closed while waiting
+      PooledConnection connection = this.connection;
+      if (connection != null) {
+        pool.release(connection);
       }
     }
+
+    void cancelTimeout() {
+      ScheduledFuture<?> timeout = this.timeout;
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+    }
+
+    /**
+     * Completes the channel future when the assigned connection is connected.
+     */
+    void assigned() {
+      ChannelFuture channelFuture = connection.getChannelFuture();
+      if (channelFuture.isSuccess()) {
+        channel.set(channelFuture.getChannel());
+        return;
+      }
+      channelFuture.addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (future.isSuccess()) {
+            channel.set(future.getChannel());
+          } else if (future.isCancelled()) {
+            channel.cancel(false);
+          } else {
+            channel.setException(future.getCause());
+          }
+        }
+      });
+    }
   }
 }
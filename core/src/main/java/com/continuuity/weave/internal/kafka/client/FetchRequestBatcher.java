@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.kafka.client.FetchException;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link KafkaRequestSender} that coalesces FETCH requests headed to the same broker into MULTI_FETCH requests.
+ * Requests are queued and flushed from the given {@link Executor}, hence all fetches issued before the flush
+ * runs, for example by consumers reacting to the same multi-fetch response, go out as one request.
+ * The response is demultiplexed to the {@link ResponseHandler} of each fetch.
+ *
+ * <p>
+ * At most one request is outstanding at a time. Fetches queued while waiting for a response are sent in the next
+ * request, once the response is handled.
+ * </p>
+ */
+final class FetchRequestBatcher implements KafkaRequestSender {
+
+  /**
+   * Maximum number of fetches in one multi-fetch request. It bounds the response size to this number times
+   * the fetch size.
+   */
+  static final int MAX_BATCH_SIZE = 64;
+
+  private final Executor executor;
+  private final KafkaRequestSender sender;
+  private final Queue<KafkaRequest> pendingRequests;
+  // Set while a flush is scheduled or a request is outstanding.
+  private final AtomicBoolean busy;
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * @param executor Executor for flushing queued requests.
+   * @param sender The {@link KafkaRequestSender} for sending requests to the broker.
+   */
+  FetchRequestBatcher(Executor executor, KafkaRequestSender sender) {
+    this.executor = executor;
+    this.sender = sender;
+    this.pendingRequests = new ConcurrentLinkedQueue<KafkaRequest>();
+    this.busy = new AtomicBoolean();
+  }
+
+  @Override
+  public void send(KafkaRequest request) {
+    pendingRequests.add(request);
+    scheduleFlush();
+  }
+
+  private void scheduleFlush() {
+    // A request added while busy is picked up by the scheduleFlush call made once no longer busy.
+    if (pendingRequests.isEmpty() || !busy.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(flushTask);
+    } catch (RejectedExecutionException e) {
+      // Executor is shutdown when the client stopped.
+      busy.set(false);
+      failPending(e);
+    }
+  }
+
+  private void flush() {
+    List<KafkaRequest> batch = Lists.newArrayList();
+    KafkaRequest request = pendingRequests.poll();
+    while (request != null) {
+      batch.add(request);
+      if (batch.size() == MAX_BATCH_SIZE) {
+        break;
+      }
+      request = pendingRequests.poll();
+    }
+    if (batch.isEmpty()) {
+      busy.set(false);
+      scheduleFlush();
+      return;
+    }
+
+    // The response handler allows the next request to be sent once the response is handled.
+    if (batch.size() == 1) {
+      KafkaRequest fetch = batch.get(0);
+      sender.send(KafkaRequest.createFetch(fetch.getTopic(), fetch.getPartition(), fetch.getBody(),
+                                           new CompletionResponseHandler(fetch.getResponseHandler())));
+    } else {
+      sender.send(KafkaRequest.createMultiFetch(batch, new CompletionResponseHandler(
+        new MultiFetchResponseHandler(batch))));
+    }
+  }
+
+  /**
+   * Called when the outstanding request is completed, after its response is handled.
+   */
+  private void completed() {
+    busy.set(false);
+    scheduleFlush();
+  }
+
+  private void failPending(Throwable cause) {
+    KafkaRequest request = pendingRequests.poll();
+    while (request != null) {
+      request.getResponseHandler().failed(cause);
+      request = pendingRequests.poll();
+    }
+  }
+
+  /**
+   * Delegates to a {@link ResponseHandler}, then allows the next request to be sent.
+   */
+  private final class CompletionResponseHandler implements ResponseHandler {
+
+    private final ResponseHandler delegate;
+    private final AtomicBoolean done;
+
+    CompletionResponseHandler(ResponseHandler delegate) {
+      this.delegate = delegate;
+      this.done = new AtomicBoolean();
+    }
+
+    @Override
+    public void received(KafkaResponse response) {
+      try {
+        delegate.received(response);
+      } finally {
+        complete();
+      }
+    }
+
+    @Override
+    public void failed(Throwable cause) {
+      try {
+        delegate.failed(cause);
+      } finally {
+        complete();
+      }
+    }
+
+    private void complete() {
+      if (done.compareAndSet(false, true)) {
+        completed();
+      }
+    }
+  }
+
+  /**
+   * Demultiplexes a multi-fetch response. The response body contains a <SIZE>, <ERROR_CODE> and message set
+   * for each fetch, in the same order as in the request.
+   */
+  private static final class MultiFetchResponseHandler implements ResponseHandler {
+
+    private final List<KafkaRequest> fetches;
+
+    MultiFetchResponseHandler(List<KafkaRequest> fetches) {
+      this.fetches = fetches;
+    }
+
+    @Override
+    public void received(KafkaResponse response) {
+      if (response.getErrorCode() != FetchException.ErrorCode.OK) {
+        for (KafkaRequest fetch : fetches) {
+          fetch.getResponseHandler().received(new KafkaResponse(response.getErrorCode(),
+                                                                ChannelBuffers.EMPTY_BUFFER, 6));
+        }
+        return;
+      }
+
+      ChannelBuffer body = response.getBody();
+      int idx = 0;
+      for (KafkaRequest fetch : fetches) {
+        if (body.readableBytes() < 6) {
+          break;
+        }
+        // The size covers the error code and the message set.
+        int size = body.getInt(body.readerIndex());
+        if (size < 2 || size > body.readableBytes() - 4) {
+          failed(fetches.subList(idx, fetches.size()),
+                 new IllegalStateException("Invalid multi-fetch response. Response " + idx + " has size " + size
+                                             + ", with " + (body.readableBytes() - 4) + " bytes remaining"));
+          return;
+        }
+        body.skipBytes(4);
+        FetchException.ErrorCode errorCode = FetchException.ErrorCode.fromCode(body.readShort());
+        ChannelBuffer messageSet = body.readSlice(size - 2);
+        fetch.getResponseHandler().received(new KafkaResponse(errorCode, messageSet, size + 4));
+        idx++;
+      }
+
+      if (idx < fetches.size()) {
+        failed(fetches.subList(idx, fetches.size()),
+               new IllegalStateException("Incomplete multi-fetch response. Expected " + fetches.size()
+                                           + " responses, got " + idx));
+      }
+    }
+
+    @Override
+    public void failed(Throwable cause) {
+      failed(fetches, cause);
+    }
+
+    private void failed(List<KafkaRequest> requests, Throwable cause) {
+      for (KafkaRequest fetch : requests) {
+        fetch.getResponseHandler().failed(cause);
+      }
+    }
+  }
+}
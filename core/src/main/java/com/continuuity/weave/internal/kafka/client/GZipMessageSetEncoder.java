@@ -15,21 +15,76 @@
  */
 package com.continuuity.weave.internal.kafka.client;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
- * A {@link MessageSetEncoder} that compress message set using GZIP.
+ * A {@link MessageSetEncoder} that compress message set using GZIP. The output is the same as
+ * {@link java.util.zip.GZIPOutputStream}, but the {@link Deflater} is reset and reused per thread
+ * instead of being created for each message set.
  */
 final class GZipMessageSetEncoder extends AbstractCompressedMessageSetEncoder {
 
+  private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int GZIP_TRAILER_SIZE = 8;
+
+  private static final ThreadLocal<CompressContext> COMPRESS_CONTEXT = new ThreadLocal<CompressContext>() {
+    @Override
+    protected CompressContext initialValue() {
+      return new CompressContext();
+    }
+  };
+
   GZipMessageSetEncoder() {
     super(Compression.GZIP);
   }
 
   @Override
-  protected OutputStream createCompressedStream(OutputStream os) throws IOException {
-    return new GZIPOutputStream(os);
+  protected ChannelBuffer compress(byte[] input, int offset, int length) {
+    CompressContext context = COMPRESS_CONTEXT.get();
+    Deflater deflater = context.deflater;
+    CRC32 crc32 = context.crc32;
+    deflater.reset();
+    crc32.reset();
+
+    // Same bound as zlib compressBound, plus header and trailer
+    int bound = length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    byte[] output = getScratch(GZIP_HEADER.length + bound + GZIP_TRAILER_SIZE);
+    System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+    int outputLength = GZIP_HEADER.length;
+
+    deflater.setInput(input, offset, length);
+    deflater.finish();
+    while (!deflater.finished()) {
+      if (outputLength == output.length - GZIP_TRAILER_SIZE) {
+        output = growScratch(output, outputLength, output.length * 2);
+      }
+      outputLength += deflater.deflate(output, outputLength, output.length - GZIP_TRAILER_SIZE - outputLength);
+    }
+
+    crc32.update(input, offset, length);
+    writeIntLE(output, outputLength, (int) crc32.getValue());
+    writeIntLE(output, outputLength + 4, length);
+    outputLength += GZIP_TRAILER_SIZE;
+
+    return ChannelBuffers.copiedBuffer(output, 0, outputLength);
+  }
+
+  private void writeIntLE(byte[] output, int offset, int value) {
+    output[offset] = (byte) value;
+    output[offset + 1] = (byte) (value >> 8);
+    output[offset + 2] = (byte) (value >> 16);
+    output[offset + 3] = (byte) (value >> 24);
+  }
+
+  /**
+   * Holds the per thread compression resources.
+   */
+  private static final class CompressContext {
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc32 = new CRC32();
   }
 }
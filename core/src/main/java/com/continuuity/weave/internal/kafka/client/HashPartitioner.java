@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.kafka.client.Partitioner;
+
+/**
+ * A {@link Partitioner} that distributes messages based on the hash code of the partition key.
+ * Messages with a {@code null} key always go to partition 0.
+ */
+final class HashPartitioner implements Partitioner {
+
+  @Override
+  public int partition(Object key, int numPartitions) {
+    if (key == null) {
+      return 0;
+    }
+    return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+  }
+}
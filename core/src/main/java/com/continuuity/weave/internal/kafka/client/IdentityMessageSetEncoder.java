@@ -15,26 +15,31 @@
  */
 package com.continuuity.weave.internal.kafka.client;
 
+import com.google.common.collect.Lists;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import java.util.List;
+
 /**
  * A pass-through {@link MessageSetEncoder}.
  */
 final class IdentityMessageSetEncoder extends AbstractMessageSetEncoder {
 
-  private ChannelBuffer messageSets = ChannelBuffers.EMPTY_BUFFER;
+  // Messages are wrapped once in finish(), as re-wrapping on every add() copies the component list each time.
+  private final List<ChannelBuffer> messages = Lists.newArrayList();
 
   @Override
   public MessageSetEncoder add(ChannelBuffer payload) {
-    messageSets = ChannelBuffers.wrappedBuffer(messageSets, encodePayload(payload));
+    messages.add(encodePayload(payload));
     return this;
   }
 
   @Override
   public ChannelBuffer finish() {
+    ChannelBuffer messageSets = ChannelBuffers.wrappedBuffer(messages.toArray(new ChannelBuffer[messages.size()]));
     ChannelBuffer buf = prefixLength(messageSets);
-    messageSets = ChannelBuffers.EMPTY_BUFFER;
+    messages.clear();
     return buf;
   }
 }
@@ -21,9 +21,10 @@ import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -31,6 +32,7 @@ import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -41,12 +43,25 @@ import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
-import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A Service to cache kafka broker information by subscribing to ZooKeeper.
+ * A Service to cache kafka broker information by subscribing to ZooKeeper. Lookups are served from an immutable
+ * {@link RoutingTable} that is rebuilt whenever the broker or topic information changes, hence never block.
+ * Lookups that cannot be served yet wait for a bounded time, and the number of waiting lookups is bounded.
+ *
+ * <p>
+ * When more than one broker serves a topic partition, lookups always return the same broker, as the partition on
+ * each broker is a separate log. Publishers and consumers of a partition hence always use the same broker.
+ * </p>
  */
 final class KafkaBrokerCache extends AbstractIdleService {
 
@@ -54,10 +69,22 @@ final class KafkaBrokerCache extends AbstractIdleService {
 
   private static final String BROKERS_PATH = "/brokers";
 
+  static final int DEFAULT_MAX_PENDING_LOOKUPS = 1024;
+  static final long DEFAULT_LOOKUP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
   private final ZKClient zkClient;
   private final Map<String, InetSocketAddress> brokers;
-  // topicBrokers is from topic->partition size->brokerId
-  private final Map<String, SortedMap<Integer, Set<String>>> topicBrokers;
+  // topicBrokers is from topic->brokerId->partition size
+  private final ConcurrentMap<String, Map<String, Integer>> topicBrokers;
+  // Lookups that cannot be served yet. They get completed when the routing table is updated or time out.
+  private final Set<PendingLookup> pendingLookups;
+  private final AtomicInteger pendingLookupCount;
+  private final ScheduledExecutorService scheduler;
+  private final int maxPendingLookups;
+  private final long lookupTimeoutMillis;
+  private final AtomicLong routedLookups;
+  private final AtomicLong fallbackLookups;
+  private volatile RoutingTable routingTable;
   private final Runnable invokeGetBrokers = new Runnable() {
     @Override
     public void run() {
@@ -71,10 +98,30 @@ final class KafkaBrokerCache extends AbstractIdleService {
     }
   };
 
-  KafkaBrokerCache(ZKClient zkClient) {
+  KafkaBrokerCache(ZKClient zkClient, ScheduledExecutorService scheduler) {
+    this(zkClient, scheduler, DEFAULT_MAX_PENDING_LOOKUPS, DEFAULT_LOOKUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param zkClient The {@link ZKClient} for watching broker information.
+   * @param scheduler Scheduler for timing out pending lookups.
+   * @param maxPendingLookups Maximum number of lookups that can wait for broker information.
+   * @param lookupTimeout Maximum time a lookup waits for broker information.
+   * @param unit Unit of the lookup timeout.
+   */
+  KafkaBrokerCache(ZKClient zkClient, ScheduledExecutorService scheduler,
+                   int maxPendingLookups, long lookupTimeout, TimeUnit unit) {
     this.zkClient = zkClient;
     this.brokers = Maps.newConcurrentMap();
     this.topicBrokers = Maps.newConcurrentMap();
+    this.pendingLookups = Sets.newSetFromMap(Maps.<PendingLookup, Boolean>newConcurrentMap());
+    this.pendingLookupCount = new AtomicInteger();
+    this.scheduler = scheduler;
+    this.maxPendingLookups = maxPendingLookups;
+    this.lookupTimeoutMillis = unit.toMillis(lookupTimeout);
+    this.routedLookups = new AtomicLong();
+    this.fallbackLookups = new AtomicLong();
+    this.routingTable = RoutingTable.EMPTY;
   }
 
   @Override
@@ -85,49 +132,93 @@ final class KafkaBrokerCache extends AbstractIdleService {
 
   @Override
   protected void shutDown() throws Exception {
-    // No-op
+    for (PendingLookup lookup : pendingLookups) {
+      lookup.future.setException(new IllegalStateException("Kafka broker cache is stopped."));
+    }
   }
 
   public int getPartitionSize(String topic) {
-    SortedMap<Integer, Set<String>> partitionBrokers = topicBrokers.get(topic);
-    if (partitionBrokers == null || partitionBrokers.isEmpty()) {
-      return 1;
-    }
-    return partitionBrokers.lastKey();
+    TopicRoutes routes = routingTable.topics.get(topic);
+    return routes == null ? 1 : Math.max(1, routes.getPartitionSize());
   }
 
+  /**
+   * Returns the broker for publishing to or consuming from the given topic partition, or {@code null} if no broker
+   * is known yet. The same broker is returned as long as it serves the partition.
+   */
   public TopicBroker getBrokerAddress(String topic, int partition) {
-    SortedMap<Integer, Set<String>> partitionBrokers = topicBrokers.get(topic);
-    if (partitionBrokers == null || partitionBrokers.isEmpty()) {
-      return pickRandomBroker(topic);
+    TopicBroker topicBroker = routingTable.lookup(topic, partition);
+    if (topicBroker != null) {
+      countLookup(topicBroker);
     }
+    return topicBroker;
+  }
 
-    // If the requested partition is greater than supported partition size, randomly pick one
-    if (partition >= partitionBrokers.lastKey()) {
-      return pickRandomBroker(topic);
-    }
+  /**
+   * Returns the number of lookups served by a broker that serves the requested topic partition.
+   */
+  public long getRoutedLookups() {
+    return routedLookups.get();
+  }
 
-    // Randomly pick a partition size and randomly pick a broker from it
-    Random random = new Random();
-    partitionBrokers = partitionBrokers.tailMap(partition + 1);
-    List<Integer> sizes = Lists.newArrayList(partitionBrokers.keySet());
-    Integer partitionSize = pickRandomItem(sizes, random);
-    List<String> ids = Lists.newArrayList(partitionBrokers.get(partitionSize));
-    InetSocketAddress address = brokers.get(ids.get(new Random().nextInt(ids.size())));
-    return address == null ? pickRandomBroker(topic) : new TopicBroker(topic, address, partitionSize);
+  /**
+   * Returns the number of lookups that fell back to an arbitrary broker, because no broker was known to serve
+   * the requested topic partition.
+   */
+  public long getFallbackLookups() {
+    return fallbackLookups.get();
   }
 
-  private TopicBroker pickRandomBroker(String topic) {
-    Map.Entry<String, InetSocketAddress> entry = Iterables.getFirst(brokers.entrySet(), null);
-    if (entry == null) {
-      return null;
+  /**
+   * Returns a {@link ListenableFuture} that completes with the broker for the given topic partition, as returned by
+   * {@link #getBrokerAddress(String, int)}, as soon as one is known. The future fails with
+   * {@link TimeoutException} if no broker is known within the lookup timeout, with
+   * {@link RejectedExecutionException} if too many lookups are waiting already, and with
+   * {@link IllegalStateException} if this cache is stopped before that happens.
+   */
+  public ListenableFuture<TopicBroker> getBroker(String topic, int partition) {
+    TopicBroker topicBroker = getBrokerAddress(topic, partition);
+    if (topicBroker != null) {
+      return Futures.immediateFuture(topicBroker);
+    }
+    if (!isRunning()) {
+      return Futures.immediateFailedFuture(new IllegalStateException("Kafka broker cache is not running."));
     }
-    InetSocketAddress address = entry.getValue();
-    return new TopicBroker(topic, address, 0);
-  }
 
-  private <T> T pickRandomItem(List<T> list, Random random) {
-    return list.get(random.nextInt(list.size()));
+    if (pendingLookupCount.incrementAndGet() > maxPendingLookups) {
+      pendingLookupCount.decrementAndGet();
+      return Futures.immediateFailedFuture(
+        new RejectedExecutionException("Too many pending broker lookups. Lookup failed for " + topic));
+    }
+
+    final PendingLookup lookup = new PendingLookup(topic, partition);
+    pendingLookups.add(lookup);
+    final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        lookup.future.setException(new TimeoutException(
+          String.format("No broker found for topic %s partition %d in %d ms.", lookup.topic, lookup.partition,
+                        lookupTimeoutMillis)));
+      }
+    }, lookupTimeoutMillis, TimeUnit.MILLISECONDS);
+
+    // However the lookup completes, release its slot.
+    lookup.future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        timeout.cancel(false);
+        pendingLookups.remove(lookup);
+        pendingLookupCount.decrementAndGet();
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+
+    if (!isRunning()) {
+      // Stopped while the lookup is queued, hence it may be missed by shutDown.
+      lookup.future.setException(new IllegalStateException("Kafka broker cache is not running."));
+    }
+    // The routing table may have been updated before the lookup is queued, hence complete pending lookups again.
+    completePendingLookups();
+    return lookup.future;
   }
 
   private void getBrokers() {
@@ -146,7 +237,9 @@ final class KafkaBrokerCache extends AbstractIdleService {
           getBrokenData(idsPath + "/" + child, child);
         }
         // Remove all removed brokers
-        removeDiff(children, brokers);
+        if (removeDiff(children, brokers)) {
+          updateRoutingTable();
+        }
       }
     });
   }
@@ -163,13 +256,18 @@ final class KafkaBrokerCache extends AbstractIdleService {
       public void onSuccess(NodeChildren result) {
         Set<String> children = ImmutableSet.copyOf(result.getChildren());
 
-        // Process new children
+        // Process new children. Changes of existing topics are handled by the watch set in getTopic.
         for (String topic : ImmutableSet.copyOf(Sets.difference(children, topicBrokers.keySet()))) {
-          getTopic(topicsPath + "/" + topic, topic);
+          Map<String, Integer> brokerPartitions = Maps.newConcurrentMap();
+          if (topicBrokers.putIfAbsent(topic, brokerPartitions) == null) {
+            getTopic(topicsPath + "/" + topic, topic, brokerPartitions);
+          }
         }
 
         // Remove old children
-        removeDiff(children, topicBrokers);
+        if (removeDiff(children, topicBrokers)) {
+          updateRoutingTable();
+        }
       }
     });
   }
@@ -183,6 +281,7 @@ final class KafkaBrokerCache extends AbstractIdleService {
         int idx = hostPort.indexOf(':');
         brokers.put(brokerId, new InetSocketAddress(hostPort.substring(0, idx),
                                                     Integer.parseInt(hostPort.substring(idx + 1))));
+        updateRoutingTable();
       }
 
       @Override
@@ -192,50 +291,58 @@ final class KafkaBrokerCache extends AbstractIdleService {
     });
   }
 
-  private void getTopic(final String path, final String topic) {
+  /**
+   * Fetches the brokers serving the given topic. Only brokers that are new since the last fetch are read, all in
+   * parallel, and the routing table is updated once all of them are read.
+   */
+  private void getTopic(final String path, final String topic, final Map<String, Integer> brokerPartitions) {
     Futures.addCallback(zkClient.getChildren(path, new Watcher() {
       @Override
       public void process(WatchedEvent event) {
         // Other event type changes are either could be ignored or handled by parent watcher
         if (event.getType() == Event.EventType.NodeChildrenChanged) {
-          getTopic(path, topic);
+          getTopic(path, topic, brokerPartitions);
         }
       }
     }), new FutureCallback<NodeChildren>() {
       @Override
       public void onSuccess(NodeChildren result) {
-        List<String> children = result.getChildren();
-        final List<ListenableFuture<BrokerPartition>> futures = Lists.newArrayListWithCapacity(children.size());
-
-        // Fetch data from each broken node
-        for (final String brokerId : children) {
-          Futures.transform(zkClient.getData(path + "/" + brokerId), new Function<NodeData, BrokerPartition>() {
-            @Override
-            public BrokerPartition apply(NodeData input) {
-              return new BrokerPartition(brokerId, Integer.parseInt(new String(input.getData(), Charsets.UTF_8)));
-            }
-          });
+        if (topicBrokers.get(topic) != brokerPartitions) {
+          // Topic removed
+          return;
+        }
+        Set<String> children = ImmutableSet.copyOf(result.getChildren());
+        boolean removed = removeDiff(children, brokerPartitions);
+
+        // Fetch data from each new broker node
+        Set<String> added = ImmutableSet.copyOf(Sets.difference(children, brokerPartitions.keySet()));
+        if (added.isEmpty()) {
+          if (removed) {
+            updateRoutingTable();
+          }
+          return;
+        }
+
+        final List<ListenableFuture<BrokerPartition>> futures = Lists.newArrayListWithCapacity(added.size());
+        for (String brokerId : added) {
+          futures.add(getBrokerPartition(path + "/" + brokerId, topic, brokerId, brokerPartitions));
         }
 
-        // When all fetching is done, build the partition size->broker map for this topic
+        // When all fetching is done, update the broker partition sizes of this topic
         Futures.successfulAsList(futures).addListener(new Runnable() {
           @Override
           public void run() {
-            Map<Integer, Set<String>> partitionBrokers = Maps.newHashMap();
             for (ListenableFuture<BrokerPartition> future : futures) {
               try {
                 BrokerPartition info = future.get();
-                Set<String> brokerSet = partitionBrokers.get(info.getPartitionSize());
-                if (brokerSet == null) {
-                  brokerSet = Sets.newHashSet();
-                  partitionBrokers.put(info.getPartitionSize(), brokerSet);
+                if (info != null) {
+                  brokerPartitions.put(info.getBrokerId(), info.getPartitionSize());
                 }
-                brokerSet.add(info.getBrokerId());
               } catch (Exception e) {
                 // Exception is ignored, as it will be handled by parent watcher
               }
             }
-            topicBrokers.put(topic, ImmutableSortedMap.copyOf(partitionBrokers));
+            updateRoutingTable();
           }
         }, Threads.SAME_THREAD_EXECUTOR);
       }
@@ -247,9 +354,82 @@ final class KafkaBrokerCache extends AbstractIdleService {
     });
   }
 
-  private <K, V> void removeDiff(Set<K> keys, Map<K, V> map) {
+  /**
+   * Fetches the number of partitions a broker serves for a topic and watches for changes of it.
+   */
+  private ListenableFuture<BrokerPartition> getBrokerPartition(final String path, final String topic,
+                                                               final String brokerId,
+                                                               final Map<String, Integer> brokerPartitions) {
+    return Futures.transform(zkClient.getData(path, new Watcher() {
+      @Override
+      public void process(WatchedEvent event) {
+        // Node deletion is handled by the children watch of the topic
+        if (event.getType() != Event.EventType.NodeDataChanged) {
+          return;
+        }
+        Futures.addCallback(getBrokerPartition(path, topic, brokerId, brokerPartitions),
+                            new FutureCallback<BrokerPartition>() {
+          @Override
+          public void onSuccess(BrokerPartition result) {
+            if (topicBrokers.get(topic) == brokerPartitions && brokerPartitions.containsKey(brokerId)) {
+              brokerPartitions.put(brokerId, result.getPartitionSize());
+              updateRoutingTable();
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // No-op, the watch on the topic node will handle it.
+          }
+        });
+      }
+    }), new Function<NodeData, BrokerPartition>() {
+      @Override
+      public BrokerPartition apply(NodeData input) {
+        return new BrokerPartition(brokerId, Integer.parseInt(new String(input.getData(), Charsets.UTF_8)));
+      }
+    });
+  }
+
+  /**
+   * Removes entries from the map that are not in the given set of keys.
+   *
+   * @return {@code true} if any entry is removed.
+   */
+  private <K, V> boolean removeDiff(Set<K> keys, Map<K, V> map) {
+    boolean removed = false;
     for (K key : ImmutableSet.copyOf(Sets.difference(map.keySet(), keys))) {
-      map.remove(key);
+      removed |= (map.remove(key) != null);
+    }
+    return removed;
+  }
+
+  /**
+   * Rebuilds the routing table from the latest broker and topic information and completes pending lookups that
+   * can be served by it. Synchronized so that a table built from older information never replaces a newer one.
+   */
+  private void updateRoutingTable() {
+    synchronized (this) {
+      routingTable = RoutingTable.create(brokers, topicBrokers);
+    }
+    completePendingLookups();
+  }
+
+  private void completePendingLookups() {
+    for (PendingLookup lookup : pendingLookups) {
+      TopicBroker topicBroker = routingTable.lookup(lookup.topic, lookup.partition);
+      if (topicBroker != null && lookup.future.set(topicBroker)) {
+        countLookup(topicBroker);
+      }
+    }
+  }
+
+  private void countLookup(TopicBroker topicBroker) {
+    // Fallback brokers have no partition size
+    if (topicBroker.getPartitionSize() > 0) {
+      routedLookups.incrementAndGet();
+    } else {
+      fallbackLookups.incrementAndGet();
     }
   }
 
@@ -321,4 +501,113 @@ final class KafkaBrokerCache extends AbstractIdleService {
       return partitionSize;
     }
   }
+
+  /**
+   * A broker lookup that is waiting for broker information.
+   */
+  private static final class PendingLookup {
+    private final String topic;
+    private final int partition;
+    private final SettableFuture<TopicBroker> future;
+
+    private PendingLookup(String topic, int partition) {
+      this.topic = topic;
+      this.partition = partition;
+      this.future = SettableFuture.create();
+    }
+  }
+
+  /**
+   * Immutable snapshot of broker addresses and of the candidate brokers for each topic partition.
+   */
+  private static final class RoutingTable {
+
+    private static final RoutingTable EMPTY = new RoutingTable(ImmutableList.<InetSocketAddress>of(),
+                                                               ImmutableMap.<String, TopicRoutes>of());
+
+    private final List<InetSocketAddress> brokers;
+    private final Map<String, TopicRoutes> topics;
+
+    static RoutingTable create(Map<String, InetSocketAddress> brokers,
+                               Map<String, Map<String, Integer>> topicBrokers) {
+      ImmutableMap.Builder<String, TopicRoutes> topics = ImmutableMap.builder();
+      for (Map.Entry<String, Map<String, Integer>> entry : topicBrokers.entrySet()) {
+        if (!entry.getValue().isEmpty()) {
+          topics.put(entry.getKey(), TopicRoutes.create(entry.getKey(), entry.getValue(), brokers));
+        }
+      }
+      return new RoutingTable(ImmutableList.copyOf(brokers.values()), topics.build());
+    }
+
+    private RoutingTable(List<InetSocketAddress> brokers, Map<String, TopicRoutes> topics) {
+      this.brokers = brokers;
+      this.topics = topics;
+    }
+
+    TopicBroker lookup(String topic, int partition) {
+      TopicRoutes routes = topics.get(topic);
+      TopicBroker topicBroker = (routes == null) ? null : routes.lookup(partition);
+      if (topicBroker != null) {
+        return topicBroker;
+      }
+      // Topic not known or no broker serving the partition, pick the first broker.
+      return brokers.isEmpty() ? null : new TopicBroker(topic, brokers.get(0), 0);
+    }
+  }
+
+  /**
+   * Candidate brokers of a topic, indexed by partition. A broker is a candidate for a partition if it serves
+   * more partitions than the partition index. Candidates are ordered by broker id, so that the first candidate of a
+   * partition stays the same across routing table updates, unless that broker goes away.
+   */
+  private static final class TopicRoutes {
+
+    private final int partitionSize;
+    private final TopicBroker[][] partitionBrokers;
+
+    static TopicRoutes create(String topic, Map<String, Integer> brokerPartitions,
+                              Map<String, InetSocketAddress> brokers) {
+      int partitionSize = 0;
+      List<TopicBroker> topicBrokers = Lists.newArrayList();
+      for (Map.Entry<String, Integer> entry : ImmutableSortedMap.copyOf(brokerPartitions).entrySet()) {
+        partitionSize = Math.max(partitionSize, entry.getValue());
+        InetSocketAddress address = brokers.get(entry.getKey());
+        if (address != null) {
+          topicBrokers.add(new TopicBroker(topic, address, entry.getValue()));
+        }
+      }
+
+      TopicBroker[][] partitionBrokers = new TopicBroker[partitionSize][];
+      for (int partition = 0; partition < partitionSize; partition++) {
+        List<TopicBroker> candidates = Lists.newArrayList();
+        for (TopicBroker topicBroker : topicBrokers) {
+          if (topicBroker.getPartitionSize() > partition) {
+            candidates.add(topicBroker);
+          }
+        }
+        partitionBrokers[partition] = candidates.toArray(new TopicBroker[candidates.size()]);
+      }
+      return new TopicRoutes(partitionSize, partitionBrokers);
+    }
+
+    private TopicRoutes(int partitionSize, TopicBroker[][] partitionBrokers) {
+      this.partitionSize = partitionSize;
+      this.partitionBrokers = partitionBrokers;
+    }
+
+    int getPartitionSize() {
+      return partitionSize;
+    }
+
+    /**
+     * Returns the first candidate broker of the given partition.
+     */
+    TopicBroker lookup(int partition) {
+      if (partition < 0 || partition >= partitionSize) {
+        return null;
+      }
+      TopicBroker[] candidates = partitionBrokers[partition];
+      return candidates.length == 0 ? null : candidates[0];
+    }
+  }
 }
@@ -15,7 +15,12 @@
  */
 package com.continuuity.weave.internal.kafka.client;
 
+import com.google.common.base.Charsets;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  *
@@ -55,6 +60,24 @@ final class KafkaRequest {
     return new KafkaRequest(Type.FETCH, topic, partition, body, handler);
   }
 
+  /**
+   * Creates a MULTI_FETCH request that carries the given FETCH requests. The body contains the number of fetches,
+   * followed by the <TOPIC_LENGTH>, <TOPIC>, <PARTITION> and the body of each fetch.
+   */
+  public static KafkaRequest createMultiFetch(List<KafkaRequest> fetches, ResponseHandler handler) {
+    ChannelBuffer body = ChannelBuffers.dynamicBuffer(fetches.size() * 32);
+    body.writeShort(fetches.size());
+    for (KafkaRequest fetch : fetches) {
+      ByteBuffer topic = Charsets.UTF_8.encode(fetch.getTopic());
+      ChannelBuffer fetchBody = fetch.getBody();
+      body.writeShort(topic.remaining());
+      body.writeBytes(topic);
+      body.writeInt(fetch.getPartition());
+      body.writeBytes(fetchBody, fetchBody.readerIndex(), fetchBody.readableBytes());
+    }
+    return new KafkaRequest(Type.MULTI_FETCH, null, -1, body, handler);
+  }
+
   public static KafkaRequest createOffsets(String topic, int partition, ChannelBuffer body, ResponseHandler handler) {
     return new KafkaRequest(Type.OFFSETS, topic, partition, body, handler);
   }
@@ -83,6 +106,13 @@ final class KafkaRequest {
     return body;
   }
 
+  /**
+   * Returns {@code true} if the broker sends a response for this request. Produce requests have no response.
+   */
+  boolean isResponseRequired() {
+    return type != Type.PRODUCE && type != Type.MULTI_PRODUCE;
+  }
+
   ResponseHandler getResponseHandler() {
     return responseHandler;
   }
@@ -35,6 +35,9 @@ final class KafkaRequestEncoder extends OneToOneEncoder {
       return msg;
     }
     KafkaRequest req = (KafkaRequest) msg;
+    if (req.getType() == KafkaRequest.Type.MULTI_FETCH) {
+      return encodeMultiFetch(req);
+    }
     ByteBuffer topic = Charsets.UTF_8.encode(req.getTopic());
 
     ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(16 + topic.remaining() + req.getBody().readableBytes());
@@ -55,4 +58,15 @@ final class KafkaRequestEncoder extends OneToOneEncoder {
 
     return buf;
   }
+
+  /**
+   * Encodes a multi-fetch request, which has no topic and partition in the header. The request body already
+   * contains the topic and partition of each fetch.
+   */
+  private ChannelBuffer encodeMultiFetch(KafkaRequest req) {
+    ChannelBuffer header = ChannelBuffers.buffer(6);
+    header.writeInt(2 + req.getBody().readableBytes());
+    header.writeShort(req.getType().getId());
+    return ChannelBuffers.wrappedBuffer(header, req.getBody());
+  }
 }
@@ -15,7 +15,10 @@
  */
 package com.continuuity.weave.internal.kafka.client;
 
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
@@ -24,30 +27,70 @@ import org.slf4j.LoggerFactory;
 
 import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- *
+ * Dispatches {@link KafkaResponse} to the {@link ResponseHandler} of the corresponding request. Multiple
+ * requests can be outstanding on the same connection. Since kafka broker responds to requests on the same
+ * connection in the order they are received, the handlers are kept in a FIFO queue in the order that
+ * the requests are written. A new instance of this class should be used for each channel.
  */
 final class KafkaResponseDispatcher extends SimpleChannelHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(KafkaResponseDispatcher.class);
 
+  private final Queue<PendingRequest> pendingRequests = new ConcurrentLinkedQueue<PendingRequest>();
+
   @Override
   public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-    Object attachment = ctx.getAttachment();
-    if (e.getMessage() instanceof KafkaResponse && attachment instanceof ResponseHandler) {
-      ((ResponseHandler) attachment).received((KafkaResponse) e.getMessage());
-    } else {
+    if (!(e.getMessage() instanceof KafkaResponse)) {
       super.messageReceived(ctx, e);
+      return;
     }
+    PendingRequest pendingRequest = pendingRequests.poll();
+    if (pendingRequest == null) {
+      LOG.warn("Dropping kafka response without outstanding request.");
+      return;
+    }
+    pendingRequest.getResponseHandler().received((KafkaResponse) e.getMessage());
   }
 
   @Override
   public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-    if (e.getMessage() instanceof KafkaRequest) {
-      ctx.setAttachment(((KafkaRequest) e.getMessage()).getResponseHandler());
+    if (!(e.getMessage() instanceof KafkaRequest) || !((KafkaRequest) e.getMessage()).isResponseRequired()) {
+      super.writeRequested(ctx, e);
+      return;
+    }
+
+    // Enqueue the handler and pass the write downstream atomically, so that the handler queue has the same
+    // order as the requests being sent.
+    synchronized (this) {
+      pendingRequests.add(new PendingRequest(((KafkaRequest) e.getMessage()).getResponseHandler(), e.getFuture()));
+      super.writeRequested(ctx, e);
+    }
+
+    // If a write failed, the request - response ordering can no longer be guaranteed. Close the channel to fail
+    // all outstanding requests.
+    e.getFuture().addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        if (!future.isSuccess()) {
+          future.getChannel().close();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+    ClosedChannelException cause = new ClosedChannelException();
+    PendingRequest pendingRequest = pendingRequests.poll();
+    while (pendingRequest != null) {
+      pendingRequest.fail(cause);
+      pendingRequest = pendingRequests.poll();
     }
-    super.writeRequested(ctx, e);
+    super.channelClosed(ctx, e);
   }
 
   @Override
@@ -58,4 +101,37 @@ final class KafkaResponseDispatcher extends SimpleChannelHandler {
     }
     LOG.warn("Exception caught in kafka client connection.", e.getCause());
   }
+
+  /**
+   * A request that is written, or pending to be written, and waiting for response.
+   */
+  private static final class PendingRequest {
+
+    private final ResponseHandler responseHandler;
+    private final ChannelFuture writeFuture;
+
+    private PendingRequest(ResponseHandler responseHandler, ChannelFuture writeFuture) {
+      this.responseHandler = responseHandler;
+      this.writeFuture = writeFuture;
+    }
+
+    ResponseHandler getResponseHandler() {
+      return responseHandler;
+    }
+
+    /**
+     * Notifies the handler about the failure if the request has been sent. If the write failed, the failure
+     * is already reported through the write future to the one who sent the request.
+     */
+    void fail(final Throwable cause) {
+      writeFuture.addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (future.isSuccess()) {
+            responseHandler.failed(cause);
+          }
+        }
+      });
+    }
+  }
 }
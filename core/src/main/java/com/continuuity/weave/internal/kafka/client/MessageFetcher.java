@@ -15,186 +15,102 @@
  */
 package com.continuuity.weave.internal.kafka.client;
 
-import com.continuuity.weave.common.Threads;
-import com.continuuity.weave.kafka.client.FetchException;
 import com.continuuity.weave.kafka.client.FetchedMessage;
 import com.google.common.base.Throwables;
 import com.google.common.collect.AbstractIterator;
-import com.google.common.io.ByteStreams;
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
-import org.jboss.netty.buffer.ChannelBuffers;
-import org.xerial.snappy.SnappyInputStream;
-
-import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.GZIPInputStream;
 
 /**
- * This class is for consuming messages from a kafka topic.
+ * This class is for consuming messages from a kafka topic through an {@link Iterator}. Messages are prefetched
+ * ahead of consumption, bounded by a {@link PrefetchLimit}.
  */
-final class MessageFetcher extends AbstractIterator<FetchedMessage> implements ResponseHandler {
-
-  private static final long BACKOFF_INTERVAL_MS = 100;
+final class MessageFetcher extends AbstractMessageFetcher implements Iterator<FetchedMessage> {
 
-  private final KafkaRequestSender sender;
-  private final String topic;
-  private final int partition;
-  private final int maxSize;
-  private final AtomicLong offset;
   private final BlockingQueue<FetchResult> messages;
-  private final ScheduledExecutorService scheduler;
-  private volatile long backoffMillis;
-  private final Runnable sendFetchRequest = new Runnable() {
-    @Override
-    public void run() {
-      sendFetchRequest();
-    }
-  };
-
-  MessageFetcher(String topic, int partition, long offset, int maxSize, KafkaRequestSender sender) {
-    this.topic = topic;
-    this.partition = partition;
-    this.sender = sender;
-    this.offset = new AtomicLong(offset);
-    this.maxSize = maxSize;
+  private final AtomicLong bufferedBytes;
+  private final PrefetchLimit prefetchLimit;
+  private final Iterator<FetchedMessage> iterator;
+
+  MessageFetcher(String topic, int partition, long offset, int maxSize, MessageSetDecoder decoder,
+                 PrefetchLimit prefetchLimit, ScheduledExecutorService scheduler, KafkaRequestSender sender) {
+    super(topic, partition, offset, maxSize, decoder, scheduler, sender);
     this.messages = new LinkedBlockingQueue<FetchResult>();
-    this.scheduler = Executors.newSingleThreadScheduledExecutor(
-                        Threads.createDaemonThreadFactory("kafka-" + topic + "-consumer"));
+    this.bufferedBytes = new AtomicLong();
+    this.prefetchLimit = prefetchLimit;
+    this.iterator = new AbstractIterator<FetchedMessage>() {
+      @Override
+      protected FetchedMessage computeNext() {
+        FetchedMessage message = fetchNext();
+        return message == null ? endOfData() : message;
+      }
+    };
   }
 
   @Override
-  public void received(KafkaResponse response) {
-    if (response.getErrorCode() != FetchException.ErrorCode.OK) {
-      messages.add(FetchResult.failure(new FetchException("Error in fetching: " + response.getErrorCode(),
-                                                          response.getErrorCode())));
-      return;
-    }
-
-    try {
-      if (decodeResponse(response.getBody(), -1)) {
-        backoffMillis = 0;
-      } else {
-        backoffMillis = Math.max(backoffMillis + BACKOFF_INTERVAL_MS, 1000);
-        scheduler.schedule(sendFetchRequest, backoffMillis, TimeUnit.MILLISECONDS);
-      }
-    } catch (Throwable t) {
-      messages.add(FetchResult.failure(t));
-    }
+  public boolean hasNext() {
+    return iterator.hasNext();
   }
 
-  private boolean decodeResponse(ChannelBuffer buffer, long nextOffset) {
-    boolean hasMessage = false;
-    boolean computeOffset = nextOffset < 0;
-    while (buffer.readableBytes() >= 4) {
-      int size = buffer.readInt();
-      if (buffer.readableBytes() < size) {
-        if (!hasMessage) {
-          throw new IllegalStateException("Size too small");
-        }
-        break;
-      }
-      nextOffset = computeOffset ? offset.addAndGet(size + 4) : nextOffset;
-      decodeMessage(size, buffer, nextOffset);
-      hasMessage = true;
-    }
-    return hasMessage;
-
+  @Override
+  public FetchedMessage next() {
+    return iterator.next();
   }
 
-  private void decodeMessage(int size, ChannelBuffer buffer, long nextOffset) {
-    int readerIdx = buffer.readerIndex();
-    int magic = buffer.readByte();
-    Compression compression = magic == 0 ? Compression.NONE : Compression.fromCode(buffer.readByte());
-    int crc = buffer.readInt();
-
-    ChannelBuffer payload = buffer.readSlice(size - (buffer.readerIndex() - readerIdx));
-
-    // Verify CRC?
-    enqueueMessage(compression, payload, nextOffset);
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Remove not supported.");
   }
 
-  private void enqueueMessage(Compression compression, ChannelBuffer payload, long nextOffset) {
-    switch (compression) {
-      case NONE:
-        messages.add(FetchResult.success(new BasicFetchedMessage(nextOffset, payload.toByteBuffer())));
-        break;
-      case GZIP:
-        decodeResponse(gunzip(payload), nextOffset);
-        break;
-      case SNAPPY:
-        decodeResponse(unsnappy(payload), nextOffset);
-        break;
-    }
+  @Override
+  protected boolean shouldFetch() {
+    return prefetchLimit.isBelowLowWatermark(messages.size(), bufferedBytes.get());
   }
 
-  private ChannelBuffer gunzip(ChannelBuffer source) {
-    ChannelBufferOutputStream output = new ChannelBufferOutputStream(
-                                              ChannelBuffers.dynamicBuffer(source.readableBytes() * 2));
-    try {
-      try {
-        GZIPInputStream gzipInput = new GZIPInputStream(new ChannelBufferInputStream(source));
-        try {
-          ByteStreams.copy(gzipInput, output);
-          return output.buffer();
-        } finally {
-          gzipInput.close();
-        }
-      } finally {
-        output.close();
-      }
-    } catch (IOException e) {
-      throw Throwables.propagate(e);
-    }
+  @Override
+  protected void onMessage(long nextOffset, ByteBuffer payload) {
+    bufferedBytes.addAndGet(payload.remaining());
+    messages.add(FetchResult.success(new BasicFetchedMessage(nextOffset, payload), payload.remaining()));
   }
 
-  private ChannelBuffer unsnappy(ChannelBuffer source) {
-    ChannelBufferOutputStream output = new ChannelBufferOutputStream(
-                                              ChannelBuffers.dynamicBuffer(source.readableBytes() * 2));
-    try {
-      try {
-        SnappyInputStream snappyInput = new SnappyInputStream(new ChannelBufferInputStream(source));
-        try {
-          ByteStreams.copy(snappyInput, output);
-          return output.buffer();
-        } finally {
-          snappyInput.close();
-        }
-      } finally {
-        output.close();
-      }
-    } catch (IOException e) {
-      throw Throwables.propagate(e);
-    }
+  @Override
+  protected void onFetched() {
+    // No-op. Messages are already enqueued.
   }
 
-  private void sendFetchRequest() {
-    ChannelBuffer fetchBody = ChannelBuffers.buffer(12);
-    fetchBody.writeLong(offset.get());
-    fetchBody.writeInt(maxSize);
-    sender.send(KafkaRequest.createFetch(topic, partition, fetchBody, MessageFetcher.this));
+  @Override
+  protected void onFailure(Throwable cause) {
+    messages.add(FetchResult.failure(cause));
   }
 
-  @Override
-  protected FetchedMessage computeNext() {
+  /**
+   * Blocks until the next message is available. Returns {@code null} if interrupted.
+   */
+  private FetchedMessage fetchNext() {
     FetchResult result = messages.poll();
-    if (result != null) {
-      return getMessage(result);
+    if (result == null) {
+      maybeFetch();
+      try {
+        result = messages.take();
+      } catch (InterruptedException e) {
+        close();
+        return null;
+      }
     }
 
-    try {
-      sendFetchRequest();
-      return getMessage(messages.take());
-    } catch (InterruptedException e) {
-      scheduler.shutdownNow();
-      return endOfData();
+    if (!result.isSuccess()) {
+      // The iterator cannot continue after throwing exception.
+      close();
+      return getMessage(result);
     }
+    bufferedBytes.addAndGet(-result.getSize());
+    maybeFetch();
+    return getMessage(result);
   }
 
   private FetchedMessage getMessage(FetchResult result) {
@@ -211,18 +127,20 @@ final class MessageFetcher extends AbstractIterator<FetchedMessage> implements R
 
   private static final class FetchResult {
     private final FetchedMessage message;
+    private final int size;
     private final Throwable errorCause;
 
-    static FetchResult success(FetchedMessage message) {
-      return new FetchResult(message, null);
+    static FetchResult success(FetchedMessage message, int size) {
+      return new FetchResult(message, size, null);
     }
 
     static FetchResult failure(Throwable cause) {
-      return new FetchResult(null, cause);
+      return new FetchResult(null, 0, cause);
     }
 
-    private FetchResult(FetchedMessage message, Throwable errorCause) {
+    private FetchResult(FetchedMessage message, int size, Throwable errorCause) {
       this.message = message;
+      this.size = size;
       this.errorCause = errorCause;
     }
 
@@ -230,6 +148,10 @@ final class MessageFetcher extends AbstractIterator<FetchedMessage> implements R
       return message;
     }
 
+    public int getSize() {
+      return size;
+    }
+
     public Throwable getErrorCause() {
       return errorCause;
     }
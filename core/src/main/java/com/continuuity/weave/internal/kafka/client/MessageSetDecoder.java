@@ -0,0 +1,281 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.kafka.client.FetchException;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyCodec;
+import org.xerial.snappy.SnappyInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes kafka message sets. Uncompressed messages are handed out as views of the given buffer without copying.
+ * A compressed message set is decompressed into a buffer of the exact uncompressed size, from which the inner
+ * messages are sliced. The {@link Inflater} and the scratch buffer used for decompression are reused per thread.
+ */
+final class MessageSetDecoder {
+
+  /**
+   * Receives messages decoded by {@link MessageSetDecoder}.
+   */
+  interface MessageHandler {
+
+    /**
+     * Invoked for each decoded message.
+     * @param nextOffset Offset of the next message.
+     * @param payload The message payload.
+     */
+    void received(long nextOffset, ByteBuffer payload);
+  }
+
+  private static final int GZIP_HEADER_SIZE = 10;
+  private static final int GZIP_TRAILER_SIZE = 8;
+
+  private static final ThreadLocal<DecompressContext> DECOMPRESS_CONTEXT = new ThreadLocal<DecompressContext>() {
+    @Override
+    protected DecompressContext initialValue() {
+      return new DecompressContext();
+    }
+  };
+
+  private final boolean verifyChecksum;
+
+  MessageSetDecoder(boolean verifyChecksum) {
+    this.verifyChecksum = verifyChecksum;
+  }
+
+  /**
+   * Decodes messages from the given message set buffer.
+   *
+   * @param buffer Buffer containing the message set.
+   * @param offset Offset of the first message in the buffer.
+   * @param handler Handler to receive decoded messages.
+   * @return Number of bytes decoded, which is also the number of bytes that the offset should advance by.
+   *         Trailing partial message is not decoded.
+   */
+  int decode(ChannelBuffer buffer, long offset, MessageHandler handler) {
+    return decodeMessages(buffer, offset, false, handler);
+  }
+
+  private int decodeMessages(ChannelBuffer buffer, long offset, boolean fixedOffset, MessageHandler handler) {
+    int decoded = 0;
+    while (buffer.readableBytes() >= 4) {
+      int size = buffer.getInt(buffer.readerIndex());
+      if (buffer.readableBytes() - 4 < size) {
+        if (decoded == 0) {
+          throw new IllegalStateException("Size too small");
+        }
+        break;
+      }
+      buffer.skipBytes(4);
+      decoded += size + 4;
+      decodeMessage(buffer.readSlice(size), fixedOffset ? offset : offset + decoded, handler);
+    }
+    return decoded;
+  }
+
+  private void decodeMessage(ChannelBuffer message, long nextOffset, MessageHandler handler) {
+    int magic = message.readByte();
+    Compression compression = magic == 0 ? Compression.NONE : Compression.fromCode(message.readByte());
+    int crc = message.readInt();
+
+    if (verifyChecksum && Checksums.crc32(message) != crc) {
+      throw new FetchException("Message checksum mismatch at offset " + nextOffset,
+                               FetchException.ErrorCode.INVALID_MESSAGE, nextOffset);
+    }
+
+    try {
+      switch (compression) {
+        case NONE:
+          handler.received(nextOffset, message.toByteBuffer());
+          break;
+        case GZIP:
+          // All messages in a compressed message set share the offset of the enclosing message.
+          decodeMessages(gunzip(message), nextOffset, true, handler);
+          break;
+        case SNAPPY:
+          decodeMessages(unsnappy(message), nextOffset, true, handler);
+          break;
+      }
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private ChannelBuffer gunzip(ChannelBuffer source) throws IOException {
+    DecompressContext context = DECOMPRESS_CONTEXT.get();
+    int length = source.readableBytes();
+    byte[] input = context.getInput(source);
+    int offset = context.getInputOffset(source);
+
+    // Only the header written by GZIPOutputStream (no optional fields) is handled here.
+    if (length < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE
+      || (input[offset] & 0xff) != 0x1f || (input[offset + 1] & 0xff) != 0x8b
+      || input[offset + 2] != 8 || input[offset + 3] != 0) {
+      return decompress(new GZIPInputStream(new ChannelBufferInputStream(source)), length);
+    }
+
+    // Last four bytes in the trailer is the uncompressed size in little endian.
+    int trailer = offset + length - 4;
+    int size = (input[trailer] & 0xff) | (input[trailer + 1] & 0xff) << 8
+      | (input[trailer + 2] & 0xff) << 16 | (input[trailer + 3] & 0xff) << 24;
+    if (size < 0) {
+      return decompress(new GZIPInputStream(new ChannelBufferInputStream(source)), length);
+    }
+
+    byte[] output = new byte[size];
+    Inflater inflater = context.getInflater();
+    try {
+      inflater.setInput(input, offset + GZIP_HEADER_SIZE, length - GZIP_HEADER_SIZE - GZIP_TRAILER_SIZE);
+      int len = 0;
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(output, len, size - len);
+        if (inflated == 0 && (len == size || inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        len += inflated;
+      }
+      if (!inflater.finished() || len != size) {
+        // The uncompressed size in the trailer is not reliable (e.g. multiple gzip members); use the stream.
+        return decompress(new GZIPInputStream(new ChannelBufferInputStream(source)), length);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.reset();
+    }
+    return ChannelBuffers.wrappedBuffer(output);
+  }
+
+  private ChannelBuffer unsnappy(ChannelBuffer source) throws IOException {
+    DecompressContext context = DECOMPRESS_CONTEXT.get();
+    int length = source.readableBytes();
+    byte[] input = context.getInput(source);
+    int offset = context.getInputOffset(source);
+    int end = offset + length;
+    int headerSize = SnappyCodec.headerSize();
+
+    if (length < headerSize || !isSnappyStream(input, offset)) {
+      return decompress(new SnappyInputStream(new ChannelBufferInputStream(source)), length);
+    }
+
+    // The stream is a sequence of [chunk_length][snappy_compressed_chunk] after the header.
+    // First pass to compute the total uncompressed size.
+    long size = 0;
+    int pos = offset + headerSize;
+    while (pos < end) {
+      int chunkSize = (end - pos < 4) ? -1 : getInt(input, pos);
+      if (chunkSize < 0 || chunkSize > end - pos - 4) {
+        return decompress(new SnappyInputStream(new ChannelBufferInputStream(source)), length);
+      }
+      size += Snappy.uncompressedLength(input, pos + 4, chunkSize);
+      pos += chunkSize + 4;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Uncompressed message set too large: " + size);
+    }
+
+    byte[] output = new byte[(int) size];
+    int len = 0;
+    pos = offset + headerSize;
+    while (pos < end) {
+      int chunkSize = getInt(input, pos);
+      len += Snappy.uncompress(input, pos + 4, chunkSize, output, len);
+      pos += chunkSize + 4;
+    }
+    return ChannelBuffers.wrappedBuffer(output);
+  }
+
+  /**
+   * Fallback decompression through stream.
+   */
+  private ChannelBuffer decompress(InputStream input, int sourceSize) throws IOException {
+    ChannelBufferOutputStream output = new ChannelBufferOutputStream(ChannelBuffers.dynamicBuffer(sourceSize * 2));
+    try {
+      try {
+        ByteStreams.copy(input, output);
+        return output.buffer();
+      } finally {
+        input.close();
+      }
+    } finally {
+      output.close();
+    }
+  }
+
+  private boolean isSnappyStream(byte[] input, int offset) {
+    byte[] magic = SnappyCodec.MAGIC_HEADER;
+    for (int i = 0; i < magic.length; i++) {
+      if (input[offset + i] != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int getInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+      | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+  }
+
+  /**
+   * Per thread states for decompression.
+   */
+  private static final class DecompressContext {
+
+    private final Inflater inflater = new Inflater(true);
+    private byte[] scratch = new byte[0];
+
+    Inflater getInflater() {
+      return inflater;
+    }
+
+    /**
+     * Returns an array containing the readable bytes of the given buffer. It is either the backing array of the
+     * buffer, or the per thread scratch array that the content is copied to.
+     */
+    byte[] getInput(ChannelBuffer buffer) {
+      if (buffer.hasArray()) {
+        return buffer.array();
+      }
+      int size = buffer.readableBytes();
+      if (scratch.length < size) {
+        scratch = new byte[Math.max(size, scratch.length * 2)];
+      }
+      buffer.getBytes(buffer.readerIndex(), scratch, 0, size);
+      return scratch;
+    }
+
+    /**
+     * Returns the offset in the array returned by {@link #getInput(ChannelBuffer)} where the content starts.
+     */
+    int getInputOffset(ChannelBuffer buffer) {
+      return buffer.hasArray() ? buffer.arrayOffset() + buffer.readerIndex() : 0;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Limits on the amount of fetched messages that can be buffered before consumed. A new fetch is issued only when
+ * the buffered messages drop below the low watermark, which is half of the limits. Since a fetch response is
+ * buffered as a whole, the buffered size could exceed the low watermark by up to one fetch size.
+ */
+final class PrefetchLimit {
+
+  private final int maxMessages;
+  private final long maxBytes;
+
+  PrefetchLimit(int maxMessages, long maxBytes) {
+    Preconditions.checkArgument(maxMessages > 0, "Max prefetch messages must be > 0.");
+    Preconditions.checkArgument(maxBytes > 0, "Max prefetch bytes must be > 0.");
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+  }
+
+  int getMaxMessages() {
+    return maxMessages;
+  }
+
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns {@code true} if the given buffered amount is below the low watermark.
+   */
+  boolean isBelowLowWatermark(int messages, long bytes) {
+    return messages < (maxMessages + 1) / 2 && bytes < (maxBytes + 1) / 2;
+  }
+}
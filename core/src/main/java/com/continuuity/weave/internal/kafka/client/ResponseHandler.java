@@ -25,7 +25,20 @@ interface ResponseHandler {
     public void received(KafkaResponse response) {
       // No-op
     }
+
+    @Override
+    public void failed(Throwable cause) {
+      // No-op
+    }
   };
 
+  /**
+   * Invoked when the response of a request is received.
+   */
   void received(KafkaResponse response);
+
+  /**
+   * Invoked when the request failed to be sent, or the connection failed before the response was received.
+   */
+  void failed(Throwable cause);
 }
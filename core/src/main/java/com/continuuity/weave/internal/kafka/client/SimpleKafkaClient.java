@@ -15,10 +15,13 @@
  */
 package com.continuuity.weave.internal.kafka.client;
 
+import com.continuuity.weave.common.Cancellable;
 import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.kafka.client.FetchException;
 import com.continuuity.weave.kafka.client.FetchedMessage;
 import com.continuuity.weave.kafka.client.KafkaClient;
+import com.continuuity.weave.kafka.client.MessageCallback;
+import com.continuuity.weave.kafka.client.Partitioner;
 import com.continuuity.weave.kafka.client.PreparePublish;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.google.common.base.Preconditions;
@@ -27,6 +30,7 @@ import com.google.common.collect.Maps;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -34,6 +38,7 @@ import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -43,14 +48,15 @@ import org.jboss.netty.channel.socket.nio.NioClientBossPool;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioWorkerPool;
 import org.jboss.netty.util.HashedWheelTimer;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -60,39 +66,135 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public final class SimpleKafkaClient extends AbstractIdleService implements KafkaClient {
 
-  private static final Logger LOG = LoggerFactory.getLogger(SimpleKafkaClient.class);
-  private static final int BROKER_POLL_INTERVAL = 100;
+  private static final Partitioner DEFAULT_PARTITIONER = new HashPartitioner();
+  private static final int MAX_REQUESTS_PER_CONNECTION = 32;
+  private static final int DEFAULT_PREFETCH_MESSAGES = 10000;
+  private static final long DEFAULT_PREFETCH_BYTES = 8 * 1024 * 1024;
+  private static final int DEFAULT_WORKER_THREADS = 4;
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_BROKER = 4;
+  private static final long DEFAULT_CONNECTION_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * Scheduler shared by all clients in the process for fetch backoff, fetch batching and idle connection eviction.
+   * Tasks are short and non-blocking, and tasks of a stopped client are cancelled or become no-op.
+   */
+  private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+                                                          Threads.createDaemonThreadFactory("kafka-client-scheduler"));
 
   private final KafkaBrokerCache brokerCache;
-  private ClientBootstrap bootstrap;
-  private ConnectionPool connectionPool;
+  private final boolean verifyChecksum;
+  private final PrefetchLimit prefetchLimit;
+  private final ConcurrentMap<InetSocketAddress, FetchRequestBatcher> fetchBatchers;
+  private final int workerThreads;
+  private final int maxConnectionsPerBroker;
+  private final long connectionIdleTimeoutMillis;
+  private SharedChannelFactory channelFactory;
+  private volatile ConnectionPool connectionPool;
+
+  /**
+   * Returns a {@link Builder} for creating {@link SimpleKafkaClient} with non-default settings.
+   * @param zkClient The {@link ZKClient} for discovering kafka brokers.
+   */
+  public static Builder builder(ZKClient zkClient) {
+    return new Builder(zkClient);
+  }
 
   public SimpleKafkaClient(ZKClient zkClient) {
-    this.brokerCache = new KafkaBrokerCache(zkClient);
+    this(builder(zkClient));
+  }
+
+  private SimpleKafkaClient(Builder builder) {
+    this.brokerCache = new KafkaBrokerCache(builder.zkClient, SCHEDULER);
+    this.verifyChecksum = builder.verifyChecksum;
+    this.prefetchLimit = new PrefetchLimit(builder.prefetchMessages, builder.prefetchBytes);
+    this.fetchBatchers = Maps.newConcurrentMap();
+    this.workerThreads = builder.workerThreads;
+    this.maxConnectionsPerBroker = builder.maxConnectionsPerBroker;
+    this.connectionIdleTimeoutMillis = builder.connectionIdleTimeoutMillis;
   }
 
   @Override
   protected void startUp() throws Exception {
     brokerCache.startAndWait();
-    ThreadFactory threadFactory = Threads.createDaemonThreadFactory("kafka-client-netty-%d");
-    NioClientBossPool bossPool = new NioClientBossPool(Executors.newSingleThreadExecutor(threadFactory), 1,
-                                                       new HashedWheelTimer(threadFactory), null);
-    NioWorkerPool workerPool = new NioWorkerPool(Executors.newFixedThreadPool(4, threadFactory), 4);
-
-    bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(bossPool, workerPool));
+    channelFactory = SharedChannelFactory.acquire(workerThreads);
+    ClientBootstrap bootstrap = new ClientBootstrap(channelFactory.getChannelFactory());
     bootstrap.setPipelineFactory(new KafkaChannelPipelineFactory());
-    connectionPool = new ConnectionPool(bootstrap);
+    connectionPool = new ConnectionPool(bootstrap, MAX_REQUESTS_PER_CONNECTION, maxConnectionsPerBroker,
+                                        connectionIdleTimeoutMillis, TimeUnit.MILLISECONDS, SCHEDULER);
   }
 
   @Override
   protected void shutDown() throws Exception {
-    connectionPool.close();
-    bootstrap.releaseExternalResources();
+    fetchBatchers.clear();
+    connectionPool.close().awaitUninterruptibly();
+    channelFactory.release();
     brokerCache.stopAndWait();
   }
 
+  /**
+   * Returns the number of broker connections that have outstanding requests.
+   */
+  public int getActiveConnections() {
+    ConnectionPool pool = connectionPool;
+    return pool == null ? 0 : pool.getActiveCount();
+  }
+
+  /**
+   * Returns the number of broker connections that have no outstanding request.
+   */
+  public int getIdleConnections() {
+    ConnectionPool pool = connectionPool;
+    return pool == null ? 0 : pool.getIdleCount();
+  }
+
+  /**
+   * Returns the number of requests waiting for a broker connection, because all allowed connections are busy.
+   */
+  public int getWaitingConnections() {
+    ConnectionPool pool = connectionPool;
+    return pool == null ? 0 : pool.getWaitingCount();
+  }
+
+  /**
+   * Returns the total number of broker connections opened.
+   */
+  public long getCreatedConnections() {
+    ConnectionPool pool = connectionPool;
+    return pool == null ? 0 : pool.getCreatedCount();
+  }
+
+  /**
+   * Returns the total number of broker connections that failed to connect.
+   */
+  public long getFailedConnections() {
+    ConnectionPool pool = connectionPool;
+    return pool == null ? 0 : pool.getFailedCount();
+  }
+
+  /**
+   * Returns the number of broker lookups that are routed to a broker serving the requested topic partition.
+   */
+  public long getRoutedLookups() {
+    return brokerCache.getRoutedLookups();
+  }
+
+  /**
+   * Returns the number of broker lookups that fell back to an arbitrary broker, because no broker was known to
+   * serve the requested topic partition.
+   */
+  public long getFallbackLookups() {
+    return brokerCache.getFallbackLookups();
+  }
+
   @Override
-  public PreparePublish preparePublish(final String topic, final Compression compression) {
+  public PreparePublish preparePublish(String topic, Compression compression) {
+    return preparePublish(topic, compression, DEFAULT_PARTITIONER);
+  }
+
+  @Override
+  public PreparePublish preparePublish(final String topic, final Compression compression,
+                                       final Partitioner partitioner) {
+    Preconditions.checkNotNull(partitioner, "Partitioner cannot be null.");
     final Map<Integer, MessageSetEncoder> encoders = Maps.newHashMap();
 
     return new PreparePublish() {
@@ -103,8 +205,10 @@ public final class SimpleKafkaClient extends AbstractIdleService implements Kafk
 
       @Override
       public PreparePublish add(ByteBuffer payload, Object partitionKey) {
-        // TODO: Partition
-        int partition = 0;
+        int partitionSize = brokerCache.getPartitionSize(topic);
+        int partition = partitioner.partition(partitionKey, partitionSize);
+        Preconditions.checkState(partition >= 0 && partition < partitionSize,
+                                 "Partition %s out of range [0, %s) for topic %s", partition, partitionSize, topic);
 
         MessageSetEncoder encoder = encoders.get(partition);
         if (encoder == null) {
@@ -129,17 +233,33 @@ public final class SimpleKafkaClient extends AbstractIdleService implements Kafk
       private ListenableFuture<?> doPublish(String topic, int partition, ChannelBuffer messageSet) {
         final KafkaRequest request = KafkaRequest.createProduce(topic, partition, messageSet);
         final SettableFuture<?> result = SettableFuture.create();
-        final ConnectionPool.ConnectResult connection =
-              connectionPool.connect(getTopicBroker(topic, partition).getAddress());
 
-        connection.getChannelFuture().addListener(new ChannelFutureListener() {
+        Futures.addCallback(brokerCache.getBroker(topic, partition), new FutureCallback<TopicBroker>() {
           @Override
-          public void operationComplete(ChannelFuture future) throws Exception {
-            try {
-              future.getChannel().write(request).addListener(getPublishChannelFutureListener(result, null, connection));
-            } catch (Exception e) {
-              result.setException(e);
-            }
+          public void onSuccess(TopicBroker topicBroker) {
+            final ConnectionPool.ConnectResult connection = connectionPool.connect(topicBroker.getAddress());
+            Futures.addCallback(connection.getChannel(), new FutureCallback<Channel>() {
+              @Override
+              public void onSuccess(Channel channel) {
+                try {
+                  channel.write(request).addListener(getPublishChannelFutureListener(result, null, connection));
+                } catch (Exception e) {
+                  connection.release();
+                  result.setException(e);
+                }
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                connection.release();
+                result.setException(t);
+              }
+            });
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            result.setException(t);
           }
         });
 
@@ -149,42 +269,21 @@ public final class SimpleKafkaClient extends AbstractIdleService implements Kafk
   }
 
   @Override
-  public Iterator<FetchedMessage> consume(final String topic, final int partition, long offset, int maxSize) {
+  public Iterator<FetchedMessage> consume(String topic, int partition, long offset, int maxSize) {
     Preconditions.checkArgument(maxSize >= 10, "Message size cannot be smaller than 10.");
+    return new MessageFetcher(topic, partition, offset, maxSize, new MessageSetDecoder(verifyChecksum),
+                              prefetchLimit, SCHEDULER, createFetchRequestSender(topic, partition));
+  }
 
-    // Connect to broker. Consumer connection are long connection. No need to worry about reuse.
-    final AtomicReference<ChannelFuture> channelFutureRef = new AtomicReference<ChannelFuture>(
-          connectionPool.connect(getTopicBroker(topic, partition).getAddress()).getChannelFuture());
-
-    return new MessageFetcher(topic, partition, offset, maxSize, new KafkaRequestSender() {
-
-      @Override
-      public void send(final KafkaRequest request) {
-        if (!isRunning()) {
-          return;
-        }
-        try {
-          // Try to send the request
-          Channel channel = channelFutureRef.get().getChannel();
-          if (!channel.write(request).await().isSuccess()) {
-            // If failed, retry
-            channel.close();
-            ChannelFuture channelFuture = connectionPool.connect(
-                                              getTopicBroker(topic, partition).getAddress()).getChannelFuture();
-            channelFutureRef.set(channelFuture);
-            channelFuture.addListener(new ChannelFutureListener() {
-              @Override
-              public void operationComplete(ChannelFuture channelFuture) throws Exception {
-                send(request);
-              }
-            });
-          }
-        } catch (InterruptedException e) {
-          // Ignore it
-          LOG.info("Interrupted when sending consume request", e);
-        }
-      }
-    });
+  @Override
+  public Cancellable consume(String topic, int partition, long offset, int maxSize, MessageCallback callback) {
+    Preconditions.checkArgument(maxSize >= 10, "Message size cannot be smaller than 10.");
+    Preconditions.checkNotNull(callback, "MessageCallback cannot be null.");
+    CallbackMessageFetcher fetcher = new CallbackMessageFetcher(topic, partition, offset, maxSize,
+                                                                new MessageSetDecoder(verifyChecksum), SCHEDULER,
+                                                                createFetchRequestSender(topic, partition), callback);
+    fetcher.start();
+    return fetcher;
   }
 
   @Override
@@ -194,17 +293,31 @@ public final class SimpleKafkaClient extends AbstractIdleService implements Kafk
     body.writeLong(time);
     body.writeInt(maxOffsets);
 
-    connectionPool.connect(getTopicBroker(topic, partition).getAddress())
-                  .getChannelFuture().addListener(new ChannelFutureListener() {
+    Futures.addCallback(brokerCache.getBroker(topic, partition), new FutureCallback<TopicBroker>() {
       @Override
-      public void operationComplete(ChannelFuture future) throws Exception {
-        if (checkFailure(future)) {
-          return;
-        }
+      public void onSuccess(TopicBroker topicBroker) {
+        getOffset(topicBroker.getAddress(), topic, partition, body, resultFuture);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        resultFuture.setException(t);
+      }
+    });
 
-        future.getChannel().write(KafkaRequest.createOffsets(topic, partition, body, new ResponseHandler() {
+    return resultFuture;
+  }
+
+  private void getOffset(InetSocketAddress address, final String topic, final int partition,
+                         final ChannelBuffer body, final SettableFuture<long[]> resultFuture) {
+    final ConnectionPool.ConnectResult connection = connectionPool.connect(address);
+    Futures.addCallback(connection.getChannel(), new FutureCallback<Channel>() {
+      @Override
+      public void onSuccess(Channel channel) {
+        channel.write(KafkaRequest.createOffsets(topic, partition, body, new ResponseHandler() {
           @Override
           public void received(KafkaResponse response) {
+            connection.release();
             if (response.getErrorCode() != FetchException.ErrorCode.OK) {
               resultFuture.setException(new FetchException("Failed to fetch offset.", response.getErrorCode()));
             } else {
@@ -219,41 +332,132 @@ public final class SimpleKafkaClient extends AbstractIdleService implements Kafk
               resultFuture.set(result);
             }
           }
+
+          @Override
+          public void failed(Throwable cause) {
+            connection.release();
+            resultFuture.setException(cause);
+          }
         })).addListener(new ChannelFutureListener() {
           @Override
           public void operationComplete(ChannelFuture future) throws Exception {
-            checkFailure(future);
+            if (!future.isSuccess()) {
+              connection.release();
+              if (future.isCancelled()) {
+                resultFuture.cancel(true);
+              } else {
+                resultFuture.setException(future.getCause());
+              }
+            }
           }
         });
       }
 
-      private boolean checkFailure(ChannelFuture future) {
-        if (!future.isSuccess()) {
-          if (future.isCancelled()) {
-            resultFuture.cancel(true);
-          } else {
-            resultFuture.setException(future.getCause());
-          }
-          return true;
-        }
-        return false;
+      @Override
+      public void onFailure(Throwable t) {
+        connection.release();
+        resultFuture.setException(t);
       }
     });
+  }
 
-    return resultFuture;
+  /**
+   * Creates a {@link KafkaRequestSender} for sending fetch requests to the leader broker of the given partition.
+   * Fetches of the partition go to the same broker for as long as it serves the partition, and fetches to the same
+   * broker are coalesced into multi-fetch requests.
+   */
+  private KafkaRequestSender createFetchRequestSender(final String topic, final int partition) {
+    return new KafkaRequestSender() {
+      @Override
+      public void send(final KafkaRequest request) {
+        if (!isRunning()) {
+          request.getResponseHandler().failed(new IllegalStateException("Kafka client is not running."));
+          return;
+        }
+        // The broker is usually known already, hence resolve it without going through a future.
+        TopicBroker knownBroker = brokerCache.getBrokerAddress(topic, partition);
+        if (knownBroker != null) {
+          getFetchRequestBatcher(knownBroker.getAddress()).send(request);
+          return;
+        }
+        Futures.addCallback(brokerCache.getBroker(topic, partition), new FutureCallback<TopicBroker>() {
+          @Override
+          public void onSuccess(TopicBroker topicBroker) {
+            getFetchRequestBatcher(topicBroker.getAddress()).send(request);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            request.getResponseHandler().failed(t);
+          }
+        });
+      }
+    };
   }
 
-  private TopicBroker getTopicBroker(String topic, int partition) {
-    TopicBroker topicBroker = brokerCache.getBrokerAddress(topic, partition);
-    while (topicBroker == null) {
-      try {
-        TimeUnit.MILLISECONDS.sleep(BROKER_POLL_INTERVAL);
-      } catch (InterruptedException e) {
-        return null;
+  private FetchRequestBatcher getFetchRequestBatcher(InetSocketAddress address) {
+    FetchRequestBatcher batcher = fetchBatchers.get(address);
+    if (batcher == null) {
+      batcher = new FetchRequestBatcher(SCHEDULER, createBrokerRequestSender(address));
+      FetchRequestBatcher existing = fetchBatchers.putIfAbsent(address, batcher);
+      if (existing != null) {
+        batcher = existing;
       }
-      topicBroker = brokerCache.getBrokerAddress(topic, partition);
     }
-    return topicBroker;
+    return batcher;
+  }
+
+  /**
+   * Creates a {@link KafkaRequestSender} that writes requests to the given broker. The {@link FetchRequestBatcher}
+   * of the broker sends a request only after the response of the previous one is handled, hence it holds on to one
+   * request slot of a pooled connection until it has to reconnect.
+   */
+  private KafkaRequestSender createBrokerRequestSender(final InetSocketAddress address) {
+    final AtomicReference<ConnectionPool.ConnectResult> connectionRef =
+      new AtomicReference<ConnectionPool.ConnectResult>();
+
+    return new KafkaRequestSender() {
+      @Override
+      public void send(final KafkaRequest request) {
+        ConnectionPool.ConnectResult connection = getConnection();
+
+        // Write when connected. Any failure is reported to the response handler, which decides when to retry.
+        Futures.addCallback(connection.getChannel(), new FutureCallback<Channel>() {
+          @Override
+          public void onSuccess(Channel channel) {
+            channel.write(request).addListener(new ChannelFutureListener() {
+              @Override
+              public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                  request.getResponseHandler().failed(future.getCause());
+                }
+              }
+            });
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            request.getResponseHandler().failed(t);
+          }
+        });
+      }
+
+      /**
+       * Returns the current connection, or reconnects if it is no longer usable.
+       */
+      private synchronized ConnectionPool.ConnectResult getConnection() {
+        ConnectionPool.ConnectResult connection = connectionRef.get();
+        if (connection != null) {
+          if (connection.isUsable()) {
+            return connection;
+          }
+          connection.release();
+        }
+        connection = connectionPool.connect(address);
+        connectionRef.set(connection);
+        return connection;
+      }
+    };
   }
 
   private MessageSetEncoder getEncoder(Compression compression) {
@@ -299,4 +503,124 @@ public final class SimpleKafkaClient extends AbstractIdleService implements Kafk
       return pipeline;
     }
   }
+
+  /**
+   * A netty {@link ChannelFactory} shared by all clients in the process that use the same number of worker threads.
+   * It is reference counted, and its threads are released when the last client using it stops.
+   */
+  private static final class SharedChannelFactory {
+
+    // Guarded by the class lock
+    private static final Map<Integer, SharedChannelFactory> FACTORIES = Maps.newHashMap();
+
+    private final int workerThreads;
+    private final ChannelFactory channelFactory;
+    private int refCount;
+
+    static synchronized SharedChannelFactory acquire(int workerThreads) {
+      SharedChannelFactory factory = FACTORIES.get(workerThreads);
+      if (factory == null) {
+        factory = new SharedChannelFactory(workerThreads);
+        FACTORIES.put(workerThreads, factory);
+      }
+      factory.refCount++;
+      return factory;
+    }
+
+    private SharedChannelFactory(int workerThreads) {
+      ThreadFactory threadFactory = Threads.createDaemonThreadFactory("kafka-client-netty-%d");
+      NioClientBossPool bossPool = new NioClientBossPool(Executors.newSingleThreadExecutor(threadFactory), 1,
+                                                         new HashedWheelTimer(threadFactory), null);
+      NioWorkerPool workerPool = new NioWorkerPool(Executors.newFixedThreadPool(workerThreads, threadFactory),
+                                                   workerThreads);
+      this.workerThreads = workerThreads;
+      this.channelFactory = new NioClientSocketChannelFactory(bossPool, workerPool);
+    }
+
+    ChannelFactory getChannelFactory() {
+      return channelFactory;
+    }
+
+    /**
+     * Releases one reference. Must not be called from a netty I/O thread, as it blocks until the threads
+     * are terminated when the last reference is released.
+     */
+    void release() {
+      synchronized (SharedChannelFactory.class) {
+        if (--refCount > 0) {
+          return;
+        }
+        FACTORIES.remove(workerThreads);
+      }
+      channelFactory.releaseExternalResources();
+    }
+  }
+
+  /**
+   * Builder for creating {@link SimpleKafkaClient}.
+   */
+  public static final class Builder {
+
+    private final ZKClient zkClient;
+    private boolean verifyChecksum = true;
+    private int prefetchMessages = DEFAULT_PREFETCH_MESSAGES;
+    private long prefetchBytes = DEFAULT_PREFETCH_BYTES;
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int maxConnectionsPerBroker = DEFAULT_MAX_CONNECTIONS_PER_BROKER;
+    private long connectionIdleTimeoutMillis = DEFAULT_CONNECTION_IDLE_TIMEOUT_MILLIS;
+
+    private Builder(ZKClient zkClient) {
+      this.zkClient = zkClient;
+    }
+
+    /**
+     * Sets whether to verify the CRC32 checksum of fetched messages. Default is {@code true}.
+     */
+    public Builder setVerifyChecksum(boolean verifyChecksum) {
+      this.verifyChecksum = verifyChecksum;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of messages and bytes that a consumer buffers ahead of consumption. A new fetch is
+     * issued only when the buffered messages drop below half of both limits. Default is 10000 messages and 8MB.
+     */
+    public Builder setPrefetchLimit(int maxMessages, long maxBytes) {
+      this.prefetchMessages = maxMessages;
+      this.prefetchBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * Sets the number of netty worker threads for broker connections. Default is 4.
+     */
+    public Builder setWorkerThreads(int workerThreads) {
+      Preconditions.checkArgument(workerThreads > 0, "Worker threads must be > 0.");
+      this.workerThreads = workerThreads;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of connections opened to each broker. Requests wait for a free connection when
+     * all of them are busy. Default is 4.
+     */
+    public Builder setMaxConnectionsPerBroker(int maxConnections) {
+      Preconditions.checkArgument(maxConnections > 0, "Max connections per broker must be > 0.");
+      this.maxConnectionsPerBroker = maxConnections;
+      return this;
+    }
+
+    /**
+     * Sets the time a broker connection without outstanding request is kept open. A value {@code <= 0} keeps
+     * idle connections open until the client stops. Default is 1 minute.
+     */
+    public Builder setConnectionIdleTimeout(long timeout, TimeUnit unit) {
+      this.connectionIdleTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    public SimpleKafkaClient build() {
+      return new SimpleKafkaClient(this);
+    }
+  }
 }
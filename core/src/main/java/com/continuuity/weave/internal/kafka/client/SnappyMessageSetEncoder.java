@@ -15,22 +15,61 @@
  */
 package com.continuuity.weave.internal.kafka.client;
 
-import org.xerial.snappy.SnappyOutputStream;
+import com.google.common.base.Throwables;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyCodec;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
- * A {@link MessageSetEncoder} that compress messages using snappy.
+ * A {@link MessageSetEncoder} that compress messages using snappy. The output has the same format as
+ * {@link org.xerial.snappy.SnappyOutputStream}, which is a stream header followed by length prefixed compressed
+ * blocks, so that it can be consumed by any kafka consumer.
  */
 final class SnappyMessageSetEncoder extends AbstractCompressedMessageSetEncoder {
 
+  private static final int BLOCK_SIZE = 32 * 1024;
+  private static final byte[] STREAM_HEADER = createStreamHeader();
+
   SnappyMessageSetEncoder() {
     super(Compression.SNAPPY);
   }
 
   @Override
-  protected OutputStream createCompressedStream(OutputStream os) throws IOException {
-    return new SnappyOutputStream(os);
+  protected ChannelBuffer compress(byte[] input, int offset, int length) throws IOException {
+    int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    byte[] output = getScratch(STREAM_HEADER.length + blocks * (4 + Snappy.maxCompressedLength(BLOCK_SIZE)));
+
+    System.arraycopy(STREAM_HEADER, 0, output, 0, STREAM_HEADER.length);
+    int outputLength = STREAM_HEADER.length;
+    int end = offset + length;
+    for (int blockOffset = offset; blockOffset < end; blockOffset += BLOCK_SIZE) {
+      int blockLength = Math.min(BLOCK_SIZE, end - blockOffset);
+      int compressedLength = Snappy.compress(input, blockOffset, blockLength, output, outputLength + 4);
+      writeInt(output, outputLength, compressedLength);
+      outputLength += 4 + compressedLength;
+    }
+    return ChannelBuffers.copiedBuffer(output, 0, outputLength);
+  }
+
+  private void writeInt(byte[] output, int offset, int value) {
+    output[offset] = (byte) (value >> 24);
+    output[offset + 1] = (byte) (value >> 16);
+    output[offset + 2] = (byte) (value >> 8);
+    output[offset + 3] = (byte) value;
+  }
+
+  private static byte[] createStreamHeader() {
+    try {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      SnappyCodec.currentHeader().writeHeader(os);
+      return os.toByteArray();
+    } catch (IOException e) {
+      // Should never happen
+      throw Throwables.propagate(e);
+    }
   }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import com.continuuity.weave.api.logging.LogEntry;
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes {@link LogEntry} from the binary log record format written by {@link KafkaAppender}. A record starts
+ * with the format {@link #VERSION} byte, which never collides with the leading <code>{</code> of a json
+ * record, followed by:
+ *
+ * <pre>
+ *   logger name, host, timestamp (long), level, class, method, file, line (int), thread, message,
+ *   number of stack traces (int), then class, method, file and line (int) for each stack trace element.
+ * </pre>
+ *
+ * Strings are written as an int length, which is {@code -1} for {@code null}, followed by the UTF-8 bytes.
+ */
+public final class BinaryLogEntryDecoder {
+
+  /**
+   * Version of the binary log record format.
+   */
+  public static final byte VERSION = 1;
+
+  /**
+   * Returns {@code true} if the given buffer contains a binary log record. The buffer position is not changed.
+   */
+  public static boolean isBinary(ByteBuffer buffer) {
+    return buffer.hasRemaining() && buffer.get(buffer.position()) == VERSION;
+  }
+
+  /**
+   * Decodes a {@link LogEntry} from the given buffer. The buffer position is not changed.
+   *
+   * @throws IllegalArgumentException if the record has an unsupported format version.
+   */
+  public LogEntry decode(ByteBuffer buffer) {
+    ByteBuffer buf = buffer.duplicate();
+    byte version = buf.get();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported log record format version " + version);
+    }
+
+    String name = readString(buf);
+    String host = readString(buf);
+    long timestamp = buf.getLong();
+    LogEntry.Level logLevel = DefaultLogEntry.parseLevel(readString(buf));
+    String className = readString(buf);
+    String method = readString(buf);
+    String file = readString(buf);
+    int line = buf.getInt();
+    String thread = readString(buf);
+    String message = readString(buf);
+
+    StackTraceElement[] stackTraces = new StackTraceElement[buf.getInt()];
+    for (int i = 0; i < stackTraces.length; i++) {
+      stackTraces[i] = new StackTraceElement(readString(buf), readString(buf), readString(buf), buf.getInt());
+    }
+
+    return new DefaultLogEntry(name, host, timestamp, logLevel, className, method, file, line, thread,
+                               message, stackTraces);
+  }
+
+  private String readString(ByteBuffer buf) {
+    int len = buf.getInt();
+    if (len < 0) {
+      return null;
+    }
+    String str;
+    if (buf.hasArray()) {
+      str = new String(buf.array(), buf.arrayOffset() + buf.position(), len, Charsets.UTF_8);
+      buf.position(buf.position() + len);
+    } else {
+      ByteBuffer slice = buf.slice();
+      slice.limit(len);
+      str = Charsets.UTF_8.decode(slice).toString();
+      buf.position(buf.position() + len);
+    }
+    return str;
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes {@link ILoggingEvent} into the binary log record format decoded by {@link BinaryLogEntryDecoder}.
+ * Each thread encodes records one after another into its own chunk {@link ChannelBuffer}, with strings written as
+ * UTF-8 directly into it. The returned record is a view on the chunk, hence no per event allocation or copy is
+ * needed. A chunk is never rewritten; a new one is allocated when it is full, and the old one is garbage collected
+ * once all records in it are published or dropped.
+ */
+final class BinaryLogEventEncoder implements LogEventEncoder {
+
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  private final String hostname;
+  private final boolean callerData;
+  private final ThreadLocal<ChannelBuffer> chunk = new ThreadLocal<ChannelBuffer>() {
+    @Override
+    protected ChannelBuffer initialValue() {
+      return ChannelBuffers.buffer(CHUNK_SIZE);
+    }
+  };
+
+  /**
+   * @param hostname Name of the host that emits the log events.
+   * @param callerData {@code true} to include the class, method, file and line of the caller, which requires
+   *                   walking the stack of the logging thread.
+   */
+  BinaryLogEventEncoder(String hostname, boolean callerData) {
+    this.hostname = hostname;
+    this.callerData = callerData;
+  }
+
+  @Override
+  public ByteBuffer encode(ILoggingEvent event) {
+    StackTraceElement caller = callerData ? getCaller(event) : null;
+    IThrowableProxy throwable = event.getThrowableProxy();
+    StackTraceElementProxy[] stackTraces = throwable == null ? null : throwable.getStackTraceElementProxyArray();
+
+    int maxSize = getMaxSize(event, caller, stackTraces);
+    ChannelBuffer buffer = chunk.get();
+    if (buffer.writableBytes() < maxSize) {
+      buffer = ChannelBuffers.buffer(Math.max(CHUNK_SIZE, maxSize));
+      chunk.set(buffer);
+    }
+    int start = buffer.writerIndex();
+
+    buffer.writeByte(BinaryLogEntryDecoder.VERSION);
+    writeString(buffer, event.getLoggerName());
+    writeString(buffer, hostname);
+    buffer.writeLong(event.getTimeStamp());
+    writeString(buffer, event.getLevel().toString());
+
+    if (caller == null) {
+      writeString(buffer, KafkaAppender.NOT_AVAILABLE);
+      writeString(buffer, KafkaAppender.NOT_AVAILABLE);
+      writeString(buffer, KafkaAppender.NOT_AVAILABLE);
+      buffer.writeInt(-1);
+    } else {
+      writeString(buffer, caller.getClassName());
+      writeString(buffer, caller.getMethodName());
+      writeString(buffer, caller.getFileName());
+      buffer.writeInt(caller.getLineNumber());
+    }
+    writeString(buffer, event.getThreadName());
+    writeString(buffer, event.getFormattedMessage());
+
+    if (stackTraces == null) {
+      buffer.writeInt(0);
+    } else {
+      buffer.writeInt(stackTraces.length);
+      for (StackTraceElementProxy stackTrace : stackTraces) {
+        StackTraceElement element = stackTrace.getStackTraceElement();
+        writeString(buffer, element.getClassName());
+        writeString(buffer, element.getMethodName());
+        writeString(buffer, element.getFileName());
+        buffer.writeInt(element.getLineNumber());
+      }
+    }
+
+    return buffer.toByteBuffer(start, buffer.writerIndex() - start).slice();
+  }
+
+  /**
+   * Returns the first caller data element of the given event or {@code null} if it is not available.
+   */
+  static StackTraceElement getCaller(ILoggingEvent event) {
+    StackTraceElement[] callerData = event.getCallerData();
+    return (callerData == null || callerData.length == 0) ? null : callerData[0];
+  }
+
+  /**
+   * Returns the maximum number of bytes the record of the given event takes.
+   */
+  private int getMaxSize(ILoggingEvent event, StackTraceElement caller, StackTraceElementProxy[] stackTraces) {
+    // Version, timestamp, caller line number and number of stack traces.
+    int size = 1 + 8 + 4 + 4;
+    size += getMaxSize(event.getLoggerName()) + getMaxSize(hostname) + getMaxSize(event.getLevel().toString());
+    if (caller == null) {
+      size += 3 * getMaxSize(KafkaAppender.NOT_AVAILABLE);
+    } else {
+      size += getMaxSize(caller.getClassName()) + getMaxSize(caller.getMethodName())
+        + getMaxSize(caller.getFileName());
+    }
+    size += getMaxSize(event.getThreadName()) + getMaxSize(event.getFormattedMessage());
+    if (stackTraces != null) {
+      for (StackTraceElementProxy stackTrace : stackTraces) {
+        StackTraceElement element = stackTrace.getStackTraceElement();
+        size += getMaxSize(element.getClassName()) + getMaxSize(element.getMethodName())
+          + getMaxSize(element.getFileName()) + 4;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the maximum number of bytes written by {@link #writeString(ChannelBuffer, String)}. Each char takes
+   * at most three bytes. A surrogate pair takes four bytes for two chars.
+   */
+  private int getMaxSize(String str) {
+    return 4 + (str == null ? 0 : str.length() * 3);
+  }
+
+  /**
+   * Writes the length of the UTF-8 encoded string followed by the encoded bytes. The buffer must have enough space,
+   * as computed by {@link #getMaxSize(String)}.
+   */
+  private void writeString(ChannelBuffer buffer, String str) {
+    if (str == null) {
+      buffer.writeInt(-1);
+      return;
+    }
+
+    int len = str.length();
+    int lengthIdx = buffer.writerIndex();
+    buffer.writerIndex(lengthIdx + 4);
+
+    for (int i = 0; i < len; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        buffer.writeByte(c);
+      } else if (c < 0x800) {
+        buffer.writeByte(0xc0 | (c >> 6));
+        buffer.writeByte(0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, str.charAt(++i));
+        buffer.writeByte(0xf0 | (codePoint >> 18));
+        buffer.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+        buffer.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+        buffer.writeByte(0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // Unpaired surrogate, same replacement as String.getBytes.
+        buffer.writeByte('?');
+      } else {
+        buffer.writeByte(0xe0 | (c >> 12));
+        buffer.writeByte(0x80 | ((c >> 6) & 0x3f));
+        buffer.writeByte(0x80 | (c & 0x3f));
+      }
+    }
+    buffer.setInt(lengthIdx, buffer.writerIndex() - lengthIdx - 4);
+  }
+}
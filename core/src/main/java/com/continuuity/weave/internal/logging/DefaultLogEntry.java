@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import com.continuuity.weave.api.logging.LogEntry;
+
+/**
+ * A {@link LogEntry} that holds all values in fields.
+ */
+final class DefaultLogEntry implements LogEntry {
+
+  private final String loggerName;
+  private final String host;
+  private final long timestamp;
+  private final Level logLevel;
+  private final String className;
+  private final String method;
+  private final String file;
+  private final int line;
+  private final String thread;
+  private final String message;
+  private final StackTraceElement[] stackTraces;
+
+  DefaultLogEntry(String loggerName, String host, long timestamp, Level logLevel, String className, String method,
+                  String file, int line, String thread, String message, StackTraceElement[] stackTraces) {
+    this.loggerName = loggerName;
+    this.host = host;
+    this.timestamp = timestamp;
+    this.logLevel = logLevel;
+    this.className = className;
+    this.method = method;
+    this.file = file;
+    this.line = line;
+    this.thread = thread;
+    this.message = message;
+    this.stackTraces = stackTraces;
+  }
+
+  /**
+   * Returns the {@link Level} of the given name or {@link Level#FATAL} if the name is not a valid level.
+   */
+  static Level parseLevel(String level) {
+    try {
+      return Level.valueOf(level);
+    } catch (Exception e) {
+      return Level.FATAL;
+    }
+  }
+
+  @Override
+  public String getLoggerName() {
+    return loggerName;
+  }
+
+  @Override
+  public String getHost() {
+    return host;
+  }
+
+  @Override
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public Level getLogLevel() {
+    return logLevel;
+  }
+
+  @Override
+  public String getSourceClassName() {
+    return className;
+  }
+
+  @Override
+  public String getSourceMethodName() {
+    return method;
+  }
+
+  @Override
+  public String getFileName() {
+    return file;
+  }
+
+  @Override
+  public int getLineNumber() {
+    return line;
+  }
+
+  @Override
+  public String getThreadName() {
+    return thread;
+  }
+
+  @Override
+  public String getMessage() {
+    return message;
+  }
+
+  @Override
+  public StackTraceElement[] getStackTraces() {
+    return stackTraces;
+  }
+}
@@ -25,19 +25,13 @@ import com.continuuity.weave.zookeeper.RetryStrategies;
 import com.continuuity.weave.zookeeper.ZKClientService;
 import com.continuuity.weave.zookeeper.ZKClientServices;
 import com.continuuity.weave.zookeeper.ZKClients;
-import ch.qos.logback.classic.pattern.ClassOfCallerConverter;
-import ch.qos.logback.classic.pattern.FileOfCallerConverter;
-import ch.qos.logback.classic.pattern.LineOfCallerConverter;
-import ch.qos.logback.classic.pattern.MethodOfCallerConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.StackTraceElementProxy;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import com.google.common.base.Charsets;
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -47,46 +41,51 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.StringWriter;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
- *
+ * Appender that publishes log events to Kafka. Events are encoded by the logging threads concurrently, without
+ * holding any lock, into a bounded buffer that is drained by a single flush thread.
  */
-public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
+public final class KafkaAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
   private static final Logger LOG = LoggerFactory.getLogger(KafkaAppender.class);
+  private static final long FORCE_FLUSH_TIMEOUT_MS = 2000;
 
-  private final LogEventConverter eventConverter;
-  private final AtomicReference<PreparePublish> publisher;
-  private final Runnable flushTask;
   /**
-   * Rough count of how many entries are being buffered. It's just approximate, not exact.
+   * Value for caller data that is not available.
    */
-  private final AtomicInteger bufferedSize;
+  static final String NOT_AVAILABLE = "?";
+
+  static final String JSON_ENCODING = "json";
+  static final String BINARY_ENCODING = "binary";
 
   private ZKClientService zkClientService;
   private KafkaClient kafkaClient;
   private String zkConnectStr;
   private String hostname;
   private String topic;
-  private Queue<String> buffer;
-  private int flushLimit = 20;
+  private LogRecordBuffer buffer;
+  private int flushLimit = 1000;
   private int flushPeriod = 100;
+  private int batchSize = 64 * 1024;
+  private int bufferSize = 8192;
+  private String overflowPolicy = LogRecordBuffer.OverflowPolicy.DROP_OLDEST.name();
+  private int blockTimeout = 100;
+  private String encoding = JSON_ENCODING;
+  private boolean callerData = true;
   private ScheduledExecutorService scheduler;
-
-  public KafkaAppender() {
-    eventConverter = new LogEventConverter();
-    publisher = new AtomicReference<PreparePublish>();
-    flushTask = createFlushTask();
-    bufferedSize = new AtomicInteger();
-    buffer = new ConcurrentLinkedQueue<String>();
-  }
+  // The thread of the scheduler, which is the only consumer of the buffer.
+  private volatile Thread flushThread;
+  private LogEventEncoder eventEncoder;
+  private LogBatchPublisher batchPublisher;
 
   /**
    * Sets the zookeeper connection string. Called by slf4j.
@@ -113,7 +112,7 @@ public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
   }
 
   /**
-   * Sets the maximum number of cached log entries before performing an force flush. Called by slf4j.
+   * Sets the number of cached log entries that triggers a flush. Called by slf4j.
    */
   @SuppressWarnings("unused")
   public void setFlushLimit(int flushLimit) {
@@ -121,18 +120,88 @@ public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
   }
 
   /**
-   * Sets the periodic flush time in milliseconds. Called by slf4j.
+   * Sets the maximum time in milliseconds that a log entry waits before being flushed. Called by slf4j.
    */
   @SuppressWarnings("unused")
   public void setFlushPeriod(int flushPeriod) {
     this.flushPeriod = flushPeriod;
   }
 
+  /**
+   * Sets the size in bytes of cached log entries that triggers a flush. Default is 64KB. Called by slf4j.
+   */
+  @SuppressWarnings("unused")
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Sets the maximum number of log entries buffered for publishing. It is rounded up to the next power of two.
+   * Called by slf4j.
+   */
+  @SuppressWarnings("unused")
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Sets the policy for log entries emitted when the buffer is full, one of {@code drop_oldest},
+   * {@code drop_by_level}, which keeps room for {@code WARN} or above, and {@code block}, which waits
+   * up to the block timeout. Default is {@code drop_oldest}. Called by slf4j.
+   */
+  @SuppressWarnings("unused")
+  public void setOverflowPolicy(String overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Sets the maximum time in milliseconds to wait for buffer space with the {@code block} overflow policy.
+   * Called by slf4j.
+   */
+  @SuppressWarnings("unused")
+  public void setBlockTimeout(int blockTimeout) {
+    this.blockTimeout = blockTimeout;
+  }
+
+  /**
+   * Sets the log record encoding, either {@code json} or {@code binary}. Default is {@code json}, which is
+   * readable by all log consumers. Called by slf4j.
+   */
+  @SuppressWarnings("unused")
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+
+  /**
+   * Sets whether to include the class, method, file and line of the caller in log records. Computing caller data
+   * requires walking the stack of the logging thread. Default is {@code true}. Called by slf4j.
+   */
+  @SuppressWarnings("unused")
+  public void setCallerData(boolean callerData) {
+    this.callerData = callerData;
+  }
+
   @Override
   public void start() {
     Preconditions.checkNotNull(zkConnectStr);
+    LogRecordBuffer.OverflowPolicy policy = getOverflowPolicy(overflowPolicy);
+    if (BINARY_ENCODING.equals(encoding)) {
+      eventEncoder = new BinaryLogEventEncoder(hostname, callerData);
+    } else {
+      Preconditions.checkArgument(JSON_ENCODING.equals(encoding), "Unsupported log encoding %s", encoding);
+      eventEncoder = new JsonLogEventEncoder();
+    }
+    buffer = new LogRecordBuffer(bufferSize, policy, blockTimeout, TimeUnit.MILLISECONDS);
 
-    scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("kafka-logger"));
+    final ThreadFactory threadFactory = Threads.createDaemonThreadFactory("kafka-logger");
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = threadFactory.newThread(r);
+        flushThread = thread;
+        return thread;
+      }
+    });
 
     zkClientService = ZKClientServices.delegate(
       ZKClients.reWatchOnExpire(
@@ -140,12 +209,22 @@ public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
                                  RetryStrategies.fixDelay(1, TimeUnit.SECONDS))));
 
     kafkaClient = new SimpleKafkaClient(zkClientService);
+    batchPublisher = new LogBatchPublisher(buffer, scheduler, new LogBatchPublisher.BatchSender() {
+      @Override
+      public ListenableFuture<?> send(List<ByteBuffer> records, Compression compression) {
+        PreparePublish publish = kafkaClient.preparePublish(topic, compression);
+        for (ByteBuffer record : records) {
+          publish.add(record, 0);
+        }
+        return publish.publish();
+      }
+    }, flushLimit, batchSize, flushPeriod);
+
     Futures.addCallback(Services.chainStart(zkClientService, kafkaClient), new FutureCallback<Object>() {
       @Override
       public void onSuccess(Object result) {
         LOG.info("Kafka client started: " + zkConnectStr);
-        publisher.set(kafkaClient.preparePublish(topic, Compression.SNAPPY));
-        scheduler.scheduleWithFixedDelay(flushTask, 0, flushPeriod, TimeUnit.MILLISECONDS);
+        batchPublisher.start();
       }
 
       @Override
@@ -166,99 +245,91 @@ public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
   }
 
   public void forceFlush() {
+    // Publish from the flush thread, which is the only consumer of the buffer.
     try {
-      publishLogs().get(2, TimeUnit.SECONDS);
+      long deadline = System.currentTimeMillis() + FORCE_FLUSH_TIMEOUT_MS;
+      ListenableFuture<Integer> result = scheduler.submit(new Callable<ListenableFuture<Integer>>() {
+        @Override
+        public ListenableFuture<Integer> call() throws Exception {
+          return batchPublisher.flushAll();
+        }
+      }).get(FORCE_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      result.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
     } catch (Exception e) {
       LOG.error("Failed to publish last batch of log.", e);
     }
   }
 
-  @Override
-  protected void append(ILoggingEvent eventObject) {
-    buffer.offer(eventConverter.convert(eventObject));
-    if (bufferedSize.incrementAndGet() >= flushLimit && publisher.get() != null) {
-      // Try to do a extra flush
-      scheduler.submit(flushTask);
-    }
+  /**
+   * Returns the total number of log entries buffered for publishing since the appender started.
+   */
+  public long getQueuedCount() {
+    return buffer == null ? 0 : buffer.getQueuedCount();
   }
 
-  private ListenableFuture<Integer> publishLogs() {
-    // If the publisher is not available, simply returns a completed future.
-    PreparePublish publisher = KafkaAppender.this.publisher.get();
-    if (publisher == null) {
-      return Futures.immediateFuture(0);
-    }
-
-    int count = 0;
-    for (String json : Iterables.consumingIterable(buffer)) {
-      publisher.add(Charsets.UTF_8.encode(json), 0);
-      count++;
-    }
-    // Nothing to publish, simply returns a completed future.
-    if (count == 0) {
-      return Futures.immediateFuture(0);
-    }
-
-    bufferedSize.set(0);
-    final int finalCount = count;
-    return Futures.transform(publisher.publish(), new Function<Object, Integer>() {
-      @Override
-      public Integer apply(Object input) {
-        return finalCount;
-      }
-    });
+  /**
+   * Returns the total number of log entries dropped, either because the buffer was full or failed to publish.
+   */
+  public long getDroppedCount() {
+    return buffer == null ? 0 : buffer.getDroppedCount() + batchPublisher.getDroppedCount();
   }
 
   /**
-   * Creates a {@link Runnable} that writes all logs in the buffer into kafka.
-   * @return The Runnable task
+   * Returns the number of log entries currently in the buffer.
    */
-  private Runnable createFlushTask() {
-    return new Runnable() {
-      @Override
-      public void run() {
-        Futures.addCallback(publishLogs(), new FutureCallback<Integer>() {
-          @Override
-          public void onSuccess(Integer result) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("Log entries published, size=" + result);
-            }
-          }
+  public int getBufferedCount() {
+    return buffer == null ? 0 : buffer.size();
+  }
 
-          @Override
-          public void onFailure(Throwable t) {
-            LOG.error("Failed to push logs to kafka. Log entries dropped.", t);
-          }
-        });
-      }
-    };
+  @Override
+  protected void append(ILoggingEvent eventObject) {
+    // The flush thread never waits for buffer space, as it is the one that frees space.
+    boolean mayBlock = Thread.currentThread() != flushThread;
+    if (buffer.add(eventEncoder.encode(eventObject), eventObject.getLevel(), mayBlock)) {
+      batchPublisher.recordAdded();
+    }
+  }
+
+  private LogRecordBuffer.OverflowPolicy getOverflowPolicy(String policy) {
+    Preconditions.checkArgument(policy != null, "Overflow policy is not set.");
+    try {
+      return LogRecordBuffer.OverflowPolicy.valueOf(policy.toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unsupported overflow policy " + policy
+                                           + ". Must be one of drop_oldest, drop_by_level or block.", e);
+    }
   }
 
   /**
-   * Helper class to convert {@link ILoggingEvent} into json string.
+   * Helper class to encode {@link ILoggingEvent} into json.
    */
-  private final class LogEventConverter {
-
-    private final ClassOfCallerConverter classNameConverter = new ClassOfCallerConverter();
-    private final MethodOfCallerConverter methodConverter = new MethodOfCallerConverter();
-    private final FileOfCallerConverter fileConverter = new FileOfCallerConverter();
-    private final LineOfCallerConverter lineConverter = new LineOfCallerConverter();
+  private final class JsonLogEventEncoder implements LogEventEncoder {
 
-    private String convert(ILoggingEvent event) {
+    @Override
+    public ByteBuffer encode(ILoggingEvent event) {
       StringWriter result = new StringWriter();
       JsonWriter writer = new JsonWriter(result);
 
       try {
         try {
+          StackTraceElement caller = callerData ? BinaryLogEventEncoder.getCaller(event) : null;
+
           writer.beginObject();
           writer.name("name").value(event.getLoggerName());
           writer.name("host").value(hostname);
           writer.name("timestamp").value(Long.toString(event.getTimeStamp()));
           writer.name("level").value(event.getLevel().toString());
-          writer.name("className").value(classNameConverter.convert(event));
-          writer.name("method").value(methodConverter.convert(event));
-          writer.name("file").value(fileConverter.convert(event));
-          writer.name("line").value(lineConverter.convert(event));
+          if (caller == null) {
+            writer.name("className").value(NOT_AVAILABLE);
+            writer.name("method").value(NOT_AVAILABLE);
+            writer.name("file").value(NOT_AVAILABLE);
+            writer.name("line").value(NOT_AVAILABLE);
+          } else {
+            writer.name("className").value(caller.getClassName());
+            writer.name("method").value(caller.getMethodName());
+            writer.name("file").value(caller.getFileName());
+            writer.name("line").value(Integer.toString(caller.getLineNumber()));
+          }
           writer.name("thread").value(event.getThreadName());
           writer.name("message").value(event.getFormattedMessage());
           writer.name("stackTraces");
@@ -272,7 +343,7 @@ public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
         throw Throwables.propagate(e);
       }
 
-      return result.toString();
+      return Charsets.UTF_8.encode(result.toString());
     }
 
     private void encodeStackTraces(IThrowableProxy throwable, JsonWriter writer) throws IOException {
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import com.continuuity.weave.internal.kafka.client.Compression;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes log records from a {@link LogRecordBuffer} in batches. A flush is triggered once the buffered records
+ * reach the batch size target, either in bytes or in number of records, or when the first record added after the
+ * last flush has waited for the linger time, whichever comes first. Small batches are sent uncompressed.
+ *
+ * <p>
+ * Batches that failed to publish are kept in a small retry buffer and resent with exponential backoff. When the
+ * retry buffer is full, or a batch exceeds the maximum number of attempts, the batch is dropped. Retried batches
+ * can be published after newer ones.
+ * </p>
+ *
+ * <p>
+ * At most {@link #MAX_INFLIGHT_BATCHES} batches are published at a time. While that many are outstanding, for
+ * example because no kafka broker can be found, records are left in the record buffer, which applies its overflow
+ * policy, and draining resumes when a publish completes.
+ * </p>
+ *
+ * All publishing happens on the given single thread scheduler, which is the only consumer of the record buffer.
+ */
+final class LogBatchPublisher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LogBatchPublisher.class);
+
+  /**
+   * Sends a batch of log records as one message set.
+   */
+  interface BatchSender {
+    ListenableFuture<?> send(List<ByteBuffer> records, Compression compression);
+  }
+
+  /**
+   * Maximum raw size of log records published in one message set, which keeps a compressed message set within
+   * the consumer fetch size.
+   */
+  static final int MAX_BATCH_BYTES = 512 * 1024;
+
+  /**
+   * Batches smaller than this number of bytes are not compressed, as compression gains little.
+   */
+  static final int COMPRESSION_THRESHOLD = 1024;
+
+  static final int MAX_INFLIGHT_BATCHES = 4;
+  static final int MAX_RETRY_BATCHES = 8;
+  static final int MAX_RETRY_ATTEMPTS = 5;
+  private static final long RETRY_BASE_DELAY_MS = 100;
+  private static final long RETRY_MAX_DELAY_MS = 5000;
+
+  private final LogRecordBuffer buffer;
+  private final ScheduledExecutorService scheduler;
+  private final BatchSender sender;
+  private final int batchRecords;
+  private final int batchBytes;
+  private final long lingerMs;
+  private final AtomicBoolean flushPending;
+  private final AtomicBoolean lingerScheduled;
+  private final AtomicLong droppedCount;
+  private final AtomicInteger consecutiveFailures;
+  private final AtomicInteger inFlight;
+  private final Deque<Batch> retryBatches;
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushPending.set(false);
+      flush(false);
+    }
+  };
+  private final Runnable lingerTask = new Runnable() {
+    @Override
+    public void run() {
+      lingerScheduled.set(false);
+      flush(false);
+    }
+  };
+  private final Runnable retryTask = new Runnable() {
+    @Override
+    public void run() {
+      retryScheduled = false;
+      resendRetries();
+    }
+  };
+
+  private volatile boolean ready;
+
+  // Only accessed from the scheduler thread
+  private boolean retryScheduled;
+
+  /**
+   * @param buffer The buffer to drain records from.
+   * @param scheduler Single thread scheduler for publishing.
+   * @param sender The {@link BatchSender} for sending batches to kafka.
+   * @param batchRecords Number of buffered records that triggers a flush.
+   * @param batchBytes Number of buffered bytes that triggers a flush.
+   * @param lingerMs Maximum time in milliseconds that a record waits for a flush.
+   */
+  LogBatchPublisher(LogRecordBuffer buffer, ScheduledExecutorService scheduler, BatchSender sender,
+                    int batchRecords, int batchBytes, long lingerMs) {
+    this.buffer = buffer;
+    this.scheduler = scheduler;
+    this.sender = sender;
+    this.batchRecords = batchRecords;
+    this.batchBytes = Math.min(batchBytes, MAX_BATCH_BYTES);
+    this.lingerMs = lingerMs;
+    this.flushPending = new AtomicBoolean();
+    this.lingerScheduled = new AtomicBoolean();
+    this.droppedCount = new AtomicLong();
+    this.consecutiveFailures = new AtomicInteger();
+    this.inFlight = new AtomicInteger();
+    this.retryBatches = new LinkedList<Batch>();
+  }
+
+  /**
+   * Starts publishing. Records added before this call are flushed immediately.
+   */
+  void start() {
+    ready = true;
+    execute(flushTask, flushPending);
+  }
+
+  /**
+   * Notifies that a record is added to the buffer. Called by logging threads.
+   */
+  void recordAdded() {
+    if (!ready) {
+      return;
+    }
+    if (buffer.size() >= batchRecords || buffer.getBufferedBytes() >= batchBytes) {
+      execute(flushTask, flushPending);
+    } else if (lingerScheduled.compareAndSet(false, true)) {
+      try {
+        scheduler.schedule(lingerTask, lingerMs, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // Appender stopped.
+        lingerScheduled.set(false);
+      }
+    }
+  }
+
+  /**
+   * Publishes all buffered records and the batches waiting for retry, regardless of the number of batches in flight.
+   * Must be called from the scheduler thread.
+   *
+   * @return A future that carries the number of records published successfully.
+   */
+  ListenableFuture<Integer> flushAll() {
+    return flush(true);
+  }
+
+  /**
+   * Returns the number of records dropped after failing to publish.
+   */
+  long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  private ListenableFuture<Integer> flush(boolean includeRetries) {
+    if (!ready) {
+      return Futures.immediateFuture(0);
+    }
+
+    List<ListenableFuture<Integer>> futures = Lists.newArrayList();
+    if (includeRetries) {
+      while (!retryBatches.isEmpty()) {
+        futures.add(publish(retryBatches.poll()));
+      }
+    } else if (!retryScheduled) {
+      // Batches left over by an earlier retry that was limited by the batches in flight.
+      resendRetries();
+    }
+
+    // Drain the buffer in batches bounded by size, as long as publishing keeps up.
+    Batch batch = new Batch();
+    ByteBuffer record = (includeRetries || canPublish()) ? buffer.poll() : null;
+    while (record != null) {
+      batch.add(record);
+      if (batch.bytes >= MAX_BATCH_BYTES) {
+        futures.add(publish(batch));
+        batch = new Batch();
+        if (!includeRetries && !canPublish()) {
+          break;
+        }
+      }
+      record = buffer.poll();
+    }
+    if (!batch.records.isEmpty()) {
+      futures.add(publish(batch));
+    }
+
+    if (futures.isEmpty()) {
+      return Futures.immediateFuture(0);
+    }
+    return Futures.transform(Futures.allAsList(futures), new Function<List<Integer>, Integer>() {
+      @Override
+      public Integer apply(List<Integer> input) {
+        int total = 0;
+        for (int count : input) {
+          total += count;
+        }
+        return total;
+      }
+    });
+  }
+
+  /**
+   * Publishes a batch. The returned future carries the number of records in the batch, or zero if it failed,
+   * in which case the batch is queued for retry.
+   */
+  private ListenableFuture<Integer> publish(final Batch batch) {
+    final SettableFuture<Integer> result = SettableFuture.create();
+    Compression compression = batch.bytes < COMPRESSION_THRESHOLD ? Compression.NONE : Compression.SNAPPY;
+    batch.attempts++;
+    inFlight.incrementAndGet();
+
+    ListenableFuture<?> future;
+    try {
+      future = sender.send(batch.records, compression);
+    } catch (Throwable t) {
+      future = Futures.immediateFailedFuture(t);
+    }
+
+    Futures.addCallback(future, new FutureCallback<Object>() {
+      @Override
+      public void onSuccess(Object value) {
+        consecutiveFailures.set(0);
+        published();
+        result.set(batch.records.size());
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        published();
+        result.set(0);
+        try {
+          scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+              retry(batch, t);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          drop(batch, t);
+        }
+      }
+    });
+    return result;
+  }
+
+  private boolean canPublish() {
+    return inFlight.get() < MAX_INFLIGHT_BATCHES;
+  }
+
+  /**
+   * Called when a publish completed. Resumes draining if it was held back by the number of batches in flight.
+   */
+  private void published() {
+    if (inFlight.getAndDecrement() == MAX_INFLIGHT_BATCHES) {
+      execute(flushTask, flushPending);
+    }
+  }
+
+  private void retry(Batch batch, Throwable cause) {
+    if (batch.attempts >= MAX_RETRY_ATTEMPTS) {
+      drop(batch, cause);
+      return;
+    }
+    if (retryBatches.size() >= MAX_RETRY_BATCHES) {
+      drop(retryBatches.poll(), cause);
+    }
+    retryBatches.add(batch);
+
+    int failures = consecutiveFailures.incrementAndGet();
+    if (!retryScheduled) {
+      long delay = Math.min(RETRY_BASE_DELAY_MS << Math.min(failures - 1, 16), RETRY_MAX_DELAY_MS);
+      try {
+        scheduler.schedule(retryTask, delay, TimeUnit.MILLISECONDS);
+        retryScheduled = true;
+      } catch (RejectedExecutionException e) {
+        // Appender stopped. Batches in the retry buffer are discarded.
+      }
+    }
+  }
+
+  private void resendRetries() {
+    while (!retryBatches.isEmpty() && canPublish()) {
+      publish(retryBatches.poll());
+    }
+  }
+
+  private void drop(Batch batch, Throwable cause) {
+    droppedCount.addAndGet(batch.records.size());
+    LOG.error("Failed to push logs to kafka after {} attempts. {} log entries dropped.",
+              batch.attempts, batch.records.size(), cause);
+  }
+
+  private void execute(Runnable task, AtomicBoolean pending) {
+    if (!pending.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      scheduler.execute(task);
+    } catch (RejectedExecutionException e) {
+      // Appender stopped.
+      pending.set(false);
+    }
+  }
+
+  /**
+   * A batch of log records that are published together.
+   */
+  private static final class Batch {
+    private final List<ByteBuffer> records = Lists.newArrayList();
+    private int bytes;
+    private int attempts;
+
+    void add(ByteBuffer record) {
+      records.add(record);
+      bytes += record.remaining();
+    }
+  }
+}
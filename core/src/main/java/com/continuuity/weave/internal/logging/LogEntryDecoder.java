@@ -38,85 +38,32 @@ public final class LogEntryDecoder implements JsonDeserializer<LogEntry> {
     }
     JsonObject jsonObj = json.getAsJsonObject();
 
-    final String name = JsonUtils.getAsString(jsonObj, "name");
-    final String host = JsonUtils.getAsString(jsonObj, "host");
-    final long timestamp = JsonUtils.getAsLong(jsonObj, "timestamp", 0);
-    LogEntry.Level l;
+    String name = JsonUtils.getAsString(jsonObj, "name");
+    String host = JsonUtils.getAsString(jsonObj, "host");
+    long timestamp = JsonUtils.getAsLong(jsonObj, "timestamp", 0);
+    LogEntry.Level logLevel = DefaultLogEntry.parseLevel(JsonUtils.getAsString(jsonObj, "level"));
+    String className = JsonUtils.getAsString(jsonObj, "className");
+    String method = JsonUtils.getAsString(jsonObj, "method");
+    String file = JsonUtils.getAsString(jsonObj, "file");
+    String line = JsonUtils.getAsString(jsonObj, "line");
+    String thread = JsonUtils.getAsString(jsonObj, "thread");
+    String message = JsonUtils.getAsString(jsonObj, "message");
+
+    StackTraceElement[] stackTraces = context.deserialize(jsonObj.get("stackTraces").getAsJsonArray(),
+                                                          StackTraceElement[].class);
+
+    return new DefaultLogEntry(name, host, timestamp, logLevel, className, method, file, parseLine(line), thread,
+                               message, stackTraces);
+  }
+
+  private int parseLine(String line) {
+    if (line == null || line.equals("?")) {
+      return -1;
+    }
     try {
-      l = LogEntry.Level.valueOf(JsonUtils.getAsString(jsonObj, "level"));
-    } catch (Exception e) {
-      l = LogEntry.Level.FATAL;
+      return Integer.parseInt(line);
+    } catch (NumberFormatException e) {
+      return -1;
     }
-    final LogEntry.Level logLevel = l;
-    final String className = JsonUtils.getAsString(jsonObj, "className");
-    final String method = JsonUtils.getAsString(jsonObj, "method");
-    final String file = JsonUtils.getAsString(jsonObj, "file");
-    final String line = JsonUtils.getAsString(jsonObj, "line");
-    final String thread = JsonUtils.getAsString(jsonObj, "thread");
-    final String message = JsonUtils.getAsString(jsonObj, "message");
-
-    final StackTraceElement[] stackTraces = context.deserialize(jsonObj.get("stackTraces").getAsJsonArray(),
-                                                                StackTraceElement[].class);
-
-    return new LogEntry() {
-      @Override
-      public String getLoggerName() {
-        return name;
-      }
-
-      @Override
-      public String getHost() {
-        return host;
-      }
-
-      @Override
-      public long getTimestamp() {
-        return timestamp;
-      }
-
-      @Override
-      public Level getLogLevel() {
-        return logLevel;
-      }
-
-      @Override
-      public String getSourceClassName() {
-        return className;
-      }
-
-      @Override
-      public String getSourceMethodName() {
-        return method;
-      }
-
-      @Override
-      public String getFileName() {
-        return file;
-      }
-
-      @Override
-      public int getLineNumber() {
-        if (line.equals("?")) {
-          return -1;
-        } else {
-          return Integer.parseInt(line);
-        }
-      }
-
-      @Override
-      public String getThreadName() {
-        return thread;
-      }
-
-      @Override
-      public String getMessage() {
-        return message;
-      }
-
-      @Override
-      public StackTraceElement[] getStackTraces() {
-        return stackTraces;
-      }
-    };
   }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.Level;
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer of encoded log records. Records are added by the logging threads and drained
+ * by the appender flush thread. What happens to a record when the buffer is full is decided by the
+ * {@link OverflowPolicy}.
+ *
+ * <p>
+ * Each slot carries a sequence number, which tells whether the slot is free for the producer at a given position
+ * or filled for the consumer at that position. Producers claim positions by CAS on the enqueue position; the
+ * consumer side does the same on the dequeue position, which allows producers to evict the oldest record.
+ * </p>
+ */
+final class LogRecordBuffer {
+
+  /**
+   * Policy for handling a new record when the buffer is full.
+   */
+  enum OverflowPolicy {
+    /**
+     * Removes the oldest record to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Reserves the last quarter of the buffer for records of level {@code WARN} or above. Records below
+     * {@code WARN} are dropped when the buffer is three quarters full.
+     */
+    DROP_BY_LEVEL,
+
+    /**
+     * Waits for space up to the block timeout, then drops the new record.
+     */
+    BLOCK
+  }
+
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final int capacity;
+  private final long mask;
+  private final AtomicLongArray sequences;
+  private final AtomicReferenceArray<ByteBuffer> records;
+  private final AtomicLong enqueuePosition;
+  private final AtomicLong dequeuePosition;
+  private final OverflowPolicy overflowPolicy;
+  private final long blockTimeoutNanos;
+  private final int lowLevelLimit;
+  private final AtomicLong queuedCount;
+  private final AtomicLong droppedCount;
+  private final AtomicLong bufferedBytes;
+
+  /**
+   * @param capacity Maximum number of records in the buffer. It is rounded up to the next power of two,
+   *                 which is at least two.
+   * @param overflowPolicy Policy for handling new records when the buffer is full.
+   * @param blockTimeout Maximum time to wait for space with the {@link OverflowPolicy#BLOCK} policy.
+   * @param unit Unit for the block timeout.
+   */
+  LogRecordBuffer(int capacity, OverflowPolicy overflowPolicy, long blockTimeout, TimeUnit unit) {
+    Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30), "Capacity out of range: %s", capacity);
+    // A slot filled at position p has sequence p + 1, which a single slot buffer can't tell apart from
+    // being free at position p + 1.
+    int size = 2;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.capacity = size;
+    this.mask = this.capacity - 1;
+    this.sequences = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++) {
+      sequences.set(i, i);
+    }
+    this.records = new AtomicReferenceArray<ByteBuffer>(this.capacity);
+    this.enqueuePosition = new AtomicLong();
+    this.dequeuePosition = new AtomicLong();
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+    this.lowLevelLimit = this.capacity - this.capacity / 4;
+    this.queuedCount = new AtomicLong();
+    this.droppedCount = new AtomicLong();
+    this.bufferedBytes = new AtomicLong();
+  }
+
+  /**
+   * Adds a record to the buffer, applying the overflow policy if the buffer is full.
+   *
+   * @param record The encoded log record.
+   * @param level Level of the log event.
+   * @return {@code true} if the record is added, {@code false} if it is dropped.
+   */
+  boolean add(ByteBuffer record, Level level) {
+    return add(record, level, true);
+  }
+
+  /**
+   * Adds a record to the buffer, applying the overflow policy if the buffer is full.
+   *
+   * @param record The encoded log record.
+   * @param level Level of the log event.
+   * @param mayBlock Whether to wait for space with the {@link OverflowPolicy#BLOCK} policy. It must be
+   *                 {@code false} when called from the consumer thread, which would otherwise wait on itself.
+   * @return {@code true} if the record is added, {@code false} if it is dropped.
+   */
+  boolean add(ByteBuffer record, Level level, boolean mayBlock) {
+    boolean added;
+    switch (overflowPolicy) {
+      case DROP_OLDEST:
+        added = offer(record);
+        while (!added) {
+          if (poll() != null) {
+            droppedCount.incrementAndGet();
+          }
+          added = offer(record);
+        }
+        break;
+      case DROP_BY_LEVEL:
+        added = (level.isGreaterOrEqual(Level.WARN) || size() < lowLevelLimit) && offer(record);
+        break;
+      case BLOCK:
+        added = offer(record) || (mayBlock && offerBlocking(record));
+        break;
+      default:
+        throw new IllegalStateException("Unsupported overflow policy " + overflowPolicy);
+    }
+
+    if (added) {
+      queuedCount.incrementAndGet();
+    } else {
+      droppedCount.incrementAndGet();
+    }
+    return added;
+  }
+
+  /**
+   * Removes and returns the oldest record, or {@code null} if the buffer is empty.
+   */
+  ByteBuffer poll() {
+    long pos = dequeuePosition.get();
+    int idx;
+    while (true) {
+      idx = (int) (pos & mask);
+      long diff = sequences.get(idx) - (pos + 1);
+      if (diff == 0) {
+        if (dequeuePosition.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+        pos = dequeuePosition.get();
+      } else if (diff < 0) {
+        // Slot not filled yet, hence empty.
+        return null;
+      } else {
+        // Another consumer took the slot.
+        pos = dequeuePosition.get();
+      }
+    }
+
+    ByteBuffer record = records.get(idx);
+    records.set(idx, null);
+    bufferedBytes.addAndGet(-record.remaining());
+    // Free the slot for the producer one round later.
+    sequences.set(idx, pos + capacity);
+    return record;
+  }
+
+  /**
+   * Returns the number of records in the buffer.
+   */
+  int size() {
+    long size = enqueuePosition.get() - dequeuePosition.get();
+    return (int) Math.max(0, Math.min(capacity, size));
+  }
+
+  /**
+   * Returns the total size in bytes of the records in the buffer.
+   */
+  long getBufferedBytes() {
+    return bufferedBytes.get();
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the total number of records added to the buffer.
+   */
+  long getQueuedCount() {
+    return queuedCount.get();
+  }
+
+  /**
+   * Returns the total number of records dropped due to overflow.
+   */
+  long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Adds the record if there is a free slot.
+   */
+  private boolean offer(ByteBuffer record) {
+    long pos = enqueuePosition.get();
+    int idx;
+    while (true) {
+      idx = (int) (pos & mask);
+      long diff = sequences.get(idx) - pos;
+      if (diff == 0) {
+        if (enqueuePosition.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+        pos = enqueuePosition.get();
+      } else if (diff < 0) {
+        // Slot not consumed yet, hence full.
+        return false;
+      } else {
+        // Another producer took the slot.
+        pos = enqueuePosition.get();
+      }
+    }
+
+    bufferedBytes.addAndGet(record.remaining());
+    records.set(idx, record);
+    // Publish the slot to the consumer.
+    sequences.set(idx, pos + 1);
+    return true;
+  }
+
+  private boolean offerBlocking(ByteBuffer record) {
+    long deadline = System.nanoTime() + blockTimeoutNanos;
+    while (System.nanoTime() - deadline < 0) {
+      LockSupport.parkNanos(BLOCK_PARK_NANOS);
+      if (offer(record)) {
+        return true;
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+    }
+    return false;
+  }
+}
@@ -21,16 +21,33 @@ package com.continuuity.weave.kafka.client;
 public final class FetchException extends RuntimeException {
 
   private final ErrorCode errorCode;
+  private final long nextOffset;
 
   public FetchException(String message, ErrorCode errorCode) {
+    this(message, errorCode, -1L);
+  }
+
+  /**
+   * @param nextOffset Offset to resume fetching from in order to skip the message that caused the failure.
+   */
+  public FetchException(String message, ErrorCode errorCode, long nextOffset) {
     super(message);
     this.errorCode = errorCode;
+    this.nextOffset = nextOffset;
   }
 
   public ErrorCode getErrorCode() {
     return errorCode;
   }
 
+  /**
+   * Returns the offset to resume fetching from in order to skip the message that caused the failure, or {@code -1}
+   * if it is not known.
+   */
+  public long getNextOffset() {
+    return nextOffset;
+  }
+
   @Override
   public String toString() {
     return String.format("%s. Error code: %s", super.toString(), errorCode);
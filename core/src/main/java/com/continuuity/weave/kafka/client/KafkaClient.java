@@ -15,6 +15,7 @@
  */
 package com.continuuity.weave.kafka.client;
 
+import com.continuuity.weave.common.Cancellable;
 import com.continuuity.weave.internal.kafka.client.Compression;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
@@ -29,10 +30,40 @@ import java.util.Iterator;
  */
 public interface KafkaClient extends Service {
 
+  /**
+   * Prepares to publish to the given topic. Messages are distributed across partitions of the topic
+   * by the hash code of the partition key.
+   * @param topic Topic to publish to.
+   * @param compression Compression to use on the published message set.
+   * @return A {@link PreparePublish} for adding messages and publishing them.
+   */
   PreparePublish preparePublish(String topic, Compression compression);
 
+  /**
+   * Prepares to publish to the given topic, using the given {@link Partitioner} to decide which partition
+   * each message goes to.
+   * @param topic Topic to publish to.
+   * @param compression Compression to use on the published message set.
+   * @param partitioner The {@link Partitioner} for mapping partition key to partition.
+   * @return A {@link PreparePublish} for adding messages and publishing them.
+   */
+  PreparePublish preparePublish(String topic, Compression compression, Partitioner partitioner);
+
   Iterator<FetchedMessage> consume(String topic, int partition, long offset, int maxSize);
 
+  /**
+   * Starts consuming messages from the given topic and partition. Messages are delivered in batches, one batch
+   * per fetch response, to the given {@link MessageCallback} without a dedicated consumer thread.
+   *
+   * @param topic Topic to consume from.
+   * @param partition Partition to consume from.
+   * @param offset Offset to start consuming from.
+   * @param maxSize Maximum number of bytes to fetch per request.
+   * @param callback The {@link MessageCallback} for receiving messages.
+   * @return A {@link Cancellable} for stopping the consumption.
+   */
+  Cancellable consume(String topic, int partition, long offset, int maxSize, MessageCallback callback);
+
   /**
    * Fetches offset from the given topic and partition.
    * @param topic Topic to fetch from.
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.kafka.client;
+
+import java.util.List;
+
+/**
+ * Callback for receiving messages consumed through
+ * {@link KafkaClient#consume(String, int, long, int, MessageCallback)}.
+ * Methods are invoked from the kafka client I/O threads, hence should not block.
+ */
+public interface MessageCallback {
+
+  /**
+   * Invoked with messages of one fetch response, in offset order. The next fetch is issued after this method
+   * returns.
+   *
+   * @param messages List of fetched messages. It is never empty.
+   */
+  void onReceived(List<FetchedMessage> messages);
+
+  /**
+   * Invoked once when the consumption is stopped.
+   *
+   * @param failureCause The failure that stops the consumption or {@code null} if it is stopped by cancellation.
+   */
+  void finished(Throwable failureCause);
+}
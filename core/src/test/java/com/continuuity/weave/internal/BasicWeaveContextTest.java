@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal;
+
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.discovery.Discoverable;
+import com.continuuity.weave.discovery.DiscoveryService;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Unit test for {@link BasicWeaveContext}.
+ */
+public class BasicWeaveContextTest {
+
+  @Test
+  public void testAnnounceFailure() throws Exception {
+    final BlockingQueue<SettableFuture<Cancellable>> registrations =
+      new LinkedBlockingQueue<SettableFuture<Cancellable>>();
+    DiscoveryService discoveryService = new DiscoveryService() {
+      @Override
+      public Cancellable register(Discoverable discoverable) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public ListenableFuture<Cancellable> registerAsync(Discoverable discoverable) {
+        SettableFuture<Cancellable> future = SettableFuture.create();
+        registrations.add(future);
+        return future;
+      }
+
+      @Override
+      public ListenableFuture<List<Cancellable>> registerAll(Iterable<? extends Discoverable> discoverables) {
+        throw new UnsupportedOperationException();
+      }
+    };
+
+    BasicWeaveContext context = new BasicWeaveContext(RunIds.generate(), RunIds.generate(),
+                                                      InetAddress.getLocalHost(), new String[0], new String[0],
+                                                      null, 0, discoveryService, 1, 512, 1);
+    final BlockingQueue<String> failures = new LinkedBlockingQueue<String>();
+    context.setAnnounceFailureHandler(new BasicWeaveContext.AnnounceFailureHandler() {
+      @Override
+      public void failed(String serviceName, int port, Throwable cause) {
+        failures.add(serviceName + ":" + port);
+      }
+    });
+
+    // Failure of an announcement is reported.
+    context.announce("service", 1234);
+    registrations.poll().setException(new Exception("Registration failure"));
+    Assert.assertEquals("service:1234", failures.poll());
+
+    // Failure of a cancelled announcement is not.
+    context.announce("cancelled", 1234).cancel();
+    registrations.poll().setException(new Exception("Registration failure"));
+    Assert.assertTrue(failures.isEmpty());
+  }
+}
@@ -30,7 +30,12 @@ import com.continuuity.weave.zookeeper.ZKClient;
 import com.continuuity.weave.zookeeper.ZKClientService;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
 import com.google.gson.JsonObject;
 import org.junit.Assert;
@@ -38,6 +43,8 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -165,6 +172,70 @@ public class ControllerTest {
     }
   }
 
+  // Test starting and stopping large number of controllers doesn't need a thread per controller.
+  @Test
+  public void testManyControllers() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+    ZKClientService zkClientService = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+
+    try {
+      zkClientService.startAndWait();
+
+      int count = 5000;
+      // Thread ids are never reused, hence count the threads even if each one is created for a single transition.
+      final Set<Long> transitionThreads = Sets.newSetFromMap(Maps.<Long, Boolean>newConcurrentMap());
+      List<ServiceController> controllers = Lists.newArrayListWithCapacity(count);
+      List<ListenableFuture<Service.State>> futures = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+        ServiceController controller = new AbstractZKServiceController(RunIds.generate(), zkClientService) {
+          @Override
+          protected void doStartUp() {
+            transitionThreads.add(Thread.currentThread().getId());
+          }
+
+          @Override
+          protected void doShutDown() {
+            transitionThreads.add(Thread.currentThread().getId());
+          }
+
+          @Override
+          protected void instanceNodeUpdated(NodeData nodeData) {
+            // No-op
+          }
+
+          @Override
+          protected void stateNodeUpdated(StateNode stateNode) {
+            // No-op
+          }
+
+          @Override
+          public void kill() {
+            // No-op
+          }
+        };
+        controllers.add(controller);
+        futures.add(controller.start());
+      }
+      Futures.allAsList(futures).get(60, TimeUnit.SECONDS);
+
+      futures.clear();
+      for (ServiceController controller : controllers) {
+        futures.add(controller.stop());
+      }
+      Futures.allAsList(futures).get(60, TimeUnit.SECONDS);
+
+      for (ServiceController controller : controllers) {
+        Assert.assertEquals(ServiceController.State.TERMINATED, controller.state());
+      }
+      LOG.info("{} controllers transitioned with {} threads", count, transitionThreads.size());
+      Assert.assertTrue(transitionThreads.size() <= AbstractExecutionServiceController.MAX_TRANSITION_THREADS);
+    } finally {
+      zkClientService.stopAndWait();
+      zkServer.stopAndWait();
+    }
+  }
+
   private Service createService(ZKClient zkClient, RunId runId) {
     return new ZKServiceDecorator(
       zkClient, runId, Suppliers.ofInstance(new JsonObject()), new AbstractIdleService() {
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.common.Threads;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Unit test for {@link ConnectionPool}.
+ */
+public class ConnectionPoolTest {
+
+  private ServerBootstrap serverBootstrap;
+  private Channel serverChannel;
+  private InetSocketAddress serverAddress;
+  private ClientBootstrap clientBootstrap;
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void init() {
+    ChannelPipelineFactory pipelineFactory = new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        return Channels.pipeline();
+      }
+    };
+
+    serverBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(),
+                                                                            Executors.newCachedThreadPool()));
+    serverBootstrap.setPipelineFactory(pipelineFactory);
+    serverChannel = serverBootstrap.bind(new InetSocketAddress("localhost", 0));
+    serverAddress = (InetSocketAddress) serverChannel.getLocalAddress();
+
+    clientBootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
+                                                                            Executors.newCachedThreadPool()));
+    clientBootstrap.setPipelineFactory(pipelineFactory);
+    scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("pool-test"));
+  }
+
+  @After
+  public void finish() {
+    scheduler.shutdownNow();
+    clientBootstrap.releaseExternalResources();
+    serverChannel.close().awaitUninterruptibly();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Test
+  public void testMaxConnections() throws Exception {
+    ConnectionPool pool = new ConnectionPool(clientBootstrap, 2, 2, 0, TimeUnit.SECONDS, scheduler);
+    try {
+      // Two connections with two request slots each
+      ConnectionPool.ConnectResult[] results = new ConnectionPool.ConnectResult[4];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = pool.connect(serverAddress);
+        Assert.assertTrue(results[i].getChannel().get(5, TimeUnit.SECONDS).isConnected());
+      }
+      Assert.assertEquals(2, pool.getCreatedCount());
+      Assert.assertEquals(2, pool.getActiveCount());
+
+      // Pool is exhausted, new requests wait
+      ConnectionPool.ConnectResult waiting = pool.connect(serverAddress);
+      ConnectionPool.ConnectResult cancelled = pool.connect(serverAddress);
+      Assert.assertFalse(waiting.getChannel().isDone());
+      Assert.assertEquals(2, pool.getWaitingCount());
+
+      // Releasing a waiting request removes it from the queue
+      cancelled.release();
+      Assert.assertTrue(cancelled.getChannel().isCancelled());
+      Assert.assertEquals(1, pool.getWaitingCount());
+
+      // Releasing a slot hands it to the waiting request
+      results[0].release();
+      Assert.assertSame(results[0].getChannel().get(), waiting.getChannel().get(5, TimeUnit.SECONDS));
+      Assert.assertEquals(0, pool.getWaitingCount());
+      Assert.assertEquals(2, pool.getCreatedCount());
+
+      waiting.release();
+      for (ConnectionPool.ConnectResult result : results) {
+        result.release();
+      }
+      Assert.assertEquals(0, pool.getActiveCount());
+      Assert.assertEquals(2, pool.getIdleCount());
+    } finally {
+      pool.close().awaitUninterruptibly();
+    }
+  }
+
+  @Test
+  public void testIdleEviction() throws Exception {
+    ConnectionPool pool = new ConnectionPool(clientBootstrap, 1, 4, 200, TimeUnit.MILLISECONDS, scheduler);
+    try {
+      ConnectionPool.ConnectResult idle = pool.connect(serverAddress);
+      ConnectionPool.ConnectResult busy = pool.connect(serverAddress);
+      Channel idleChannel = idle.getChannel().get(5, TimeUnit.SECONDS);
+      Channel busyChannel = busy.getChannel().get(5, TimeUnit.SECONDS);
+      idle.release();
+
+      Assert.assertTrue(idleChannel.getCloseFuture().await(5, TimeUnit.SECONDS));
+      Assert.assertTrue(busyChannel.isConnected());
+      Assert.assertEquals(1, pool.getActiveCount());
+      Assert.assertEquals(0, pool.getIdleCount());
+      busy.release();
+    } finally {
+      pool.close().awaitUninterruptibly();
+    }
+  }
+
+  @Test
+  public void testWaitLimits() throws Exception {
+    ConnectionPool pool = new ConnectionPool(clientBootstrap, 1, 1, 1, 0, 300, TimeUnit.MILLISECONDS, scheduler);
+    try {
+      ConnectionPool.ConnectResult result = pool.connect(serverAddress);
+      Assert.assertNotNull(result.getChannel().get(5, TimeUnit.SECONDS));
+
+      // One request can wait. Requests beyond it are rejected.
+      ConnectionPool.ConnectResult waiting = pool.connect(serverAddress);
+      ConnectionPool.ConnectResult rejected = pool.connect(serverAddress);
+      assertFailure(rejected, RejectedExecutionException.class);
+      rejected.release();
+      Assert.assertEquals(1, pool.getWaitingCount());
+
+      // The waiting request times out, which frees up the queue.
+      assertFailure(waiting, TimeoutException.class);
+      waiting.release();
+      Assert.assertEquals(0, pool.getWaitingCount());
+
+      // A request that gets a connection before the timeout is not failed.
+      waiting = pool.connect(serverAddress);
+      result.release();
+      Assert.assertNotNull(waiting.getChannel().get(5, TimeUnit.SECONDS));
+      TimeUnit.MILLISECONDS.sleep(500);
+      Assert.assertTrue(waiting.isUsable());
+      waiting.release();
+    } finally {
+      pool.close().awaitUninterruptibly();
+    }
+  }
+
+  private void assertFailure(ConnectionPool.ConnectResult result,
+                             Class<? extends Throwable> expected) throws Exception {
+    try {
+      result.getChannel().get(5, TimeUnit.SECONDS);
+      Assert.fail("Expected connect failure.");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(expected.isInstance(e.getCause()));
+    }
+  }
+
+  @Test
+  public void testConnectFailure() throws Exception {
+    // Nothing is listening on the port after the server is closed
+    serverChannel.close().awaitUninterruptibly();
+
+    ConnectionPool pool = new ConnectionPool(clientBootstrap, 1, 1, 0, TimeUnit.SECONDS, scheduler);
+    try {
+      ConnectionPool.ConnectResult result = pool.connect(serverAddress);
+      ConnectionPool.ConnectResult waiting = pool.connect(serverAddress);
+      try {
+        result.getChannel().get(5, TimeUnit.SECONDS);
+        Assert.fail("Expected connect failure.");
+      } catch (ExecutionException e) {
+        // Expected
+      }
+      Assert.assertFalse(result.isUsable());
+      result.release();
+
+      // The failed connection frees up the slot for the waiting request, which fails as well
+      try {
+        waiting.getChannel().get(5, TimeUnit.SECONDS);
+        Assert.fail("Expected connect failure.");
+      } catch (ExecutionException e) {
+        // Expected
+      }
+      waiting.release();
+      Assert.assertEquals(2, pool.getFailedCount());
+    } finally {
+      pool.close().awaitUninterruptibly();
+    }
+  }
+}
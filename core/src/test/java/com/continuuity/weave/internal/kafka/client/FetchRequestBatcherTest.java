@@ -0,0 +1,257 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.kafka.client.FetchException;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Unit test for {@link FetchRequestBatcher}.
+ */
+public class FetchRequestBatcherTest {
+
+  @Test
+  public void testCoalesce() {
+    ManualExecutor executor = new ManualExecutor();
+    List<KafkaRequest> sent = Lists.newArrayList();
+    FetchRequestBatcher batcher = new FetchRequestBatcher(executor, createCapturingSender(sent));
+
+    List<RecordingHandler> handlers = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      RecordingHandler handler = new RecordingHandler();
+      handlers.add(handler);
+      batcher.send(KafkaRequest.createFetch("topic" + i, i, createFetchBody(i * 100L, 1024), handler));
+    }
+
+    // Nothing is sent until the flush runs, which coalesces all three fetches.
+    Assert.assertTrue(sent.isEmpty());
+    executor.runAll();
+    Assert.assertEquals(1, sent.size());
+
+    KafkaRequest multiFetch = sent.get(0);
+    Assert.assertEquals(KafkaRequest.Type.MULTI_FETCH, multiFetch.getType());
+    ChannelBuffer body = multiFetch.getBody();
+    Assert.assertEquals(3, body.readShort());
+    for (int i = 0; i < 3; i++) {
+      byte[] topic = new byte[body.readShort()];
+      body.readBytes(topic);
+      Assert.assertEquals("topic" + i, new String(topic, Charsets.UTF_8));
+      Assert.assertEquals(i, body.readInt());
+      Assert.assertEquals(i * 100L, body.readLong());
+      Assert.assertEquals(1024, body.readInt());
+    }
+    Assert.assertFalse(body.readable());
+
+    // Respond with a different payload and error code for each fetch.
+    ChannelBuffer responseBody = ChannelBuffers.dynamicBuffer();
+    for (int i = 0; i < 3; i++) {
+      byte[] payload = ("payload" + i).getBytes(Charsets.UTF_8);
+      responseBody.writeInt(payload.length + 2);
+      responseBody.writeShort(i == 1 ? FetchException.ErrorCode.OFFSET_OUT_OF_RANGE.getCode() : 0);
+      responseBody.writeBytes(payload);
+    }
+    multiFetch.getResponseHandler().received(new KafkaResponse(FetchException.ErrorCode.OK, responseBody,
+                                                               responseBody.readableBytes() + 6));
+
+    for (int i = 0; i < 3; i++) {
+      KafkaResponse response = handlers.get(i).response;
+      Assert.assertNotNull(response);
+      Assert.assertEquals(i == 1 ? FetchException.ErrorCode.OFFSET_OUT_OF_RANGE : FetchException.ErrorCode.OK,
+                          response.getErrorCode());
+      Assert.assertEquals("payload" + i, response.getBody().toString(Charsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testSingleFetch() {
+    ManualExecutor executor = new ManualExecutor();
+    List<KafkaRequest> sent = Lists.newArrayList();
+    FetchRequestBatcher batcher = new FetchRequestBatcher(executor, createCapturingSender(sent));
+
+    RecordingHandler handler = new RecordingHandler();
+    KafkaRequest fetch = KafkaRequest.createFetch("topic", 0, createFetchBody(0L, 1024), handler);
+    batcher.send(fetch);
+    executor.runAll();
+
+    // A single fetch is sent as a plain fetch.
+    Assert.assertEquals(1, sent.size());
+    KafkaRequest request = sent.get(0);
+    Assert.assertEquals(KafkaRequest.Type.FETCH, request.getType());
+    Assert.assertEquals("topic", request.getTopic());
+    Assert.assertEquals(0, request.getPartition());
+    Assert.assertSame(fetch.getBody(), request.getBody());
+
+    ChannelBuffer responseBody = ChannelBuffers.wrappedBuffer("payload".getBytes(Charsets.UTF_8));
+    request.getResponseHandler().received(new KafkaResponse(FetchException.ErrorCode.OK, responseBody,
+                                                            responseBody.readableBytes() + 6));
+    Assert.assertSame(responseBody, handler.response.getBody());
+  }
+
+  @Test
+  public void testOneOutstanding() {
+    ManualExecutor executor = new ManualExecutor();
+    List<KafkaRequest> sent = Lists.newArrayList();
+    FetchRequestBatcher batcher = new FetchRequestBatcher(executor, createCapturingSender(sent));
+
+    batcher.send(KafkaRequest.createFetch("topic", 0, createFetchBody(0L, 1024), new RecordingHandler()));
+    executor.runAll();
+    Assert.assertEquals(1, sent.size());
+
+    // Fetches are not sent while a request is outstanding.
+    RecordingHandler first = new RecordingHandler();
+    RecordingHandler second = new RecordingHandler();
+    batcher.send(KafkaRequest.createFetch("topic", 1, createFetchBody(0L, 1024), first));
+    batcher.send(KafkaRequest.createFetch("topic", 2, createFetchBody(0L, 1024), second));
+    executor.runAll();
+    Assert.assertEquals(1, sent.size());
+
+    // Once the response is handled, the queued fetches go out as one request.
+    sent.get(0).getResponseHandler().failed(new Exception("Failure"));
+    executor.runAll();
+    Assert.assertEquals(2, sent.size());
+    Assert.assertEquals(KafkaRequest.Type.MULTI_FETCH, sent.get(1).getType());
+    Assert.assertEquals(2, sent.get(1).getBody().getShort(0));
+  }
+
+  @Test
+  public void testInvalidResponseSize() {
+    ManualExecutor executor = new ManualExecutor();
+    List<KafkaRequest> sent = Lists.newArrayList();
+    FetchRequestBatcher batcher = new FetchRequestBatcher(executor, createCapturingSender(sent));
+
+    List<RecordingHandler> handlers = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      RecordingHandler handler = new RecordingHandler();
+      handlers.add(handler);
+      batcher.send(KafkaRequest.createFetch("topic", i, createFetchBody(0L, 1024), handler));
+    }
+    executor.runAll();
+
+    // The second response claims more bytes than there are.
+    byte[] payload = "payload".getBytes(Charsets.UTF_8);
+    ChannelBuffer responseBody = ChannelBuffers.dynamicBuffer();
+    responseBody.writeInt(payload.length + 2);
+    responseBody.writeShort(0);
+    responseBody.writeBytes(payload);
+    responseBody.writeInt(1024);
+    responseBody.writeShort(0);
+    responseBody.writeBytes(payload);
+    sent.get(0).getResponseHandler().received(new KafkaResponse(FetchException.ErrorCode.OK, responseBody,
+                                                                responseBody.readableBytes() + 6));
+
+    // The fetch with the invalid response and the ones after it fail, the ones before it are delivered.
+    Assert.assertEquals("payload", handlers.get(0).response.getBody().toString(Charsets.UTF_8));
+    Assert.assertNull(handlers.get(0).failure);
+    for (RecordingHandler handler : handlers.subList(1, 3)) {
+      Assert.assertNull(handler.response);
+      Assert.assertTrue(handler.failure instanceof IllegalStateException);
+    }
+
+    // The batcher keeps sending.
+    batcher.send(KafkaRequest.createFetch("topic", 0, createFetchBody(0L, 1024), new RecordingHandler()));
+    executor.runAll();
+    Assert.assertEquals(2, sent.size());
+  }
+
+  @Test
+  public void testFailure() {
+    ManualExecutor executor = new ManualExecutor();
+    List<KafkaRequest> sent = Lists.newArrayList();
+    FetchRequestBatcher batcher = new FetchRequestBatcher(executor, createCapturingSender(sent));
+
+    List<RecordingHandler> handlers = Lists.newArrayList();
+    for (int i = 0; i < FetchRequestBatcher.MAX_BATCH_SIZE + 1; i++) {
+      RecordingHandler handler = new RecordingHandler();
+      handlers.add(handler);
+      batcher.send(KafkaRequest.createFetch("topic", i, createFetchBody(0L, 1024), handler));
+    }
+    executor.runAll();
+
+    // Fetches beyond the batch limit go to another request, sent after the first one completed.
+    Assert.assertEquals(1, sent.size());
+    Exception cause = new Exception("Connection failure");
+    sent.get(0).getResponseHandler().failed(cause);
+    executor.runAll();
+    Assert.assertEquals(2, sent.size());
+    sent.get(1).getResponseHandler().failed(cause);
+    for (RecordingHandler handler : handlers) {
+      Assert.assertSame(cause, handler.failure);
+    }
+  }
+
+  private ChannelBuffer createFetchBody(long offset, int maxSize) {
+    ChannelBuffer body = ChannelBuffers.buffer(12);
+    body.writeLong(offset);
+    body.writeInt(maxSize);
+    return body;
+  }
+
+  private KafkaRequestSender createCapturingSender(final List<KafkaRequest> sent) {
+    return new KafkaRequestSender() {
+      @Override
+      public void send(KafkaRequest request) {
+        sent.add(request);
+      }
+    };
+  }
+
+  /**
+   * An {@link Executor} that runs tasks only when asked to.
+   */
+  private static final class ManualExecutor implements Executor {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      Runnable task = tasks.poll();
+      while (task != null) {
+        task.run();
+        task = tasks.poll();
+      }
+    }
+  }
+
+  private static final class RecordingHandler implements ResponseHandler {
+
+    private KafkaResponse response;
+    private Throwable failure;
+
+    @Override
+    public void received(KafkaResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public void failed(Throwable cause) {
+      this.failure = cause;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.continuuity.weave.zookeeper.ZKClientService;
+import com.continuuity.weave.zookeeper.ZKClients;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.zookeeper.CreateMode;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Unit test for {@link KafkaBrokerCache}.
+ */
+public class KafkaBrokerCacheTest {
+
+  private static InMemoryZKServer zkServer;
+  private static ZKClientService zkClient;
+  private static ScheduledExecutorService scheduler;
+
+  @BeforeClass
+  public static void init() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("broker-cache-test"));
+    zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+    zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+  }
+
+  @AfterClass
+  public static void finish() {
+    zkClient.stopAndWait();
+    zkServer.stopAndWait();
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testPendingLookup() throws Exception {
+    KafkaBrokerCache brokerCache = new KafkaBrokerCache(ZKClients.namespace(zkClient, "/pending"), scheduler);
+    brokerCache.startAndWait();
+    try {
+      // No broker yet, the lookup completes once the broker registers.
+      Assert.assertNull(brokerCache.getBrokerAddress("topic", 0));
+      ListenableFuture<TopicBroker> future = brokerCache.getBroker("topic", 0);
+      Assert.assertFalse(future.isDone());
+
+      zkClient.create("/pending/brokers/ids/0", "creator:localhost:9092".getBytes(Charsets.UTF_8),
+                      CreateMode.EPHEMERAL, true).get();
+
+      TopicBroker topicBroker = future.get(10, TimeUnit.SECONDS);
+      Assert.assertEquals("topic", topicBroker.getTopic());
+      Assert.assertEquals(9092, topicBroker.getAddress().getPort());
+
+      // Later lookups are served from the routing table.
+      Assert.assertTrue(brokerCache.getBroker("topic", 0).isDone());
+      Assert.assertEquals(1, brokerCache.getPartitionSize("topic"));
+    } finally {
+      brokerCache.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testTopicRouting() throws Exception {
+    createNode("/routing/brokers/ids/0", "creator:localhost:9090");
+    createNode("/routing/brokers/ids/1", "creator:localhost:9091");
+    createNode("/routing/brokers/topics/topic/0", "2");
+    createNode("/routing/brokers/topics/topic/1", "1");
+
+    KafkaBrokerCache brokerCache = new KafkaBrokerCache(ZKClients.namespace(zkClient, "/routing"), scheduler);
+    brokerCache.startAndWait();
+    try {
+      waitForPartitionSize(brokerCache, "topic", 2);
+      waitForRoute(brokerCache, "topic", 1, 9090);
+      long routed = brokerCache.getRoutedLookups();
+      long fallback = brokerCache.getFallbackLookups();
+
+      // Only broker 0 serves partition 1
+      for (int i = 0; i < 10; i++) {
+        TopicBroker topicBroker = brokerCache.getBrokerAddress("topic", 1);
+        Assert.assertEquals(9090, topicBroker.getAddress().getPort());
+        Assert.assertEquals(2, topicBroker.getPartitionSize());
+      }
+      Assert.assertEquals(routed + 10, brokerCache.getRoutedLookups());
+      Assert.assertEquals(fallback, brokerCache.getFallbackLookups());
+
+      // Partition size change of a broker is picked up
+      zkClient.setData("/routing/brokers/topics/topic/1", "3".getBytes(Charsets.UTF_8)).get();
+      waitForPartitionSize(brokerCache, "topic", 3);
+      waitForRoute(brokerCache, "topic", 2, 9091);
+
+      // New broker for the topic is picked up
+      createNode("/routing/brokers/topics/topic/2", "4");
+      waitForPartitionSize(brokerCache, "topic", 4);
+
+      // Unknown topic falls back to any broker
+      fallback = brokerCache.getFallbackLookups();
+      Assert.assertEquals(0, brokerCache.getBrokerAddress("unknown", 0).getPartitionSize());
+      Assert.assertEquals(fallback + 1, brokerCache.getFallbackLookups());
+    } finally {
+      brokerCache.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testBrokerPinned() throws Exception {
+    createNode("/pinned/brokers/ids/0", "creator:localhost:9090");
+    createNode("/pinned/brokers/ids/1", "creator:localhost:9091");
+    createNode("/pinned/brokers/topics/topic/0", "1");
+    createNode("/pinned/brokers/topics/topic/1", "1");
+
+    KafkaBrokerCache brokerCache = new KafkaBrokerCache(ZKClients.namespace(zkClient, "/pinned"), scheduler);
+    brokerCache.startAndWait();
+    try {
+      waitForPartitionSize(brokerCache, "topic", 1);
+      waitForRoute(brokerCache, "topic", 0, 9090);
+
+      // Both brokers serve partition 0, as separate logs. Lookups always get the first one, so that publishers and
+      // consumers of the partition use the same broker.
+      for (int i = 0; i < 100; i++) {
+        Assert.assertEquals(9090, brokerCache.getBrokerAddress("topic", 0).getAddress().getPort());
+        Assert.assertEquals(9090, brokerCache.getBroker("topic", 0).get().getAddress().getPort());
+      }
+
+      // Lookups move to the other broker once the first one is gone.
+      zkClient.delete("/pinned/brokers/topics/topic/0").get();
+      waitForRoute(brokerCache, "topic", 0, 9091);
+    } finally {
+      brokerCache.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testStopFailsPending() throws InterruptedException {
+    KafkaBrokerCache brokerCache = new KafkaBrokerCache(ZKClients.namespace(zkClient, "/stop"), scheduler);
+    brokerCache.startAndWait();
+
+    ListenableFuture<TopicBroker> future = brokerCache.getBroker("topic", 0);
+    Assert.assertFalse(future.isDone());
+
+    brokerCache.stopAndWait();
+    try {
+      future.get();
+      Assert.fail("Expected lookup to fail.");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void testPendingLookupLimits() throws Exception {
+    KafkaBrokerCache brokerCache = new KafkaBrokerCache(ZKClients.namespace(zkClient, "/limits"), scheduler,
+                                                        2, 500, TimeUnit.MILLISECONDS);
+    brokerCache.startAndWait();
+    try {
+      ListenableFuture<TopicBroker> first = brokerCache.getBroker("topic", 0);
+      ListenableFuture<TopicBroker> second = brokerCache.getBroker("topic", 0);
+
+      // Lookups beyond the limit are rejected.
+      assertFailure(brokerCache.getBroker("topic", 0), RejectedExecutionException.class);
+
+      // Pending lookups time out, which frees up slots for new lookups.
+      assertFailure(first, TimeoutException.class);
+      assertFailure(second, TimeoutException.class);
+      ListenableFuture<TopicBroker> third = brokerCache.getBroker("topic", 0);
+      Assert.assertFalse(third.isDone());
+      assertFailure(third, TimeoutException.class);
+    } finally {
+      brokerCache.stopAndWait();
+    }
+  }
+
+  private void assertFailure(ListenableFuture<?> future, Class<? extends Throwable> expected) throws Exception {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      Assert.fail("Expected lookup to fail.");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(expected.isInstance(e.getCause()));
+    }
+  }
+
+  private void createNode(String path, String data) throws Exception {
+    zkClient.create(path, data.getBytes(Charsets.UTF_8), CreateMode.PERSISTENT, true).get();
+  }
+
+  private void waitForPartitionSize(KafkaBrokerCache brokerCache, String topic,
+                                    int partitionSize) throws InterruptedException {
+    int count = 0;
+    while (brokerCache.getPartitionSize(topic) != partitionSize && count++ < 100) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    Assert.assertEquals(partitionSize, brokerCache.getPartitionSize(topic));
+  }
+
+  private void waitForRoute(KafkaBrokerCache brokerCache, String topic,
+                            int partition, int port) throws InterruptedException {
+    int count = 0;
+    TopicBroker topicBroker = brokerCache.getBrokerAddress(topic, partition);
+    while ((topicBroker == null || topicBroker.getAddress().getPort() != port) && count++ < 100) {
+      TimeUnit.MILLISECONDS.sleep(100);
+      topicBroker = brokerCache.getBrokerAddress(topic, partition);
+    }
+    Assert.assertNotNull(topicBroker);
+    Assert.assertEquals(port, topicBroker.getAddress().getPort());
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.kafka.client.FetchException;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.SettableFuture;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for {@link KafkaResponseDispatcher}, with a server that answers each request with its sequence number.
+ */
+public class KafkaResponseDispatcherTest {
+
+  private ServerBootstrap serverBootstrap;
+  private Channel serverChannel;
+  private InetSocketAddress serverAddress;
+  private ClientBootstrap clientBootstrap;
+  private ScheduledExecutorService scheduler;
+  private volatile Mode serverMode;
+  private final List<Channel> serverChannels = Lists.newCopyOnWriteArrayList();
+  private final List<ChannelBuffer> heldResponses = Lists.newCopyOnWriteArrayList();
+
+  /**
+   * How the test server reacts to requests.
+   */
+  private enum Mode {
+    RESPOND,
+    HOLD,
+    CLOSE
+  }
+
+  @Before
+  public void init() {
+    serverMode = Mode.RESPOND;
+    serverBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(),
+                                                                            Executors.newCachedThreadPool()));
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("frame", new LengthFieldBasedFrameDecoder(65536, 0, 4, 0, 4));
+        pipeline.addLast("handler", new SequenceResponder());
+        return pipeline;
+      }
+    });
+    serverChannel = serverBootstrap.bind(new InetSocketAddress("localhost", 0));
+    serverAddress = (InetSocketAddress) serverChannel.getLocalAddress();
+
+    clientBootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
+                                                                            Executors.newCachedThreadPool()));
+    clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("encoder", new KafkaRequestEncoder());
+        pipeline.addLast("decoder", new KafkaResponseHandler());
+        pipeline.addLast("dispatcher", new KafkaResponseDispatcher());
+        return pipeline;
+      }
+    });
+    scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("dispatcher-test"));
+  }
+
+  @After
+  public void finish() {
+    scheduler.shutdownNow();
+    clientBootstrap.releaseExternalResources();
+    serverChannel.close().awaitUninterruptibly();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Test
+  public void testInOrderCompletion() throws Exception {
+    Channel channel = clientBootstrap.connect(serverAddress).await().getChannel();
+    try {
+      // Pipeline many requests on the same connection. Each one gets the response in the same position.
+      List<SettableFuture<Integer>> results = Lists.newArrayList();
+      for (int i = 0; i < 100; i++) {
+        SettableFuture<Integer> result = SettableFuture.create();
+        results.add(result);
+        channel.write(createRequest(result));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        Assert.assertEquals(i, results.get(i).get(5, TimeUnit.SECONDS).intValue());
+      }
+    } finally {
+      channel.close().awaitUninterruptibly();
+    }
+  }
+
+  @Test
+  public void testOutstandingRequestCap() throws Exception {
+    serverMode = Mode.HOLD;
+    ConnectionPool pool = new ConnectionPool(clientBootstrap, 2, 1, 0, TimeUnit.SECONDS, scheduler);
+    try {
+      // Two request slots on one connection.
+      List<SettableFuture<Integer>> results = Lists.newArrayList();
+      List<ConnectionPool.ConnectResult> connections = Lists.newArrayList();
+      for (int i = 0; i < 2; i++) {
+        ConnectionPool.ConnectResult connection = pool.connect(serverAddress);
+        SettableFuture<Integer> result = SettableFuture.create();
+        connection.getChannel().get(5, TimeUnit.SECONDS).write(createRequest(result));
+        connections.add(connection);
+        results.add(result);
+      }
+
+      // The third request waits until a response is received and the slot is released.
+      ConnectionPool.ConnectResult waiting = pool.connect(serverAddress);
+      Assert.assertFalse(waiting.getChannel().isDone());
+
+      waitForHeld(2);
+      flushHeld();
+      Assert.assertEquals(0, results.get(0).get(5, TimeUnit.SECONDS).intValue());
+      connections.get(0).release();
+      Assert.assertSame(connections.get(0).getChannel().get(), waiting.getChannel().get(5, TimeUnit.SECONDS));
+      Assert.assertEquals(1, results.get(1).get(5, TimeUnit.SECONDS).intValue());
+
+      waiting.release();
+      connections.get(1).release();
+    } finally {
+      pool.close().awaitUninterruptibly();
+    }
+  }
+
+  @Test
+  public void testCloseFailsPending() throws Exception {
+    serverMode = Mode.HOLD;
+    Channel channel = clientBootstrap.connect(serverAddress).await().getChannel();
+
+    List<SettableFuture<Integer>> results = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      SettableFuture<Integer> result = SettableFuture.create();
+      results.add(result);
+      channel.write(createRequest(result));
+    }
+    waitForHeld(3);
+
+    // Closing the connection from the server side fails all requests waiting for response.
+    serverChannels.get(0).close().awaitUninterruptibly();
+    for (SettableFuture<Integer> result : results) {
+      try {
+        result.get(5, TimeUnit.SECONDS);
+        Assert.fail("Expected request to fail.");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof ClosedChannelException);
+      }
+    }
+  }
+
+  @Test
+  public void testWriteFailure() throws Exception {
+    serverMode = Mode.CLOSE;
+    Channel channel = clientBootstrap.connect(serverAddress).await().getChannel();
+    channel.getCloseFuture().await(5, TimeUnit.SECONDS);
+
+    // A failed write is reported through the write future only, not through the response handler.
+    SettableFuture<Integer> result = SettableFuture.create();
+    ChannelFuture writeFuture = channel.write(createRequest(result)).await();
+    Assert.assertFalse(writeFuture.isSuccess());
+    Assert.assertFalse(result.isDone());
+  }
+
+  private KafkaRequest createRequest(final SettableFuture<Integer> result) {
+    ChannelBuffer body = ChannelBuffers.buffer(12);
+    body.writeLong(0L);
+    body.writeInt(1024);
+    return KafkaRequest.createFetch("topic", 0, body, new ResponseHandler() {
+      @Override
+      public void received(KafkaResponse response) {
+        if (response.getErrorCode() != FetchException.ErrorCode.OK) {
+          result.setException(new FetchException("Unexpected error", response.getErrorCode()));
+        } else {
+          result.set(response.getBody().readInt());
+        }
+      }
+
+      @Override
+      public void failed(Throwable cause) {
+        result.setException(cause);
+      }
+    });
+  }
+
+  private void waitForHeld(int count) throws InterruptedException {
+    int tries = 0;
+    while (heldResponses.size() < count && tries++ < 100) {
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    Assert.assertEquals(count, heldResponses.size());
+  }
+
+  private void flushHeld() {
+    Channel channel = serverChannels.get(0);
+    for (ChannelBuffer response : heldResponses) {
+      channel.write(response);
+    }
+    heldResponses.clear();
+  }
+
+  /**
+   * Responds to each request with an OK response that carries the sequence number of the request on the connection.
+   */
+  private final class SequenceResponder extends SimpleChannelUpstreamHandler {
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+      serverChannels.add(e.getChannel());
+      if (serverMode == Mode.CLOSE) {
+        e.getChannel().close();
+      }
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+      ChannelBuffer response = ChannelBuffers.buffer(10);
+      response.writeInt(6);
+      response.writeShort(FetchException.ErrorCode.OK.getCode());
+      response.writeInt(sequence.getAndIncrement());
+
+      if (serverMode == Mode.HOLD) {
+        heldResponses.add(response);
+      } else {
+        e.getChannel().write(response);
+      }
+    }
+  }
+}
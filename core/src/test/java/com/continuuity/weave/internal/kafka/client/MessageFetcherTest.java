@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.kafka.client.FetchException;
+import com.continuuity.weave.kafka.client.FetchedMessage;
+import com.continuuity.weave.kafka.client.MessageCallback;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit test for {@link MessageFetcher} and {@link CallbackMessageFetcher} against an in memory message log.
+ */
+public class MessageFetcherTest {
+
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void init() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("test-scheduler"));
+  }
+
+  @After
+  public void finish() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testConsume() {
+    InMemoryLog log = new InMemoryLog(createLog(1000));
+    MessageFetcher fetcher = new MessageFetcher("test", 0, 0L, 200, new MessageSetDecoder(true),
+                                                new PrefetchLimit(100, 1024 * 1024), scheduler, log);
+    for (int i = 0; i < 1000; i++) {
+      FetchedMessage message = fetcher.next();
+      Assert.assertEquals(i + " Testing message", Charsets.UTF_8.decode(message.getBuffer()).toString());
+    }
+  }
+
+  @Test
+  public void testPrefetchLimit() throws InterruptedException {
+    InMemoryLog log = new InMemoryLog(createLog(1000));
+    MessageFetcher fetcher = new MessageFetcher("test", 0, 0L, 100, new MessageSetDecoder(true),
+                                                new PrefetchLimit(10, 1024 * 1024), scheduler, log);
+    Assert.assertEquals("0 Testing message", Charsets.UTF_8.decode(fetcher.next().getBuffer()).toString());
+
+    // Give time for prefetching. Fetching should stop after buffering half of the limit.
+    TimeUnit.MILLISECONDS.sleep(500);
+    int fetchCount = log.getFetchCount();
+    Assert.assertTrue("Fetch count " + fetchCount, fetchCount > 1 && fetchCount < 10);
+
+    TimeUnit.MILLISECONDS.sleep(200);
+    Assert.assertEquals(fetchCount, log.getFetchCount());
+  }
+
+  @Test
+  public void testFetchError() {
+    InMemoryLog log = new InMemoryLog(createLog(10));
+    MessageFetcher fetcher = new MessageFetcher("test", 0, 1000000L, 100, new MessageSetDecoder(true),
+                                                new PrefetchLimit(10, 1024 * 1024), scheduler, log);
+    try {
+      fetcher.next();
+      Assert.fail("Expected fetch failure.");
+    } catch (FetchException e) {
+      Assert.assertEquals(FetchException.ErrorCode.OFFSET_OUT_OF_RANGE, e.getErrorCode());
+    }
+  }
+
+  @Test
+  public void testCallback() throws InterruptedException {
+    InMemoryLog log = new InMemoryLog(createLog(1000));
+    final List<String> received = Collections.synchronizedList(Lists.<String>newArrayList());
+    final AtomicInteger batches = new AtomicInteger();
+    final CountDownLatch receiveLatch = new CountDownLatch(1);
+    final CountDownLatch finishLatch = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    CallbackMessageFetcher fetcher = new CallbackMessageFetcher("test", 0, 0L, 200, new MessageSetDecoder(true),
+                                                                scheduler, log, new MessageCallback() {
+      @Override
+      public void onReceived(List<FetchedMessage> messages) {
+        batches.incrementAndGet();
+        for (FetchedMessage message : messages) {
+          received.add(Charsets.UTF_8.decode(message.getBuffer()).toString());
+        }
+        if (received.size() == 1000) {
+          receiveLatch.countDown();
+        }
+      }
+
+      @Override
+      public void finished(Throwable failureCause) {
+        failure.set(failureCause);
+        finishLatch.countDown();
+      }
+    });
+    fetcher.start();
+
+    Assert.assertTrue(receiveLatch.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(i + " Testing message", received.get(i));
+    }
+    // Messages are delivered in batches, one per fetch response.
+    Assert.assertTrue(batches.get() < 1000);
+
+    fetcher.cancel();
+    Assert.assertTrue(finishLatch.await(1, TimeUnit.SECONDS));
+    Assert.assertNull(failure.get());
+  }
+
+  @Test
+  public void testSendFailure() throws InterruptedException {
+    // Transient failures are retried with backoff.
+    final InMemoryLog log = new InMemoryLog(createLog(10));
+    final AtomicInteger sendCount = new AtomicInteger();
+    KafkaRequestSender flakySender = new KafkaRequestSender() {
+      @Override
+      public void send(KafkaRequest request) {
+        if (sendCount.incrementAndGet() <= 3) {
+          request.getResponseHandler().failed(new ClosedChannelException());
+        } else {
+          log.send(request);
+        }
+      }
+    };
+    MessageFetcher fetcher = new MessageFetcher("test", 0, 0L, 1000, new MessageSetDecoder(true),
+                                                new PrefetchLimit(10, 1024 * 1024), scheduler, flakySender);
+    Assert.assertEquals("0 Testing message", Charsets.UTF_8.decode(fetcher.next().getBuffer()).toString());
+    Assert.assertEquals(4, sendCount.get());
+
+    // Non-transient failure finishes the consumption with the cause.
+    final CountDownLatch finishLatch = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final IllegalStateException cause = new IllegalStateException("Kafka client is not running.");
+    CallbackMessageFetcher callbackFetcher = new CallbackMessageFetcher(
+      "test", 0, 0L, 1000, new MessageSetDecoder(true), scheduler, new KafkaRequestSender() {
+      @Override
+      public void send(KafkaRequest request) {
+        request.getResponseHandler().failed(cause);
+      }
+    }, new MessageCallback() {
+      @Override
+      public void onReceived(List<FetchedMessage> messages) {
+        // No-op
+      }
+
+      @Override
+      public void finished(Throwable failureCause) {
+        failure.set(failureCause);
+        finishLatch.countDown();
+      }
+    });
+    callbackFetcher.start();
+    Assert.assertTrue(finishLatch.await(1, TimeUnit.SECONDS));
+    Assert.assertSame(cause, failure.get());
+  }
+
+  private ChannelBuffer createLog(int count) {
+    MessageSetEncoder encoder = new IdentityMessageSetEncoder();
+    for (int i = 0; i < count; i++) {
+      encoder.add(ChannelBuffers.wrappedBuffer(Charsets.UTF_8.encode(i + " Testing message")));
+    }
+    ChannelBuffer messageSet = encoder.finish();
+    messageSet.skipBytes(4);
+    return ChannelBuffers.copiedBuffer(messageSet);
+  }
+
+  /**
+   * A {@link KafkaRequestSender} that responds to fetch requests asynchronously from a message log in memory.
+   */
+  private final class InMemoryLog implements KafkaRequestSender {
+
+    private final ChannelBuffer log;
+    private final AtomicInteger fetchCount = new AtomicInteger();
+
+    private InMemoryLog(ChannelBuffer log) {
+      this.log = log;
+    }
+
+    int getFetchCount() {
+      return fetchCount.get();
+    }
+
+    @Override
+    public void send(final KafkaRequest request) {
+      fetchCount.incrementAndGet();
+      final long offset = request.getBody().readLong();
+      final int maxSize = request.getBody().readInt();
+
+      scheduler.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (offset > log.readableBytes()) {
+            request.getResponseHandler().received(
+              new KafkaResponse(FetchException.ErrorCode.OFFSET_OUT_OF_RANGE, ChannelBuffers.EMPTY_BUFFER, 6));
+            return;
+          }
+          int size = Math.min(maxSize, log.readableBytes() - (int) offset);
+          ChannelBuffer body = log.slice((int) offset, size);
+          request.getResponseHandler().received(new KafkaResponse(FetchException.ErrorCode.OK, body, size + 6));
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.kafka.client.FetchException;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Unit test for {@link MessageSetDecoder}.
+ */
+public class MessageSetDecoderTest {
+
+  @Test
+  public void testDecode() {
+    testDecode(new IdentityMessageSetEncoder(), 10);
+    testDecode(new GZipMessageSetEncoder(), 10);
+    testDecode(new SnappyMessageSetEncoder(), 10);
+    testDecode(new GZipMessageSetEncoder(), 10000);
+    testDecode(new SnappyMessageSetEncoder(), 10000);
+  }
+
+  @Test
+  public void testCompositeBuffer() {
+    for (MessageSetEncoder encoder : new MessageSetEncoder[] {
+      new IdentityMessageSetEncoder(), new GZipMessageSetEncoder(), new SnappyMessageSetEncoder()}) {
+
+      ChannelBuffer response = encode(encoder, 100);
+      // Split the response into multiple buffers, as if it's received in chunks.
+      int half = response.readableBytes() / 2;
+      ChannelBuffer composite = ChannelBuffers.wrappedBuffer(response.copy(0, half),
+                                                             response.copy(half, response.readableBytes() - half));
+      verify(decode(new MessageSetDecoder(true), composite, 0L), 100);
+    }
+  }
+
+  @Test
+  public void testPartialMessage() {
+    ChannelBuffer response = encode(new IdentityMessageSetEncoder(), 10);
+    int size = response.readableBytes() - 1;
+    ChannelBuffer partial = response.slice(0, size);
+
+    List<String> messages = Lists.newArrayList();
+    int decoded = new MessageSetDecoder(true).decode(partial, 0L, collect(messages));
+
+    Assert.assertEquals(9, messages.size());
+    Assert.assertTrue(decoded < size);
+  }
+
+  @Test
+  public void testChecksum() {
+    ChannelBuffer response = encode(new IdentityMessageSetEncoder(), 1);
+    // Corrupt the last byte of the payload
+    int idx = response.writerIndex() - 1;
+    response.setByte(idx, response.getByte(idx) + 1);
+
+    try {
+      decode(new MessageSetDecoder(true), response.duplicate(), 0L);
+      Assert.fail("Expected checksum failure.");
+    } catch (FetchException e) {
+      Assert.assertEquals(FetchException.ErrorCode.INVALID_MESSAGE, e.getErrorCode());
+      // Fetching can resume right after the corrupted message.
+      Assert.assertEquals(response.readableBytes(), e.getNextOffset());
+    }
+
+    // No failure if checksum verification is disabled.
+    Assert.assertEquals(1, decode(new MessageSetDecoder(false), response.duplicate(), 0L).size());
+  }
+
+  private void testDecode(MessageSetEncoder encoder, int count) {
+    ChannelBuffer response = encode(encoder, count);
+    int size = response.readableBytes();
+
+    final List<Long> offsets = Lists.newArrayList();
+    final List<String> messages = Lists.newArrayList();
+    int decoded = new MessageSetDecoder(true).decode(response, 100L, new MessageSetDecoder.MessageHandler() {
+      @Override
+      public void received(long nextOffset, ByteBuffer payload) {
+        offsets.add(nextOffset);
+        messages.add(Charsets.UTF_8.decode(payload).toString());
+      }
+    });
+
+    Assert.assertEquals(size, decoded);
+    verify(messages, count);
+    for (long offset : offsets) {
+      Assert.assertTrue(offset > 100L && offset <= 100L + size);
+    }
+    Assert.assertEquals(100L + size, (long) offsets.get(offsets.size() - 1));
+  }
+
+  private ChannelBuffer encode(MessageSetEncoder encoder, int count) {
+    for (int i = 0; i < count; i++) {
+      encoder.add(ChannelBuffers.wrappedBuffer(Charsets.UTF_8.encode(i + " Testing message")));
+    }
+    // Skip the message set size prefix. The fetch response body contains the messages only.
+    ChannelBuffer messageSet = encoder.finish();
+    messageSet.skipBytes(4);
+    return ChannelBuffers.copiedBuffer(messageSet);
+  }
+
+  private List<String> decode(MessageSetDecoder decoder, ChannelBuffer buffer, long offset) {
+    List<String> messages = Lists.newArrayList();
+    decoder.decode(buffer, offset, collect(messages));
+    return messages;
+  }
+
+  private MessageSetDecoder.MessageHandler collect(final List<String> messages) {
+    return new MessageSetDecoder.MessageHandler() {
+      @Override
+      public void received(long nextOffset, ByteBuffer payload) {
+        messages.add(Charsets.UTF_8.decode(payload).toString());
+      }
+    };
+  }
+
+  private void verify(List<String> messages, int count) {
+    Assert.assertEquals(count, messages.size());
+    for (int i = 0; i < count; i++) {
+      Assert.assertEquals(i + " Testing message", messages.get(i));
+    }
+  }
+}
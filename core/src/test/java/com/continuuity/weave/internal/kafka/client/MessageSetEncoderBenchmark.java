@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for encoding message sets with {@link MessageSetEncoder}. Scores are in messages per second.
+ * Run the {@link #main(String[])} method to get the allocation per message reported
+ * as {@code gc.alloc.rate.norm} by the GC profiler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageSetEncoderBenchmark {
+
+  private static final int MESSAGE_COUNT = 1000;
+
+  @Param({"NONE", "GZIP", "SNAPPY"})
+  private Compression compression;
+
+  @Param({"true", "false"})
+  private boolean directPayload;
+
+  private ChannelBuffer[] payloads;
+
+  @Setup
+  public void setup() {
+    String padding = Strings.repeat("x", 100);
+    payloads = new ChannelBuffer[MESSAGE_COUNT];
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      byte[] bytes = (i + " Testing message " + padding).getBytes(Charsets.UTF_8);
+      if (directPayload) {
+        payloads[i] = ChannelBuffers.directBuffer(bytes.length);
+        payloads[i].writeBytes(bytes);
+      } else {
+        payloads[i] = ChannelBuffers.wrappedBuffer(bytes);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGE_COUNT)
+  public ChannelBuffer encode() {
+    MessageSetEncoder encoder = createEncoder(compression);
+    for (ChannelBuffer payload : payloads) {
+      encoder.add(payload.duplicate());
+    }
+    return encoder.finish();
+  }
+
+  private MessageSetEncoder createEncoder(Compression compression) {
+    switch (compression) {
+      case GZIP:
+        return new GZipMessageSetEncoder();
+      case SNAPPY:
+        return new SnappyMessageSetEncoder();
+      default:
+        return new IdentityMessageSetEncoder();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+                 .include(MessageSetEncoderBenchmark.class.getSimpleName())
+                 .addProfiler(GCProfiler.class)
+                 .build()).run();
+  }
+}
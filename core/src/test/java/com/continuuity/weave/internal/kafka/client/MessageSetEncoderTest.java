@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xerial.snappy.SnappyInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit test for compressed {@link MessageSetEncoder}s. The compressed output is decoded with the standard streams
+ * used by kafka consumers.
+ */
+public class MessageSetEncoderTest {
+
+  @Test
+  public void testGZip() throws IOException {
+    MessageSetEncoder encoder = new GZipMessageSetEncoder();
+    // Encoder is reusable after finish.
+    for (int count : new int[] { 1, 10, 20000 }) {
+      ChannelBuffer compressed = decodeWrapper(encode(encoder, count), Compression.GZIP);
+      verifyMessages(new GZIPInputStream(new ChannelBufferInputStream(compressed)), count);
+    }
+  }
+
+  @Test
+  public void testSnappy() throws IOException {
+    MessageSetEncoder encoder = new SnappyMessageSetEncoder();
+    for (int count : new int[] { 1, 10, 20000 }) {
+      ChannelBuffer compressed = decodeWrapper(encode(encoder, count), Compression.SNAPPY);
+      verifyMessages(new SnappyInputStream(new ChannelBufferInputStream(compressed)), count);
+    }
+  }
+
+  @Test
+  public void testDirectPayload() throws IOException {
+    MessageSetEncoder encoder = new SnappyMessageSetEncoder();
+    byte[] bytes = "Direct payload".getBytes(Charsets.UTF_8);
+    ChannelBuffer payload = ChannelBuffers.directBuffer(bytes.length);
+    payload.writeBytes(bytes);
+    encoder.add(payload);
+
+    ChannelBuffer compressed = decodeWrapper(encoder.finish(), Compression.SNAPPY);
+    ChannelBuffer messages = ChannelBuffers.wrappedBuffer(
+      ByteStreams.toByteArray(new SnappyInputStream(new ChannelBufferInputStream(compressed))));
+    Assert.assertEquals("Direct payload", readMessage(messages));
+    // Payload is not consumed.
+    Assert.assertEquals(bytes.length, payload.readableBytes());
+  }
+
+  private ChannelBuffer encode(MessageSetEncoder encoder, int count) {
+    String padding = Strings.repeat("x", 50);
+    for (int i = 0; i < count; i++) {
+      encoder.add(ChannelBuffers.wrappedBuffer(Charsets.UTF_8.encode(i + " Testing message " + padding)));
+    }
+    return encoder.finish();
+  }
+
+  /**
+   * Verifies the size prefix and the wrapper message header, and returns the compressed payload.
+   */
+  private ChannelBuffer decodeWrapper(ChannelBuffer messageSet, Compression compression) {
+    Assert.assertEquals(messageSet.readableBytes() - 4, messageSet.readInt());
+    int size = messageSet.readInt();
+    Assert.assertEquals(messageSet.readableBytes(), size);
+    Assert.assertEquals(1, messageSet.readByte());
+    Assert.assertEquals(compression.getCode(), messageSet.readByte());
+    int crc = messageSet.readInt();
+    Assert.assertEquals(crc, Checksums.crc32(messageSet));
+    return messageSet;
+  }
+
+  private void verifyMessages(InputStream input, int count) throws IOException {
+    ChannelBuffer messages = ChannelBuffers.wrappedBuffer(ByteStreams.toByteArray(input));
+    String padding = Strings.repeat("x", 50);
+    for (int i = 0; i < count; i++) {
+      Assert.assertEquals(i + " Testing message " + padding, readMessage(messages));
+    }
+    Assert.assertFalse(messages.readable());
+  }
+
+  private String readMessage(ChannelBuffer messages) {
+    int size = messages.readInt();
+    Assert.assertEquals(0, messages.readByte());
+    int crc = messages.readInt();
+    ChannelBuffer payload = messages.readSlice(size - 5);
+    Assert.assertEquals(crc, Checksums.crc32(payload));
+    return payload.toString(Charsets.UTF_8);
+  }
+}
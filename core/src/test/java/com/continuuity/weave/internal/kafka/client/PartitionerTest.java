@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.kafka.client;
+
+import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.continuuity.weave.kafka.client.Partitioner;
+import com.continuuity.weave.kafka.client.PreparePublish;
+import com.continuuity.weave.zookeeper.ZKClientService;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import org.apache.zookeeper.CreateMode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit test for routing published messages to partitions by key.
+ */
+public class PartitionerTest {
+
+  @Test
+  public void testHashPartitioner() {
+    Partitioner partitioner = new HashPartitioner();
+
+    for (int numPartitions = 1; numPartitions <= 8; numPartitions++) {
+      Set<Integer> used = Sets.newHashSet();
+      for (int i = 0; i < 1000; i++) {
+        String key = "key" + i;
+        int partition = partitioner.partition(key, numPartitions);
+        Assert.assertTrue(partition >= 0 && partition < numPartitions);
+
+        // Equal keys always go to the same partition.
+        Assert.assertEquals(partition, partitioner.partition(new String(key), numPartitions));
+        used.add(partition);
+      }
+      // Keys are spread across all partitions.
+      Assert.assertEquals(numPartitions, used.size());
+      Assert.assertEquals(0, partitioner.partition(null, numPartitions));
+    }
+
+    // Negative hash codes stay in range.
+    Object negativeKey = new Object() {
+      @Override
+      public int hashCode() {
+        return Integer.MIN_VALUE + 1;
+      }
+    };
+    Assert.assertTrue(partitioner.partition(negativeKey, 3) >= 0);
+  }
+
+  @Test
+  public void testCustomPartitioner() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+    try {
+      ZKClientService zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      zkClient.startAndWait();
+
+      // A topic with 4 partitions served by one broker.
+      zkClient.create("/brokers/ids/0", "creator:localhost:9090".getBytes(Charsets.UTF_8),
+                      CreateMode.EPHEMERAL, true).get();
+      zkClient.create("/brokers/topics/topic/0", "4".getBytes(Charsets.UTF_8), CreateMode.PERSISTENT, true).get();
+
+      SimpleKafkaClient kafkaClient = new SimpleKafkaClient(zkClient);
+      kafkaClient.startAndWait();
+      try {
+        final AtomicReference<Object> lastKey = new AtomicReference<Object>();
+        final AtomicInteger lastNumPartitions = new AtomicInteger();
+        Partitioner partitioner = new Partitioner() {
+          @Override
+          public int partition(Object key, int numPartitions) {
+            lastKey.set(key);
+            lastNumPartitions.set(numPartitions);
+            return numPartitions - 1;
+          }
+        };
+
+        PreparePublish preparePublish = kafkaClient.preparePublish("topic", Compression.NONE, partitioner);
+        // Wait for the partition size of the topic to be loaded.
+        int count = 0;
+        do {
+          preparePublish.add(new byte[] {1}, "key");
+          if (lastNumPartitions.get() == 4) {
+            break;
+          }
+          TimeUnit.MILLISECONDS.sleep(100);
+        } while (count++ < 100);
+
+        Assert.assertEquals("key", lastKey.get());
+        Assert.assertEquals(4, lastNumPartitions.get());
+
+        // Partition returned by the partitioner must be in range.
+        PreparePublish invalidPublish = kafkaClient.preparePublish("topic", Compression.NONE, new Partitioner() {
+          @Override
+          public int partition(Object key, int numPartitions) {
+            return numPartitions;
+          }
+        });
+        try {
+          invalidPublish.add(new byte[] {1}, "key");
+          Assert.fail("Expected out of range partition to fail.");
+        } catch (IllegalStateException e) {
+          // Expected
+        }
+      } finally {
+        kafkaClient.stopAndWait();
+        zkClient.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import com.continuuity.weave.api.logging.LogEntry;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Unit test for encoding and decoding the binary log record format.
+ */
+public class BinaryLogEntryDecoderTest {
+
+  @Test
+  public void testEncodeDecode() {
+    Exception exception = new Exception("Test exception");
+    StackTraceElement caller = new StackTraceElement("test.Caller", "call", "Caller.java", 123);
+
+    LoggingEvent event = createEvent("Message with unicode \u00e9\u4e2d\ud83d\ude00 and \ud800 unpaired");
+    event.setThrowableProxy(new ThrowableProxy(exception));
+    event.setCallerData(new StackTraceElement[] { caller });
+
+    ByteBuffer record = new BinaryLogEventEncoder("testhost", true).encode(event);
+    Assert.assertTrue(BinaryLogEntryDecoder.isBinary(record));
+
+    LogEntry entry = new BinaryLogEntryDecoder().decode(record);
+    Assert.assertEquals("test.logger", entry.getLoggerName());
+    Assert.assertEquals("testhost", entry.getHost());
+    Assert.assertEquals(1234567L, entry.getTimestamp());
+    Assert.assertEquals(LogEntry.Level.WARN, entry.getLogLevel());
+    Assert.assertEquals("test.Caller", entry.getSourceClassName());
+    Assert.assertEquals("call", entry.getSourceMethodName());
+    Assert.assertEquals("Caller.java", entry.getFileName());
+    Assert.assertEquals(123, entry.getLineNumber());
+    Assert.assertEquals("main", entry.getThreadName());
+    Assert.assertEquals("Message with unicode \u00e9\u4e2d\ud83d\ude00 and ? unpaired", entry.getMessage());
+    Assert.assertArrayEquals(exception.getStackTrace(), entry.getStackTraces());
+
+    // Decoding doesn't change the buffer position.
+    Assert.assertEquals(0, record.position());
+  }
+
+  @Test
+  public void testNoCallerData() {
+    LoggingEvent event = createEvent("Message");
+    event.setCallerData(new StackTraceElement[] { new StackTraceElement("test.Caller", "call", "Caller.java", 1) });
+
+    LogEntry entry = new BinaryLogEntryDecoder().decode(new BinaryLogEventEncoder(null, false).encode(event));
+    Assert.assertNull(entry.getHost());
+    Assert.assertEquals("?", entry.getSourceClassName());
+    Assert.assertEquals("?", entry.getSourceMethodName());
+    Assert.assertEquals("?", entry.getFileName());
+    Assert.assertEquals(-1, entry.getLineNumber());
+    Assert.assertEquals(0, entry.getStackTraces().length);
+  }
+
+  @Test
+  public void testRecordsStayValid() {
+    // Encode enough records to fill multiple chunks, including one bigger than a chunk.
+    BinaryLogEventEncoder encoder = new BinaryLogEventEncoder("testhost", false);
+    List<ByteBuffer> records = Lists.newArrayList();
+    List<String> messages = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      String message = (i == 500) ? Strings.repeat("\u4e2d", 100000) : "Message " + i;
+      messages.add(message);
+      records.add(encoder.encode(createEvent(message)));
+    }
+
+    BinaryLogEntryDecoder decoder = new BinaryLogEntryDecoder();
+    for (int i = 0; i < records.size(); i++) {
+      Assert.assertEquals(messages.get(i), decoder.decode(records.get(i)).getMessage());
+    }
+  }
+
+  @Test
+  public void testJsonNotBinary() {
+    Assert.assertFalse(BinaryLogEntryDecoder.isBinary(ByteBuffer.wrap("{\"name\":\"test\"}".getBytes())));
+    Assert.assertFalse(BinaryLogEntryDecoder.isBinary(ByteBuffer.allocate(0)));
+  }
+
+  private LoggingEvent createEvent(String message) {
+    LoggingEvent event = new LoggingEvent();
+    event.setLoggerName("test.logger");
+    event.setTimeStamp(1234567L);
+    event.setLevel(Level.WARN);
+    event.setThreadName("main");
+    event.setMessage(message);
+    return event;
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.kafka.client.Compression;
+import ch.qos.logback.classic.Level;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for {@link LogBatchPublisher}.
+ */
+public class LogBatchPublisherTest {
+
+  private ScheduledExecutorService scheduler;
+  private LogRecordBuffer buffer;
+
+  @Before
+  public void init() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("test-publisher"));
+    buffer = new LogRecordBuffer(1024, LogRecordBuffer.OverflowPolicy.DROP_OLDEST, 0, TimeUnit.SECONDS);
+  }
+
+  @After
+  public void finish() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testBatchSize() throws Exception {
+    RecordingSender sender = new RecordingSender(0);
+    LogBatchPublisher publisher = new LogBatchPublisher(buffer, scheduler, sender, 1000, 100, 60000);
+    start(publisher);
+
+    // Flush is triggered once buffered bytes reach the batch size, long before the linger time.
+    add(publisher, 50);
+    add(publisher, 50);
+    SentBatch batch = sender.batches.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(batch);
+    Assert.assertEquals(2, batch.records.size());
+    Assert.assertEquals(Compression.NONE, batch.compression);
+  }
+
+  @Test
+  public void testLinger() throws Exception {
+    RecordingSender sender = new RecordingSender(0);
+    LogBatchPublisher publisher = new LogBatchPublisher(buffer, scheduler, sender, 1000, 1024 * 1024, 100);
+    start(publisher);
+
+    long startTime = System.nanoTime();
+    add(publisher, LogBatchPublisher.COMPRESSION_THRESHOLD);
+    SentBatch batch = sender.batches.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(batch);
+    Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) >= 90);
+    Assert.assertEquals(1, batch.records.size());
+    // Large batch is compressed.
+    Assert.assertEquals(Compression.SNAPPY, batch.compression);
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    RecordingSender sender = new RecordingSender(2);
+    LogBatchPublisher publisher = new LogBatchPublisher(buffer, scheduler, sender, 1, 1024 * 1024, 100);
+    start(publisher);
+
+    add(publisher, 10);
+    SentBatch batch = sender.batches.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(batch);
+    Assert.assertEquals(1, batch.records.size());
+    Assert.assertEquals(3, sender.attempts.get());
+    Assert.assertEquals(0, publisher.getDroppedCount());
+  }
+
+  @Test
+  public void testDrop() throws Exception {
+    RecordingSender sender = new RecordingSender(Integer.MAX_VALUE);
+    LogBatchPublisher publisher = new LogBatchPublisher(buffer, scheduler, sender, 1, 1024 * 1024, 100);
+    start(publisher);
+
+    add(publisher, 10);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (publisher.getDroppedCount() == 0 && System.currentTimeMillis() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    Assert.assertEquals(1, publisher.getDroppedCount());
+    Assert.assertEquals(LogBatchPublisher.MAX_RETRY_ATTEMPTS, sender.attempts.get());
+  }
+
+  @Test
+  public void testInFlightLimit() throws Exception {
+    final BlockingQueue<SettableFuture<Object>> pending = new LinkedBlockingQueue<SettableFuture<Object>>();
+    LogBatchPublisher publisher = new LogBatchPublisher(buffer, scheduler, new LogBatchPublisher.BatchSender() {
+      @Override
+      public ListenableFuture<?> send(List<ByteBuffer> records, Compression compression) {
+        SettableFuture<Object> future = SettableFuture.create();
+        pending.add(future);
+        return future;
+      }
+    }, 1, 1024 * 1024, 100);
+    start(publisher);
+
+    List<SettableFuture<Object>> inFlight = Lists.newArrayList();
+    for (int i = 0; i < LogBatchPublisher.MAX_INFLIGHT_BATCHES; i++) {
+      add(publisher, 10);
+      SettableFuture<Object> future = pending.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(future);
+      inFlight.add(future);
+    }
+
+    // No more publish while the limit is reached. Records stay in the buffer.
+    add(publisher, 10);
+    add(publisher, 10);
+    Assert.assertNull(pending.poll(500, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(2, buffer.size());
+
+    // Completing a publish resumes draining.
+    inFlight.get(0).set(null);
+    Assert.assertNotNull(pending.poll(5, TimeUnit.SECONDS));
+    Assert.assertEquals(0, buffer.size());
+  }
+
+  /**
+   * Starts the publisher and waits for the initial flush to complete.
+   */
+  private void start(LogBatchPublisher publisher) throws Exception {
+    publisher.start();
+    scheduler.submit(new Runnable() {
+      @Override
+      public void run() {
+        // No-op
+      }
+    }).get();
+  }
+
+  private void add(LogBatchPublisher publisher, int size) {
+    buffer.add(ByteBuffer.allocate(size), Level.INFO);
+    publisher.recordAdded();
+  }
+
+  private static final class SentBatch {
+    private final List<ByteBuffer> records;
+    private final Compression compression;
+
+    SentBatch(List<ByteBuffer> records, Compression compression) {
+      this.records = records;
+      this.compression = compression;
+    }
+  }
+
+  /**
+   * A {@link LogBatchPublisher.BatchSender} that fails a given number of sends before succeeding.
+   */
+  private static final class RecordingSender implements LogBatchPublisher.BatchSender {
+
+    private final BlockingQueue<SentBatch> batches = new LinkedBlockingQueue<SentBatch>();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final int failures;
+
+    RecordingSender(int failures) {
+      this.failures = failures;
+    }
+
+    @Override
+    public ListenableFuture<?> send(List<ByteBuffer> records, Compression compression) {
+      if (attempts.incrementAndGet() <= failures) {
+        return Futures.immediateFailedFuture(new Exception("Publish failure"));
+      }
+      batches.add(new SentBatch(ImmutableList.copyOf(records), compression));
+      return Futures.immediateFuture(null);
+    }
+  }
+}
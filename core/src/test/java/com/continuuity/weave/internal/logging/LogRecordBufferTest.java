@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.Level;
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit test for {@link LogRecordBuffer}.
+ */
+public class LogRecordBufferTest {
+
+  @Test
+  public void testDropOldest() {
+    LogRecordBuffer buffer = new LogRecordBuffer(6, LogRecordBuffer.OverflowPolicy.DROP_OLDEST, 0, TimeUnit.SECONDS);
+    Assert.assertEquals(8, buffer.getCapacity());
+
+    for (int i = 0; i < 10; i++) {
+      Assert.assertTrue(buffer.add(record(i), Level.INFO));
+    }
+    Assert.assertEquals(8, buffer.size());
+    Assert.assertEquals(10, buffer.getQueuedCount());
+    Assert.assertEquals(2, buffer.getDroppedCount());
+
+    // The two oldest records are dropped.
+    for (int i = 2; i < 10; i++) {
+      Assert.assertEquals(i, buffer.poll().getInt(0));
+    }
+    Assert.assertNull(buffer.poll());
+  }
+
+  @Test
+  public void testDropByLevel() {
+    LogRecordBuffer buffer = new LogRecordBuffer(8, LogRecordBuffer.OverflowPolicy.DROP_BY_LEVEL,
+                                                 0, TimeUnit.SECONDS);
+    // Records below WARN take up to three quarters of the buffer.
+    for (int i = 0; i < 8; i++) {
+      Assert.assertEquals(i < 6, buffer.add(record(i), Level.DEBUG));
+    }
+    Assert.assertTrue(buffer.add(record(8), Level.WARN));
+    Assert.assertTrue(buffer.add(record(9), Level.ERROR));
+    Assert.assertFalse(buffer.add(record(10), Level.ERROR));
+    Assert.assertEquals(3, buffer.getDroppedCount());
+    Assert.assertEquals(8, buffer.size());
+  }
+
+  @Test
+  public void testBlock() throws InterruptedException {
+    final LogRecordBuffer buffer = new LogRecordBuffer(2, LogRecordBuffer.OverflowPolicy.BLOCK,
+                                                       5, TimeUnit.SECONDS);
+    buffer.add(record(0), Level.INFO);
+    buffer.add(record(1), Level.INFO);
+
+    final CountDownLatch added = new CountDownLatch(1);
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        if (buffer.add(record(2), Level.INFO)) {
+          added.countDown();
+        }
+      }
+    };
+    producer.start();
+
+    // Blocked until a record is consumed.
+    Assert.assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(0, buffer.poll().getInt(0));
+    Assert.assertTrue(added.await(5, TimeUnit.SECONDS));
+    producer.join();
+
+    // Drops after timeout.
+    LogRecordBuffer timeoutBuffer = new LogRecordBuffer(1, LogRecordBuffer.OverflowPolicy.BLOCK,
+                                                        100, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(2, timeoutBuffer.getCapacity());
+    Assert.assertTrue(timeoutBuffer.add(record(0), Level.INFO));
+    Assert.assertTrue(timeoutBuffer.add(record(1), Level.INFO));
+    Assert.assertFalse(timeoutBuffer.add(record(2), Level.INFO));
+    Assert.assertEquals(1, timeoutBuffer.getDroppedCount());
+
+    // Drops right away if not allowed to block, even with a long timeout.
+    long startTime = System.nanoTime();
+    Assert.assertFalse(buffer.add(record(3), Level.INFO, false));
+    Assert.assertTrue(System.nanoTime() - startTime < TimeUnit.SECONDS.toNanos(1));
+    Assert.assertEquals(1, buffer.getDroppedCount());
+  }
+
+  @Test
+  public void testConcurrentProducers() throws InterruptedException {
+    final LogRecordBuffer buffer = new LogRecordBuffer(64, LogRecordBuffer.OverflowPolicy.BLOCK,
+                                                       10, TimeUnit.SECONDS);
+    final int producers = 4;
+    final int recordsPerProducer = 10000;
+    Thread[] threads = new Thread[producers];
+    for (int i = 0; i < producers; i++) {
+      final int base = i * recordsPerProducer;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < recordsPerProducer; j++) {
+            buffer.add(record(base + j), Level.INFO);
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    // Single consumer sees every record exactly once.
+    Set<Integer> received = Sets.newHashSet();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (received.size() < producers * recordsPerProducer && System.currentTimeMillis() < deadline) {
+      ByteBuffer record = buffer.poll();
+      if (record != null) {
+        Assert.assertTrue(received.add(record.getInt(0)));
+      }
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(producers * recordsPerProducer, received.size());
+    Assert.assertEquals(0, buffer.getDroppedCount());
+    Assert.assertNull(buffer.poll());
+  }
+
+  private static ByteBuffer record(int value) {
+    ByteBuffer buffer = ByteBuffer.allocate(4);
+    buffer.putInt(0, value);
+    return buffer;
+  }
+}
@@ -33,6 +33,7 @@ import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.zookeeper.CreateMode;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -60,6 +61,7 @@ public class KafkaTest {
   public static final TemporaryFolder TMP_FOLDER = new TemporaryFolder();
 
   private static InMemoryZKServer zkServer;
+  private static File kafkaDir;
   private static EmbeddedKafkaServer kafkaServer;
   private static ZKClientService zkClientService;
   private static KafkaClient kafkaClient;
@@ -70,7 +72,8 @@ public class KafkaTest {
     zkServer.startAndWait();
 
     // Extract the kafka.tgz and start the kafka server
-    kafkaServer = new EmbeddedKafkaServer(extractKafka(), generateKafkaConfig(zkServer.getConnectionStr()));
+    kafkaDir = extractKafka();
+    kafkaServer = new EmbeddedKafkaServer(kafkaDir, generateKafkaConfig(zkServer.getConnectionStr(), 0));
     kafkaServer.startAndWait();
 
     zkClientService = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
@@ -142,6 +145,40 @@ public class KafkaTest {
     Assert.assertEquals("3000 Testing", Charsets.UTF_8.decode(consumer.next().getBuffer()).toString());
   }
 
+  @Test (timeout = 30000)
+  public void testMultiBroker() throws Exception {
+    String topic = "testMultiBroker";
+
+    // Start a second broker and make both brokers serve partition 0 of the topic. The partition on each broker is a
+    // separate log, hence messages published to the partition must go to the broker that its consumers read from.
+    EmbeddedKafkaServer secondServer = new EmbeddedKafkaServer(kafkaDir,
+                                                               generateKafkaConfig(zkServer.getConnectionStr(), 1));
+    secondServer.startAndWait();
+    try {
+      for (int brokerId = 0; brokerId < 2; brokerId++) {
+        zkClientService.create("/brokers/topics/" + topic + "/" + brokerId, "1".getBytes(Charsets.UTF_8),
+                               CreateMode.PERSISTENT, true).get();
+      }
+      // Wait for the client to see both brokers of the topic.
+      TimeUnit.SECONDS.sleep(1);
+
+      // Each publish looks up the broker again.
+      for (int i = 0; i < 10; i++) {
+        Thread publishThread = createPublishThread(kafkaClient, topic, Compression.NONE, "Testing", 10, i * 10);
+        publishThread.start();
+        publishThread.join();
+      }
+
+      Iterator<FetchedMessage> consumer = kafkaClient.consume(topic, 0, 0, 1048576);
+      for (int i = 0; i < 100; i++) {
+        Assert.assertTrue(consumer.hasNext());
+        Assert.assertEquals(i + " Testing", Charsets.UTF_8.decode(consumer.next().getBuffer()).toString());
+      }
+    } finally {
+      secondServer.stopAndWait();
+    }
+  }
+
   private Thread createPublishThread(final KafkaClient kafkaClient, final String topic,
                                      final Compression compression, final String message, final int count) {
     return createPublishThread(kafkaClient, topic, compression, message, count, 0);
@@ -190,7 +227,7 @@ public class KafkaTest {
     return kafkaExtract;
   }
 
-  private static Properties generateKafkaConfig(String zkConnectStr) throws IOException {
+  private static Properties generateKafkaConfig(String zkConnectStr, int brokerId) throws IOException {
     int port = Networks.getRandomPort();
     Preconditions.checkState(port > 0, "Failed to get random port.");
 
@@ -207,7 +244,7 @@ public class KafkaTest {
     prop.setProperty("socket.receive.buffer", "1048576");
     prop.setProperty("enable.zookeeper", "true");
     prop.setProperty("log.retention.hours", "24");
-    prop.setProperty("brokerid", "0");
+    prop.setProperty("brokerid", Integer.toString(brokerId));
     prop.setProperty("socket.send.buffer", "1048576");
     prop.setProperty("num.partitions", "1");
     // Use a really small file size to force some flush to happen
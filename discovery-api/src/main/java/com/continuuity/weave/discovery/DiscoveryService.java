@@ -17,6 +17,9 @@ package com.continuuity.weave.discovery;
 
 
 import com.continuuity.weave.common.Cancellable;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
 
 /**
  * DiscoveryService defines interface for registering {@link Discoverable}.
@@ -29,5 +32,21 @@ public interface DiscoveryService {
    * @return A {@link Cancellable} for un-registration.
    */
   Cancellable register(Discoverable discoverable);
+
+  /**
+   * Registers a {@link Discoverable} service without blocking the caller.
+   * @param discoverable Information of the service provider that could be discovered.
+   * @return A future that completes with a {@link Cancellable} for un-registration when the registration is done.
+   */
+  ListenableFuture<Cancellable> registerAsync(Discoverable discoverable);
+
+  /**
+   * Registers multiple {@link Discoverable} services without blocking the caller. If any of the registrations fails,
+   * the ones that succeeded are un-registered. The registration is not atomic: some of the services could be
+   * discovered for a short time before they are un-registered.
+   * @param discoverables Information of the service providers that could be discovered.
+   * @return A future that completes with a list of {@link Cancellable}, one per {@link Discoverable} in the same order.
+   */
+  ListenableFuture<List<Cancellable>> registerAll(Iterable<? extends Discoverable> discoverables);
 }
 
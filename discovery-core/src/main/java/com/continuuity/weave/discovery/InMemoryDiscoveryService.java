@@ -18,9 +18,13 @@ package com.continuuity.weave.discovery;
 import com.continuuity.weave.common.Cancellable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -54,6 +58,20 @@ public class InMemoryDiscoveryService implements DiscoveryService, DiscoveryServ
     }
   }
 
+  @Override
+  public ListenableFuture<Cancellable> registerAsync(Discoverable discoverable) {
+    return Futures.immediateFuture(register(discoverable));
+  }
+
+  @Override
+  public ListenableFuture<List<Cancellable>> registerAll(Iterable<? extends Discoverable> discoverables) {
+    List<Cancellable> cancellables = Lists.newArrayList();
+    for (Discoverable discoverable : discoverables) {
+      cancellables.add(register(discoverable));
+    }
+    return Futures.immediateFuture(cancellables);
+  }
+
   @Override
   public Iterable<Discoverable> discover(final String name) {
     return new Iterable<Discoverable>() {
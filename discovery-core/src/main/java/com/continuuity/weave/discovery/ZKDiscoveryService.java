@@ -20,22 +20,28 @@ import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.zookeeper.NodeChildren;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.OperationFuture;
+import com.continuuity.weave.zookeeper.RetryStrategies;
+import com.continuuity.weave.zookeeper.RetryStrategy;
+import com.continuuity.weave.zookeeper.SessionRecovery;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.continuuity.weave.zookeeper.ZKClients;
 import com.continuuity.weave.zookeeper.ZKOperations;
 import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
@@ -61,7 +67,6 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -105,7 +110,14 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
   private static final Logger LOG = LoggerFactory.getLogger(ZKDiscoveryService.class);
   private static final String NAMESPACE = "/discoverable";
 
-  private static final long RETRY_MILLIS = 1000;
+  // Gson is thread safe, hence shared for encoding and decoding.
+  private static final Gson GSON = new GsonBuilder()
+    .registerTypeAdapter(Discoverable.class, new DiscoverableCodec())
+    .registerTypeAdapter(DiscoverableWrapper.class, new DiscoverableCodec())
+    .create();
+
+  private static final long RETRY_BASE_MILLIS = 100;
+  private static final long RETRY_MAX_MILLIS = 5000;
 
   // In memory map for recreating ephemeral nodes after session expires.
   // It map from discoverable to the corresponding Cancellable
@@ -115,6 +127,7 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
   private final LoadingCache<String, Iterable<Discoverable>> services;
   private final ZKClient zkClient;
   private final ScheduledExecutorService retryExecutor;
+  private final RetryStrategy retryStrategy;
 
   /**
    * Constructs ZKDiscoveryService using the provided zookeeper client for storing service registry.
@@ -135,6 +148,7 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
     this.lock = new ReentrantLock();
     this.retryExecutor = Executors.newSingleThreadScheduledExecutor(
       Threads.createDaemonThreadFactory("zk-discovery-retry"));
+    this.retryStrategy = RetryStrategies.exponentialDelay(RETRY_BASE_MILLIS, RETRY_MAX_MILLIS, TimeUnit.MILLISECONDS);
     this.zkClient = namespace == null ? zkClient : ZKClients.namespace(zkClient, namespace);
     this.services = CacheBuilder.newBuilder().build(createServiceLoader());
     this.zkClient.addConnectionWatcher(createConnectionWatcher());
@@ -154,39 +168,81 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
    */
   @Override
   public Cancellable register(final Discoverable discoverable) {
-    final Discoverable wrapper = new DiscoverableWrapper(discoverable);
-    final SettableFuture<String> future = SettableFuture.create();
-    final DiscoveryCancellable cancellable = new DiscoveryCancellable(wrapper);
+    return Futures.getUnchecked(registerAsync(discoverable));
+  }
+
+  /**
+   * Registers a {@link Discoverable} in zookeeper without blocking. Registration is retried with exponential backoff
+   * while the node is owned by another session.
+   *
+   * @param discoverable Information of the service provider that could be discovered.
+   * @return A future that completes with a {@link Cancellable} for un-registration once the node is created.
+   */
+  @Override
+  public ListenableFuture<Cancellable> registerAsync(Discoverable discoverable) {
+    Discoverable wrapper = new DiscoverableWrapper(discoverable);
+    RegisterCallback callback = new RegisterCallback(wrapper);
 
     // Create the zk ephemeral node.
-    Futures.addCallback(doRegister(wrapper), new FutureCallback<String>() {
+    Futures.addCallback(doRegister(wrapper), callback, Threads.SAME_THREAD_EXECUTOR);
+    return callback.completion;
+  }
+
+  /**
+   * Registers multiple {@link Discoverable} in zookeeper without blocking. All creations are sent concurrently,
+   * each retried like in {@link #registerAsync(Discoverable)}. If any of them fails, the ones that succeeded are
+   * un-registered afterwards, hence they could be discovered in between.
+   *
+   * @param endpoints Information of the service providers that could be discovered.
+   * @return A future that completes with a list of {@link Cancellable}, in the same order as the given endpoints.
+   */
+  @Override
+  public ListenableFuture<List<Cancellable>> registerAll(Iterable<? extends Discoverable> endpoints) {
+    final List<ListenableFuture<Cancellable>> futures = Lists.newArrayList();
+    for (Discoverable discoverable : endpoints) {
+      futures.add(registerAsync(discoverable));
+    }
+
+    final SettableFuture<List<Cancellable>> completion = SettableFuture.create();
+    Futures.addCallback(Futures.successfulAsList(futures), new FutureCallback<List<Cancellable>>() {
       @Override
-      public void onSuccess(String result) {
-        // Set the sequence node path to cancellable for future cancellation.
-        cancellable.setPath(result);
-        lock.lock();
-        try {
-          discoverables.put(wrapper, cancellable);
-        } finally {
-          lock.unlock();
+      public void onSuccess(final List<Cancellable> result) {
+        if (!result.contains(null)) {
+          completion.set(result);
+          return;
         }
-        LOG.debug("Service registered: {} {}", wrapper, result);
-        future.set(result);
+
+        Throwable failure = null;
+        for (ListenableFuture<Cancellable> future : futures) {
+          try {
+            Futures.getUnchecked(future);
+          } catch (Throwable t) {
+            failure = t.getCause() == null ? t : t.getCause();
+            break;
+          }
+        }
+        // Un-registration blocks, hence it cannot be done from the zk event thread.
+        retryExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (Cancellable cancellable : result) {
+              if (cancellable != null) {
+                cancellable.cancel();
+              }
+            }
+          }
+        });
+        completion.setException(failure);
       }
 
       @Override
       public void onFailure(Throwable t) {
-        if (t instanceof KeeperException.NodeExistsException) {
-          handleRegisterFailure(discoverable, future, this, t);
-        } else {
-          LOG.warn("Failed to register: {}", wrapper, t);
-          future.setException(t);
-        }
+        // Never happens with successfulAsList
+        completion.setException(t);
       }
     }, Threads.SAME_THREAD_EXECUTOR);
 
-    Futures.getUnchecked(future);
-    return cancellable;
+    return completion;
   }
 
   @Override
@@ -197,16 +253,11 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
   /**
    * Handle registration failure.
    *
-   * @param discoverable The discoverable to register.
-   * @param completion A settable future to set when registration is completed / failed.
-   * @param creationCallback A future callback for path creation.
+   * @param callback The callback for the registration.
    * @param failureCause The original cause of failure.
    */
-  private void handleRegisterFailure(final Discoverable discoverable,
-                                     final SettableFuture<String> completion,
-                                     final FutureCallback<String> creationCallback,
-                                     final Throwable failureCause) {
-
+  private void handleRegisterFailure(final RegisterCallback callback, final Throwable failureCause) {
+    final Discoverable discoverable = callback.discoverable;
     final String path = getNodePath(discoverable);
     Futures.addCallback(zkClient.exists(path), new FutureCallback<Stat>() {
       @Override
@@ -214,7 +265,7 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
         if (result == null) {
           // If the node is gone, simply retry.
           LOG.info("Node {} is gone. Retry registration for {}.", path, discoverable);
-          retryRegister(discoverable, creationCallback);
+          callback.retry(failureCause);
           return;
         }
 
@@ -223,18 +274,18 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
           // it is not an ephemeral node, something wrong.
           LOG.error("Node {} already exists and is not an ephemeral node. Discoverable registration failed: {}.",
                     path, discoverable);
-          completion.setException(failureCause);
+          callback.completion.setException(failureCause);
           return;
         }
         Long sessionId = zkClient.getSessionId();
         if (sessionId == null || ephemeralOwner != sessionId) {
-          // This zkClient is not valid or doesn't own the ephemeral node, simply keep retrying.
+          // This zkClient is not valid or doesn't own the ephemeral node, keep retrying until the node is gone.
           LOG.info("Owner of {} is different. Retry registration for {}.", path, discoverable);
-          retryRegister(discoverable, creationCallback);
+          callback.retry(failureCause);
         } else {
           // This client owned the node, treat the registration as completed.
           // This could happen if same client tries to register twice (due to mistake or failure race condition).
-          completion.set(path);
+          callback.onSuccess(path);
         }
       }
 
@@ -242,7 +293,7 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
       public void onFailure(Throwable t) {
         // If exists call failed, simply retry creation.
         LOG.warn("Error when getting stats on {}. Retry registration for {}.", path, discoverable);
-        retryRegister(discoverable, creationCallback);
+        callback.retry(failureCause);
       }
     }, Threads.SAME_THREAD_EXECUTOR);
   }
@@ -252,17 +303,6 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
     return zkClient.create(getNodePath(discoverable), discoverableBytes, CreateMode.EPHEMERAL, true);
   }
 
-  private void retryRegister(final Discoverable discoverable, final FutureCallback<String> creationCallback) {
-    retryExecutor.schedule(new Runnable() {
-
-      @Override
-      public void run() {
-        Futures.addCallback(doRegister(discoverable), creationCallback, Threads.SAME_THREAD_EXECUTOR);
-      }
-    }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
-  }
-
-
   /**
    * Generate unique node path for a given {@link Discoverable}.
    * @param discoverable An instance of {@link Discoverable}.
@@ -293,88 +333,98 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
           LOG.info("Reconnected after expiration: {}", zkClient.getConnectString());
           expired = false;
 
-          // Re-register all services
+          // Re-register all services through the session recovery, which rate limits and retries the re-creation.
+          List<Map.Entry<Discoverable, DiscoveryCancellable>> entries;
           lock.lock();
           try {
-            for (final Map.Entry<Discoverable, DiscoveryCancellable> entry : discoverables.entries()) {
-              LOG.info("Re-registering service: {}", entry.getKey());
-
-              // Must be non-blocking in here.
-              Futures.addCallback(doRegister(entry.getKey()), new FutureCallback<String>() {
-                @Override
-                public void onSuccess(String result) {
-                  // Updates the cancellable to the newly created sequential node.
-                  entry.getValue().setPath(result);
-                  LOG.debug("Service re-registered: {} {}", entry.getKey(), result);
-                }
-
-                @Override
-                public void onFailure(Throwable t) {
-                  // When failed to create the node, there would be no retry and simply make the cancellable do nothing.
-                  entry.getValue().setPath(null);
-                  LOG.error("Failed to re-register service: {}", entry.getKey(), t);
-                }
-              }, Threads.SAME_THREAD_EXECUTOR);
-            }
+            entries = ImmutableList.copyOf(discoverables.entries());
           } finally {
             lock.unlock();
           }
+
+          SessionRecovery recovery = SessionRecovery.of(zkClient);
+          for (final Map.Entry<Discoverable, DiscoveryCancellable> entry : entries) {
+            LOG.info("Re-registering service: {}", entry.getKey());
+            recovery.submit(RetryStrategy.OperationType.CREATE, getNodePath(entry.getKey()),
+                            new Supplier<ListenableFuture<?>>() {
+              @Override
+              public ListenableFuture<?> get() {
+                return reRegister(entry.getKey(), entry.getValue());
+              }
+            });
+          }
         }
       }
     };
   }
 
   /**
-   * Creates a CacheLoader for creating live Iterable for watching instances changes for a given service.
+   * Re-creates the node of a registered {@link Discoverable} after session expiration.
+   *
+   * @return A future that completes when the node is re-created, or fails if it should be retried.
    */
-  private CacheLoader<String, Iterable<Discoverable>> createServiceLoader() {
-    return new CacheLoader<String, Iterable<Discoverable>>() {
+  private ListenableFuture<?> reRegister(final Discoverable discoverable, final DiscoveryCancellable cancellable) {
+    final SettableFuture<String> completion = SettableFuture.create();
+    if (cancellable.cancelled.get()) {
+      completion.set(null);
+      return completion;
+    }
+
+    Futures.addCallback(doRegister(discoverable), new FutureCallback<String>() {
       @Override
-      public Iterable<Discoverable> load(String service) throws Exception {
-        // The atomic reference is to keep the resulting Iterable live. It always contains a
-        // immutable snapshot of the latest detected set of Discoverable.
-        final AtomicReference<Iterable<Discoverable>> iterable =
-              new AtomicReference<Iterable<Discoverable>>(ImmutableList.<Discoverable>of());
-        final String serviceBase = "/" + service;
+      public void onSuccess(String result) {
+        // Updates the cancellable to the newly created sequential node.
+        cancellable.setPath(result);
+        LOG.debug("Service re-registered: {} {}", discoverable, result);
+        completion.set(result);
+      }
 
-        // Watch for children changes in /service
-        ZKOperations.watchChildren(zkClient, serviceBase, new ZKOperations.ChildrenCallback() {
+      @Override
+      public void onFailure(final Throwable t) {
+        if (!(t instanceof KeeperException.NodeExistsException)) {
+          LOG.warn("Failed to re-register service: {}", discoverable, t);
+          completion.setException(t);
+          return;
+        }
+
+        // The node may still be owned by the expired session, or it may have been created by an earlier attempt.
+        final String path = getNodePath(discoverable);
+        Futures.addCallback(zkClient.exists(path), new FutureCallback<Stat>() {
           @Override
-          public void updated(NodeChildren nodeChildren) {
-            // Fetch data of all children nodes in parallel.
-            List<String> children = nodeChildren.getChildren();
-            List<OperationFuture<NodeData>> dataFutures = Lists.newArrayListWithCapacity(children.size());
-            for (String child : children) {
-              dataFutures.add(zkClient.getData(serviceBase + "/" + child));
+          public void onSuccess(Stat result) {
+            Long sessionId = zkClient.getSessionId();
+            if (result != null && sessionId != null && result.getEphemeralOwner() == sessionId) {
+              cancellable.setPath(path);
+              completion.set(path);
+            } else {
+              LOG.info("Node {} is not owned by current session. Retry registration for {}.", path, discoverable);
+              completion.setException(t);
             }
-
-            // Update the service map when all fetching are done.
-            final ListenableFuture<List<NodeData>> fetchFuture = Futures.successfulAsList(dataFutures);
-            fetchFuture.addListener(new Runnable() {
-              @Override
-              public void run() {
-                ImmutableList.Builder<Discoverable> builder = ImmutableList.builder();
-                for (NodeData nodeData : Futures.getUnchecked(fetchFuture)) {
-                  // For successful fetch, decode the content.
-                  if (nodeData != null) {
-                    Discoverable discoverable = decode(nodeData.getData());
-                    if (discoverable != null) {
-                      builder.add(discoverable);
-                    }
-                  }
-                }
-                iterable.set(builder.build());
-              }
-            }, Threads.SAME_THREAD_EXECUTOR);
           }
-        });
 
-        return new Iterable<Discoverable>() {
           @Override
-          public Iterator<Discoverable> iterator() {
-            return iterable.get().iterator();
+          public void onFailure(Throwable t) {
+            completion.setException(t);
           }
-        };
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+
+    return completion;
+  }
+
+  /**
+   * Creates a CacheLoader for creating live Iterable for watching instances changes for a given service.
+   */
+  private CacheLoader<String, Iterable<Discoverable>> createServiceLoader() {
+    return new CacheLoader<String, Iterable<Discoverable>>() {
+      @Override
+      public Iterable<Discoverable> load(String service) throws Exception {
+        ServiceWatcher watcher = new ServiceWatcher("/" + service);
+
+        // Watch for children changes in /service
+        ZKOperations.watchChildren(zkClient, watcher.serviceBase, watcher);
+        return watcher;
       }
     };
   }
@@ -389,9 +439,7 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
       return null;
     }
     String content = new String(bytes, Charsets.UTF_8);
-    return new GsonBuilder().registerTypeAdapter(Discoverable.class, new DiscoverableCodec())
-      .create()
-      .fromJson(content, Discoverable.class);
+    return GSON.fromJson(content, Discoverable.class);
   }
 
   /**
@@ -400,10 +448,154 @@ public class ZKDiscoveryService implements DiscoveryService, DiscoveryServiceCli
    * @return array of bytes representing an instance of <code>discoverable</code>
    */
   private static byte[] encode(Discoverable discoverable) {
-    return new GsonBuilder().registerTypeAdapter(DiscoverableWrapper.class, new DiscoverableCodec())
-      .create()
-      .toJson(discoverable, DiscoverableWrapper.class)
-      .getBytes(Charsets.UTF_8);
+    return GSON.toJson(discoverable, DiscoverableWrapper.class).getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Callback for the node creation of a registration, which completes the registration future.
+   */
+  private final class RegisterCallback implements FutureCallback<String> {
+
+    private final Discoverable discoverable;
+    private final DiscoveryCancellable cancellable;
+    private final SettableFuture<Cancellable> completion;
+    private final long startTime;
+    private int failureCount;
+
+    RegisterCallback(Discoverable discoverable) {
+      this.discoverable = discoverable;
+      this.cancellable = new DiscoveryCancellable(discoverable);
+      this.completion = SettableFuture.create();
+      this.startTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void onSuccess(String result) {
+      // Set the sequence node path to cancellable for future cancellation.
+      cancellable.setPath(result);
+      lock.lock();
+      try {
+        discoverables.put(discoverable, cancellable);
+      } finally {
+        lock.unlock();
+      }
+      LOG.debug("Service registered: {} {}", discoverable, result);
+      completion.set(cancellable);
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+      if (t instanceof KeeperException.NodeExistsException) {
+        handleRegisterFailure(this, t);
+      } else {
+        LOG.warn("Failed to register: {}", discoverable, t);
+        completion.setException(t);
+      }
+    }
+
+    /**
+     * Retries the node creation after a delay given by the retry strategy.
+     */
+    void retry(Throwable failureCause) {
+      String path = getNodePath(discoverable);
+      long delay = retryStrategy.nextRetry(++failureCount, startTime, RetryStrategy.OperationType.CREATE, path);
+      if (delay < 0) {
+        LOG.error("Give up registration for {}.", discoverable);
+        completion.setException(failureCause);
+        return;
+      }
+      retryExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          Futures.addCallback(doRegister(discoverable), RegisterCallback.this, Threads.SAME_THREAD_EXECUTOR);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Watches the children of a service node and keeps a live view of the {@link Discoverable} of the service.
+   * Only data of newly added children are fetched on each change. Decoded {@link Discoverable} are cached by node
+   * name, which is safe since the node name is derived from the node content.
+   */
+  private final class ServiceWatcher implements ZKOperations.ChildrenCallback, Iterable<Discoverable> {
+
+    private final String serviceBase;
+    // Guarded by this.
+    private final Map<String, Discoverable> nodes = Maps.newHashMap();
+    // Guarded by this.
+    private List<String> children = ImmutableList.of();
+    // Immutable snapshot of the latest detected set of Discoverable.
+    private volatile Iterable<Discoverable> discoverables = ImmutableList.of();
+
+    ServiceWatcher(String serviceBase) {
+      this.serviceBase = serviceBase;
+    }
+
+    @Override
+    public void updated(NodeChildren nodeChildren) {
+      List<String> added = Lists.newArrayList();
+      synchronized (this) {
+        children = nodeChildren.getChildren();
+        for (String child : children) {
+          if (!nodes.containsKey(child)) {
+            added.add(child);
+          }
+        }
+        if (added.isEmpty()) {
+          refresh();
+          return;
+        }
+      }
+
+      // Fetch data of the added children nodes in parallel.
+      final List<String> fetchNodes = added;
+      List<OperationFuture<NodeData>> dataFutures = Lists.newArrayListWithCapacity(fetchNodes.size());
+      for (String child : fetchNodes) {
+        dataFutures.add(zkClient.getData(serviceBase + "/" + child));
+      }
+
+      // Update the service map when all fetching are done.
+      final ListenableFuture<List<NodeData>> fetchFuture = Futures.successfulAsList(dataFutures);
+      fetchFuture.addListener(new Runnable() {
+        @Override
+        public void run() {
+          List<NodeData> result = Futures.getUnchecked(fetchFuture);
+          synchronized (ServiceWatcher.this) {
+            for (int i = 0; i < fetchNodes.size(); i++) {
+              // For successful fetch, decode the content. Failure means the node is gone.
+              NodeData nodeData = result.get(i);
+              Discoverable discoverable = nodeData == null ? null : decode(nodeData.getData());
+              if (discoverable != null) {
+                nodes.put(fetchNodes.get(i), discoverable);
+              }
+            }
+            refresh();
+          }
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    }
+
+    @Override
+    public Iterator<Discoverable> iterator() {
+      return discoverables.iterator();
+    }
+
+    /**
+     * Drops nodes that are removed and publishes a new snapshot based on the latest children. Must be called while
+     * holding the lock.
+     */
+    private void refresh() {
+      nodes.keySet().retainAll(children);
+      ImmutableList.Builder<Discoverable> builder = ImmutableList.builder();
+      for (String child : children) {
+        Discoverable discoverable = nodes.get(child);
+        if (discoverable != null) {
+          builder.add(discoverable);
+        }
+      }
+      discoverables = builder.build();
+    }
   }
 
   /**
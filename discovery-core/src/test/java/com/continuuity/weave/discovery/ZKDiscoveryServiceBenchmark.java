@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.discovery;
+
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.continuuity.weave.zookeeper.ForwardingZKClient;
+import com.continuuity.weave.zookeeper.NodeChildren;
+import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.OperationFuture;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKClientService;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.Watcher;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark for watching a service with many instances in {@link ZKDiscoveryService} against an
+ * {@link InMemoryZKServer}. Each operation un-registers one instance and registers it again, which are two membership
+ * changes, and waits until the watching client sees both of them. The number of zookeeper reads done by the watching
+ * client and the number of membership changes are reported as the {@code reads} and {@code changes} secondary
+ * results, the ratio of which is the number of reads per membership change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZKDiscoveryServiceBenchmark {
+
+  private static final String SERVICE = "benchmark";
+
+  @Param({"10", "100", "500"})
+  private int instances;
+
+  private InMemoryZKServer zkServer;
+  private ZKClientService zkClient;
+  private ReadCountingZKClient readCountingClient;
+  private DiscoveryService discoveryService;
+  private Iterable<Discoverable> discoverables;
+  private List<Cancellable> cancellables;
+
+  /**
+   * Counters reported by JMH for each iteration.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    public long reads;
+    public long changes;
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+    zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+
+    discoveryService = new ZKDiscoveryService(zkClient);
+    List<Discoverable> endpoints = Lists.newArrayList();
+    for (int i = 0; i < instances; i++) {
+      endpoints.add(createDiscoverable(i));
+    }
+    cancellables = discoveryService.registerAll(endpoints).get();
+
+    readCountingClient = new ReadCountingZKClient(zkClient);
+    discoverables = new ZKDiscoveryService(readCountingClient).discover(SERVICE);
+    waitForSize(instances);
+  }
+
+  @TearDown
+  public void teardown() {
+    zkClient.stopAndWait();
+    zkServer.stopAndWait();
+  }
+
+  @Benchmark
+  public int flap(Counters counters) throws Exception {
+    long startReads = readCountingClient.reads.get();
+    cancellables.get(0).cancel();
+    waitForSize(instances - 1);
+    cancellables.set(0, discoveryService.register(createDiscoverable(0)));
+    waitForSize(instances);
+    counters.reads += readCountingClient.reads.get() - startReads;
+    counters.changes += 2;
+    return instances;
+  }
+
+  private void waitForSize(int size) throws InterruptedException {
+    while (Iterables.size(discoverables) != size) {
+      TimeUnit.MICROSECONDS.sleep(100);
+    }
+  }
+
+  private Discoverable createDiscoverable(final int port) {
+    return new Discoverable() {
+      @Override
+      public String getName() {
+        return SERVICE;
+      }
+
+      @Override
+      public InetSocketAddress getSocketAddress() {
+        return new InetSocketAddress("localhost", port);
+      }
+    };
+  }
+
+  /**
+   * A {@link ZKClient} that counts getData and getChildren calls.
+   */
+  private static final class ReadCountingZKClient extends ForwardingZKClient {
+
+    private final AtomicLong reads = new AtomicLong();
+
+    ReadCountingZKClient(ZKClient delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public OperationFuture<NodeChildren> getChildren(String path) {
+      reads.incrementAndGet();
+      return super.getChildren(path);
+    }
+
+    @Override
+    public OperationFuture<NodeChildren> getChildren(String path, Watcher watcher) {
+      reads.incrementAndGet();
+      return super.getChildren(path, watcher);
+    }
+
+    @Override
+    public OperationFuture<NodeData> getData(String path) {
+      reads.incrementAndGet();
+      return super.getData(path);
+    }
+
+    @Override
+    public OperationFuture<NodeData> getData(String path, Watcher watcher) {
+      reads.incrementAndGet();
+      return super.getData(path, watcher);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().include(ZKDiscoveryServiceBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -65,7 +65,11 @@ public class ZKDiscoveryServiceTest {
   }
 
   private Cancellable register(DiscoveryService service, final String name, final String host, final int port) {
-    return service.register(new Discoverable() {
+    return service.register(createDiscoverable(name, host, port));
+  }
+
+  private Discoverable createDiscoverable(final String name, final String host, final int port) {
+    return new Discoverable() {
       @Override
       public String getName() {
         return name;
@@ -75,7 +79,7 @@ public class ZKDiscoveryServiceTest {
       public InetSocketAddress getSocketAddress() {
         return new InetSocketAddress(host, port);
       }
-    });
+    };
   }
 
 
@@ -248,4 +252,32 @@ public class ZKDiscoveryServiceTest {
     Assert.assertTrue(waitTillExpected(0, discoveryServiceClient.discover("service2")));
     Assert.assertTrue(waitTillExpected(0, discoveryServiceClient.discover("service3")));
   }
+
+  @Test
+  public void registerAll() throws Exception {
+    DiscoveryService discoveryService = new ZKDiscoveryService(zkClient);
+    DiscoveryServiceClient discoveryServiceClient = new ZKDiscoveryService(zkClient);
+
+    List<Discoverable> endpoints = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      endpoints.add(createDiscoverable("registerAll", "localhost", i));
+    }
+
+    List<Cancellable> cancellables = discoveryService.registerAll(endpoints).get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(10, cancellables.size());
+
+    Iterable<Discoverable> discoverables = discoveryServiceClient.discover("registerAll");
+    Assert.assertTrue(waitTillExpected(10, discoverables));
+
+    // Register asynchronously on top of the batch
+    Cancellable cancellable = discoveryService.registerAsync(createDiscoverable("registerAll", "localhost", 10))
+                                              .get(5, TimeUnit.SECONDS);
+    Assert.assertTrue(waitTillExpected(11, discoverables));
+
+    cancellable.cancel();
+    for (Cancellable c : cancellables) {
+      c.cancel();
+    }
+    Assert.assertTrue(waitTillExpected(0, discoverables));
+  }
 }
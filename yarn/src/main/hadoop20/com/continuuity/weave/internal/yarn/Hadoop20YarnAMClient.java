@@ -189,6 +189,12 @@ public final class Hadoop20YarnAMClient extends AbstractIdleService implements Y
     }
   }
 
+  @Override
+  public synchronized void releaseContainer(YarnContainerInfo containerInfo) {
+    Container container = containerInfo.getContainer();
+    amrmClient.releaseAssignedContainer(container.getId());
+  }
+
   private Resource adjustCapability(Resource resource) {
     int cores = YarnUtils.getVirtualCores(resource);
     int updatedCores = Math.max(Math.min(cores, YarnUtils.getVirtualCores(maxCapability)),
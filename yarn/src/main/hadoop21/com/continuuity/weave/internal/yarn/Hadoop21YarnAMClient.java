@@ -185,6 +185,12 @@ public final class Hadoop21YarnAMClient extends AbstractIdleService implements Y
     }
   }
 
+  @Override
+  public synchronized void releaseContainer(YarnContainerInfo containerInfo) {
+    Container container = containerInfo.getContainer();
+    amrmClient.releaseAssignedContainer(container.getId());
+  }
+
   private Resource adjustCapability(Resource resource) {
     int cores = resource.getVirtualCores();
     int updatedCores = Math.min(resource.getVirtualCores(), maxCapability.getVirtualCores());
@@ -33,6 +33,7 @@ import com.continuuity.weave.internal.Constants;
 import com.continuuity.weave.internal.DefaultWeaveRunResources;
 import com.continuuity.weave.internal.EnvKeys;
 import com.continuuity.weave.internal.ProcessLauncher;
+import com.continuuity.weave.internal.WeaveContainerController;
 import com.continuuity.weave.internal.WeaveContainerLauncher;
 import com.continuuity.weave.internal.ZKServiceDecorator;
 import com.continuuity.weave.internal.json.LocalFileCodec;
@@ -52,14 +53,13 @@ import com.continuuity.weave.zookeeper.ZKClient;
 import com.continuuity.weave.zookeeper.ZKClients;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
@@ -84,6 +84,7 @@ import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.yarn.api.records.ContainerId;
 import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.util.Records;
 import org.apache.zookeeper.CreateMode;
 import org.slf4j.Logger;
@@ -102,9 +103,11 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -117,6 +120,18 @@ public final class ApplicationMasterService implements Service {
   // Copied from org.apache.hadoop.yarn.security.AMRMTokenIdentifier.KIND_NAME since it's missing in Hadoop-2.0
   private static final Text AMRM_TOKEN_KIND_NAME = new Text("YARN_AM_RM_TOKEN");
 
+  // Interval between allocate calls while there are outstanding container requests.
+  private static final long FAST_ALLOCATE_INTERVAL_MILLIS = 100;
+
+  // Maximum number of containers being launched at the same time.
+  private static final int MAX_LAUNCH_THREADS = 20;
+
+  // Maximum time to wait for container launches in progress when stopping.
+  private static final long LAUNCH_TERMINATION_TIMEOUT_SECONDS = 30;
+
+  // Maximum number of times in a row a new container is requested for a runnable that failed to launch.
+  private static final int MAX_LAUNCH_RETRIES = 3;
+
   private final RunId runId;
   private final ZKClient zkClient;
   private final WeaveSpecification weaveSpec;
@@ -131,10 +146,19 @@ public final class ApplicationMasterService implements Service {
   private final String jvmOpts;
   private final int reservedMemory;
   private final EventHandler eventHandler;
+  private final long idleAllocateInterval;
+  private final Semaphore allocateSignal;
+  // Runnables that have had all instances launched at least once. Only accessed from the allocation loop thread.
+  private final Set<String> startedRunnables;
 
   private EmbeddedKafkaServer kafkaServer;
   private Queue<RunnableContainerRequest> runnableContainerRequests;
   private ExecutorService instanceChangeExecutor;
+  private LaunchingContainers launchingContainers;
+  private List<LocalFile> localizeFiles;
+  private Map<String, String> launchEnvironment;
+  // Map from runnable name to the ZKClient namespaced for it. Only accessed from the allocation loop thread.
+  private final Map<String, ZKClient> runnableZKClients = Maps.newHashMap();
 
   public ApplicationMasterService(RunId runId, ZKClient zkClient, File weaveSpecFile, Configuration conf,
                                   YarnAMClientFactory amClientFactory) throws Exception {
@@ -162,6 +186,12 @@ public final class ApplicationMasterService implements Service {
     runningContainers = initRunningContainers(amClient.getContainerId(), amClient.getHost());
     trackerService = new TrackerService(runningContainers.getResourceReport(), amClient.getHost());
     eventHandler = createEventHandler(weaveSpec);
+
+    // When there is nothing to request, heartbeat at the same rate as the RM gets updates from node managers.
+    idleAllocateInterval = conf.getLong(YarnConfiguration.RM_NM_HEARTBEAT_INTERVAL_MS,
+                                        YarnConfiguration.DEFAULT_RM_NM_HEARTBEAT_INTERVAL_MS);
+    allocateSignal = new Semaphore(0);
+    startedRunnables = Sets.newHashSet();
   }
 
   private String loadJvmOptions() throws IOException {
@@ -241,6 +271,10 @@ public final class ApplicationMasterService implements Service {
     eventHandler.initialize(new BasicEventHandlerContext(weaveSpec.getEventHandler()));
 
     instanceChangeExecutor = Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("instanceChanger"));
+    launchingContainers = new LaunchingContainers(
+      runningContainers,
+      Executors.newFixedThreadPool(MAX_LAUNCH_THREADS, Threads.createDaemonThreadFactory("container-launcher-%d")),
+      MAX_LAUNCH_RETRIES, createLaunchFailureHandler());
 
     kafkaServer = new EmbeddedKafkaServer(new File(Constants.Files.KAFKA), generateKafkaConfig());
 
@@ -265,6 +299,15 @@ public final class ApplicationMasterService implements Service {
     kafkaServer.startAndWait();
     LOG.info("Kafka server started");
 
+    // Same for all containers, hence only computed once.
+    localizeFiles = getLocalizeFiles();
+    launchEnvironment = ImmutableMap.of(
+      EnvKeys.WEAVE_APP_RUN_ID, runId.getId(),
+      EnvKeys.WEAVE_APP_NAME, weaveSpec.getName(),
+      EnvKeys.WEAVE_ZK_CONNECT, zkClient.getConnectString(),
+      EnvKeys.WEAVE_LOG_KAFKA_ZK, getKafkaZKConnect()
+    );
+
     runnableContainerRequests = initContainerRequests();
   }
 
@@ -282,6 +325,13 @@ public final class ApplicationMasterService implements Service {
 
     instanceChangeExecutor.shutdownNow();
 
+    // Containers not yet launched are skipped, while the launches in progress are waited for, so that their
+    // containers are stopped below instead of being left running.
+    if (!launchingContainers.stop(LAUNCH_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      LOG.warn("Container launches not completed in {} seconds. They will be stopped once launched.",
+               LAUNCH_TERMINATION_TIMEOUT_SECONDS);
+    }
+
     // For checking if all containers are stopped.
     final Set<String> ids = Sets.newHashSet(runningContainers.getContainerIds());
     YarnAMClient.AllocateHandler handler = new YarnAMClient.AllocateHandler() {
@@ -298,7 +348,8 @@ public final class ApplicationMasterService implements Service {
       }
     };
 
-    runningContainers.stopAll();
+    // Wait for all containers to stop.
+    Futures.getUnchecked(runningContainers.stopAll());
 
     // Poll for 5 seconds to wait for containers to stop.
     int count = 0;
@@ -363,8 +414,7 @@ public final class ApplicationMasterService implements Service {
 
   private void doRun() throws Exception {
     // The main loop
-    Map.Entry<Resource, ? extends Collection<RuntimeSpecification>> currentRequest = null;
-    final Queue<ProvisionRequest> provisioning = Lists.newLinkedList();
+    final List<ProvisionRequest> provisioning = Lists.newLinkedList();
 
     YarnAMClient.AllocateHandler allocateHandler = new YarnAMClient.AllocateHandler() {
       @Override
@@ -384,32 +434,97 @@ public final class ApplicationMasterService implements Service {
       amClient.allocate(0.0f, allocateHandler);
 
       // Looks for containers requests.
-      if (provisioning.isEmpty() && runnableContainerRequests.isEmpty() && runningContainers.isEmpty()) {
+      if (provisioning.isEmpty() && runnableContainerRequests.isEmpty() && runningContainers.isEmpty()
+        && launchingContainers.isEmpty()) {
         LOG.info("All containers completed. Shutting down application master.");
         break;
       }
 
-      // If nothing is in provisioning, and no pending request, move to next one
-      while (provisioning.isEmpty() && currentRequest == null && !runnableContainerRequests.isEmpty()) {
-        currentRequest = runnableContainerRequests.peek().takeRequest();
-        if (currentRequest == null) {
-          // All different types of resource request from current order is done, move to next one
-          // TODO: Need to handle order type as well
-          runnableContainerRequests.poll();
+      checkStarted();
+
+      // Sends out requests of all runnables that have the runnables in the previous order started or completed,
+      // based on the order type, so that independent runnables are provisioned at the same time.
+      Set<String> activeRunnables = getActiveRunnables(provisioning);
+      Iterator<RunnableContainerRequest> iterator = runnableContainerRequests.iterator();
+      while (iterator.hasNext()) {
+        RunnableContainerRequest request = iterator.next();
+        if (request.canProvision(startedRunnables, activeRunnables)) {
+          iterator.remove();
+          for (Map.Entry<Resource, Collection<RuntimeSpecification>> entry : request.getRequests().entrySet()) {
+            addContainerRequests(entry.getKey(), entry.getValue(), provisioning);
+          }
         }
       }
-      // Nothing in provision, makes the next batch of provision request
-      if (provisioning.isEmpty() && currentRequest != null) {
-        addContainerRequests(currentRequest.getKey(), currentRequest.getValue(), provisioning);
-        currentRequest = null;
-      }
 
       nextTimeoutCheck = checkProvisionTimeout(nextTimeoutCheck);
 
       if (isRunning()) {
-        TimeUnit.SECONDS.sleep(1);
+        // Heartbeat fast while there are outstanding requests, otherwise back off to the idle interval.
+        // New container requests wake it up immediately.
+        boolean outstanding = !provisioning.isEmpty() || !runnableContainerRequests.isEmpty()
+                              || !launchingContainers.isEmpty();
+        long interval = outstanding ? FAST_ALLOCATE_INTERVAL_MILLIS : idleAllocateInterval;
+        if (allocateSignal.tryAcquire(interval, TimeUnit.MILLISECONDS)) {
+          allocateSignal.drainPermits();
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks runnables that have all the expected instances launched as started. Launches that are still in progress
+   * are not counted, so that runnables depending on them are not started on instances that might fail to launch.
+   */
+  private void checkStarted() {
+    for (String runnableName : weaveSpec.getRunnables().keySet()) {
+      if (startedRunnables.contains(runnableName)) {
+        continue;
+      }
+      int expected = expectedContainers.getExpected(runnableName);
+      if (runningContainers.getLaunchedCount(runnableName) >= expected) {
+        startedRunnables.add(runnableName);
+        long provisionTime = System.currentTimeMillis() - expectedContainers.getRequestTime(runnableName);
+        LOG.info("Runnable {} fully provisioned with {} instances in {} ms.",
+                 new Object[] {runnableName, expected, provisionTime});
+      }
+    }
+  }
+
+  /**
+   * Returns names of runnables that have containers running, launching, requested, or waiting to be requested.
+   */
+  private Set<String> getActiveRunnables(Collection<ProvisionRequest> provisioning) {
+    // Launching runnables are collected first, as a failed launch queues a new request before it is removed.
+    Set<String> activeRunnables = Sets.newHashSet(launchingContainers.getLaunchingRunnables());
+    activeRunnables.addAll(runningContainers.countAll().keySet());
+    for (ProvisionRequest request : provisioning) {
+      activeRunnables.add(request.getRuntimeSpec().getName());
+    }
+    for (RunnableContainerRequest request : runnableContainerRequests) {
+      activeRunnables.addAll(request.getRunnableNames());
+    }
+    return activeRunnables;
+  }
+
+  /**
+   * Returns number of containers requested but not yet provisioned for the given runnable.
+   */
+  private int getPendingCount(String runnableName, Collection<ProvisionRequest> provisioning) {
+    int count = 0;
+    for (ProvisionRequest request : provisioning) {
+      if (request.getRuntimeSpec().getName().equals(runnableName)) {
+        count += request.getPendingCount();
       }
     }
+    return count;
+  }
+
+  /**
+   * Adds a {@link RunnableContainerRequest} and wakes up the allocation loop to process it.
+   */
+  private void addRunnableContainerRequest(RunnableContainerRequest request) {
+    runnableContainerRequests.add(request);
+    allocateSignal.release();
   }
 
   /**
@@ -424,10 +539,9 @@ public final class ApplicationMasterService implements Service {
     }
 
     for (Multiset.Entry<String> entry : restartRunnables.entrySet()) {
+      // One request per runnable is enough, as the number of containers is computed when the request is sent.
       LOG.info("Re-request container for {} with {} instances.", entry.getElement(), entry.getCount());
-      for (int i = 0; i < entry.getCount(); i++) {
-        runnableContainerRequests.add(createRunnableContainerRequest(entry.getElement()));
-      }
+      addRunnableContainerRequest(createRunnableContainerRequest(entry.getElement()));
     }
 
     // For all runnables that needs to re-request for containers, update the expected count timestamp
@@ -498,8 +612,10 @@ public final class ApplicationMasterService implements Service {
 
   private Queue<RunnableContainerRequest> initContainerRequests() {
     // Orderly stores container requests.
-    Queue<RunnableContainerRequest> requests = Lists.newLinkedList();
+    // It's a concurrent queue as requests for changing instances are added from a different thread.
+    Queue<RunnableContainerRequest> requests = new ConcurrentLinkedQueue<RunnableContainerRequest>();
     // For each order in the weaveSpec, create container request for each runnable.
+    Set<String> predecessors = ImmutableSet.of();
     for (WeaveSpecification.Order order : weaveSpec.getOrders()) {
       // Group container requests based on resource requirement.
       ImmutableMultimap.Builder<Resource, RuntimeSpecification> builder = ImmutableMultimap.builder();
@@ -508,7 +624,8 @@ public final class ApplicationMasterService implements Service {
         Resource capability = createCapability(runtimeSpec.getResourceSpecification());
         builder.put(capability, runtimeSpec);
       }
-      requests.add(new RunnableContainerRequest(order.getType(), builder.build()));
+      requests.add(new RunnableContainerRequest(order.getType(), predecessors, builder.build()));
+      predecessors = order.getNames();
     }
     return requests;
   }
@@ -518,15 +635,16 @@ public final class ApplicationMasterService implements Service {
    */
   private void addContainerRequests(Resource capability,
                                     Collection<RuntimeSpecification> runtimeSpecs,
-                                    Queue<ProvisionRequest> provisioning) {
+                                    Collection<ProvisionRequest> provisioning) {
     for (RuntimeSpecification runtimeSpec : runtimeSpecs) {
       String name = runtimeSpec.getName();
-      int newContainers = expectedContainers.getExpected(name) - runningContainers.count(name);
+      int newContainers = expectedContainers.getExpected(name) - runningContainers.count(name)
+                          - getPendingCount(name, provisioning);
       if (newContainers > 0) {
         // TODO: Allow user to set priority?
-        LOG.info("Request {} container with capability {}", newContainers, capability);
+        LOG.info("Request {} container with capability {} for {}", new Object[] {newContainers, capability, name});
         String requestId = amClient.addContainerRequest(capability, newContainers).setPriority(0).apply();
-        provisioning.add(new ProvisionRequest(runtimeSpec, requestId, newContainers));
+        provisioning.add(new ProvisionRequest(runtimeSpec, capability, requestId, newContainers));
       }
     }
   }
@@ -535,11 +653,14 @@ public final class ApplicationMasterService implements Service {
    * Launches runnables in the provisioned containers.
    */
   private void launchRunnable(List<ProcessLauncher<YarnContainerInfo>> launchers,
-                              Queue<ProvisionRequest> provisioning) {
+                              Collection<ProvisionRequest> provisioning) {
     for (ProcessLauncher<YarnContainerInfo> processLauncher : launchers) {
       LOG.info("Got container {}", processLauncher.getContainerInfo().getId());
-      ProvisionRequest provisionRequest = provisioning.peek();
+      YarnContainerInfo containerInfo = processLauncher.getContainerInfo();
+      ProvisionRequest provisionRequest = ProvisionRequest.findBestMatch(provisioning, containerInfo.getMemoryMB(),
+                                                                         containerInfo.getVirtualCores());
       if (provisionRequest == null) {
+        LOG.warn("No outstanding request matches container {}.", processLauncher.getContainerInfo().getId());
         continue;
       }
 
@@ -548,32 +669,44 @@ public final class ApplicationMasterService implements Service {
 
       int containerCount = expectedContainers.getExpected(runnableName);
 
-      ProcessLauncher.PrepareLaunchContext launchContext = processLauncher.prepareLaunch(
-        ImmutableMap.of(
-          EnvKeys.WEAVE_APP_RUN_ID, runId.getId(),
-          EnvKeys.WEAVE_APP_NAME, weaveSpec.getName(),
-          EnvKeys.WEAVE_ZK_CONNECT, zkClient.getConnectString(),
-          EnvKeys.WEAVE_LOG_KAFKA_ZK, getKafkaZKConnect()
-        ), getLocalizeFiles(), credentials
-      );
+      ProcessLauncher.PrepareLaunchContext launchContext = processLauncher.prepareLaunch(launchEnvironment,
+                                                                                         localizeFiles, credentials);
+
+      ZKClient runnableZKClient = runnableZKClients.get(runnableName);
+      if (runnableZKClient == null) {
+        runnableZKClient = ZKClients.namespace(zkClient, getZKNamespace(runnableName));
+        runnableZKClients.put(runnableName, runnableZKClient);
+      }
 
       WeaveContainerLauncher launcher = new WeaveContainerLauncher(
-        weaveSpec.getRunnables().get(runnableName), launchContext,
-        ZKClients.namespace(zkClient, getZKNamespace(runnableName)),
+        weaveSpec.getRunnables().get(runnableName), launchContext, runnableZKClient,
         containerCount, jvmOpts, reservedMemory);
 
-      runningContainers.start(runnableName, processLauncher.getContainerInfo(), launcher);
+      // The container is launched from the launch executor, so that NM calls don't block the heartbeat.
+      launchingContainers.launch(runnableName, containerInfo, launcher);
 
       // Need to call complete to workaround bug in YARN AMRMClient
       if (provisionRequest.containerAcquired()) {
         amClient.completeContainerRequest(provisionRequest.getRequestId());
+        provisioning.remove(provisionRequest);
       }
+    }
+  }
 
-      if (expectedContainers.getExpected(runnableName) == runningContainers.count(runnableName)) {
-        LOG.info("Runnable " + runnableName + " fully provisioned with " + containerCount + " instances.");
-        provisioning.poll();
+  /**
+   * Creates a handler for containers that failed to launch. The container is released, and a new one is requested
+   * unless the runnable failed to launch too many times in a row.
+   */
+  private LaunchingContainers.FailureHandler createLaunchFailureHandler() {
+    return new LaunchingContainers.FailureHandler() {
+      @Override
+      public void failed(String runnableName, YarnContainerInfo containerInfo, boolean retry) {
+        amClient.releaseContainer(containerInfo);
+        if (retry && isRunning()) {
+          addRunnableContainerRequest(createRunnableContainerRequest(runnableName));
+        }
       }
-    }
+    };
   }
 
   private List<LocalFile> getLocalizeFiles() {
@@ -712,7 +845,7 @@ public final class ApplicationMasterService implements Service {
               }
             } else {
               // Increase the number of instances
-              runnableContainerRequests.add(createRunnableContainerRequest(runnableName));
+              addRunnableContainerRequest(createRunnableContainerRequest(runnableName));
             }
           } finally {
             runningContainers.sendToRunnable(runnableName, message, completion);
@@ -726,18 +859,21 @@ public final class ApplicationMasterService implements Service {
     };
   }
 
-  private RunnableContainerRequest createRunnableContainerRequest(final String runnableName) {
+  private RunnableContainerRequest createRunnableContainerRequest(String runnableName) {
     // Find the current order of the given runnable in order to create a RunnableContainerRequest.
-    WeaveSpecification.Order order = Iterables.find(weaveSpec.getOrders(), new Predicate<WeaveSpecification.Order>() {
-      @Override
-      public boolean apply(WeaveSpecification.Order input) {
-        return (input.getNames().contains(runnableName));
+    WeaveSpecification.Order order = null;
+    for (WeaveSpecification.Order o : weaveSpec.getOrders()) {
+      if (o.getNames().contains(runnableName)) {
+        order = o;
+        break;
       }
-    });
+    }
+    Preconditions.checkState(order != null, "No order found for runnable %s.", runnableName);
+    Set<String> predecessors = RunnableContainerRequest.getPredecessors(weaveSpec.getOrders(), runnableName);
 
     RuntimeSpecification runtimeSpec = weaveSpec.getRunnables().get(runnableName);
     Resource capability = createCapability(runtimeSpec.getResourceSpecification());
-    return new RunnableContainerRequest(order.getType(), ImmutableMultimap.of(capability, runtimeSpec));
+    return new RunnableContainerRequest(order.getType(), predecessors, ImmutableMultimap.of(capability, runtimeSpec));
   }
 
   private Runnable getMessageCompletion(final String messageId, final SettableFuture<String> future) {
@@ -56,6 +56,14 @@ final class ExpectedContainers {
     return expectedCounts.get(runnable).getCount();
   }
 
+  /**
+   * @return The timestamp when the expected count of the given runnable was last updated, which is when containers
+   *         for it were last requested.
+   */
+  synchronized long getRequestTime(String runnable) {
+    return expectedCounts.get(runnable).getTimestamp();
+  }
+
   synchronized Map<String, ExpectedCount> getAll() {
     return ImmutableMap.copyOf(expectedCounts);
   }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.WeaveContainerController;
+import com.continuuity.weave.internal.WeaveContainerLauncher;
+import com.continuuity.weave.internal.yarn.YarnContainerInfo;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Launches containers through an executor, so that calls to node managers don't block the allocation loop, and
+ * keeps track of the launches in progress. A container that failed to launch is handed to a {@link FailureHandler},
+ * together with whether a new container should be requested, which stops after too many failures in a row.
+ */
+final class LaunchingContainers {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LaunchingContainers.class);
+
+  /**
+   * Handles a container that failed to launch.
+   */
+  interface FailureHandler {
+
+    /**
+     * Called from the launching thread when a container failed to launch.
+     *
+     * @param runnableName Name of the runnable that failed to launch.
+     * @param containerInfo The container allocated for the runnable, which is still held by the application.
+     * @param retry {@code true} if a new container should be requested for the runnable.
+     */
+    void failed(String runnableName, YarnContainerInfo containerInfo, boolean retry);
+  }
+
+  private final RunningContainers runningContainers;
+  private final ExecutorService launchExecutor;
+  private final int maxRetries;
+  private final FailureHandler failureHandler;
+  // Names of runnables with a launch in progress, one entry per container.
+  private final Multiset<String> launching;
+  // Number of launches failed in a row for each runnable.
+  private final Multiset<String> failures;
+
+  /**
+   * @param maxRetries Maximum number of times in a row a new container is requested for a runnable failed to launch.
+   */
+  LaunchingContainers(RunningContainers runningContainers, ExecutorService launchExecutor,
+                      int maxRetries, FailureHandler failureHandler) {
+    this.runningContainers = runningContainers;
+    this.launchExecutor = launchExecutor;
+    this.maxRetries = maxRetries;
+    this.failureHandler = failureHandler;
+    this.launching = ConcurrentHashMultiset.create();
+    this.failures = ConcurrentHashMultiset.create();
+  }
+
+  /**
+   * Launches a runnable instance in the given container.
+   *
+   * @see RunningContainers#start(String, com.continuuity.weave.internal.ContainerInfo, WeaveContainerLauncher,
+   *      java.util.concurrent.Executor)
+   */
+  ListenableFuture<WeaveContainerController> launch(String runnableName, YarnContainerInfo containerInfo,
+                                                    WeaveContainerLauncher launcher) {
+    launching.add(runnableName);
+    return track(runnableName, containerInfo,
+                 runningContainers.start(runnableName, containerInfo, launcher, launchExecutor));
+  }
+
+  /**
+   * Same as {@link #launch(String, YarnContainerInfo, WeaveContainerLauncher)}, with the launching done by the given
+   * {@link RunningContainers.InstanceLauncher}.
+   */
+  ListenableFuture<WeaveContainerController> launch(String runnableName, YarnContainerInfo containerInfo,
+                                                    RunningContainers.InstanceLauncher launcher) {
+    launching.add(runnableName);
+    return track(runnableName, containerInfo,
+                 runningContainers.start(runnableName, containerInfo, launcher, launchExecutor));
+  }
+
+  /**
+   * Returns names of runnables that have a launch in progress.
+   */
+  Set<String> getLaunchingRunnables() {
+    return ImmutableSet.copyOf(launching.elementSet());
+  }
+
+  boolean isEmpty() {
+    return launching.isEmpty();
+  }
+
+  /**
+   * Stops launching containers and waits for the launches in progress to complete. Containers not yet launched are
+   * skipped, while the ones that complete launching after this call are stopped by {@link RunningContainers}.
+   *
+   * @return {@code true} if all launches completed before the timeout.
+   */
+  boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+    runningContainers.stopLaunching();
+    launchExecutor.shutdown();
+    return launchExecutor.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * Returns a future that completes like the given one, after the launch is no longer tracked.
+   */
+  private ListenableFuture<WeaveContainerController> track(final String runnableName,
+                                                           final YarnContainerInfo containerInfo,
+                                                           ListenableFuture<WeaveContainerController> future) {
+    final long startTime = System.currentTimeMillis();
+    final SettableFuture<WeaveContainerController> result = SettableFuture.create();
+    Futures.addCallback(future, new FutureCallback<WeaveContainerController>() {
+      @Override
+      public void onSuccess(WeaveContainerController controller) {
+        failures.setCount(runnableName, 0);
+        launching.remove(runnableName);
+        LOG.info("Container {} of {} launched in {} ms.",
+                 new Object[] {containerInfo.getId(), runnableName, System.currentTimeMillis() - startTime});
+        result.set(controller);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        int failureCount = failures.add(runnableName, 1) + 1;
+        boolean retry = failureCount <= maxRetries;
+        LOG.error("Failed to launch container {} of {} after {} ms. {} failure(s) in a row.",
+                  new Object[] {containerInfo.getId(), runnableName,
+                                System.currentTimeMillis() - startTime, failureCount, t});
+        if (!retry) {
+          LOG.error("Not requesting a new container for {}, as it failed to launch {} times in a row.",
+                    runnableName, failureCount);
+        }
+        try {
+          failureHandler.failed(runnableName, containerInfo, retry);
+        } finally {
+          // Removed after the handler, so that a new request made by it is seen before the launch is gone.
+          launching.remove(runnableName);
+          result.setException(t);
+        }
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return result;
+  }
+}
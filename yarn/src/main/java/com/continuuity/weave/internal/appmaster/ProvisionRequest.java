@@ -16,17 +16,48 @@
 package com.continuuity.weave.internal.appmaster;
 
 import com.continuuity.weave.api.RuntimeSpecification;
+import com.continuuity.weave.yarn.utils.YarnUtils;
+import org.apache.hadoop.yarn.api.records.Resource;
 
 /**
  * Package private class to help AM to track in progress container request.
  */
 final class ProvisionRequest {
   private final RuntimeSpecification runtimeSpec;
+  private final Resource capability;
   private final String requestId;
   private int requestCount;
 
-  ProvisionRequest(RuntimeSpecification runtimeSpec, String requestId, int requestCount) {
+  /**
+   * Finds the request that best matches a container. A container is never smaller than the capability requested,
+   * but could be larger because of the scheduler rounding, hence the request with the largest capability that fits
+   * in the container is picked.
+   *
+   * @param requests The outstanding requests.
+   * @param memoryMB Memory of the container.
+   * @param virtualCores Virtual cores of the container, or {@code 0} if not known.
+   * @return The matching {@link ProvisionRequest} or {@code null} if there is none.
+   */
+  static ProvisionRequest findBestMatch(Iterable<ProvisionRequest> requests, int memoryMB, int virtualCores) {
+    ProvisionRequest result = null;
+    for (ProvisionRequest request : requests) {
+      Resource capability = request.getCapability();
+      int requestCores = YarnUtils.getVirtualCores(capability);
+      if (capability.getMemory() > memoryMB || (virtualCores > 0 && requestCores > virtualCores)) {
+        continue;
+      }
+      if (result == null || capability.getMemory() > result.getCapability().getMemory()
+        || (capability.getMemory() == result.getCapability().getMemory()
+              && requestCores > YarnUtils.getVirtualCores(result.getCapability()))) {
+        result = request;
+      }
+    }
+    return result;
+  }
+
+  ProvisionRequest(RuntimeSpecification runtimeSpec, Resource capability, String requestId, int requestCount) {
     this.runtimeSpec = runtimeSpec;
+    this.capability = capability;
     this.requestId = requestId;
     this.requestCount = requestCount;
   }
@@ -35,10 +66,21 @@ final class ProvisionRequest {
     return runtimeSpec;
   }
 
+  Resource getCapability() {
+    return capability;
+  }
+
   String getRequestId() {
     return requestId;
   }
 
+  /**
+   * @return Number of containers requested but not yet provisioned.
+   */
+  int getPendingCount() {
+    return requestCount;
+  }
+
   /**
    * Called to notify a container has been provision for this request.
    * @return {@code true} if the requested container count has been provisioned.
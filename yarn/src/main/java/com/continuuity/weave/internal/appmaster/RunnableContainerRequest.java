@@ -17,27 +17,29 @@ package com.continuuity.weave.internal.appmaster;
 
 import com.continuuity.weave.api.RuntimeSpecification;
 import com.continuuity.weave.api.WeaveSpecification;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
-import com.google.common.collect.Maps;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import org.apache.hadoop.yarn.api.records.Resource;
 
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
- * Data structure for holding set of runnable specifications based on resource capability.
+ * Data structure for holding set of runnable specifications based on resource capability, together with the
+ * runnables of the previous order that the request depends on.
  */
 final class RunnableContainerRequest {
   private final WeaveSpecification.Order.Type orderType;
-  private final Iterator<Map.Entry<Resource, Collection<RuntimeSpecification>>> requests;
+  private final Set<String> predecessors;
+  private final Multimap<Resource, RuntimeSpecification> requests;
 
-  RunnableContainerRequest(WeaveSpecification.Order.Type orderType,
+  RunnableContainerRequest(WeaveSpecification.Order.Type orderType, Set<String> predecessors,
                            Multimap<Resource, RuntimeSpecification> requests) {
     this.orderType = orderType;
-    this.requests = requests.asMap().entrySet().iterator();
+    this.predecessors = ImmutableSet.copyOf(predecessors);
+    this.requests = requests;
   }
 
   WeaveSpecification.Order.Type getOrderType() {
@@ -45,12 +47,62 @@ final class RunnableContainerRequest {
   }
 
   /**
-   * Remove a resource request and return it.
-   * @return The {@link Resource} and {@link Collection} of {@link RuntimeSpecification} or
-   *         {@code null} if there is no more request.
+   * Returns the names of runnables in the order right before the one containing the given runnable, or an empty set
+   * for the first order. Runnables of older orders are not included, as the order right before waited for them.
    */
-  Map.Entry<Resource, ? extends Collection<RuntimeSpecification>> takeRequest() {
-    Map.Entry<Resource, Collection<RuntimeSpecification>> next = Iterators.getNext(requests, null);
-    return next == null ? null : Maps.immutableEntry(next.getKey(), ImmutableList.copyOf(next.getValue()));
+  static Set<String> getPredecessors(List<WeaveSpecification.Order> orders, String runnableName) {
+    Set<String> predecessors = ImmutableSet.of();
+    for (WeaveSpecification.Order order : orders) {
+      if (order.getNames().contains(runnableName)) {
+        return predecessors;
+      }
+      predecessors = order.getNames();
+    }
+    throw new IllegalArgumentException("No order found for runnable " + runnableName);
+  }
+
+  /**
+   * @return Names of runnables in the order right before the order of this request.
+   */
+  Set<String> getPredecessors() {
+    return predecessors;
+  }
+
+  /**
+   * @return Names of runnables requested.
+   */
+  Set<String> getRunnableNames() {
+    ImmutableSet.Builder<String> names = ImmutableSet.builder();
+    for (RuntimeSpecification runtimeSpec : requests.values()) {
+      names.add(runtimeSpec.getName());
+    }
+    return names.build();
+  }
+
+  /**
+   * Tells if containers for this request can be requested. All instances of the predecessors must have been
+   * started, and for the {@link WeaveSpecification.Order.Type#COMPLETED} order type, the predecessors must not have
+   * any container running, launching or requested.
+   *
+   * @param startedRunnables Runnables that have had all instances started at least once.
+   * @param activeRunnables Runnables that have containers running, launching or requested.
+   */
+  boolean canProvision(Set<String> startedRunnables, Set<String> activeRunnables) {
+    for (String runnableName : predecessors) {
+      if (!startedRunnables.contains(runnableName)) {
+        return false;
+      }
+      if (orderType == WeaveSpecification.Order.Type.COMPLETED && activeRunnables.contains(runnableName)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return Map from resource capability to the {@link RuntimeSpecification} requesting it.
+   */
+  Map<Resource, Collection<RuntimeSpecification>> getRequests() {
+    return requests.asMap();
   }
 }
@@ -19,6 +19,7 @@ import com.continuuity.weave.api.ResourceReport;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.ServiceController;
 import com.continuuity.weave.api.WeaveRunResources;
+import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.internal.ContainerInfo;
 import com.continuuity.weave.internal.DefaultResourceReport;
 import com.continuuity.weave.internal.DefaultWeaveRunResources;
@@ -28,17 +29,17 @@ import com.continuuity.weave.internal.WeaveContainerLauncher;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.yarn.YarnContainerStatus;
 import com.google.common.base.Function;
-import com.google.common.base.Preconditions;
-import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
-import com.google.common.collect.Table;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.hadoop.yarn.api.records.ContainerState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,10 +47,12 @@ import org.slf4j.LoggerFactory;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -57,37 +60,30 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A helper class for ApplicationMasterService to keep track of running containers and to interact
- * with them.
+ * with them. Containers of each runnable are guarded by a separate lock, and no lock is held while interacting
+ * with the containers, hence operations on different runnables, as well as counting and messaging, don't block
+ * each other.
  */
 final class RunningContainers {
   private static final Logger LOG = LoggerFactory.getLogger(RunningContainers.class);
 
-  /**
-   * Function to return cardinality of a given BitSet.
-   */
-  private static final Function<BitSet, Integer> BITSET_CARDINALITY = new Function<BitSet, Integer>() {
-    @Override
-    public Integer apply(BitSet input) {
-      return input.cardinality();
-    }
-  };
-
-  // Table of <runnableName, containerId, controller>
-  private final Table<String, String, WeaveContainerController> containers;
-
-  // Map from runnableName to a BitSet, with the <instanceId> bit turned on for having an instance running.
-  private final Map<String, BitSet> runnableInstances;
+  // Map from runnableName to containers of the runnable. Entries are never removed.
+  private final ConcurrentMap<String, RunnableContainers> runnableContainers;
+  // Map from containerId to the runnableName, for containers that are launched.
+  private final ConcurrentMap<String, String> containerRunnables;
   private final DefaultResourceReport resourceReport;
+  // Runnable names in the order of start. Guarded by itself.
   private final Deque<String> startSequence;
-  private final Lock containerLock;
-  private final Condition containerChange;
+  // Stop futures of containers that finished launching after stopAll began. Guarded by itself.
+  private final List<ListenableFuture<ServiceController.State>> lateStops;
+  // Set when the AppMaster stops. Containers are not launched, or are stopped once launched, after it is set.
+  private volatile boolean stopping;
 
   RunningContainers(String appId, WeaveRunResources appMasterResources) {
-    containers = HashBasedTable.create();
-    runnableInstances = Maps.newHashMap();
+    runnableContainers = Maps.newConcurrentMap();
+    containerRunnables = Maps.newConcurrentMap();
     startSequence = Lists.newLinkedList();
-    containerLock = new ReentrantLock();
-    containerChange = containerLock.newCondition();
+    lateStops = Lists.newArrayList();
     resourceReport = new DefaultResourceReport(appId, appMasterResources);
   }
 
@@ -95,36 +91,125 @@ final class RunningContainers {
    * Returns {@code true} if there is no live container.
    */
   boolean isEmpty() {
-    containerLock.lock();
+    for (RunnableContainers containers : runnableContainers.values()) {
+      if (containers.getCount() > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Starts a runnable instance in the given container. The instance is counted as running right away, while the
+   * container is launched through the given executor so that multiple containers can be launched in parallel.
+   *
+   * @return A future that completes with the controller when the container is launched. If the launch failed,
+   *         or the AppMaster is stopping, the instance is no longer counted as running.
+   */
+  ListenableFuture<WeaveContainerController> start(String runnableName, ContainerInfo containerInfo,
+                                                   final WeaveContainerLauncher launcher, Executor launchExecutor) {
+    return start(runnableName, containerInfo, new InstanceLauncher() {
+      @Override
+      public WeaveContainerController start(RunId runId, int instanceId) {
+        return launcher.start(runId, instanceId);
+      }
+    }, launchExecutor);
+  }
+
+  /**
+   * Same as {@link #start(String, ContainerInfo, WeaveContainerLauncher, Executor)}, with the launching done by
+   * the given {@link InstanceLauncher}.
+   */
+  ListenableFuture<WeaveContainerController> start(final String runnableName, final ContainerInfo containerInfo,
+                                                   final InstanceLauncher launcher, Executor launchExecutor) {
+    final RunnableContainers containers = getRunnableContainers(runnableName);
+    final int instanceId;
+    final RunId runId;
+    containers.lock.lock();
     try {
-      return runnableInstances.isEmpty();
+      instanceId = containers.getStartInstanceId();
+      runId = containers.getRunId(instanceId);
     } finally {
-      containerLock.unlock();
+      containers.lock.unlock();
     }
+
+    final SettableFuture<WeaveContainerController> result = SettableFuture.create();
+    try {
+      launchExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          WeaveContainerController controller;
+          try {
+            if (stopping) {
+              throw new IllegalStateException("Not launching container " + containerInfo.getId() + " when stopping.");
+            }
+            controller = launcher.start(runId, instanceId);
+          } catch (Throwable t) {
+            launchFailed(containers, instanceId, result, t);
+            return;
+          }
+          started(containers, containerInfo, instanceId, controller);
+          result.set(controller);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      launchFailed(containers, instanceId, result, e);
+    }
+    return result;
   }
 
-  void start(String runnableName, ContainerInfo containerInfo, WeaveContainerLauncher launcher) {
-    containerLock.lock();
+  private void launchFailed(RunnableContainers containers, int instanceId,
+                            SettableFuture<WeaveContainerController> result, Throwable cause) {
+    containers.lock.lock();
     try {
-      int instanceId = getStartInstanceId(runnableName);
-      RunId runId = getRunId(runnableName, instanceId);
-      WeaveContainerController controller = launcher.start(runId, instanceId);
-      containers.put(runnableName, containerInfo.getId(), controller);
-
-      WeaveRunResources resources = new DefaultWeaveRunResources(instanceId,
-                                                                 containerInfo.getId(),
-                                                                 containerInfo.getVirtualCores(),
-                                                                 containerInfo.getMemoryMB(),
-                                                                 containerInfo.getHost().getHostName());
-      resourceReport.addRunResources(runnableName, resources);
+      containers.removeInstanceId(instanceId);
+    } finally {
+      containers.lock.unlock();
+    }
+    result.setException(cause);
+  }
 
+  private void started(RunnableContainers containers, ContainerInfo containerInfo,
+                       int instanceId, WeaveContainerController controller) {
+    String runnableName = containers.runnableName;
+    WeaveRunResources resources = new DefaultWeaveRunResources(instanceId,
+                                                               containerInfo.getId(),
+                                                               containerInfo.getVirtualCores(),
+                                                               containerInfo.getMemoryMB(),
+                                                               containerInfo.getHost().getHostName());
+    resourceReport.addRunResources(runnableName, resources);
+
+    synchronized (startSequence) {
       if (startSequence.isEmpty() || !runnableName.equals(startSequence.peekLast())) {
         startSequence.addLast(runnableName);
       }
-      containerChange.signalAll();
+    }
+
+    containers.lock.lock();
+    try {
+      // Checked under the lock, so that the controller is either seen by stopAll or stopped below.
+      if (!stopping) {
+        containers.controllers.put(containerInfo.getId(), controller);
+        containerRunnables.put(containerInfo.getId(), runnableName);
+        containers.change.signalAll();
+        return;
+      }
+    } finally {
+      containers.lock.unlock();
+    }
 
+    LOG.info("Stopping container {} of {} launched after stop began.", containerInfo.getId(), runnableName);
+    ListenableFuture<ServiceController.State> stopFuture = controller.stop();
+    synchronized (lateStops) {
+      lateStops.add(stopFuture);
+    }
+    resourceReport.removeRunnableResources(runnableName, containerInfo.getId());
+
+    containers.lock.lock();
+    try {
+      containers.removeInstanceId(instanceId);
     } finally {
-      containerLock.unlock();
+      containers.lock.unlock();
     }
   }
 
@@ -133,40 +218,47 @@ final class RunningContainers {
   }
 
   /**
-   * Stops and removes the last running container of the given runnable.
+   * Stops and removes the last running container of the given runnable. Blocks until the container is stopped.
    */
   void removeLast(String runnableName) {
-    containerLock.lock();
-    try {
-      int maxInstanceId = getMaxInstanceId(runnableName);
-      if (maxInstanceId < 0) {
-        LOG.warn("No running container found for {}", runnableName);
-        return;
-      }
-
-      String lastContainerId = null;
-      WeaveContainerController lastController = null;
+    RunnableContainers containers = getRunnableContainers(runnableName);
+    int maxInstanceId = -1;
+    String lastContainerId = null;
+    WeaveContainerController lastController = null;
 
-      // Find the controller with the maxInstanceId
-      for (Map.Entry<String, WeaveContainerController> entry : containers.row(runnableName).entrySet()) {
-        if (getInstanceId(entry.getValue().getRunId()) == maxInstanceId) {
+    containers.lock.lock();
+    try {
+      // Find the launched controller with the largest instanceId. Containers that are still launching are skipped.
+      for (Map.Entry<String, WeaveContainerController> entry : containers.controllers.entrySet()) {
+        int instanceId = getInstanceId(entry.getValue().getRunId());
+        if (instanceId > maxInstanceId) {
+          maxInstanceId = instanceId;
           lastContainerId = entry.getKey();
           lastController = entry.getValue();
-          break;
         }
       }
 
-      Preconditions.checkState(lastContainerId != null,
-                               "No container found for {} with instanceId = {}", runnableName, maxInstanceId);
+      if (lastController == null) {
+        LOG.warn("No running container found for {}", runnableName);
+        return;
+      }
+      // Remove the controller so that the container completion is ignored. The instanceId is kept until the
+      // container stopped so that it won't be reused by a new container.
+      containers.controllers.remove(lastContainerId);
+      containerRunnables.remove(lastContainerId);
+    } finally {
+      containers.lock.unlock();
+    }
+
+    LOG.info("Stopping service: {} {}", runnableName, lastController.getRunId());
+    lastController.stopAndWait();
+    resourceReport.removeRunnableResources(runnableName, lastContainerId);
 
-      LOG.info("Stopping service: {} {}", runnableName, lastController.getRunId());
-      lastController.stopAndWait();
-      containers.remove(runnableName, lastContainerId);
-      removeInstanceId(runnableName, maxInstanceId);
-      resourceReport.removeRunnableResources(runnableName, lastContainerId);
-      containerChange.signalAll();
+    containers.lock.lock();
+    try {
+      containers.removeInstanceId(maxInstanceId);
     } finally {
-      containerLock.unlock();
+      containers.lock.unlock();
     }
   }
 
@@ -174,13 +266,14 @@ final class RunningContainers {
    * Blocks until there are changes in running containers.
    */
   void waitForCount(String runnableName, int count) throws InterruptedException {
-    containerLock.lock();
+    RunnableContainers containers = getRunnableContainers(runnableName);
+    containers.lock.lock();
     try {
-      while (getRunningInstances(runnableName) != count) {
-        containerChange.await();
+      while (containers.getCount() != count) {
+        containers.change.await();
       }
     } finally {
-      containerLock.unlock();
+      containers.lock.unlock();
     }
   }
 
@@ -188,99 +281,145 @@ final class RunningContainers {
    * Returns the number of running instances of the given runnable.
    */
   int count(String runnableName) {
-    containerLock.lock();
-    try {
-      return getRunningInstances(runnableName);
-    } finally {
-      containerLock.unlock();
-    }
+    RunnableContainers containers = runnableContainers.get(runnableName);
+    return containers == null ? 0 : containers.getCount();
+  }
+
+  /**
+   * Returns the number of instances of the given runnable that are launched, excluding the ones still launching.
+   */
+  int getLaunchedCount(String runnableName) {
+    RunnableContainers containers = runnableContainers.get(runnableName);
+    return containers == null ? 0 : containers.getLaunchedCount();
   }
 
   /**
    * Returns a Map contains running instances of all runnables.
    */
   Map<String, Integer> countAll() {
-    containerLock.lock();
-    try {
-      return ImmutableMap.copyOf(Maps.transformValues(runnableInstances, BITSET_CARDINALITY));
-    } finally {
-      containerLock.unlock();
+    ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+    for (RunnableContainers containers : runnableContainers.values()) {
+      int count = containers.getCount();
+      if (count > 0) {
+        builder.put(containers.runnableName, count);
+      }
     }
+    return builder.build();
   }
 
   void sendToAll(Message message, Runnable completion) {
-    containerLock.lock();
-    try {
-      if (containers.isEmpty()) {
-        completion.run();
-      }
+    Map<String, Collection<WeaveContainerController>> controllers = Maps.newHashMap();
+    int size = 0;
+    for (RunnableContainers containers : runnableContainers.values()) {
+      Collection<WeaveContainerController> runnableControllers = containers.getControllers();
+      controllers.put(containers.runnableName, runnableControllers);
+      size += runnableControllers.size();
+    }
 
-      // Sends the command to all running containers
-      AtomicInteger count = new AtomicInteger(containers.size());
-      for (Map.Entry<String, Map<String, WeaveContainerController>> entry : containers.rowMap().entrySet()) {
-        for (WeaveContainerController controller : entry.getValue().values()) {
-          sendMessage(entry.getKey(), message, controller, count, completion);
-        }
+    if (size == 0) {
+      completion.run();
+    }
+
+    // Sends the command to all running containers
+    AtomicInteger count = new AtomicInteger(size);
+    for (Map.Entry<String, Collection<WeaveContainerController>> entry : controllers.entrySet()) {
+      for (WeaveContainerController controller : entry.getValue()) {
+        sendMessage(entry.getKey(), message, controller, count, completion);
       }
-    } finally {
-      containerLock.unlock();
     }
   }
 
   void sendToRunnable(String runnableName, Message message, Runnable completion) {
-    containerLock.lock();
-    try {
-      Collection<WeaveContainerController> controllers = containers.row(runnableName).values();
-      if (controllers.isEmpty()) {
-        completion.run();
-      }
+    RunnableContainers containers = runnableContainers.get(runnableName);
+    Collection<WeaveContainerController> controllers = containers == null
+      ? ImmutableList.<WeaveContainerController>of() : containers.getControllers();
+    if (controllers.isEmpty()) {
+      completion.run();
+    }
 
-      AtomicInteger count = new AtomicInteger(controllers.size());
-      for (WeaveContainerController controller : controllers) {
-        sendMessage(runnableName, message, controller, count, completion);
-      }
-    } finally {
-      containerLock.unlock();
+    AtomicInteger count = new AtomicInteger(controllers.size());
+    for (WeaveContainerController controller : controllers) {
+      sendMessage(runnableName, message, controller, count, completion);
     }
   }
 
   /**
-   * Stops all running services. Only called when the AppMaster stops.
+   * Makes containers that are not yet launched not to be launched, and containers that finish launching from now on
+   * to be stopped right away. Called when the AppMaster stops, before waiting for the launches in progress.
    */
-  void stopAll() {
-    containerLock.lock();
-    try {
-      // Stop it one by one in reverse order of start sequence
-      Iterator<String> itor = startSequence.descendingIterator();
-      List<ListenableFuture<ServiceController.State>> futures = Lists.newLinkedList();
-      while (itor.hasNext()) {
-        String runnableName = itor.next();
-        LOG.info("Stopping all instances of " + runnableName);
-
-        futures.clear();
-        // Parallel stops all running containers of the current runnable.
-        for (WeaveContainerController controller : containers.row(runnableName).values()) {
-          futures.add(controller.stop());
+  void stopLaunching() {
+    stopping = true;
+  }
+
+  /**
+   * Stops all running services in reverse order of start sequence. Only called when the AppMaster stops.
+   * Containers of the same runnable are stopped in parallel. This method doesn't block; no lock is held while
+   * the containers are stopping.
+   *
+   * @return A future that completes when all containers are stopped, including the ones stopped because they
+   *         finished launching after {@link #stopLaunching()}.
+   */
+  ListenableFuture<?> stopAll() {
+    stopLaunching();
+
+    List<String> runnableNames;
+    synchronized (startSequence) {
+      runnableNames = Lists.reverse(ImmutableList.copyOf(startSequence));
+    }
+
+    ListenableFuture<List<ServiceController.State>> future =
+      Futures.<List<ServiceController.State>>immediateFuture(ImmutableList.<ServiceController.State>of());
+    for (final String runnableName : runnableNames) {
+      future = Futures.transform(future, new AsyncFunction<List<ServiceController.State>,
+                                                           List<ServiceController.State>>() {
+        @Override
+        public ListenableFuture<List<ServiceController.State>> apply(List<ServiceController.State> input) {
+          LOG.info("Stopping all instances of " + runnableName);
+
+          // Parallel stops all running containers of the current runnable.
+          List<ListenableFuture<ServiceController.State>> futures = Lists.newArrayList();
+          for (WeaveContainerController controller : getRunnableContainers(runnableName).getControllers()) {
+            futures.add(controller.stop());
+          }
+          // Assumes the future returned by Futures.successfulAsList won't fail.
+          ListenableFuture<List<ServiceController.State>> stopFuture = Futures.successfulAsList(futures);
+          stopFuture.addListener(new Runnable() {
+            @Override
+            public void run() {
+              LOG.info("Terminated all instances of " + runnableName);
+            }
+          }, Threads.SAME_THREAD_EXECUTOR);
+          return stopFuture;
+        }
+      });
+    }
+
+    // Containers that finished launching after stop began are stopped on their own; wait for them as well.
+    future = Futures.transform(future, new AsyncFunction<List<ServiceController.State>,
+                                                         List<ServiceController.State>>() {
+      @Override
+      public ListenableFuture<List<ServiceController.State>> apply(List<ServiceController.State> input) {
+        synchronized (lateStops) {
+          return Futures.successfulAsList(ImmutableList.copyOf(lateStops));
         }
-        // Wait for containers to stop. Assumes the future returned by Futures.successfulAsList won't throw exception.
-        Futures.getUnchecked(Futures.successfulAsList(futures));
+      }
+    });
 
-        LOG.info("Terminated all instances of " + runnableName);
+    // Clears the containers before the returned future completes.
+    return Futures.transform(future, new Function<List<ServiceController.State>, List<ServiceController.State>>() {
+      @Override
+      public List<ServiceController.State> apply(List<ServiceController.State> input) {
+        for (RunnableContainers containers : runnableContainers.values()) {
+          containers.clear();
+        }
+        containerRunnables.clear();
+        return input;
       }
-      containers.clear();
-      runnableInstances.clear();
-    } finally {
-      containerLock.unlock();
-    }
+    });
   }
 
   Set<String> getContainerIds() {
-    containerLock.lock();
-    try {
-      return ImmutableSet.copyOf(containers.columnKeySet());
-    } finally {
-      containerLock.unlock();
-    }
+    return ImmutableSet.copyOf(containerRunnables.keySet());
   }
 
   /**
@@ -289,44 +428,39 @@ final class RunningContainers {
    * @param restartRunnables Set of runnable names that requires restart.
    */
   void handleCompleted(YarnContainerStatus status, Multiset<String> restartRunnables) {
-    containerLock.lock();
     String containerId = status.getContainerId();
     int exitStatus = status.getExitStatus();
     ContainerState state = status.getState();
 
+    String runnableName = containerRunnables.remove(containerId);
+    if (runnableName == null) {
+      // It's OK because if a container is stopped through removeLast, this would be null.
+      return;
+    }
+
+    RunnableContainers containers = getRunnableContainers(runnableName);
+    WeaveContainerController controller;
+    containers.lock.lock();
     try {
-      Map<String, WeaveContainerController> lookup = containers.column(containerId);
-      if (lookup.isEmpty()) {
-        // It's OK because if a container is stopped through removeLast, this would be empty.
+      controller = containers.controllers.remove(containerId);
+      if (controller == null) {
         return;
       }
-
-      if (lookup.size() != 1) {
-        LOG.warn("More than one controller found for container {}", containerId);
-      }
-
-      if (exitStatus != 0) {
-        LOG.warn("Container {} exited abnormally with state {}, exit code {}. Re-request the container.",
-                 containerId, state, exitStatus);
-        restartRunnables.add(lookup.keySet().iterator().next());
-      } else {
-        LOG.info("Container {} exited normally with state {}", containerId, state);
-      }
-
-      for (Map.Entry<String, WeaveContainerController> completedEntry : lookup.entrySet()) {
-        String runnableName = completedEntry.getKey();
-        WeaveContainerController controller = completedEntry.getValue();
-        controller.completed(exitStatus);
-
-        removeInstanceId(runnableName, getInstanceId(controller.getRunId()));
-        resourceReport.removeRunnableResources(runnableName, containerId);
-      }
-
-      lookup.clear();
-      containerChange.signalAll();
+      containers.removeInstanceId(getInstanceId(controller.getRunId()));
     } finally {
-      containerLock.unlock();
+      containers.lock.unlock();
     }
+
+    if (exitStatus != 0) {
+      LOG.warn("Container {} exited abnormally with state {}, exit code {}. Re-request the container.",
+               containerId, state, exitStatus);
+      restartRunnables.add(runnableName);
+    } else {
+      LOG.info("Container {} exited normally with state {}", containerId, state);
+    }
+
+    controller.completed(exitStatus);
+    resourceReport.removeRunnableResources(runnableName, containerId);
   }
 
   /**
@@ -358,66 +492,129 @@ final class RunningContainers {
     });
   }
 
-  /**
-   * Returns the instanceId to start the given runnable.
-   */
-  private int getStartInstanceId(String runnableName) {
-    BitSet instances = runnableInstances.get(runnableName);
-    if (instances == null) {
-      instances = new BitSet();
-      runnableInstances.put(runnableName, instances);
-    }
-    int instanceId = instances.nextClearBit(0);
-    instances.set(instanceId);
-    return instanceId;
+  private RunnableContainers getRunnableContainers(String runnableName) {
+    RunnableContainers containers = runnableContainers.get(runnableName);
+    if (containers == null) {
+      RunnableContainers newContainers = new RunnableContainers(runnableName);
+      containers = runnableContainers.putIfAbsent(runnableName, newContainers);
+      if (containers == null) {
+        containers = newContainers;
+      }
+    }
+    return containers;
   }
 
-  private void removeInstanceId(String runnableName, int instanceId) {
-    BitSet instances = runnableInstances.get(runnableName);
-    if (instances == null) {
-      return;
-    }
-    instances.clear(instanceId);
-    if (instances.isEmpty()) {
-      runnableInstances.remove(runnableName);
-    }
+  private int getInstanceId(RunId runId) {
+    String id = runId.getId();
+    return Integer.parseInt(id.substring(id.lastIndexOf('-') + 1));
   }
 
   /**
-   * Returns the largest instanceId for the given runnable. Returns -1 if no container is running.
+   * Launches a runnable instance in a container. Separated from {@link WeaveContainerLauncher} for testing.
    */
-  private int getMaxInstanceId(String runnableName) {
-    BitSet instances = runnableInstances.get(runnableName);
-    if (instances == null || instances.isEmpty()) {
-      return -1;
-    }
-    return instances.length() - 1;
+  interface InstanceLauncher {
+
+    WeaveContainerController start(RunId runId, int instanceId);
   }
 
   /**
-   * Returns nnumber of running instances for the given runnable.
+   * Containers of a single runnable. All fields except {@link #count} are guarded by {@link #lock}.
    */
-  private int getRunningInstances(String runableName) {
-    BitSet instances = runnableInstances.get(runableName);
-    return instances == null ? 0 : instances.cardinality();
-  }
+  private static final class RunnableContainers {
+
+    private final String runnableName;
+    private final Lock lock;
+    private final Condition change;
+    // Map from containerId to controller of launched containers.
+    private final Map<String, WeaveContainerController> controllers;
+    // The <instanceId> bit turned on for having an instance running or launching.
+    private final BitSet instances;
+    // The RunId that instance RunIds are derived from.
+    private RunId baseRunId;
+    // Number of bits set in instances, for reading without locking.
+    private volatile int count;
+
+    RunnableContainers(String runnableName) {
+      this.runnableName = runnableName;
+      this.lock = new ReentrantLock();
+      this.change = lock.newCondition();
+      this.controllers = Maps.newHashMap();
+      this.instances = new BitSet();
+    }
 
-  private RunId getRunId(String runnableName, int instanceId) {
-    RunId baseId;
+    int getCount() {
+      return count;
+    }
 
-    Collection<WeaveContainerController> controllers = containers.row(runnableName).values();
-    if (controllers.isEmpty()) {
-      baseId = RunIds.generate();
-    } else {
-      String id = controllers.iterator().next().getRunId().getId();
-      baseId = RunIds.fromString(id.substring(0, id.lastIndexOf('-')));
+    int getLaunchedCount() {
+      lock.lock();
+      try {
+        return controllers.size();
+      } finally {
+        lock.unlock();
+      }
     }
 
-    return RunIds.fromString(baseId.getId() + '-' + instanceId);
-  }
+    /**
+     * Returns a snapshot of controllers of launched containers.
+     */
+    Collection<WeaveContainerController> getControllers() {
+      lock.lock();
+      try {
+        return ImmutableList.copyOf(controllers.values());
+      } finally {
+        lock.unlock();
+      }
+    }
 
-  private int getInstanceId(RunId runId) {
-    String id = runId.getId();
-    return Integer.parseInt(id.substring(id.lastIndexOf('-') + 1));
+    /**
+     * Returns the instanceId to start. Must be called with the lock held.
+     */
+    int getStartInstanceId() {
+      int instanceId = instances.nextClearBit(0);
+      instances.set(instanceId);
+      instancesChanged();
+      return instanceId;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    void removeInstanceId(int instanceId) {
+      instances.clear(instanceId);
+      if (instances.isEmpty()) {
+        baseRunId = null;
+      }
+      instancesChanged();
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    RunId getRunId(int instanceId) {
+      // The base id is kept while there are running or launching instances, as the controllers of instances that are
+      // launching are not yet available.
+      if (baseRunId == null) {
+        baseRunId = RunIds.generate();
+      }
+      return RunIds.fromString(baseRunId.getId() + '-' + instanceId);
+    }
+
+    void clear() {
+      lock.lock();
+      try {
+        controllers.clear();
+        instances.clear();
+        baseRunId = null;
+        instancesChanged();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void instancesChanged() {
+      count = instances.cardinality();
+      change.signalAll();
+    }
   }
 }
@@ -112,4 +112,10 @@ public interface YarnAMClient extends Service {
    * @param id The ID returned by {@link YarnAMClient.ContainerRequestBuilder#apply()}.
    */
   void completeContainerRequest(String id);
+
+  /**
+   * Releases a container that was allocated to this application, but in which no process has been launched, so
+   * that the resource is given back to the cluster.
+   */
+  void releaseContainer(YarnContainerInfo containerInfo);
 }
@@ -40,6 +40,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -66,6 +67,22 @@ final class YarnWeaveController extends AbstractWeaveController implements Weave
     this.startUp = startUp;
   }
 
+  /**
+   * Start up and shut down poll the YARN application status for up to minutes, hence they run in a dedicated
+   * thread instead of the shared transition executor.
+   */
+  @Override
+  protected Executor executor(final State state) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        Thread t = new Thread(command, getClass().getSimpleName() + " " + state);
+        t.setDaemon(true);
+        t.start();
+      }
+    };
+  }
+
   @Override
   protected void doStartUp() {
     super.doStartUp();
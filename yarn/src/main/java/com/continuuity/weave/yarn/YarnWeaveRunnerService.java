@@ -91,6 +91,8 @@ public final class YarnWeaveRunnerService extends AbstractIdleService implements
   private static final Logger LOG = LoggerFactory.getLogger(YarnWeaveRunnerService.class);
 
   private static final int ZK_TIMEOUT = 10000;
+  // Maximum number of ZooKeeper read results shared by all controllers and live apps watching.
+  private static final int ZK_CACHE_SIZE = 10000;
   private static final Function<String, RunId> STRING_TO_RUN_ID = new Function<String, RunId>() {
     @Override
     public RunId apply(String input) {
@@ -315,10 +317,12 @@ public final class YarnWeaveRunnerService extends AbstractIdleService implements
 
   private ZKClientService getZKClientService(String zkConnect) {
     return ZKClientServices.delegate(
-      ZKClients.reWatchOnExpire(
-        ZKClients.retryOnFailure(ZKClientService.Builder.of(zkConnect)
-                                   .setSessionTimeout(ZK_TIMEOUT)
-                                   .build(), RetryStrategies.exponentialDelay(100, 2000, TimeUnit.MILLISECONDS))));
+      ZKClients.cache(
+        ZKClients.reWatchOnExpire(
+          ZKClients.retryOnFailure(ZKClientService.Builder.of(zkConnect)
+                                     .setSessionTimeout(ZK_TIMEOUT)
+                                     .build(), RetryStrategies.exponentialDelay(100, 2000, TimeUnit.MILLISECONDS))),
+        ZK_CACHE_SIZE));
   }
 
   private Iterable<LiveInfo> createLiveInfos() {
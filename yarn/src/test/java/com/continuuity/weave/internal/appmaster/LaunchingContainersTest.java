@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.internal.DefaultWeaveRunResources;
+import com.continuuity.weave.internal.WeaveContainerController;
+import com.continuuity.weave.internal.yarn.YarnContainerInfo;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link LaunchingContainers}, with containers launched by a stub launcher.
+ */
+public class LaunchingContainersTest {
+
+  @Test
+  public void testLaunchFailure() throws Exception {
+    RunningContainers runningContainers = createRunningContainers();
+    TestFailureHandler failureHandler = new TestFailureHandler();
+    LaunchingContainers launchingContainers = new LaunchingContainers(
+      runningContainers, MoreExecutors.sameThreadExecutor(), 2, failureHandler);
+    failureHandler.launchingContainers = launchingContainers;
+
+    RunningContainers.InstanceLauncher failingLauncher = new RunningContainers.InstanceLauncher() {
+      @Override
+      public WeaveContainerController start(RunId runId, int instanceId) {
+        throw new IllegalStateException("Launch failure");
+      }
+    };
+
+    for (int i = 0; i < 3; i++) {
+      assertLaunchFailure(launchingContainers.launch("r1", new RunningContainersTest.TestContainerInfo("c" + i),
+                                                     failingLauncher));
+    }
+    // The failed containers are handed over, with retry until the maximum number of failures in a row is reached.
+    Assert.assertEquals(ImmutableList.of("c0", "c1", "c2"), failureHandler.containerIds);
+    Assert.assertEquals(ImmutableList.of(true, true, false), failureHandler.retries);
+    // The launch is still tracked when the failure is handled, so that a new request is queued before it is gone.
+    Assert.assertEquals(ImmutableList.of(true, true, true), failureHandler.launching);
+    Assert.assertTrue(launchingContainers.isEmpty());
+    Assert.assertTrue(runningContainers.isEmpty());
+
+    // A successful launch resets the failure count.
+    launchingContainers.launch("r1", new RunningContainersTest.TestContainerInfo("c3"),
+                               new RunningContainersTest.TestLauncher("r1")).get();
+    Assert.assertEquals(1, runningContainers.count("r1"));
+    assertLaunchFailure(launchingContainers.launch("r1", new RunningContainersTest.TestContainerInfo("c4"),
+                                                   failingLauncher));
+    Assert.assertEquals(ImmutableList.of(true, true, false, true), failureHandler.retries);
+    Assert.assertTrue(launchingContainers.isEmpty());
+  }
+
+  @Test
+  public void testLaunching() throws Exception {
+    RunningContainers runningContainers = createRunningContainers();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      LaunchingContainers launchingContainers = new LaunchingContainers(runningContainers, executor, 1,
+                                                                        new TestFailureHandler());
+      BlockingLauncher launcher = new BlockingLauncher("r1");
+      ListenableFuture<WeaveContainerController> future =
+        launchingContainers.launch("r1", new RunningContainersTest.TestContainerInfo("c0"), launcher);
+
+      // Tracked until the launch completes, while the launch doesn't block the caller.
+      Assert.assertTrue(launcher.started.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals(ImmutableSet.of("r1"), launchingContainers.getLaunchingRunnables());
+      Assert.assertFalse(launchingContainers.isEmpty());
+      Assert.assertEquals(0, runningContainers.getLaunchedCount("r1"));
+
+      launcher.proceed.countDown();
+      future.get(10, TimeUnit.SECONDS);
+      Assert.assertTrue(launchingContainers.isEmpty());
+      Assert.assertEquals(1, runningContainers.getLaunchedCount("r1"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testStop() throws Exception {
+    RunningContainers runningContainers = createRunningContainers();
+    TestFailureHandler failureHandler = new TestFailureHandler();
+    LaunchingContainers launchingContainers = new LaunchingContainers(
+      runningContainers, Executors.newSingleThreadExecutor(), 1, failureHandler);
+
+    // The first launch is in progress when stop begins, while the second one is waiting for the launch thread.
+    BlockingLauncher launcher = new BlockingLauncher("r1");
+    ListenableFuture<WeaveContainerController> inProgress =
+      launchingContainers.launch("r1", new RunningContainersTest.TestContainerInfo("c0"), launcher);
+    ListenableFuture<WeaveContainerController> waiting =
+      launchingContainers.launch("r1", new RunningContainersTest.TestContainerInfo("c1"),
+                                 new RunningContainersTest.TestLauncher("r1"));
+    Assert.assertTrue(launcher.started.await(10, TimeUnit.SECONDS));
+
+    // Stop waits for the launch in progress.
+    Assert.assertFalse(launchingContainers.stop(100, TimeUnit.MILLISECONDS));
+    launcher.proceed.countDown();
+    Assert.assertTrue(launchingContainers.stop(10, TimeUnit.SECONDS));
+
+    // The waiting launch is skipped, and its container handed over for release.
+    assertLaunchFailure(waiting);
+    Assert.assertEquals(ImmutableList.of("c1"), failureHandler.containerIds);
+    Assert.assertTrue(launchingContainers.isEmpty());
+
+    // The container launched after stop began is stopped, instead of being left running.
+    WeaveContainerController controller = inProgress.get();
+    runningContainers.stopAll().get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(Service.State.TERMINATED, controller.state());
+    Assert.assertTrue(runningContainers.isEmpty());
+  }
+
+  private void assertLaunchFailure(ListenableFuture<WeaveContainerController> future) throws Exception {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      Assert.fail("Expected launch failure.");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  private RunningContainers createRunningContainers() {
+    return new RunningContainers("app", new DefaultWeaveRunResources(0, "master", 1, 512, "localhost"));
+  }
+
+  /**
+   * Launcher that blocks launching until released.
+   */
+  private static final class BlockingLauncher extends RunningContainersTest.TestLauncher {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch proceed = new CountDownLatch(1);
+
+    BlockingLauncher(String name) {
+      super(name);
+    }
+
+    @Override
+    public WeaveContainerController start(RunId runId, int instanceId) {
+      started.countDown();
+      try {
+        proceed.await();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      return super.start(runId, instanceId);
+    }
+  }
+
+  /**
+   * Failure handler that records the failures, and whether the launch was still tracked when they are handled.
+   */
+  private static final class TestFailureHandler implements LaunchingContainers.FailureHandler {
+
+    private final List<String> containerIds = Collections.synchronizedList(Lists.<String>newArrayList());
+    private final List<Boolean> retries = Collections.synchronizedList(Lists.<Boolean>newArrayList());
+    private final List<Boolean> launching = Collections.synchronizedList(Lists.<Boolean>newArrayList());
+    private volatile LaunchingContainers launchingContainers;
+
+    @Override
+    public void failed(String runnableName, YarnContainerInfo containerInfo, boolean retry) {
+      containerIds.add(containerInfo.getId());
+      retries.add(retry);
+      if (launchingContainers != null) {
+        launching.add(launchingContainers.getLaunchingRunnables().contains(runnableName));
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.LocalFile;
+import com.continuuity.weave.api.RuntimeSpecification;
+import com.continuuity.weave.internal.DefaultRuntimeSpecification;
+import com.continuuity.weave.yarn.utils.YarnUtils;
+import com.google.common.collect.ImmutableList;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.util.Records;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Unit tests for matching allocated containers with {@link ProvisionRequest}.
+ */
+public class ProvisionRequestTest {
+
+  @Test
+  public void testFindBestMatch() {
+    ProvisionRequest small = createRequest("small", 512, 1);
+    ProvisionRequest large = createRequest("large", 1024, 1);
+    ProvisionRequest largeMultiCores = createRequest("largeMultiCores", 1024, 2);
+    List<ProvisionRequest> requests = ImmutableList.of(small, largeMultiCores, large);
+
+    // Container too small for any request.
+    Assert.assertNull(ProvisionRequest.findBestMatch(requests, 256, 1));
+    // Picks the largest request that fits in the container, which could be rounded up by the scheduler.
+    Assert.assertSame(small, ProvisionRequest.findBestMatch(requests, 512, 1));
+    Assert.assertSame(small, ProvisionRequest.findBestMatch(requests, 768, 1));
+    Assert.assertSame(large, ProvisionRequest.findBestMatch(requests, 1024, 1));
+    Assert.assertSame(large, ProvisionRequest.findBestMatch(requests, 2048, 1));
+
+    if (YarnUtils.getVirtualCores(largeMultiCores.getCapability()) == 2) {
+      Assert.assertSame(largeMultiCores, ProvisionRequest.findBestMatch(requests, 1024, 2));
+      // When the container doesn't report virtual cores, only memory is matched.
+      Assert.assertSame(largeMultiCores, ProvisionRequest.findBestMatch(requests, 1024, 0));
+    }
+  }
+
+  private ProvisionRequest createRequest(String runnableName, int memoryMB, int virtualCores) {
+    Resource capability = Records.newRecord(Resource.class);
+    capability.setMemory(memoryMB);
+    YarnUtils.setVirtualCores(capability, virtualCores);
+    RuntimeSpecification runtimeSpec = new DefaultRuntimeSpecification(runnableName, null, null,
+                                                                       ImmutableList.<LocalFile>of());
+    return new ProvisionRequest(runtimeSpec, capability, runnableName, 1);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.LocalFile;
+import com.continuuity.weave.api.RuntimeSpecification;
+import com.continuuity.weave.api.WeaveSpecification;
+import com.continuuity.weave.internal.DefaultRuntimeSpecification;
+import com.continuuity.weave.internal.DefaultWeaveSpecification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.util.Records;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for the order dependencies of {@link RunnableContainerRequest}.
+ */
+public class RunnableContainerRequestTest {
+
+  @Test
+  public void testPredecessors() {
+    // begin(A).nextWhenStarted(B, C).nextWhenCompleted(D)
+    List<WeaveSpecification.Order> orders = ImmutableList.<WeaveSpecification.Order>of(
+      new DefaultWeaveSpecification.DefaultOrder(ImmutableList.of("A"), WeaveSpecification.Order.Type.STARTED),
+      new DefaultWeaveSpecification.DefaultOrder(ImmutableList.of("B", "C"), WeaveSpecification.Order.Type.STARTED),
+      new DefaultWeaveSpecification.DefaultOrder(ImmutableList.of("D"), WeaveSpecification.Order.Type.COMPLETED));
+
+    Assert.assertEquals(ImmutableSet.of(), RunnableContainerRequest.getPredecessors(orders, "A"));
+    Assert.assertEquals(ImmutableSet.of("A"), RunnableContainerRequest.getPredecessors(orders, "B"));
+    Assert.assertEquals(ImmutableSet.of("A"), RunnableContainerRequest.getPredecessors(orders, "C"));
+    // Only waits for the order right before, which in turn waited for the ones before it.
+    Assert.assertEquals(ImmutableSet.of("B", "C"), RunnableContainerRequest.getPredecessors(orders, "D"));
+
+    try {
+      RunnableContainerRequest.getPredecessors(orders, "E");
+      Assert.fail("Expected IllegalArgumentException for unknown runnable.");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testWhenStarted() {
+    RunnableContainerRequest request = createRequest(WeaveSpecification.Order.Type.STARTED, "C", "A", "B");
+    Set<String> none = Collections.emptySet();
+
+    Assert.assertFalse(request.canProvision(none, none));
+    Assert.assertFalse(request.canProvision(ImmutableSet.of("A"), none));
+    Assert.assertTrue(request.canProvision(ImmutableSet.of("A", "B"), ImmutableSet.of("A", "B")));
+    Assert.assertTrue(request.canProvision(ImmutableSet.of("A", "B"), none));
+  }
+
+  @Test
+  public void testWhenCompleted() {
+    RunnableContainerRequest request = createRequest(WeaveSpecification.Order.Type.COMPLETED, "C", "A", "B");
+    Set<String> none = Collections.emptySet();
+
+    // Predecessors have to be started at least once.
+    Assert.assertFalse(request.canProvision(none, none));
+    Assert.assertFalse(request.canProvision(ImmutableSet.of("A"), none));
+    // Predecessors that are still running, launching, or that have requests queued for a restart block it.
+    Assert.assertFalse(request.canProvision(ImmutableSet.of("A", "B"), ImmutableSet.of("B")));
+    Assert.assertTrue(request.canProvision(ImmutableSet.of("A", "B"), ImmutableSet.of("C")));
+  }
+
+  @Test
+  public void testFirstOrder() {
+    RunnableContainerRequest request = createRequest(WeaveSpecification.Order.Type.COMPLETED, "A");
+    Set<String> none = Collections.emptySet();
+    Assert.assertTrue(request.canProvision(none, none));
+    Assert.assertEquals(ImmutableSet.of("A"), request.getRunnableNames());
+  }
+
+  private RunnableContainerRequest createRequest(WeaveSpecification.Order.Type orderType,
+                                                 String runnableName, String...predecessors) {
+    RuntimeSpecification runtimeSpec = new DefaultRuntimeSpecification(runnableName, null, null,
+                                                                       ImmutableList.<LocalFile>of());
+    return new RunnableContainerRequest(orderType, ImmutableSet.copyOf(predecessors),
+                                        ImmutableMultimap.of(Records.newRecord(Resource.class), runtimeSpec));
+  }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.appmaster;
+
+import com.continuuity.weave.api.Command;
+import com.continuuity.weave.api.RunId;
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.DefaultWeaveRunResources;
+import com.continuuity.weave.internal.WeaveContainerController;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.yarn.YarnContainerInfo;
+import com.continuuity.weave.internal.yarn.YarnContainerStatus;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Service;
+import org.apache.hadoop.yarn.api.records.ContainerState;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link RunningContainers}, with containers launched by a stub launcher.
+ */
+public class RunningContainersTest {
+
+  @Test
+  public void testLaunchFailure() throws Exception {
+    RunningContainers containers = createRunningContainers();
+    QueueExecutor executor = new QueueExecutor();
+
+    ListenableFuture<WeaveContainerController> future = containers.start(
+      "r1", new TestContainerInfo("c0"), new RunningContainers.InstanceLauncher() {
+      @Override
+      public WeaveContainerController start(RunId runId, int instanceId) {
+        throw new IllegalStateException("Launch failure");
+      }
+    }, executor);
+
+    // The instance is counted while it is launching.
+    Assert.assertEquals(1, containers.count("r1"));
+
+    executor.runAll();
+    try {
+      future.get();
+      Assert.fail("Expected launch failure.");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    Assert.assertEquals(0, containers.count("r1"));
+    Assert.assertTrue(containers.isEmpty());
+    Assert.assertTrue(containers.getContainerIds().isEmpty());
+
+    // The instanceId of the failed launch is reused.
+    TestLauncher launcher = new TestLauncher("r1");
+    WeaveContainerController controller = containers.start("r1", new TestContainerInfo("c1"),
+                                                           launcher, Threads.SAME_THREAD_EXECUTOR).get();
+    Assert.assertEquals(0, getInstanceId(controller));
+    Assert.assertEquals(1, containers.count("r1"));
+  }
+
+  @Test
+  public void testRemoveLast() throws Exception {
+    final RunningContainers containers = createRunningContainers();
+    TestLauncher launcher = new TestLauncher("r1");
+    TestLauncher blockingLauncher = new TestLauncher("r1", new CountDownLatch(1));
+
+    containers.start("r1", new TestContainerInfo("c0"), launcher, Threads.SAME_THREAD_EXECUTOR).get();
+    WeaveContainerController last = containers.start("r1", new TestContainerInfo("c1"), blockingLauncher,
+                                                     Threads.SAME_THREAD_EXECUTOR).get();
+    Assert.assertEquals(1, getInstanceId(last));
+
+    Thread removeThread = new Thread() {
+      @Override
+      public void run() {
+        containers.removeLast("r1");
+      }
+    };
+    removeThread.start();
+    waitForState(last, Service.State.STOPPING);
+
+    // The instanceId of the stopping container is not reused.
+    Assert.assertEquals(2, containers.count("r1"));
+    Assert.assertEquals(ImmutableList.of("c0"), ImmutableList.copyOf(containers.getContainerIds()));
+    WeaveContainerController controller = containers.start("r1", new TestContainerInfo("c2"), launcher,
+                                                           Threads.SAME_THREAD_EXECUTOR).get();
+    Assert.assertEquals(2, getInstanceId(controller));
+    Assert.assertEquals(3, containers.count("r1"));
+
+    blockingLauncher.stopLatch.countDown();
+    removeThread.join(10000);
+    Assert.assertFalse(removeThread.isAlive());
+    Assert.assertEquals(2, containers.count("r1"));
+    Assert.assertEquals(2, containers.getResourceReport().getRunnableResources("r1").size());
+
+    // Once stopped, the instanceId is reused.
+    controller = containers.start("r1", new TestContainerInfo("c3"), launcher, Threads.SAME_THREAD_EXECUTOR).get();
+    Assert.assertEquals(1, getInstanceId(controller));
+  }
+
+  @Test
+  public void testStopAll() throws Exception {
+    RunningContainers containers = createRunningContainers();
+    List<String> stopOrder = Collections.synchronizedList(Lists.<String>newArrayList());
+
+    containers.start("r1", new TestContainerInfo("c0"), new TestLauncher("r1", stopOrder),
+                     Threads.SAME_THREAD_EXECUTOR).get();
+    containers.start("r2", new TestContainerInfo("c1"), new TestLauncher("r2", stopOrder),
+                     Threads.SAME_THREAD_EXECUTOR).get();
+    containers.start("r2", new TestContainerInfo("c2"), new TestLauncher("r2", stopOrder),
+                     Threads.SAME_THREAD_EXECUTOR).get();
+    containers.start("r3", new TestContainerInfo("c3"), new TestLauncher("r3", stopOrder),
+                     Threads.SAME_THREAD_EXECUTOR).get();
+
+    containers.stopAll().get(10, TimeUnit.SECONDS);
+
+    // Runnables are stopped in reverse order of start, each one after the previous one terminated.
+    Assert.assertEquals(ImmutableList.of("r3", "r2", "r2", "r1"), ImmutableList.copyOf(stopOrder));
+    Assert.assertTrue(containers.isEmpty());
+    Assert.assertTrue(containers.getContainerIds().isEmpty());
+  }
+
+  @Test
+  public void testHandleCompleted() throws Exception {
+    RunningContainers containers = createRunningContainers();
+    TestLauncher launcher = new TestLauncher("r1");
+    TestController first = (TestController) containers.start("r1", new TestContainerInfo("c0"), launcher,
+                                                             Threads.SAME_THREAD_EXECUTOR).get();
+    TestController second = (TestController) containers.start("r1", new TestContainerInfo("c1"), launcher,
+                                                              Threads.SAME_THREAD_EXECUTOR).get();
+    Multiset<String> restartRunnables = HashMultiset.create();
+
+    // Abnormal exit requires restart.
+    containers.handleCompleted(new TestContainerStatus("c1", 1), restartRunnables);
+    Assert.assertEquals(1, restartRunnables.count("r1"));
+    Assert.assertEquals(1, second.exitStatus);
+    Assert.assertEquals(1, containers.count("r1"));
+    Assert.assertEquals(ImmutableList.of("c0"), ImmutableList.copyOf(containers.getContainerIds()));
+    Assert.assertEquals(1, containers.getResourceReport().getRunnableResources("r1").size());
+
+    // Completion of unknown container is ignored.
+    containers.handleCompleted(new TestContainerStatus("c9", 1), restartRunnables);
+    Assert.assertEquals(1, restartRunnables.size());
+    Assert.assertEquals(1, containers.count("r1"));
+
+    // Normal exit doesn't.
+    containers.handleCompleted(new TestContainerStatus("c0", 0), restartRunnables);
+    Assert.assertEquals(1, restartRunnables.size());
+    Assert.assertEquals(0, first.exitStatus);
+    Assert.assertTrue(containers.isEmpty());
+    Assert.assertTrue(containers.getResourceReport().getRunnableResources("r1").isEmpty());
+  }
+
+  @Test
+  public void testLaunchWhenStopping() throws Exception {
+    RunningContainers containers = createRunningContainers();
+    QueueExecutor executor = new QueueExecutor();
+
+    // Launch that is not started before stop is not performed.
+    TestLauncher launcher = new TestLauncher("r1");
+    ListenableFuture<WeaveContainerController> future = containers.start("r1", new TestContainerInfo("c0"),
+                                                                          launcher, executor);
+    containers.stopLaunching();
+    executor.runAll();
+    try {
+      future.get();
+      Assert.fail("Expected launch to be skipped.");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    Assert.assertTrue(launcher.controllers.isEmpty());
+    Assert.assertTrue(containers.isEmpty());
+  }
+
+  @Test
+  public void testLaunchedAfterStop() throws Exception {
+    final RunningContainers containers = createRunningContainers();
+
+    // Stop begins while the container is launching; the launched container is stopped instead of being registered.
+    TestLauncher launcher = new TestLauncher("r1") {
+      @Override
+      public WeaveContainerController start(RunId runId, int instanceId) {
+        WeaveContainerController controller = super.start(runId, instanceId);
+        containers.stopLaunching();
+        return controller;
+      }
+    };
+    WeaveContainerController controller = containers.start("r1", new TestContainerInfo("c0"), launcher,
+                                                           Threads.SAME_THREAD_EXECUTOR).get();
+    Assert.assertTrue(containers.isEmpty());
+    Assert.assertTrue(containers.getContainerIds().isEmpty());
+    Assert.assertTrue(containers.getResourceReport().getRunnableResources("r1").isEmpty());
+
+    // Stopping all waits for the container launched after stop began.
+    containers.stopAll().get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(Service.State.TERMINATED, controller.state());
+  }
+
+  private RunningContainers createRunningContainers() {
+    return new RunningContainers("app", new DefaultWeaveRunResources(0, "master", 1, 512, "localhost"));
+  }
+
+  private int getInstanceId(WeaveContainerController controller) {
+    String id = controller.getRunId().getId();
+    return Integer.parseInt(id.substring(id.lastIndexOf('-') + 1));
+  }
+
+  private void waitForState(Service service, Service.State state) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (service.state() != state && System.currentTimeMillis() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    Assert.assertEquals(state, service.state());
+  }
+
+  /**
+   * Executor that runs tasks only when asked.
+   */
+  private static final class QueueExecutor implements Executor {
+
+    private final List<Runnable> tasks = Lists.newArrayList();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+
+  /**
+   * Launcher that creates started {@link TestController}.
+   */
+  static class TestLauncher implements RunningContainers.InstanceLauncher {
+
+    private final String name;
+    private final CountDownLatch stopLatch;
+    private final List<String> stopOrder;
+    private final List<TestController> controllers = Lists.newArrayList();
+
+    TestLauncher(String name) {
+      this(name, new CountDownLatch(0), Lists.<String>newArrayList());
+    }
+
+    TestLauncher(String name, CountDownLatch stopLatch) {
+      this(name, stopLatch, Lists.<String>newArrayList());
+    }
+
+    TestLauncher(String name, List<String> stopOrder) {
+      this(name, new CountDownLatch(0), stopOrder);
+    }
+
+    private TestLauncher(String name, CountDownLatch stopLatch, List<String> stopOrder) {
+      this.name = name;
+      this.stopLatch = stopLatch;
+      this.stopOrder = stopOrder;
+    }
+
+    @Override
+    public WeaveContainerController start(RunId runId, int instanceId) {
+      TestController controller = new TestController(name, runId, stopLatch, stopOrder);
+      controller.startAndWait();
+      controllers.add(controller);
+      return controller;
+    }
+  }
+
+  /**
+   * Controller that records when it is stopped, and blocks stopping until the given latch is released.
+   */
+  static final class TestController extends AbstractIdleService implements WeaveContainerController {
+
+    private final String name;
+    private final RunId runId;
+    private final CountDownLatch stopLatch;
+    private final List<String> stopOrder;
+    private volatile int exitStatus = -1;
+
+    TestController(String name, RunId runId, CountDownLatch stopLatch, List<String> stopOrder) {
+      this.name = name;
+      this.runId = runId;
+      this.stopLatch = stopLatch;
+      this.stopOrder = stopOrder;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+      // no-op
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+      stopOrder.add(name);
+      stopLatch.await();
+    }
+
+    @Override
+    public RunId getRunId() {
+      return runId;
+    }
+
+    @Override
+    public ListenableFuture<Command> sendCommand(Command command) {
+      return Futures.immediateFuture(command);
+    }
+
+    @Override
+    public ListenableFuture<Command> sendCommand(String runnableName, Command command) {
+      return Futures.immediateFuture(command);
+    }
+
+    @Override
+    public void kill() {
+      stopAndWait();
+    }
+
+    @Override
+    public ListenableFuture<Message> sendMessage(Message message) {
+      return Futures.immediateFuture(message);
+    }
+
+    @Override
+    public void completed(int exitStatus) {
+      this.exitStatus = exitStatus;
+    }
+  }
+
+  /**
+   * Container info of a container that doesn't exist.
+   */
+  static final class TestContainerInfo implements YarnContainerInfo {
+
+    private final String id;
+
+    TestContainerInfo(String id) {
+      this.id = id;
+    }
+
+    @Override
+    public String getId() {
+      return id;
+    }
+
+    @Override
+    public InetAddress getHost() {
+      try {
+        return InetAddress.getByName("127.0.0.1");
+      } catch (UnknownHostException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public int getPort() {
+      return 0;
+    }
+
+    @Override
+    public int getMemoryMB() {
+      return 512;
+    }
+
+    @Override
+    public int getVirtualCores() {
+      return 1;
+    }
+
+    @Override
+    public <T> T getContainer() {
+      return null;
+    }
+  }
+
+  private static final class TestContainerStatus implements YarnContainerStatus {
+
+    private final String containerId;
+    private final int exitStatus;
+
+    TestContainerStatus(String containerId, int exitStatus) {
+      this.containerId = containerId;
+      this.exitStatus = exitStatus;
+    }
+
+    @Override
+    public String getContainerId() {
+      return containerId;
+    }
+
+    @Override
+    public ContainerState getState() {
+      return ContainerState.COMPLETE;
+    }
+
+    @Override
+    public int getExitStatus() {
+      return exitStatus;
+    }
+
+    @Override
+    public String getDiagnostics() {
+      return "";
+    }
+  }
+}
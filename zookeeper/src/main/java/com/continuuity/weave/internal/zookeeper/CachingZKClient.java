@@ -0,0 +1,406 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.zookeeper;
+
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.zookeeper.ForwardingZKClient;
+import com.continuuity.weave.zookeeper.NodeChildren;
+import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.OperationFuture;
+import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOp;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ZKClient} that caches results of {@link #exists(String, Watcher) exists},
+ * {@link #getChildren(String, Watcher) getChildren} and {@link #getData(String, Watcher) getData} calls.
+ * Each cached result has one watch set on ZooKeeper, which invalidates the cached result and notifies all
+ * {@link Watcher Watchers} given to the calls served by that result, with the same one time trigger semantic
+ * as ZooKeeper watches. Concurrent calls for the same result share the same pending request.
+ * Failures are never cached.
+ *
+ * Writes made through this client invalidate the affected results before the returned future completes, hence
+ * a read after a completed write always sees the write. Changes made by others are seen once the watch event
+ * of the cached result is received. The number of cached results is bounded, with the least recently used result
+ * evicted first. Watchers of an evicted result still get notified when the result changes.
+ *
+ * Listeners of the returned futures are called the same way as listeners of the futures of the delegate client,
+ * which is from its event thread for the request path, even when the result is served from the cache.
+ */
+public final class CachingZKClient extends ForwardingZKClient {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CachingZKClient.class);
+
+  private enum CacheType {
+    EXISTS,
+    CHILDREN,
+    DATA
+  }
+
+  private final Map<CacheKey, CacheEntry<?>> cache;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public CachingZKClient(ZKClient delegate, final int maxSize) {
+    super(delegate);
+    Preconditions.checkArgument(maxSize > 0, "Cache size must be > 0.");
+    this.cache = new LinkedHashMap<CacheKey, CacheEntry<?>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry<?>> eldest) {
+        if (size() > maxSize) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return Number of calls served by a cached or pending result.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return Number of calls sent to ZooKeeper.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return Number of results evicted because the cache is full.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return Number of results currently cached.
+   */
+  public int getSize() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  @Override
+  public OperationFuture<Stat> exists(final String path, @Nullable Watcher watcher) {
+    return read(CacheType.EXISTS, path, watcher, new Reader<Stat>() {
+      @Override
+      public OperationFuture<Stat> read(Watcher cacheWatcher) {
+        return CachingZKClient.super.exists(path, cacheWatcher);
+      }
+    });
+  }
+
+  @Override
+  public OperationFuture<NodeChildren> getChildren(final String path, @Nullable Watcher watcher) {
+    return read(CacheType.CHILDREN, path, watcher, new Reader<NodeChildren>() {
+      @Override
+      public OperationFuture<NodeChildren> read(Watcher cacheWatcher) {
+        return CachingZKClient.super.getChildren(path, cacheWatcher);
+      }
+    });
+  }
+
+  @Override
+  public OperationFuture<NodeData> getData(final String path, @Nullable Watcher watcher) {
+    return read(CacheType.DATA, path, watcher, new Reader<NodeData>() {
+      @Override
+      public OperationFuture<NodeData> read(Watcher cacheWatcher) {
+        return CachingZKClient.super.getData(path, cacheWatcher);
+      }
+    });
+  }
+
+  @Override
+  public OperationFuture<String> create(String path, @Nullable byte[] data,
+                                        CreateMode createMode, boolean createParent) {
+    // Creating a node changes the parent, and possibly all ancestors when creating parents.
+    List<String> paths = Lists.newArrayList();
+    for (String p = path; !p.isEmpty(); p = getParent(p)) {
+      paths.add(p);
+    }
+    invalidate(paths);
+    return invalidateOnComplete(super.create(path, data, createMode, createParent), paths);
+  }
+
+  @Override
+  public OperationFuture<Stat> setData(String dataPath, byte[] data, int version) {
+    List<String> paths = ImmutableList.of(dataPath);
+    invalidate(paths);
+    return invalidateOnComplete(super.setData(dataPath, data, version), paths);
+  }
+
+  @Override
+  public OperationFuture<String> delete(String deletePath, int version) {
+    List<String> paths = ImmutableList.of(deletePath, getParent(deletePath));
+    invalidate(paths);
+    return invalidateOnComplete(super.delete(deletePath, version), paths);
+  }
+
+  @Override
+  public OperationFuture<List<OpResult>> multi(Iterable<ZKOp> ops) {
+    List<String> paths = Lists.newArrayList();
+    for (ZKOp op : ops) {
+      paths.add(op.getPath());
+      if (op.getType() == ZKOp.Type.CREATE || op.getType() == ZKOp.Type.DELETE) {
+        paths.add(getParent(op.getPath()));
+      }
+    }
+    invalidate(paths);
+    return invalidateOnComplete(super.multi(ops), paths);
+  }
+
+  /**
+   * Serves a read from the cache, or sends it to ZooKeeper when there is no cached result.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> OperationFuture<T> read(CacheType type, String path, @Nullable Watcher watcher, Reader<T> reader) {
+    CacheKey key = new CacheKey(type, path);
+    CacheEntry<T> entry;
+    synchronized (cache) {
+      CacheEntry<T> cached = (CacheEntry<T>) cache.get(key);
+      if (cached != null && cached.subscribe(watcher)) {
+        hits.incrementAndGet();
+        return cached.getFuture();
+      }
+      entry = new CacheEntry<T>(key, path);
+      entry.subscribe(watcher);
+      cache.put(key, entry);
+    }
+    misses.incrementAndGet();
+
+    final CacheEntry<T> newEntry = entry;
+    // The source is set before the callback is added, as the entry future calls listeners through it.
+    OperationFuture<T> source = reader.read(entry);
+    entry.setSource(source);
+    Futures.addCallback(source, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(T result) {
+        newEntry.getFuture().set(result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        remove(newEntry);
+        newEntry.getFuture().setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return newEntry.getFuture();
+  }
+
+  /**
+   * Removes the given entry from the cache if it is still the one being cached.
+   */
+  private void remove(CacheEntry<?> entry) {
+    synchronized (cache) {
+      if (cache.get(entry.getKey()) == entry) {
+        cache.remove(entry.getKey());
+      }
+    }
+  }
+
+  /**
+   * Removes all cached results of the given paths.
+   */
+  private void invalidate(Iterable<String> paths) {
+    synchronized (cache) {
+      for (String path : paths) {
+        for (CacheType type : CacheType.values()) {
+          cache.remove(new CacheKey(type, path));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a future that completes with the given future, after invalidating the cached results of the given paths.
+   */
+  private <V> OperationFuture<V> invalidateOnComplete(final OperationFuture<V> future, final List<String> paths) {
+    final SettableOperationFuture<V> result = SettableOperationFuture.create(future.getRequestPath(),
+                                                                             listenerExecutor(future));
+    Futures.addCallback(future, new FutureCallback<V>() {
+      @Override
+      public void onSuccess(V value) {
+        invalidate(paths);
+        result.set(value);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        invalidate(paths);
+        result.setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+    return result;
+  }
+
+  /**
+   * Returns an {@link Executor} that runs tasks the same way as listeners of the given future are called, which is
+   * from the event thread of the delegate client. It runs tasks right away only once the future is completed.
+   */
+  private static Executor listenerExecutor(final ListenableFuture<?> future) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        future.addListener(command, Threads.SAME_THREAD_EXECUTOR);
+      }
+    };
+  }
+
+  private static String getParent(String path) {
+    int idx = path.lastIndexOf('/');
+    return idx <= 0 ? (path.length() > 1 ? "/" : "") : path.substring(0, idx);
+  }
+
+  /**
+   * Performs the actual read for a cache entry, with the given {@link Watcher} for invalidating the entry.
+   */
+  private interface Reader<T> {
+    OperationFuture<T> read(Watcher cacheWatcher);
+  }
+
+  private static final class CacheKey {
+    private final CacheType type;
+    private final String path;
+
+    CacheKey(CacheType type, String path) {
+      this.type = type;
+      this.path = path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      CacheKey other = (CacheKey) o;
+      return type == other.type && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(type, path);
+    }
+  }
+
+  /**
+   * A cached result. It is also the {@link Watcher} set on ZooKeeper for the result, which fans out events
+   * to all subscribed watchers.
+   */
+  private final class CacheEntry<T> implements Watcher {
+
+    private final CacheKey key;
+    private final SettableOperationFuture<T> future;
+    private final List<Watcher> watchers;
+    private boolean triggered;
+    // Future of the read sent to the delegate. Listeners of the entry future are called through it.
+    private volatile ListenableFuture<T> source;
+
+    CacheEntry(CacheKey key, String path) {
+      this.key = key;
+      this.future = SettableOperationFuture.create(path, new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          listenerExecutor(source).execute(command);
+        }
+      });
+      this.watchers = Lists.newArrayList();
+    }
+
+    void setSource(ListenableFuture<T> source) {
+      this.source = source;
+    }
+
+    CacheKey getKey() {
+      return key;
+    }
+
+    SettableOperationFuture<T> getFuture() {
+      return future;
+    }
+
+    /**
+     * Adds the given watcher to be notified when the result changes.
+     *
+     * @return {@code false} if the result already changed, {@code true} otherwise.
+     */
+    synchronized boolean subscribe(@Nullable Watcher watcher) {
+      if (triggered) {
+        return false;
+      }
+      if (watcher != null) {
+        watchers.add(watcher);
+      }
+      return true;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+      List<Watcher> notifyWatchers;
+      if (event.getType() == Event.EventType.None && event.getState() != Event.KeeperState.Expired) {
+        // Connection state changed. The watch is still active, but the cached result might be stale.
+        remove(this);
+        synchronized (this) {
+          notifyWatchers = ImmutableList.copyOf(watchers);
+        }
+      } else {
+        remove(this);
+        synchronized (this) {
+          triggered = true;
+          notifyWatchers = ImmutableList.copyOf(watchers);
+          watchers.clear();
+        }
+      }
+
+      for (Watcher watcher : notifyWatchers) {
+        try {
+          watcher.process(event);
+        } catch (Throwable t) {
+          LOG.error("Watcher throws exception.", t);
+        }
+      }
+    }
+  }
+}
@@ -20,9 +20,11 @@ import com.continuuity.weave.zookeeper.NodeChildren;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.OperationFuture;
 import com.continuuity.weave.zookeeper.ZKClientService;
+import com.continuuity.weave.zookeeper.ZKOp;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.AbstractService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -31,6 +33,8 @@ import com.google.common.util.concurrent.Service;
 import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
@@ -58,17 +62,62 @@ public final class DefaultZKClientService implements ZKClientService {
 
   private static final Logger LOG = LoggerFactory.getLogger(DefaultZKClientService.class);
 
+  public static final int DEFAULT_MULTI_THREADS = 4;
+
   private final String zkStr;
   private final int sessionTimeout;
   private final List<Watcher> connectionWatchers;
   private final AtomicReference<ZooKeeper> zooKeeper;
   private final Function<String, List<ACL>> aclMapper;
   private final Service serviceDelegate;
-  private ExecutorService eventExecutor;
+  private final int eventThreads;
+  private final int multiThreads;
+  private final long slowCallbackThreshold;
+  private EventDispatcher eventDispatcher;
+  private ExecutorService multiExecutor;
 
   public DefaultZKClientService(String zkStr, int sessionTimeout, Watcher connectionWatcher) {
+    this(zkStr, sessionTimeout, connectionWatcher, 1, 1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param zkStr ZooKeeper connection string.
+   * @param sessionTimeout Session timeout in milliseconds.
+   * @param connectionWatcher Watcher to be called on connection state changes, or {@code null} if not needed.
+   * @param eventThreads Number of threads for dispatching callbacks and watcher events. Events of the same path
+   *                     are always dispatched by the same thread in order.
+   * @param slowCallbackThreshold Time that a callback can take before it is logged as slow.
+   * @param unit Unit for the threshold.
+   */
+  public DefaultZKClientService(String zkStr, int sessionTimeout, @Nullable Watcher connectionWatcher,
+                                int eventThreads, long slowCallbackThreshold, TimeUnit unit) {
+    this(zkStr, sessionTimeout, connectionWatcher, eventThreads, DEFAULT_MULTI_THREADS, slowCallbackThreshold, unit);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param zkStr ZooKeeper connection string.
+   * @param sessionTimeout Session timeout in milliseconds.
+   * @param connectionWatcher Watcher to be called on connection state changes, or {@code null} if not needed.
+   * @param eventThreads Number of threads for dispatching callbacks and watcher events. Events of the same path
+   *                     are always dispatched by the same thread in order.
+   * @param multiThreads Maximum number of {@link #multi(Iterable) multi} calls that run concurrently. Each of them
+   *                     takes a thread while waiting for the result.
+   * @param slowCallbackThreshold Time that a callback can take before it is logged as slow.
+   * @param unit Unit for the threshold.
+   */
+  public DefaultZKClientService(String zkStr, int sessionTimeout, @Nullable Watcher connectionWatcher,
+                                int eventThreads, int multiThreads, long slowCallbackThreshold, TimeUnit unit) {
+    Preconditions.checkArgument(eventThreads > 0, "Number of event threads must be > 0.");
+    Preconditions.checkArgument(multiThreads > 0, "Number of multi threads must be > 0.");
     this.zkStr = zkStr;
     this.sessionTimeout = sessionTimeout;
+    this.eventThreads = eventThreads;
+    this.multiThreads = multiThreads;
+    this.slowCallbackThreshold = unit.toNanos(slowCallbackThreshold);
     this.connectionWatchers = new CopyOnWriteArrayList<Watcher>();
     addConnectionWatcher(connectionWatcher);
 
@@ -95,6 +144,46 @@ public final class DefaultZKClientService implements ZKClientService {
     return zkStr;
   }
 
+  /**
+   * @return Number of callbacks and watcher events waiting to be dispatched.
+   */
+  public int getQueuedEvents() {
+    EventDispatcher dispatcher = eventDispatcher;
+    return dispatcher == null ? 0 : dispatcher.getQueueSize();
+  }
+
+  /**
+   * @return Number of callbacks and watcher events dispatched since the client started.
+   */
+  public long getDispatchedEvents() {
+    EventDispatcher dispatcher = eventDispatcher;
+    return dispatcher == null ? 0L : dispatcher.getCallbackCount();
+  }
+
+  /**
+   * @return Total time spent in callbacks and watchers since the client started.
+   */
+  public long getCallbackTime(TimeUnit unit) {
+    EventDispatcher dispatcher = eventDispatcher;
+    return dispatcher == null ? 0L : dispatcher.getCallbackTime(unit);
+  }
+
+  /**
+   * @return The longest time spent in a single callback or watcher since the client started.
+   */
+  public long getMaxCallbackTime(TimeUnit unit) {
+    EventDispatcher dispatcher = eventDispatcher;
+    return dispatcher == null ? 0L : dispatcher.getMaxCallbackTime(unit);
+  }
+
+  /**
+   * @return Number of callbacks and watchers that took longer than the slow callback threshold.
+   */
+  public long getSlowCallbacks() {
+    EventDispatcher dispatcher = eventDispatcher;
+    return dispatcher == null ? 0L : dispatcher.getSlowCallbackCount();
+  }
+
   @Override
   public void addConnectionWatcher(Watcher watcher) {
     if (watcher != null) {
@@ -118,14 +207,14 @@ public final class DefaultZKClientService implements ZKClientService {
                                         final CreateMode createMode,
                                         final boolean createParent,
                                         final boolean ignoreNodeExists) {
-    final SettableOperationFuture<String> createFuture = SettableOperationFuture.create(path, eventExecutor);
+    final SettableOperationFuture<String> createFuture = newOperationFuture(path);
     getZooKeeper().create(path, data, aclMapper.apply(path), createMode, Callbacks.STRING, createFuture);
     if (!createParent) {
       return createFuture;
     }
 
     // If create parent is request, return a different future
-    final SettableOperationFuture<String> result = SettableOperationFuture.create(path, eventExecutor);
+    final SettableOperationFuture<String> result = newOperationFuture(path);
     // Watch for changes in the original future
     Futures.addCallback(createFuture, new FutureCallback<String>() {
       @Override
@@ -223,7 +312,7 @@ public final class DefaultZKClientService implements ZKClientService {
 
   @Override
   public OperationFuture<Stat> exists(String path, Watcher watcher) {
-    SettableOperationFuture<Stat> result = SettableOperationFuture.create(path, eventExecutor);
+    SettableOperationFuture<Stat> result = newOperationFuture(path);
     getZooKeeper().exists(path, wrapWatcher(watcher), Callbacks.STAT_NONODE, result);
     return result;
   }
@@ -235,7 +324,7 @@ public final class DefaultZKClientService implements ZKClientService {
 
   @Override
   public OperationFuture<NodeChildren> getChildren(String path, Watcher watcher) {
-    SettableOperationFuture<NodeChildren> result = SettableOperationFuture.create(path, eventExecutor);
+    SettableOperationFuture<NodeChildren> result = newOperationFuture(path);
     getZooKeeper().getChildren(path, wrapWatcher(watcher), Callbacks.CHILDREN, result);
     return result;
   }
@@ -247,7 +336,7 @@ public final class DefaultZKClientService implements ZKClientService {
 
   @Override
   public OperationFuture<NodeData> getData(String path, Watcher watcher) {
-    SettableOperationFuture<NodeData> result = SettableOperationFuture.create(path, eventExecutor);
+    SettableOperationFuture<NodeData> result = newOperationFuture(path);
     getZooKeeper().getData(path, wrapWatcher(watcher), Callbacks.DATA, result);
 
     return result;
@@ -260,7 +349,7 @@ public final class DefaultZKClientService implements ZKClientService {
 
   @Override
   public OperationFuture<Stat> setData(String dataPath, byte[] data, int version) {
-    SettableOperationFuture<Stat> result = SettableOperationFuture.create(dataPath, eventExecutor);
+    SettableOperationFuture<Stat> result = newOperationFuture(dataPath);
     getZooKeeper().setData(dataPath, data, version, Callbacks.STAT, result);
     return result;
   }
@@ -272,11 +361,53 @@ public final class DefaultZKClientService implements ZKClientService {
 
   @Override
   public OperationFuture<String> delete(String deletePath, int version) {
-    SettableOperationFuture<String> result = SettableOperationFuture.create(deletePath, eventExecutor);
+    SettableOperationFuture<String> result = newOperationFuture(deletePath);
     getZooKeeper().delete(deletePath, version, Callbacks.VOID, result);
     return result;
   }
 
+  @Override
+  public OperationFuture<List<OpResult>> multi(Iterable<ZKOp> ops) {
+    final List<Op> zkOps = Lists.newArrayList();
+    for (ZKOp op : ops) {
+      zkOps.add(toOp(op));
+    }
+    String path = zkOps.isEmpty() ? "/" : zkOps.get(0).getPath();
+    final SettableOperationFuture<List<OpResult>> result = newOperationFuture(path);
+
+    // ZooKeeper 3.4 only has blocking multi, hence call it from a separate thread to keep this method asynchronous.
+    // Up to multiThreads calls run concurrently, the rest are queued.
+    multiExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          result.set(getZooKeeper().multi(zkOps));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          result.setException(e);
+        } catch (Throwable t) {
+          result.setException(t);
+        }
+      }
+    });
+    return result;
+  }
+
+  private Op toOp(ZKOp op) {
+    switch (op.getType()) {
+      case CREATE:
+        return Op.create(op.getPath(), op.getData(), aclMapper.apply(op.getPath()), op.getCreateMode());
+      case SET_DATA:
+        return Op.setData(op.getPath(), op.getData(), op.getVersion());
+      case DELETE:
+        return Op.delete(op.getPath(), op.getVersion());
+      case CHECK:
+        return Op.check(op.getPath(), op.getVersion());
+      default:
+        throw new IllegalArgumentException("Unsupported operation " + op);
+    }
+  }
+
   @Override
   public Supplier<ZooKeeper> getZooKeeperSupplier() {
     return new Supplier<ZooKeeper>() {
@@ -322,6 +453,13 @@ public final class DefaultZKClientService implements ZKClientService {
     serviceDelegate.addListener(listener, executor);
   }
 
+  /**
+   * Creates a {@link SettableOperationFuture} that calls listeners from the event executor of the given path.
+   */
+  private <V> SettableOperationFuture<V> newOperationFuture(String path) {
+    return SettableOperationFuture.create(path, eventDispatcher.getExecutor(path));
+  }
+
   /**
    * @return Current {@link ZooKeeper} client.
    */
@@ -332,7 +470,7 @@ public final class DefaultZKClientService implements ZKClientService {
   }
 
   /**
-   * Wraps the given watcher to be called from the event executor.
+   * Wraps the given watcher to be called from the event executor of the event path.
    * @param watcher Watcher to be wrapped
    * @return The wrapped Watcher
    */
@@ -343,7 +481,7 @@ public final class DefaultZKClientService implements ZKClientService {
     return new Watcher() {
       @Override
       public void process(final WatchedEvent event) {
-        eventExecutor.execute(new Runnable() {
+        eventDispatcher.getExecutor(event.getPath()).execute(new Runnable() {
           @Override
           public void run() {
             try {
@@ -361,15 +499,19 @@ public final class DefaultZKClientService implements ZKClientService {
 
     @Override
     protected void doStart() {
-      // A single thread executor
-      eventExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
-                                             Threads.createDaemonThreadFactory("zk-client-EventThread")) {
+      eventDispatcher = new EventDispatcher(eventThreads, slowCallbackThreshold, TimeUnit.NANOSECONDS, new Runnable() {
         @Override
-        protected void terminated() {
-          super.terminated();
+        public void run() {
           notifyStopped();
         }
-      };
+      });
+
+      // Threads are only kept while there are multi calls.
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(multiThreads, multiThreads, 60, TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue<Runnable>(),
+                                                           Threads.createDaemonThreadFactory("zk-client-multi-%d"));
+      executor.allowCoreThreadTimeOut(true);
+      multiExecutor = executor;
 
       try {
         zooKeeper.set(new ZooKeeper(zkStr, sessionTimeout, this));
@@ -387,7 +529,8 @@ public final class DefaultZKClientService implements ZKClientService {
         } catch (InterruptedException e) {
           notifyFailed(e);
         } finally {
-          eventExecutor.shutdown();
+          multiExecutor.shutdown();
+          eventDispatcher.shutdown();
         }
       }
     }
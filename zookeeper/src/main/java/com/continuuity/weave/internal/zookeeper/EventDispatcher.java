@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.zookeeper;
+
+import com.continuuity.weave.common.Threads;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches ZooKeeper callbacks and watcher events to a fixed set of threads. Each path is always served by
+ * the same thread, based on the hash of the path, so that events of the same path are delivered in order, while
+ * a slow callback only delays events of paths sharing the same thread.
+ */
+final class EventDispatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EventDispatcher.class);
+
+  private final ThreadPoolExecutor[] executors;
+  private final long slowCallbackNanos;
+  private final Runnable terminationCallback;
+  private final AtomicInteger running;
+  private final AtomicLong callbacks = new AtomicLong();
+  private final AtomicLong callbackNanos = new AtomicLong();
+  private final AtomicLong maxCallbackNanos = new AtomicLong();
+  private final AtomicLong slowCallbacks = new AtomicLong();
+
+  /**
+   * Creates a new instance.
+   *
+   * @param threads Number of dispatch threads.
+   * @param slowCallbackThreshold Time that a callback can take before it is logged as slow.
+   * @param unit Unit for the threshold.
+   * @param terminationCallback Called when all pending events are dispatched after {@link #shutdown()}.
+   */
+  EventDispatcher(int threads, long slowCallbackThreshold, TimeUnit unit, Runnable terminationCallback) {
+    Preconditions.checkArgument(threads > 0, "Number of event threads must be > 0.");
+    this.slowCallbackNanos = unit.toNanos(slowCallbackThreshold);
+    this.terminationCallback = terminationCallback;
+    this.running = new AtomicInteger(threads);
+    this.executors = new ThreadPoolExecutor[threads];
+    for (int i = 0; i < threads; i++) {
+      String name = threads == 1 ? "zk-client-EventThread" : "zk-client-EventThread-" + i;
+      executors[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                                            Threads.createDaemonThreadFactory(name));
+    }
+  }
+
+  /**
+   * Returns an {@link Executor} that runs tasks on the thread serving the given path.
+   *
+   * @param path The path that the tasks are for, or {@code null} for events not related to any path.
+   */
+  Executor getExecutor(@Nullable final String path) {
+    final ThreadPoolExecutor executor = executors[executors.length == 1 || path == null
+                                                    ? 0 : (path.hashCode() & Integer.MAX_VALUE) % executors.length];
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        executor.execute(new TimedRunnable(path, command));
+      }
+    };
+  }
+
+  void shutdown() {
+    // The termination callback is run as the last task instead of from ThreadPoolExecutor.terminated(), which is
+    // called with the executor lock held and could deadlock with the caller of shutdown().
+    for (ThreadPoolExecutor executor : executors) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (running.decrementAndGet() == 0) {
+            terminationCallback.run();
+          }
+        }
+      });
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * @return Number of events waiting to be dispatched.
+   */
+  int getQueueSize() {
+    int size = 0;
+    for (ThreadPoolExecutor executor : executors) {
+      size += executor.getQueue().size();
+    }
+    return size;
+  }
+
+  /**
+   * @return Number of callbacks completed.
+   */
+  long getCallbackCount() {
+    return callbacks.get();
+  }
+
+  /**
+   * @return Total time spent in running callbacks.
+   */
+  long getCallbackTime(TimeUnit unit) {
+    return unit.convert(callbackNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return The longest time spent in a single callback.
+   */
+  long getMaxCallbackTime(TimeUnit unit) {
+    return unit.convert(maxCallbackNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return Number of callbacks that took longer than the slow callback threshold.
+   */
+  long getSlowCallbackCount() {
+    return slowCallbacks.get();
+  }
+
+  private void completed(@Nullable String path, long nanos) {
+    callbacks.incrementAndGet();
+    callbackNanos.addAndGet(nanos);
+
+    long max = maxCallbackNanos.get();
+    while (nanos > max && !maxCallbackNanos.compareAndSet(max, nanos)) {
+      max = maxCallbackNanos.get();
+    }
+
+    if (nanos >= slowCallbackNanos) {
+      slowCallbacks.incrementAndGet();
+      LOG.warn("Slow ZooKeeper callback for path {} took {} ms in thread {}, with {} events queued.",
+               new Object[] {path, TimeUnit.NANOSECONDS.toMillis(nanos),
+                             Thread.currentThread().getName(), getQueueSize()});
+    }
+  }
+
+  /**
+   * A {@link Runnable} that measures the time of the wrapped task.
+   */
+  private final class TimedRunnable implements Runnable {
+
+    private final String path;
+    private final Runnable command;
+
+    TimedRunnable(@Nullable String path, Runnable command) {
+      this.path = path;
+      this.command = command;
+    }
+
+    @Override
+    public void run() {
+      long startTime = System.nanoTime();
+      try {
+        command.run();
+      } finally {
+        completed(path, System.nanoTime() - startTime);
+      }
+    }
+  }
+}
@@ -23,13 +23,17 @@ import com.continuuity.weave.zookeeper.OperationFuture;
 import com.continuuity.weave.zookeeper.RetryStrategy;
 import com.continuuity.weave.zookeeper.RetryStrategy.OperationType;
 import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOp;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -178,6 +182,34 @@ public final class FailureRetryZKClient extends ForwardingZKClient {
     return result;
   }
 
+  @Override
+  public OperationFuture<List<OpResult>> multi(Iterable<ZKOp> ops) {
+    final List<ZKOp> opList = ImmutableList.copyOf(ops);
+
+    // Same as create, no retry if there is any SEQUENTIAL node creation.
+    for (ZKOp op : opList) {
+      if (op.getCreateMode() == CreateMode.PERSISTENT_SEQUENTIAL
+        || op.getCreateMode() == CreateMode.EPHEMERAL_SEQUENTIAL) {
+        return super.multi(opList);
+      }
+    }
+
+    OperationFuture<List<OpResult>> future = super.multi(opList);
+    String path = future.getRequestPath();
+    final SettableOperationFuture<List<OpResult>> result = SettableOperationFuture.create(path,
+                                                                                          Threads.SAME_THREAD_EXECUTOR);
+    Futures.addCallback(future,
+                        new OperationFutureCallback<List<OpResult>>(OperationType.MULTI, System.currentTimeMillis(),
+                                                                    path, result,
+                                                                    new Supplier<OperationFuture<List<OpResult>>>() {
+                          @Override
+                          public OperationFuture<List<OpResult>> get() {
+                            return FailureRetryZKClient.super.multi(opList);
+                          }
+                        }));
+    return result;
+  }
+
   /**
    * Callback to watch for operation result and trigger retry if necessary.
    * @param <V> Type of operation result.
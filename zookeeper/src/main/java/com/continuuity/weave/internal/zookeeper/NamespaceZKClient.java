@@ -21,13 +21,18 @@ import com.continuuity.weave.zookeeper.NodeChildren;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.OperationFuture;
 import com.continuuity.weave.zookeeper.ZKClient;
+import com.continuuity.weave.zookeeper.ZKOp;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 
 import javax.annotation.Nullable;
+import java.util.List;
 
 /**
  * A {@link ZKClient} that namespace every paths.
@@ -124,6 +129,39 @@ public final class NamespaceZKClient extends ForwardingZKClient {
     return relayPath(delegate.delete(namespace + deletePath, version), this.<String>createFuture(deletePath));
   }
 
+  @Override
+  public OperationFuture<List<OpResult>> multi(Iterable<ZKOp> ops) {
+    List<ZKOp> namespacedOps = Lists.newArrayList();
+    for (ZKOp op : ops) {
+      namespacedOps.add(op.withPath(namespace + op.getPath()));
+    }
+    final OperationFuture<List<OpResult>> from = delegate.multi(namespacedOps);
+    final SettableOperationFuture<List<OpResult>> to = SettableOperationFuture.create(from.getRequestPath(),
+                                                                                      Threads.SAME_THREAD_EXECUTOR);
+    Futures.addCallback(from, new FutureCallback<List<OpResult>>() {
+      @Override
+      public void onSuccess(List<OpResult> results) {
+        // Strip the namespace from paths of created nodes
+        ImmutableList.Builder<OpResult> builder = ImmutableList.builder();
+        for (OpResult result : results) {
+          if (result instanceof OpResult.CreateResult) {
+            String path = ((OpResult.CreateResult) result).getPath();
+            builder.add(new OpResult.CreateResult(path.substring(namespace.length())));
+          } else {
+            builder.add(result);
+          }
+        }
+        to.set(builder.build());
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        to.setException(t);
+      }
+    });
+    return to;
+  }
+
   private <V> SettableOperationFuture<V> createFuture(String path) {
     return SettableOperationFuture.create(namespace + path, Threads.SAME_THREAD_EXECUTOR);
   }
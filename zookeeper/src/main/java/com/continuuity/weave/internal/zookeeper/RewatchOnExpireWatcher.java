@@ -17,9 +17,14 @@ package com.continuuity.weave.internal.zookeeper;
 
 import com.continuuity.weave.zookeeper.NodeChildren;
 import com.continuuity.weave.zookeeper.NodeData;
+import com.continuuity.weave.zookeeper.RetryStrategy;
+import com.continuuity.weave.zookeeper.SessionRecovery;
 import com.continuuity.weave.zookeeper.ZKClient;
+import com.google.common.base.Supplier;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -43,13 +48,16 @@ final class RewatchOnExpireWatcher implements Watcher {
   }
 
   private final ZKClient client;
+  private final SessionRecovery recovery;
   private final ActionType actionType;
   private final String path;
   private final Watcher delegate;
   private final AtomicMarkableReference<Object> lastResult;
 
-  RewatchOnExpireWatcher(ZKClient client, ActionType actionType, String path, Watcher delegate) {
+  RewatchOnExpireWatcher(ZKClient client, SessionRecovery recovery,
+                         ActionType actionType, String path, Watcher delegate) {
     this.client = client;
+    this.recovery = recovery;
     this.actionType = actionType;
     this.path = path;
     this.delegate = delegate;
@@ -76,20 +84,41 @@ final class RewatchOnExpireWatcher implements Watcher {
     if (event.getState() != Event.KeeperState.Expired) {
       return;
     }
+
+    // Re-set the watch through the session recovery, which limits the rate and retries on failure.
+    recovery.submit(getOperationType(), path, new Supplier<ListenableFuture<?>>() {
+      @Override
+      public ListenableFuture<?> get() {
+        switch (actionType) {
+          case EXISTS:
+            return exists();
+          case CHILDREN:
+            return children();
+          default:
+            return data();
+        }
+      }
+    });
+  }
+
+  private RetryStrategy.OperationType getOperationType() {
     switch (actionType) {
       case EXISTS:
-        exists();
-        break;
+        return RetryStrategy.OperationType.EXISTS;
       case CHILDREN:
-        children();
-        break;
-      case DATA:
-        data();
-        break;
+        return RetryStrategy.OperationType.GET_CHILDREN;
+      default:
+        return RetryStrategy.OperationType.GET_DATA;
     }
   }
 
-  private void exists() {
+  /**
+   * Re-sets the exists watch.
+   *
+   * @return A future that fails if the operation can be retried.
+   */
+  private ListenableFuture<?> exists() {
+    final SettableFuture<Void> completion = SettableFuture.create();
     Futures.addCallback(client.exists(path, this), new FutureCallback<Stat>() {
       @Override
       public void onSuccess(Stat stat) {
@@ -109,24 +138,34 @@ final class RewatchOnExpireWatcher implements Watcher {
             process(new WatchedEvent(Event.EventType.NodeDataChanged, Event.KeeperState.SyncConnected, path));
           }
         }
+        completion.set(null);
       }
 
       @Override
       public void onFailure(Throwable t) {
         if (RetryUtils.canRetry(t)) {
-          exists();
-        } else {
-          lastResult.set(null, false);
-          LOG.error("Fail to re-set watch on exists for path " + path, t);
+          completion.setException(t);
+          return;
         }
+        lastResult.set(null, false);
+        LOG.error("Fail to re-set watch on exists for path " + path, t);
+        completion.set(null);
       }
     });
+    return completion;
   }
 
-  private void children() {
+  /**
+   * Re-sets the children watch.
+   *
+   * @return A future that fails if the operation can be retried.
+   */
+  private ListenableFuture<?> children() {
+    final SettableFuture<Void> completion = SettableFuture.create();
     Futures.addCallback(client.getChildren(path, this), new FutureCallback<NodeChildren>() {
       @Override
       public void onSuccess(NodeChildren result) {
+        completion.set(null);
         Object oldResult = lastResult.getReference();
         lastResult.compareAndSet(oldResult, null, true, false);
 
@@ -151,10 +190,11 @@ final class RewatchOnExpireWatcher implements Watcher {
       @Override
       public void onFailure(Throwable t) {
         if (RetryUtils.canRetry(t)) {
-          children();
+          completion.setException(t);
           return;
         }
 
+        completion.set(null);
         lastResult.set(null, false);
         if (t instanceof KeeperException) {
           KeeperException.Code code = ((KeeperException) t).code();
@@ -167,12 +207,20 @@ final class RewatchOnExpireWatcher implements Watcher {
         LOG.error("Fail to re-set watch on getChildren for path " + path, t);
       }
     });
+    return completion;
   }
 
-  private void data() {
+  /**
+   * Re-sets the data watch.
+   *
+   * @return A future that fails if the operation can be retried.
+   */
+  private ListenableFuture<?> data() {
+    final SettableFuture<Void> completion = SettableFuture.create();
     Futures.addCallback(client.getData(path, this), new FutureCallback<NodeData>() {
       @Override
       public void onSuccess(NodeData result) {
+        completion.set(null);
         Object oldResult = lastResult.getReference();
         lastResult.compareAndSet(oldResult, null, true, false);
 
@@ -185,10 +233,11 @@ final class RewatchOnExpireWatcher implements Watcher {
       @Override
       public void onFailure(Throwable t) {
         if (RetryUtils.canRetry(t)) {
-          data();
+          completion.setException(t);
           return;
         }
 
+        completion.set(null);
         lastResult.set(null, false);
         if (t instanceof KeeperException) {
           KeeperException.Code code = ((KeeperException) t).code();
@@ -201,5 +250,6 @@ final class RewatchOnExpireWatcher implements Watcher {
         LOG.error("Fail to re-set watch on getData for path " + path, t);
       }
     });
+    return completion;
   }
 }
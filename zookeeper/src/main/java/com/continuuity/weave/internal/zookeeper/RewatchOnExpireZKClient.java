@@ -20,6 +20,7 @@ import com.continuuity.weave.zookeeper.ForwardingZKClient;
 import com.continuuity.weave.zookeeper.NodeChildren;
 import com.continuuity.weave.zookeeper.NodeData;
 import com.continuuity.weave.zookeeper.OperationFuture;
+import com.continuuity.weave.zookeeper.SessionRecovery;
 import com.continuuity.weave.zookeeper.ZKClient;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -32,13 +33,17 @@ import org.apache.zookeeper.data.Stat;
  */
 public final class RewatchOnExpireZKClient extends ForwardingZKClient {
 
+  private final SessionRecovery recovery;
+
   public RewatchOnExpireZKClient(ZKClient delegate) {
     super(delegate);
+    this.recovery = SessionRecovery.of(delegate);
   }
 
   @Override
   public OperationFuture<Stat> exists(String path, Watcher watcher) {
-    final RewatchOnExpireWatcher wrappedWatcher = new RewatchOnExpireWatcher(this, ActionType.EXISTS, path, watcher);
+    final RewatchOnExpireWatcher wrappedWatcher = new RewatchOnExpireWatcher(this, recovery, ActionType.EXISTS,
+                                                                             path, watcher);
     OperationFuture<Stat> result = super.exists(path, wrappedWatcher);
     Futures.addCallback(result, new FutureCallback<Stat>() {
       @Override
@@ -56,7 +61,8 @@ public final class RewatchOnExpireZKClient extends ForwardingZKClient {
 
   @Override
   public OperationFuture<NodeChildren> getChildren(String path, Watcher watcher) {
-    final RewatchOnExpireWatcher wrappedWatcher = new RewatchOnExpireWatcher(this, ActionType.CHILDREN, path, watcher);
+    final RewatchOnExpireWatcher wrappedWatcher = new RewatchOnExpireWatcher(this, recovery, ActionType.CHILDREN,
+                                                                             path, watcher);
     OperationFuture<NodeChildren> result = super.getChildren(path, wrappedWatcher);
     Futures.addCallback(result, new FutureCallback<NodeChildren>() {
       @Override
@@ -74,7 +80,8 @@ public final class RewatchOnExpireZKClient extends ForwardingZKClient {
 
   @Override
   public OperationFuture<NodeData> getData(String path, Watcher watcher) {
-    final RewatchOnExpireWatcher wrappedWatcher = new RewatchOnExpireWatcher(this, ActionType.DATA, path, watcher);
+    final RewatchOnExpireWatcher wrappedWatcher = new RewatchOnExpireWatcher(this, recovery, ActionType.DATA,
+                                                                             path, watcher);
     OperationFuture<NodeData> result = super.getData(path, wrappedWatcher);
     Futures.addCallback(result, new FutureCallback<NodeData>() {
       @Override
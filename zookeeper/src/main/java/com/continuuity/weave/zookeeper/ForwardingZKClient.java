@@ -16,10 +16,12 @@
 package com.continuuity.weave.zookeeper;
 
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 
 import javax.annotation.Nullable;
+import java.util.List;
 
 /**
  *
@@ -111,4 +113,9 @@ public abstract class ForwardingZKClient implements ZKClient {
   public OperationFuture<String> delete(String deletePath, int version) {
     return delegate.delete(deletePath, version);
   }
+
+  @Override
+  public OperationFuture<List<OpResult>> multi(Iterable<ZKOp> ops) {
+    return delegate.multi(ops);
+  }
 }
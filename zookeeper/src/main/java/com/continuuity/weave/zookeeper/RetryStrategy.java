@@ -29,7 +29,8 @@ public interface RetryStrategy {
     GET_CHILDREN,
     GET_DATA,
     SET_DATA,
-    DELETE
+    DELETE,
+    MULTI
   }
 
   /**
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.zookeeper;
+
+import com.continuuity.weave.common.Cancellable;
+import com.continuuity.weave.common.Threads;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work needed to recover from a ZooKeeper session expiration, such as re-setting watches and re-creating
+ * ephemeral nodes, for all users of the same {@link ZKClientService}.
+ * <p>
+ * Recovery tasks are started at a bounded rate in batches, with a bounded number of them running at the same time,
+ * so that a client with thousands of watches doesn't flood the quorum right after reconnect. Tasks are only
+ * started while the client is connected. A failed task is retried based on a {@link RetryStrategy}.
+ * Once all tasks submitted for an expiration are completed, registered {@link Listener Listeners} are notified
+ * with the recovery latency, measured from the time that the expiration is detected.
+ * </p>
+ */
+public final class SessionRecovery {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SessionRecovery.class);
+
+  /**
+   * Maximum number of tasks started per second.
+   */
+  private static final int MAX_RATE = 500;
+
+  /**
+   * Interval between starting batches of tasks.
+   */
+  private static final long BATCH_INTERVAL_MILLIS = 100;
+
+  /**
+   * Maximum number of tasks running at the same time.
+   */
+  private static final int MAX_RUNNING = 100;
+
+  /**
+   * Maximum number of times a failed task is retried, about 40 seconds with the exponential backoff, before it is
+   * reported as a failure of the recovery.
+   */
+  private static final int MAX_RETRIES = 10;
+
+  private static final Map<ZKClient, SessionRecovery> RECOVERIES = new WeakHashMap<ZKClient, SessionRecovery>();
+
+  // Shared by all instances. It only starts tasks and never blocks.
+  private static final ScheduledExecutorService SCHEDULER =
+    Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("zk-session-recovery"));
+
+  /**
+   * Listener for recovery completion.
+   */
+  public interface Listener {
+
+    /**
+     * Invoked when all recovery tasks submitted for a session expiration are completed.
+     *
+     * @param tasks Number of tasks submitted.
+     * @param failures Number of tasks that failed and are not retried anymore.
+     * @param latency Time in milliseconds from the expiration detected till all tasks completed.
+     */
+    void recovered(int tasks, int failures, long latency);
+  }
+
+  private final RetryStrategy retryStrategy;
+  private final List<ListenerCaller> listeners;
+  private final Queue<RecoveryTask> tasks;
+  private int running;
+  private int waitingRetries;
+  private boolean connected;
+  private boolean batchScheduled;
+  private long lastBatchTime;
+
+  // Recovery state
+  private boolean recovering;
+  private long recoveryStartTime;
+  private int recoveryTasks;
+  private int recoveryFailures;
+  private volatile long recoveryCount;
+  private volatile long lastLatency;
+
+  /**
+   * Returns the {@link SessionRecovery} of the underlying {@link ZKClient} that the given {@link ZKClient}
+   * delegates to, so that all decorators of the same {@link ZKClientService} share the same instance.
+   *
+   * @param zkClient The {@link ZKClient}, which can be a {@link ForwardingZKClient}.
+   * @return The shared {@link SessionRecovery}.
+   */
+  public static SessionRecovery of(ZKClient zkClient) {
+    ZKClient client = zkClient;
+    while (client instanceof ForwardingZKClient) {
+      client = ((ForwardingZKClient) client).getDelegate();
+    }
+    synchronized (RECOVERIES) {
+      SessionRecovery recovery = RECOVERIES.get(client);
+      if (recovery == null) {
+        recovery = new SessionRecovery(
+          RetryStrategies.limit(MAX_RETRIES, RetryStrategies.exponentialDelay(100, 10000, TimeUnit.MILLISECONDS)));
+        client.addConnectionWatcher(recovery.createConnectionWatcher());
+        RECOVERIES.put(client, recovery);
+      }
+      return recovery;
+    }
+  }
+
+  private SessionRecovery(RetryStrategy retryStrategy) {
+    this.retryStrategy = retryStrategy;
+    this.listeners = new CopyOnWriteArrayList<ListenerCaller>();
+    this.tasks = Lists.newLinkedList();
+    this.connected = true;
+  }
+
+  /**
+   * Submits a recovery task. If no recovery is in progress, submitting a task starts one.
+   *
+   * @param type Type of operation performed by the task, for the {@link RetryStrategy}.
+   * @param path The path that the task is acting on.
+   * @param task Supplier of the future that reflects the completion of the task. A failed future or an exception
+   *             thrown from the supplier causes the task to be retried.
+   */
+  public void submit(RetryStrategy.OperationType type, String path, Supplier<? extends ListenableFuture<?>> task) {
+    synchronized (this) {
+      startRecovery();
+      recoveryTasks++;
+      tasks.add(new RecoveryTask(type, path, task));
+    }
+    startTasks();
+  }
+
+  /**
+   * Adds a {@link Listener} to be notified when recovery completes.
+   *
+   * @param listener The listener.
+   * @param executor The {@link Executor} to call the listener.
+   * @return A {@link Cancellable} to remove the listener.
+   */
+  public Cancellable addListener(Listener listener, Executor executor) {
+    final ListenerCaller caller = new ListenerCaller(listener, executor);
+    listeners.add(caller);
+    return new Cancellable() {
+      @Override
+      public void cancel() {
+        listeners.remove(caller);
+      }
+    };
+  }
+
+  /**
+   * @return {@code true} if there is recovery in progress.
+   */
+  public synchronized boolean isRecovering() {
+    return recovering;
+  }
+
+  /**
+   * @return Number of tasks that are not completed yet.
+   */
+  public synchronized int getPendingTasks() {
+    return tasks.size() + running + waitingRetries;
+  }
+
+  /**
+   * @return Number of recoveries completed.
+   */
+  public long getRecoveryCount() {
+    return recoveryCount;
+  }
+
+  /**
+   * @return Latency of the last completed recovery.
+   */
+  public long getLastRecoveryLatency(TimeUnit unit) {
+    return unit.convert(lastLatency, TimeUnit.MILLISECONDS);
+  }
+
+  private Watcher createConnectionWatcher() {
+    return new Watcher() {
+      @Override
+      public void process(WatchedEvent event) {
+        switch (event.getState()) {
+          case Expired:
+            LOG.info("ZooKeeper session expired. Start recovery.");
+            synchronized (SessionRecovery.this) {
+              connected = false;
+              startRecovery();
+            }
+            break;
+          case Disconnected:
+            synchronized (SessionRecovery.this) {
+              connected = false;
+            }
+            break;
+          case SyncConnected:
+            synchronized (SessionRecovery.this) {
+              connected = true;
+            }
+            startTasks();
+            checkCompletion();
+            break;
+          default:
+            break;
+        }
+      }
+    };
+  }
+
+  /**
+   * Marks the start of a recovery if there isn't one in progress. Must be called while holding the lock.
+   */
+  private void startRecovery() {
+    if (!recovering) {
+      recovering = true;
+      recoveryStartTime = System.currentTimeMillis();
+      recoveryTasks = 0;
+      recoveryFailures = 0;
+    }
+  }
+
+  /**
+   * Starts the next batch of tasks if allowed, otherwise schedules it for later.
+   */
+  private void startTasks() {
+    List<RecoveryTask> batch = Lists.newArrayList();
+    synchronized (this) {
+      if (!connected || batchScheduled || tasks.isEmpty()) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      long delay = lastBatchTime + BATCH_INTERVAL_MILLIS - now;
+      if (delay > 0) {
+        batchScheduled = true;
+        SCHEDULER.schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (SessionRecovery.this) {
+              batchScheduled = false;
+            }
+            startTasks();
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+        return;
+      }
+
+      int batchSize = Math.min(MAX_RATE * (int) BATCH_INTERVAL_MILLIS / 1000, MAX_RUNNING - running);
+      while (batch.size() < batchSize && !tasks.isEmpty()) {
+        batch.add(tasks.poll());
+      }
+      if (batch.isEmpty()) {
+        // Too many running. A task completion will trigger the next batch.
+        return;
+      }
+      running += batch.size();
+      lastBatchTime = now;
+    }
+
+    for (RecoveryTask task : batch) {
+      task.start();
+    }
+    // Schedule the next batch if there are more
+    startTasks();
+  }
+
+  private void taskCompleted(RecoveryTask task, Throwable failure) {
+    boolean retry = false;
+    synchronized (this) {
+      running--;
+      if (failure != null) {
+        long delay = retryStrategy.nextRetry(++task.failureCount, task.startTime, task.type, task.path);
+        if (delay < 0) {
+          recoveryFailures++;
+          LOG.error("Recovery task failed for path {}. Not retrying.", task.path, failure);
+        } else {
+          LOG.debug("Recovery task failed for path {}. Retry in {} ms.", new Object[] {task.path, delay, failure});
+          waitingRetries++;
+          retry = true;
+          scheduleRetry(task, delay);
+        }
+      }
+    }
+    if (!retry) {
+      startTasks();
+      checkCompletion();
+    }
+  }
+
+  private void scheduleRetry(final RecoveryTask task, long delay) {
+    SCHEDULER.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (SessionRecovery.this) {
+          waitingRetries--;
+          tasks.add(task);
+        }
+        startTasks();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void checkCompletion() {
+    final int completedTasks;
+    final int failures;
+    final long latency;
+    synchronized (this) {
+      if (!recovering || !connected || !tasks.isEmpty() || running > 0 || waitingRetries > 0) {
+        return;
+      }
+      recovering = false;
+      completedTasks = recoveryTasks;
+      failures = recoveryFailures;
+      latency = System.currentTimeMillis() - recoveryStartTime;
+      lastLatency = latency;
+      recoveryCount++;
+    }
+
+    LOG.info("ZooKeeper session recovery completed in {} ms with {} tasks and {} failures.",
+             new Object[] {latency, completedTasks, failures});
+    for (ListenerCaller caller : listeners) {
+      caller.recovered(completedTasks, failures, latency);
+    }
+  }
+
+  /**
+   * A recovery task with its retry state.
+   */
+  private final class RecoveryTask {
+    private final RetryStrategy.OperationType type;
+    private final String path;
+    private final Supplier<? extends ListenableFuture<?>> task;
+    private final long startTime;
+    private int failureCount;
+
+    RecoveryTask(RetryStrategy.OperationType type, String path, Supplier<? extends ListenableFuture<?>> task) {
+      this.type = type;
+      this.path = path;
+      this.task = task;
+      this.startTime = System.currentTimeMillis();
+    }
+
+    void start() {
+      ListenableFuture<?> future;
+      try {
+        future = task.get();
+      } catch (Throwable t) {
+        taskCompleted(this, t);
+        return;
+      }
+      Futures.addCallback(future, new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+          taskCompleted(RecoveryTask.this, null);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          taskCompleted(RecoveryTask.this, t);
+        }
+      }, Threads.SAME_THREAD_EXECUTOR);
+    }
+  }
+
+  /**
+   * Calls a {@link Listener} from its {@link Executor}.
+   */
+  private static final class ListenerCaller implements Listener {
+    private final Listener listener;
+    private final Executor executor;
+
+    ListenerCaller(Listener listener, Executor executor) {
+      this.listener = listener;
+      this.executor = executor;
+    }
+
+    @Override
+    public void recovered(final int tasks, final int failures, final long latency) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            listener.recovered(tasks, failures, latency);
+          } catch (Throwable t) {
+            LOG.error("Exception raised from recovery listener.", t);
+          }
+        }
+      });
+    }
+  }
+}
@@ -16,10 +16,12 @@
 package com.continuuity.weave.zookeeper;
 
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 
 import javax.annotation.Nullable;
+import java.util.List;
 
 /**
  * A ZooKeeper client that provides asynchronous zookeeper operations.
@@ -156,4 +158,15 @@ public interface ZKClient {
    *         given as the future result. If there is error, it will be reflected as error in the future.
    */
   OperationFuture<String> delete(String deletePath, int version);
+
+  /**
+   * Executes the given operations atomically in one round trip. Either all operations succeed or none of them is
+   * applied.
+   *
+   * @param ops Operations to execute, in order.
+   * @return A {@link OperationFuture} that will be completed when the multi call is done, with one {@link OpResult}
+   *         for each operation. If any operation failed, the {@link org.apache.zookeeper.KeeperException} of the
+   *         first failed operation will be reflected as error in the future.
+   */
+  OperationFuture<List<OpResult>> multi(Iterable<ZKOp> ops);
 }
@@ -24,6 +24,8 @@ import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * A {@link ZKClient} that extends from {@link Service} to provide lifecycle management functions.
  * The {@link #start()} method needed to be called before calling any other method on this interface.
@@ -41,13 +43,16 @@ public interface ZKClientService extends ZKClient, Service {
 
   /**
    * Builder for creating an implementation of {@link ZKClientService}.
-   * The default client timeout is 10000ms.
+   * The default client timeout is 10000ms. By default all callbacks and watcher events are dispatched by one thread.
    */
   public static final class Builder {
 
     private final String connectStr;
     private int timeout = 10000;
     private Watcher connectionWatcher;
+    private int eventThreads = 1;
+    private int multiThreads = DefaultZKClientService.DEFAULT_MULTI_THREADS;
+    private long slowCallbackThreshold = 1000;
     private Multimap<String, ACL> acls = HashMultimap.create();
 
     /**
@@ -79,12 +84,50 @@ public interface ZKClientService extends ZKClient, Service {
       return this;
     }
 
+    /**
+     * Sets the number of threads for dispatching callbacks and watcher events. Events are assigned to threads by
+     * the hash of their paths, hence events of the same path are always dispatched in order, while events of
+     * different paths can be dispatched concurrently. Callbacks and watchers that share state across paths
+     * need to be thread safe when using more than one thread.
+     * @param threads Number of threads.
+     * @return This builder.
+     */
+    public Builder setEventThreads(int threads) {
+      this.eventThreads = threads;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of {@link ZKClient#multi(Iterable) multi} calls that run concurrently. ZooKeeper only
+     * provides a blocking multi call, hence each call in progress takes a thread. Calls beyond the limit are queued.
+     * The default is {@value DefaultZKClientService#DEFAULT_MULTI_THREADS}.
+     * @param threads Number of threads.
+     * @return This builder.
+     */
+    public Builder setMultiThreads(int threads) {
+      this.multiThreads = threads;
+      return this;
+    }
+
+    /**
+     * Sets the time that a callback or watcher can take before it is logged as slow, as it delays all other events
+     * dispatched by the same thread. The default is 1 second.
+     * @param threshold The threshold.
+     * @param unit Unit for the threshold.
+     * @return This builder.
+     */
+    public Builder setSlowCallbackThreshold(long threshold, TimeUnit unit) {
+      this.slowCallbackThreshold = unit.toMillis(threshold);
+      return this;
+    }
+
     /**
      * Creates an instance of {@link ZKClientService} with the settings of this builder.
      * @return A new instance of {@link ZKClientService}.
      */
     public ZKClientService build() {
-      return new DefaultZKClientService(connectStr, timeout, connectionWatcher);
+      return new DefaultZKClientService(connectStr, timeout, connectionWatcher,
+                                        eventThreads, multiThreads, slowCallbackThreshold, TimeUnit.MILLISECONDS);
     }
 
     private Builder(String connectStr) {
@@ -15,6 +15,7 @@
  */
 package com.continuuity.weave.zookeeper;
 
+import com.continuuity.weave.internal.zookeeper.CachingZKClient;
 import com.continuuity.weave.internal.zookeeper.FailureRetryZKClient;
 import com.continuuity.weave.internal.zookeeper.NamespaceZKClient;
 import com.continuuity.weave.internal.zookeeper.RewatchOnExpireZKClient;
@@ -54,6 +55,20 @@ public final class ZKClients {
     return new NamespaceZKClient(zkClient, namespace);
   }
 
+  /**
+   * Creates a {@link ZKClient} that caches results of exists, getChildren and getData calls. Each cached result
+   * is invalidated by a single watch on ZooKeeper, which notifies all {@link org.apache.zookeeper.Watcher Watchers}
+   * set through the calls served by that result. Writes done through the returned {@link ZKClient} are always
+   * visible to reads that start after the write completed.
+   *
+   * @param client The {@link ZKClient} for operations delegation.
+   * @param maxSize Maximum number of results to cache. The least recently used result is evicted first.
+   * @return A {@link ZKClient} that serves reads from cache.
+   */
+  public static ZKClient cache(ZKClient client, int maxSize) {
+    return new CachingZKClient(client, maxSize);
+  }
+
   private ZKClients() {
   }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.zookeeper;
+
+import com.google.common.base.Preconditions;
+import org.apache.zookeeper.CreateMode;
+
+import javax.annotation.Nullable;
+
+/**
+ * Represents one operation in a {@link ZKClient#multi(Iterable) multi} call.
+ */
+public final class ZKOp {
+
+  /**
+   * Type of the operation.
+   */
+  public enum Type {
+    CREATE,
+    SET_DATA,
+    DELETE,
+    CHECK
+  }
+
+  private final Type type;
+  private final String path;
+  private final byte[] data;
+  private final CreateMode createMode;
+  private final int version;
+
+  /**
+   * Creates an operation for creating a node. Unlike {@link ZKClient#create(String, byte[], CreateMode)}, parent
+   * nodes are not created automatically.
+   */
+  public static ZKOp create(String path, @Nullable byte[] data, CreateMode createMode) {
+    Preconditions.checkNotNull(createMode, "CreateMode cannot be null.");
+    return new ZKOp(Type.CREATE, path, data, createMode, -1);
+  }
+
+  /**
+   * Creates an operation for setting data of a node without matching version.
+   */
+  public static ZKOp setData(String path, byte[] data) {
+    return setData(path, data, -1);
+  }
+
+  /**
+   * Creates an operation for setting data of a node that match the given version.
+   */
+  public static ZKOp setData(String path, byte[] data, int version) {
+    return new ZKOp(Type.SET_DATA, path, data, null, version);
+  }
+
+  /**
+   * Creates an operation for deleting a node without matching version.
+   */
+  public static ZKOp delete(String path) {
+    return delete(path, -1);
+  }
+
+  /**
+   * Creates an operation for deleting a node that match the given version.
+   */
+  public static ZKOp delete(String path, int version) {
+    return new ZKOp(Type.DELETE, path, null, null, version);
+  }
+
+  /**
+   * Creates an operation that fails the multi call if the version of the node doesn't match the given version.
+   */
+  public static ZKOp check(String path, int version) {
+    return new ZKOp(Type.CHECK, path, null, null, version);
+  }
+
+  private ZKOp(Type type, String path, @Nullable byte[] data, @Nullable CreateMode createMode, int version) {
+    Preconditions.checkNotNull(path, "Path cannot be null.");
+    this.type = type;
+    this.path = path;
+    this.data = data;
+    this.createMode = createMode;
+    this.version = version;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return Data for create and set data operation, or {@code null} if there is no data.
+   */
+  @Nullable
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * @return The {@link CreateMode} for create operation, or {@code null} for other operations.
+   */
+  @Nullable
+  public CreateMode getCreateMode() {
+    return createMode;
+  }
+
+  /**
+   * @return The version to match, with {@code -1} matches any version.
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns a copy of this operation that acts on the given path.
+   */
+  public ZKOp withPath(String path) {
+    return new ZKOp(type, path, data, createMode, version);
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + path;
+  }
+}
@@ -18,12 +18,18 @@ package com.continuuity.weave.zookeeper;
 import com.continuuity.weave.common.Cancellable;
 import com.continuuity.weave.common.Threads;
 import com.continuuity.weave.internal.zookeeper.SettableOperationFuture;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
@@ -33,6 +39,8 @@ import org.slf4j.LoggerFactory;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Collection of helper methods for common operations that usually needed when interacting with ZooKeeper.
@@ -41,6 +49,16 @@ public final class ZKOperations {
 
   private static final Logger LOG = LoggerFactory.getLogger(ZKOperations.class);
 
+  /**
+   * Maximum number of operations in one multi call, to keep the request well below the ZooKeeper packet limit.
+   */
+  private static final int MAX_MULTI_OPS = 1000;
+
+  /**
+   * Default maximum number of outstanding requests issued by the tree operations.
+   */
+  private static final int DEFAULT_CONCURRENCY = 100;
+
   /**
    * Represents a ZK operation updates callback.
    * @param <T> Type of updated data.
@@ -212,11 +230,29 @@ public final class ZKOperations {
    * the exception would be reflected in the result future and deletion process will stop,
    * leaving the given path with intermediate state.
    *
+   * Same as calling {@link #recursiveDelete(ZKClient, String, int)} with {@value #DEFAULT_CONCURRENCY} concurrency.
+   *
+   * @param path The path to delete.
+   * @return An {@link OperationFuture} that will be completed when the given path is deleted or bailed due to
+   *         exception.
+   */
+  public static OperationFuture<String> recursiveDelete(ZKClient zkClient, String path) {
+    return recursiveDelete(zkClient, path, DEFAULT_CONCURRENCY);
+  }
+
+  /**
+   * Deletes the given path recursively, with the same semantic as {@link #recursiveDelete(ZKClient, String)}.
+   * Nodes are deleted bottom up with {@link ZKClient#multi(Iterable) multi} calls of up to {@value #MAX_MULTI_OPS}
+   * nodes each, and only nodes found to be non-empty get their children listed.
+   *
    * @param path The path to delete.
+   * @param maxConcurrency Maximum number of outstanding ZooKeeper requests issued by this operation.
    * @return An {@link OperationFuture} that will be completed when the given path is deleted or bailed due to
    *         exception.
    */
-  public static OperationFuture<String> recursiveDelete(final ZKClient zkClient, final String path) {
+  public static OperationFuture<String> recursiveDelete(final ZKClient zkClient, final String path,
+                                                        final int maxConcurrency) {
+    Preconditions.checkArgument(maxConcurrency > 0, "Concurrency must be > 0.");
     final SettableOperationFuture<String> resultFuture =
       SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
 
@@ -233,52 +269,400 @@ public final class ZKOperations {
       @Override
       public void onFailure(Throwable t) {
         // Failed to delete the given path
-        if (!(t instanceof KeeperException.NotEmptyException || t instanceof KeeperException.NoNodeException)) {
+        if (!(t instanceof KeeperException.NotEmptyException)) {
           // For errors other than NotEmptyException, treat the operation as failed.
           resultFuture.setException(t);
           return;
         }
 
-        // If failed because of NotEmptyException, get the list of children under the given path
-        Futures.addCallback(zkClient.getChildren(path), new FutureCallback<NodeChildren>() {
+        // If failed because of NotEmptyException, delete all nodes under the given path and try again.
+        SettableFuture<Void> childrenDeleted = SettableFuture.create();
+        deleteChildren(zkClient, ImmutableList.of(path), maxConcurrency, childrenDeleted);
+        Futures.addCallback(childrenDeleted, new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            Futures.addCallback(zkClient.delete(path), deleteCallback, Threads.SAME_THREAD_EXECUTOR);
+          }
 
           @Override
-          public void onSuccess(NodeChildren result) {
-            // Delete all children nodes recursively.
-            final List<OperationFuture<String>> deleteFutures = Lists.newLinkedList();
-            for (String child :result.getChildren()) {
-              deleteFutures.add(recursiveDelete(zkClient, path + "/" + child));
+          public void onFailure(Throwable t) {
+            if (t instanceof KeeperException.NotEmptyException || t instanceof KeeperException.NoNodeException) {
+              // Nodes are created or deleted by others while deleting, try again.
+              Futures.addCallback(zkClient.delete(path), deleteCallback, Threads.SAME_THREAD_EXECUTOR);
+            } else {
+              resultFuture.setException(t);
             }
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
 
-            // When deletion of all children succeeded, delete the given path again.
-            Futures.successfulAsList(deleteFutures).addListener(new Runnable() {
-              @Override
-              public void run() {
-                for (OperationFuture<String> deleteFuture : deleteFutures) {
-                  try {
-                    // If any exception when deleting children, treat the operation as failed.
-                    deleteFuture.get();
-                  } catch (Exception e) {
-                    resultFuture.setException(e.getCause());
-                  }
-                }
-                Futures.addCallback(zkClient.delete(path), deleteCallback, Threads.SAME_THREAD_EXECUTOR);
-              }
-            }, Threads.SAME_THREAD_EXECUTOR);
+    return resultFuture;
+  }
+
+  /**
+   * Lists the given path and all nodes under it. Same as calling {@link #listTree(ZKClient, String, int)} with
+   * {@value #DEFAULT_CONCURRENCY} concurrency.
+   */
+  public static OperationFuture<List<String>> listTree(ZKClient zkClient, String path) {
+    return listTree(zkClient, path, DEFAULT_CONCURRENCY);
+  }
+
+  /**
+   * Lists the given path and all nodes under it. The tree is listed one level at a time, with the children of all
+   * nodes in a level fetched in parallel. The listing is not atomic, hence nodes created or deleted while listing
+   * may or may not be reflected in the result, and the operation fails with
+   * {@link KeeperException.NoNodeException} if a node is deleted before its children are listed.
+   *
+   * @param zkClient The {@link ZKClient} for the operation.
+   * @param path Root of the tree to list.
+   * @param maxConcurrency Maximum number of outstanding ZooKeeper requests issued by this operation.
+   * @return An {@link OperationFuture} that will be completed with all paths of the tree, with parents always
+   *         come before their children.
+   */
+  public static OperationFuture<List<String>> listTree(ZKClient zkClient, String path, int maxConcurrency) {
+    Preconditions.checkArgument(maxConcurrency > 0, "Concurrency must be > 0.");
+    final SettableOperationFuture<List<String>> resultFuture =
+      SettableOperationFuture.create(path, Threads.SAME_THREAD_EXECUTOR);
+
+    Futures.addCallback(listLevels(zkClient, path, maxConcurrency), new FutureCallback<List<List<String>>>() {
+      @Override
+      public void onSuccess(List<List<String>> levels) {
+        resultFuture.set(ImmutableList.copyOf(Iterables.concat(levels)));
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        resultFuture.setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+
+    return resultFuture;
+  }
+
+  /**
+   * Copies the given tree to another path. Same as calling {@link #copyTree(ZKClient, String, String, int)} with
+   * {@value #DEFAULT_CONCURRENCY} concurrency.
+   */
+  public static OperationFuture<String> copyTree(ZKClient zkClient, String fromPath, String toPath) {
+    return copyTree(zkClient, fromPath, toPath, DEFAULT_CONCURRENCY);
+  }
+
+  /**
+   * Copies the given tree to another path. The source tree is listed with {@link #listTree(ZKClient, String, int)}
+   * and then copied top down, one level at a time, with the data of all nodes in a level fetched in parallel and
+   * the new nodes created with {@link ZKClient#multi(Iterable) multi} calls of up to {@value #MAX_MULTI_OPS} nodes
+   * each. All copied nodes are {@link CreateMode#PERSISTENT persistent}. The copy is not atomic and the operation
+   * stops on the first failure, leaving the target tree partially created. It fails with
+   * {@link KeeperException.NodeExistsException} if the target path already exists.
+   *
+   * @param zkClient The {@link ZKClient} for the operation.
+   * @param fromPath Root of the tree to copy from.
+   * @param toPath Path to copy the tree to. Missing parents of it will be created.
+   * @param maxConcurrency Maximum number of outstanding ZooKeeper requests issued by this operation.
+   * @return An {@link OperationFuture} that will be completed with the target path when the copy is done.
+   */
+  public static OperationFuture<String> copyTree(final ZKClient zkClient, final String fromPath, final String toPath,
+                                                 final int maxConcurrency) {
+    Preconditions.checkArgument(maxConcurrency > 0, "Concurrency must be > 0.");
+    Preconditions.checkArgument(!toPath.startsWith(fromPath + "/"), "Cannot copy %s into itself.", fromPath);
+    final SettableOperationFuture<String> resultFuture =
+      SettableOperationFuture.create(toPath, Threads.SAME_THREAD_EXECUTOR);
+
+    Futures.addCallback(listLevels(zkClient, fromPath, maxConcurrency), new FutureCallback<List<List<String>>>() {
+      @Override
+      public void onSuccess(List<List<String>> levels) {
+        SettableFuture<String> copied = SettableFuture.create();
+        copyLevels(zkClient, levels, 0, fromPath, toPath, maxConcurrency, copied);
+        Futures.addCallback(copied, new FutureCallback<String>() {
+          @Override
+          public void onSuccess(String result) {
+            resultFuture.set(result);
           }
 
           @Override
           public void onFailure(Throwable t) {
-            // If failed to get list of children, treat the operation as failed.
             resultFuture.setException(t);
           }
         }, Threads.SAME_THREAD_EXECUTOR);
       }
+
+      @Override
+      public void onFailure(Throwable t) {
+        resultFuture.setException(t);
+      }
     }, Threads.SAME_THREAD_EXECUTOR);
 
     return resultFuture;
   }
 
+  /**
+   * Lists the given path and all nodes under it, grouped by level, with the given path as the only node of the
+   * first level.
+   */
+  private static ListenableFuture<List<List<String>>> listLevels(ZKClient zkClient, String path, int maxConcurrency) {
+    SettableFuture<List<List<String>>> result = SettableFuture.create();
+    List<List<String>> levels = Lists.newArrayList();
+    levels.add(ImmutableList.of(path));
+    listLevel(zkClient, levels, maxConcurrency, result);
+    return result;
+  }
+
+  private static void listLevel(final ZKClient zkClient, final List<List<String>> levels, final int maxConcurrency,
+                                final SettableFuture<List<List<String>>> result) {
+    final List<String> level = levels.get(levels.size() - 1);
+    ListenableFuture<List<NodeChildren>> future = boundedTransform(level, new AsyncFunction<String, NodeChildren>() {
+      @Override
+      public ListenableFuture<NodeChildren> apply(String path) {
+        return zkClient.getChildren(path);
+      }
+    }, maxConcurrency);
+
+    Futures.addCallback(future, new FutureCallback<List<NodeChildren>>() {
+      @Override
+      public void onSuccess(List<NodeChildren> children) {
+        List<String> nextLevel = Lists.newArrayList();
+        for (int i = 0; i < children.size(); i++) {
+          for (String child : children.get(i).getChildren()) {
+            nextLevel.add(childPath(level.get(i), child));
+          }
+        }
+        if (nextLevel.isEmpty()) {
+          result.set(levels);
+          return;
+        }
+        levels.add(nextLevel);
+        listLevel(zkClient, levels, maxConcurrency, result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Deletes all children of the given nodes recursively. Children are deleted with one multi call for every
+   * {@value #MAX_MULTI_OPS} of them. Only when a multi call fails because some of the nodes are not empty, the
+   * children of those nodes get listed and deleted first. Hence leaf nodes are deleted without being listed.
+   */
+  private static void deleteChildren(final ZKClient zkClient, final List<String> parents, final int maxConcurrency,
+                                     final SettableFuture<Void> result) {
+    ListenableFuture<List<NodeChildren>> future = boundedTransform(parents, new AsyncFunction<String, NodeChildren>() {
+      @Override
+      public ListenableFuture<NodeChildren> apply(String path) {
+        return zkClient.getChildren(path);
+      }
+    }, maxConcurrency);
+
+    Futures.addCallback(future, new FutureCallback<List<NodeChildren>>() {
+      @Override
+      public void onSuccess(List<NodeChildren> nodeChildren) {
+        List<String> children = Lists.newArrayList();
+        for (int i = 0; i < nodeChildren.size(); i++) {
+          for (String child : nodeChildren.get(i).getChildren()) {
+            children.add(childPath(parents.get(i), child));
+          }
+        }
+        deleteNodes(zkClient, Lists.partition(children, MAX_MULTI_OPS), 0, maxConcurrency, result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Deletes the given batches of nodes recursively in order, starting from the given batch index.
+   */
+  private static void deleteNodes(final ZKClient zkClient, final List<List<String>> batches, final int index,
+                                  final int maxConcurrency, final SettableFuture<Void> result) {
+    if (index == batches.size()) {
+      result.set(null);
+      return;
+    }
+
+    final List<String> batch = batches.get(index);
+    List<ZKOp> ops = Lists.newArrayListWithCapacity(batch.size());
+    for (String path : batch) {
+      ops.add(ZKOp.delete(path));
+    }
+
+    Futures.addCallback(zkClient.multi(ops), new FutureCallback<List<OpResult>>() {
+      @Override
+      public void onSuccess(List<OpResult> opResults) {
+        deleteNodes(zkClient, batches, index + 1, maxConcurrency, result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (!(t instanceof KeeperException.NotEmptyException)) {
+          result.setException(t);
+          return;
+        }
+        // Some nodes in the batch have children. Delete them first and retry the batch.
+        SettableFuture<Void> childrenDeleted = SettableFuture.create();
+        deleteChildren(zkClient, batch, maxConcurrency, childrenDeleted);
+        Futures.addCallback(childrenDeleted, new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void deleted) {
+            deleteNodes(zkClient, batches, index, maxConcurrency, result);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            result.setException(t);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Copies the given levels of the source tree in order, starting from the given level index. Data of nodes
+   * in the same level are fetched concurrently and the target nodes are created with concurrent multi calls, of
+   * which the client may run fewer at a time, see {@link ZKClientService.Builder#setMultiThreads(int)}.
+   */
+  private static void copyLevels(final ZKClient zkClient, final List<List<String>> levels, final int index,
+                                 final String fromPath, final String toPath, final int maxConcurrency,
+                                 final SettableFuture<String> result) {
+    if (index == levels.size()) {
+      result.set(toPath);
+      return;
+    }
+
+    final List<String> level = levels.get(index);
+    ListenableFuture<List<NodeData>> dataFuture = boundedTransform(level, new AsyncFunction<String, NodeData>() {
+      @Override
+      public ListenableFuture<NodeData> apply(String path) {
+        return zkClient.getData(path);
+      }
+    }, maxConcurrency);
+
+    final FutureCallback<Object> createCallback = new FutureCallback<Object>() {
+      @Override
+      public void onSuccess(Object created) {
+        copyLevels(zkClient, levels, index + 1, fromPath, toPath, maxConcurrency, result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    };
+
+    Futures.addCallback(dataFuture, new FutureCallback<List<NodeData>>() {
+      @Override
+      public void onSuccess(List<NodeData> nodeData) {
+        if (index == 0) {
+          // The root is created individually so that missing parents of the target path are created as well.
+          Futures.addCallback(zkClient.create(toPath, nodeData.get(0).getData(), CreateMode.PERSISTENT),
+                              createCallback, Threads.SAME_THREAD_EXECUTOR);
+          return;
+        }
+
+        List<ZKOp> ops = Lists.newArrayListWithCapacity(level.size());
+        for (int i = 0; i < level.size(); i++) {
+          String path = toPath + level.get(i).substring(fromPath.length());
+          ops.add(ZKOp.create(path, nodeData.get(i).getData(), CreateMode.PERSISTENT));
+        }
+        Futures.addCallback(multiAll(zkClient, Lists.partition(ops, MAX_MULTI_OPS), maxConcurrency),
+                            createCallback, Threads.SAME_THREAD_EXECUTOR);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    }, Threads.SAME_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Executes the given batches of operations, with each batch in one multi call.
+   */
+  private static ListenableFuture<List<List<OpResult>>> multiAll(final ZKClient zkClient, List<List<ZKOp>> batches,
+                                                                 int maxConcurrency) {
+    return boundedTransform(batches, new AsyncFunction<List<ZKOp>, List<OpResult>>() {
+      @Override
+      public ListenableFuture<List<OpResult>> apply(List<ZKOp> ops) {
+        return zkClient.multi(ops);
+      }
+    }, maxConcurrency);
+  }
+
+  /**
+   * Applies the given function to every input, with at most {@code maxConcurrency} of the resulting futures
+   * being incomplete at any time. The returned future fails with the first failure and no more inputs will be
+   * processed after that.
+   *
+   * @return A future of the results in the same order as the inputs.
+   */
+  private static <I, O> ListenableFuture<List<O>> boundedTransform(final List<I> inputs,
+                                                                   final AsyncFunction<I, O> function,
+                                                                   int maxConcurrency) {
+    final SettableFuture<List<O>> result = SettableFuture.create();
+    if (inputs.isEmpty()) {
+      result.set(ImmutableList.<O>of());
+      return result;
+    }
+
+    final AtomicReferenceArray<O> outputs = new AtomicReferenceArray<O>(inputs.size());
+    final AtomicInteger nextIndex = new AtomicInteger(0);
+    final AtomicInteger completed = new AtomicInteger(0);
+
+    Runnable next = new Runnable() {
+      @Override
+      public void run() {
+        final int index = nextIndex.getAndIncrement();
+        if (index >= inputs.size() || result.isDone()) {
+          return;
+        }
+
+        ListenableFuture<O> future;
+        try {
+          future = function.apply(inputs.get(index));
+        } catch (Throwable t) {
+          result.setException(t);
+          return;
+        }
+
+        final Runnable next = this;
+        Futures.addCallback(future, new FutureCallback<O>() {
+          @Override
+          public void onSuccess(O output) {
+            outputs.set(index, output);
+            if (completed.incrementAndGet() == inputs.size()) {
+              List<O> results = Lists.newArrayListWithCapacity(inputs.size());
+              for (int i = 0; i < inputs.size(); i++) {
+                results.add(outputs.get(i));
+              }
+              result.set(results);
+            } else {
+              next.run();
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            result.setException(t);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+      }
+    };
+
+    for (int i = 0; i < Math.min(maxConcurrency, inputs.size()); i++) {
+      next.run();
+    }
+    return result;
+  }
+
+  private static String childPath(String parent, String child) {
+    return "/".equals(parent) ? parent + child : parent + "/" + child;
+  }
+
   /**
    * Watch for the given path until it exists.
    * @param zkClient The {@link ZKClient} to use.
@@ -15,8 +15,12 @@
  */
 package com.continuuity.weave.zookeeper;
 
+import com.continuuity.weave.common.Threads;
+import com.continuuity.weave.internal.zookeeper.CachingZKClient;
+import com.continuuity.weave.internal.zookeeper.DefaultZKClientService;
 import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
 import com.continuuity.weave.internal.zookeeper.KillZKSession;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -24,6 +28,8 @@ import com.google.common.io.Files;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.junit.Assert;
@@ -32,6 +38,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
@@ -128,6 +135,212 @@ public class ZKClientTest {
     }
   }
 
+  @Test
+  public void testMulti() throws ExecutionException, InterruptedException {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+
+    try {
+      ZKClientService client = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      client.startAndWait();
+
+      try {
+        ZKClient zkClient = ZKClients.namespace(ZKClients.reWatchOnExpire(
+          ZKClients.retryOnFailure(client, RetryStrategies.fixDelay(100, TimeUnit.MILLISECONDS))), "/multi");
+        client.create("/multi", null, CreateMode.PERSISTENT).get();
+
+        List<OpResult> results = zkClient.multi(ImmutableList.of(
+          ZKOp.create("/test", null, CreateMode.PERSISTENT),
+          ZKOp.create("/test/c1", "data".getBytes(), CreateMode.PERSISTENT),
+          ZKOp.create("/test/c2", null, CreateMode.PERSISTENT_SEQUENTIAL))).get();
+
+        // Paths in results are relative to the namespace
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals("/test", ((OpResult.CreateResult) results.get(0)).getPath());
+        String sequentialPath = ((OpResult.CreateResult) results.get(2)).getPath();
+        Assert.assertTrue(sequentialPath.startsWith("/test/c2"));
+        Assert.assertTrue(Arrays.equals("data".getBytes(), client.getData("/multi/test/c1").get().getData()));
+
+        // Either all or none of the operations are applied
+        try {
+          zkClient.multi(ImmutableList.of(ZKOp.setData("/test/c1", "new".getBytes()),
+                                          ZKOp.delete("/test/c1"),
+                                          ZKOp.check("/test", 10))).get();
+          Assert.fail("Expected multi to fail.");
+        } catch (ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof KeeperException.BadVersionException);
+        }
+        Assert.assertTrue(Arrays.equals("data".getBytes(), zkClient.getData("/test/c1").get().getData()));
+
+        zkClient.multi(ImmutableList.of(ZKOp.delete("/test/c1"), ZKOp.delete(sequentialPath),
+                                        ZKOp.delete("/test"))).get();
+        Assert.assertNull(zkClient.exists("/test").get());
+      } finally {
+        client.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testEventDispatch() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+
+    try {
+      ZKClientService client = ZKClientService.Builder.of(zkServer.getConnectionStr())
+                                                      .setEventThreads(4)
+                                                      .setSlowCallbackThreshold(100, TimeUnit.MILLISECONDS)
+                                                      .build();
+      client.startAndWait();
+      try {
+        // Find a path that is dispatched by a different thread than the slow path
+        String slowPath = "/slow";
+        String fastPath = "/fast";
+        for (int i = 0; (fastPath.hashCode() & Integer.MAX_VALUE) % 4 == (slowPath.hashCode() & Integer.MAX_VALUE) % 4;
+             i++) {
+          fastPath = "/fast" + i;
+        }
+        client.create(slowPath, null, CreateMode.PERSISTENT).get();
+        client.create(fastPath, null, CreateMode.PERSISTENT).get();
+
+        // Block the thread serving the slow path in a callback
+        final CountDownLatch release = new CountDownLatch(1);
+        client.exists(slowPath).addListener(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+
+        // Callbacks of the same path are queued in order behind the slow one
+        final List<Integer> order = Collections.synchronizedList(Lists.<Integer>newArrayList());
+        final CountDownLatch slowDone = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+          final int idx = i;
+          client.exists(slowPath).addListener(new Runnable() {
+            @Override
+            public void run() {
+              order.add(idx);
+              slowDone.countDown();
+            }
+          }, Threads.SAME_THREAD_EXECUTOR);
+        }
+
+        // Callbacks of other paths are not blocked
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        client.exists(fastPath).addListener(new Runnable() {
+          @Override
+          public void run() {
+            fastDone.countDown();
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+        Assert.assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(10, slowDone.getCount());
+
+        TimeUnit.MILLISECONDS.sleep(200);
+        release.countDown();
+        Assert.assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(ImmutableList.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), ImmutableList.copyOf(order));
+
+        DefaultZKClientService zkClientService = (DefaultZKClientService) client;
+        Assert.assertTrue(zkClientService.getDispatchedEvents() >= 12);
+        Assert.assertEquals(1, zkClientService.getSlowCallbacks());
+        Assert.assertTrue(zkClientService.getMaxCallbackTime(TimeUnit.MILLISECONDS) >= 200);
+        Assert.assertTrue(zkClientService.getCallbackTime(TimeUnit.MILLISECONDS) >= 200);
+      } finally {
+        client.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+
+    try {
+      ZKClientService client = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      client.startAndWait();
+      try {
+        CachingZKClient cachingClient = (CachingZKClient) ZKClients.cache(client, 3);
+        client.create("/a", "1".getBytes(Charsets.UTF_8), CreateMode.PERSISTENT).get();
+
+        // Watchers of the same cached result are all notified by one watch
+        final BlockingQueue<WatchedEvent> events = new LinkedBlockingQueue<WatchedEvent>();
+        Watcher watcher = new Watcher() {
+          @Override
+          public void process(WatchedEvent event) {
+            events.add(event);
+          }
+        };
+        Assert.assertEquals("1", new String(cachingClient.getData("/a", watcher).get().getData(), Charsets.UTF_8));
+        Assert.assertEquals("1", new String(cachingClient.getData("/a", watcher).get().getData(), Charsets.UTF_8));
+        Assert.assertEquals(1, cachingClient.getMisses());
+        Assert.assertEquals(1, cachingClient.getHits());
+
+        // Listeners of a cached result are called from the event thread, not from the caller thread
+        final BlockingQueue<Thread> listenerThreads = new LinkedBlockingQueue<Thread>();
+        cachingClient.getData("/a").addListener(new Runnable() {
+          @Override
+          public void run() {
+            listenerThreads.add(Thread.currentThread());
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+        Thread listenerThread = listenerThreads.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(listenerThread);
+        Assert.assertNotSame(Thread.currentThread(), listenerThread);
+
+        // Change from another client invalidates the cache
+        client.setData("/a", "2".getBytes(Charsets.UTF_8)).get();
+        for (int i = 0; i < 2; i++) {
+          WatchedEvent event = events.poll(5, TimeUnit.SECONDS);
+          Assert.assertNotNull(event);
+          Assert.assertEquals(Watcher.Event.EventType.NodeDataChanged, event.getType());
+        }
+        Assert.assertEquals("2", new String(cachingClient.getData("/a").get().getData(), Charsets.UTF_8));
+
+        // Writes through the caching client are visible right away
+        for (int i = 0; i < 10; i++) {
+          cachingClient.setData("/a", Integer.toString(i).getBytes(Charsets.UTF_8)).get();
+          Assert.assertEquals(Integer.toString(i),
+                              new String(cachingClient.getData("/a").get().getData(), Charsets.UTF_8));
+        }
+        Assert.assertNull(cachingClient.exists("/a/b").get());
+        cachingClient.create("/a/b/c", null, CreateMode.PERSISTENT).get();
+        Assert.assertNotNull(cachingClient.exists("/a/b").get());
+        Assert.assertEquals(ImmutableList.of("c"), cachingClient.getChildren("/a/b").get().getChildren());
+        cachingClient.delete("/a/b/c").get();
+        Assert.assertTrue(cachingClient.getChildren("/a/b").get().getChildren().isEmpty());
+
+        // Watchers of evicted results are still notified
+        events.clear();
+        Assert.assertNull(cachingClient.exists("/x", watcher).get());
+        for (String path : ImmutableList.of("/a", "/a/b", "/")) {
+          cachingClient.getChildren(path).get();
+        }
+        Assert.assertTrue(cachingClient.getEvictions() > 0);
+        Assert.assertTrue(cachingClient.getSize() <= 3);
+        client.create("/x", null, CreateMode.PERSISTENT).get();
+        WatchedEvent event = events.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(event);
+        Assert.assertEquals(Watcher.Event.EventType.NodeCreated, event.getType());
+        Assert.assertNotNull(cachingClient.exists("/x").get());
+      } finally {
+        client.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
   @Test
   public void testSetData() throws ExecutionException, InterruptedException {
     InMemoryZKServer zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
@@ -181,6 +394,16 @@ public class ZKClientTest {
           }
         });
 
+        final BlockingQueue<Integer> recoveredTasks = new LinkedBlockingQueue<Integer>();
+        SessionRecovery recovery = SessionRecovery.of(client);
+        recovery.addListener(new SessionRecovery.Listener() {
+          @Override
+          public void recovered(int tasks, int failures, long latency) {
+            Assert.assertEquals(0, failures);
+            recoveredTasks.add(tasks);
+          }
+        }, Threads.SAME_THREAD_EXECUTOR);
+
         client.create("/expireRewatch", null, CreateMode.PERSISTENT);
         Assert.assertEquals(Watcher.Event.EventType.NodeCreated, events.poll(2, TimeUnit.SECONDS));
 
@@ -188,6 +411,11 @@ public class ZKClientTest {
 
         Assert.assertTrue(expireReconnectLatch.await(5, TimeUnit.SECONDS));
 
+        // The watch re-set is done through the session recovery.
+        Assert.assertEquals(Integer.valueOf(1), recoveredTasks.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, recovery.getRecoveryCount());
+        Assert.assertFalse(recovery.isRecovering());
+
         client.delete("/expireRewatch");
         Assert.assertEquals(Watcher.Event.EventType.NodeDeleted, events.poll(4, TimeUnit.SECONDS));
       } finally {
@@ -16,10 +16,14 @@
 package com.continuuity.weave.zookeeper;
 
 import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -51,6 +55,82 @@ public class ZKOperationsTest {
 
         Assert.assertNull(client.exists("/test1").get(2, TimeUnit.SECONDS));
 
+        // A tree larger than one multi call
+        for (int i = 0; i < 30; i++) {
+          for (int j = 0; j < 40; j++) {
+            client.create("/test2/node" + i + "/node" + j, null, CreateMode.PERSISTENT).get();
+          }
+        }
+        ZKOperations.recursiveDelete(client, "/test2").get(10, TimeUnit.SECONDS);
+        Assert.assertNull(client.exists("/test2").get(2, TimeUnit.SECONDS));
+
+      } finally {
+        client.stopAndWait();
+      }
+    } finally {
+      zkServer.stopAndWait();
+    }
+  }
+
+  @Test
+  public void treeOperations() throws ExecutionException, InterruptedException, TimeoutException {
+    InMemoryZKServer zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+
+    try {
+      ZKClientService client = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+      client.startAndWait();
+
+      try {
+        client.create("/tree", "root".getBytes(Charsets.UTF_8), CreateMode.PERSISTENT).get();
+        for (int i = 0; i < 5; i++) {
+          for (int j = 0; j < 3; j++) {
+            byte[] data = ("node" + i + j).getBytes(Charsets.UTF_8);
+            client.create("/tree/node" + i + "/node" + j, data, CreateMode.PERSISTENT).get();
+          }
+        }
+
+        // Parents always come before children
+        List<String> paths = ZKOperations.listTree(client, "/tree", 2).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1 + 5 + 15, paths.size());
+        Assert.assertEquals(21, ImmutableSet.copyOf(paths).size());
+        for (int i = 1; i < paths.size(); i++) {
+          String parent = paths.get(i).substring(0, paths.get(i).lastIndexOf('/'));
+          Assert.assertTrue(paths.indexOf(parent) < i);
+        }
+
+        // Copy to a path with missing parents
+        ZKOperations.copyTree(client, "/tree", "/copy/tree", 2).get(5, TimeUnit.SECONDS);
+        byte[] rootData = client.getData("/copy/tree").get(2, TimeUnit.SECONDS).getData();
+        Assert.assertEquals("root", new String(rootData, Charsets.UTF_8));
+        for (String path : paths) {
+          String copyPath = "/copy" + path;
+          Assert.assertArrayEquals(client.getData(path).get(2, TimeUnit.SECONDS).getData(),
+                                   client.getData(copyPath).get(2, TimeUnit.SECONDS).getData());
+        }
+        Assert.assertEquals(21, ZKOperations.listTree(client, "/copy/tree").get(5, TimeUnit.SECONDS).size());
+
+        // Copy to an existing path fails
+        try {
+          ZKOperations.copyTree(client, "/tree", "/copy/tree").get(5, TimeUnit.SECONDS);
+          Assert.fail("Expected failure when copying to an existing path.");
+        } catch (ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof KeeperException.NodeExistsException);
+        }
+
+        // Listing a missing path fails
+        try {
+          ZKOperations.listTree(client, "/missing").get(5, TimeUnit.SECONDS);
+          Assert.fail("Expected failure when listing a missing path.");
+        } catch (ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof KeeperException.NoNodeException);
+        }
+
+        ZKOperations.recursiveDelete(client, "/tree", 1).get(5, TimeUnit.SECONDS);
+        ZKOperations.recursiveDelete(client, "/copy", 3).get(5, TimeUnit.SECONDS);
+        Assert.assertNull(client.exists("/tree").get(2, TimeUnit.SECONDS));
+        Assert.assertNull(client.exists("/copy").get(2, TimeUnit.SECONDS));
+
       } finally {
         client.stopAndWait();
       }
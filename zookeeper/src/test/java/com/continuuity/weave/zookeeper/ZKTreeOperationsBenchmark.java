@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012-2013 Continuuity,Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.zookeeper;
+
+import com.continuuity.weave.internal.zookeeper.InMemoryZKServer;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for the tree operations in {@link ZKOperations} against an {@link InMemoryZKServer}, with a tree of
+ * {@value #FAN_OUT} nodes having {@value #FAN_OUT} children each (10101 nodes in total). Scores are in milliseconds
+ * per tree. The {@link #nodeByNodeDelete()} benchmark deletes the same tree with one delete attempt and one
+ * getChildren call per inner node, all issued at once, as a baseline for {@link #recursiveDelete()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ZKTreeOperationsBenchmark {
+
+  private static final int FAN_OUT = 100;
+  private static final String TEMPLATE_PATH = "/template";
+  private static final String DELETE_PATH = "/delete";
+  private static final String COPY_PATH = "/copy";
+
+  @Param({"1", "16", "100"})
+  private int concurrency;
+
+  private InMemoryZKServer zkServer;
+  private ZKClientService zkClient;
+
+  @Setup
+  public void setup() throws Exception {
+    zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+    zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+
+    byte[] data = Strings.repeat("x", 100).getBytes(Charsets.UTF_8);
+    zkClient.create(TEMPLATE_PATH, data, CreateMode.PERSISTENT).get();
+    for (int i = 0; i < FAN_OUT; i++) {
+      List<ZKOp> ops = Lists.newArrayList();
+      String parent = TEMPLATE_PATH + "/node" + i;
+      ops.add(ZKOp.create(parent, data, CreateMode.PERSISTENT));
+      for (int j = 0; j < FAN_OUT; j++) {
+        ops.add(ZKOp.create(parent + "/node" + j, data, CreateMode.PERSISTENT));
+      }
+      zkClient.multi(ops).get();
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void prepare() throws Exception {
+    if (zkClient.exists(DELETE_PATH).get() == null) {
+      ZKOperations.copyTree(zkClient, TEMPLATE_PATH, DELETE_PATH).get();
+    }
+    if (zkClient.exists(COPY_PATH).get() != null) {
+      ZKOperations.recursiveDelete(zkClient, COPY_PATH).get();
+    }
+  }
+
+  @TearDown
+  public void teardown() {
+    zkClient.stopAndWait();
+    zkServer.stopAndWait();
+  }
+
+  @Benchmark
+  public String recursiveDelete() throws Exception {
+    return ZKOperations.recursiveDelete(zkClient, DELETE_PATH, concurrency).get();
+  }
+
+  @Benchmark
+  public String nodeByNodeDelete() throws Exception {
+    return nodeByNodeDelete(zkClient, DELETE_PATH).get();
+  }
+
+  @Benchmark
+  public List<String> listTree() throws Exception {
+    return ZKOperations.listTree(zkClient, TEMPLATE_PATH, concurrency).get();
+  }
+
+  @Benchmark
+  public String copyTree() throws Exception {
+    return ZKOperations.copyTree(zkClient, TEMPLATE_PATH, COPY_PATH, concurrency).get();
+  }
+
+  /**
+   * Deletes the given path by trying to delete it first. If it is not empty, deletes all children recursively in
+   * parallel and then deletes it again.
+   */
+  private static ListenableFuture<String> nodeByNodeDelete(final ZKClient zkClient, final String path) {
+    final SettableFuture<String> result = SettableFuture.create();
+    Futures.addCallback(zkClient.delete(path), new FutureCallback<String>() {
+      private final FutureCallback<String> deleteCallback = this;
+
+      @Override
+      public void onSuccess(String deleted) {
+        result.set(deleted);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (!(t instanceof KeeperException.NotEmptyException)) {
+          result.setException(t);
+          return;
+        }
+        Futures.addCallback(zkClient.getChildren(path), new FutureCallback<NodeChildren>() {
+          @Override
+          public void onSuccess(NodeChildren nodeChildren) {
+            List<ListenableFuture<String>> futures = Lists.newArrayList();
+            for (String child : nodeChildren.getChildren()) {
+              futures.add(nodeByNodeDelete(zkClient, path + "/" + child));
+            }
+            Futures.addCallback(Futures.allAsList(futures), new FutureCallback<List<String>>() {
+              @Override
+              public void onSuccess(List<String> deleted) {
+                Futures.addCallback(zkClient.delete(path), deleteCallback);
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                result.setException(t);
+              }
+            });
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            result.setException(t);
+          }
+        });
+      }
+    });
+    return result;
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().include(ZKTreeOperationsBenchmark.class.getSimpleName()).build()).run();
+  }
+}